@@ -0,0 +1,146 @@
+package com.tilde.pip_news_bot;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.Arrays;
+
+import io.flutter.plugin.common.MethodChannel;
+import timber.log.Timber;
+
+/**
+ * Sends partial transcripts to Dart as deltas, at most one message per frame.
+ * <p>
+ * A partial usually repeats most of the previous one, so instead of the whole transcript
+ * only the length of the prefix it shares with the last delivered transcript and the
+ * differing suffix are sent, as "speech.onSpeechDelta" with arguments [prefixLength, suffix].
+ * The shared prefix is not found by comparing the transcripts: each partial comes with the
+ * length it keeps from the one before, as known to the normalizer that produced it, and the
+ * shortest of those since the last message is what the delivered transcript still shares.
+ * Partials arriving within a frame of the last message are coalesced into the newest one,
+ * and a partial equal to the last delivered transcript is not sent at all.
+ * <p>
+ * Must be used on the main thread.
+ */
+final class PartialResultSender {
+
+    private static final long FRAME_INTERVAL_MILLIS = 16;
+
+    private final MethodChannel mChannel;
+    private final Handler mHandler = new Handler();
+    private final Runnable mFlushTask = this::flush;
+
+    // what Dart holds, deltas are relative to it
+    private String mDelivered = "";
+    private String mPending;
+    // leading chars that mPending, or mDelivered if none, shares with mDelivered
+    private int mUnchangedLength;
+    private long mLastSendTime;
+
+    // traffic since reset, to compare with sending every partial in full
+    private long mStartTime;
+    private int mReceivedCount;
+    private int mSentCount;
+    private long mFullBytes;
+    private long mSentBytes;
+
+    PartialResultSender(MethodChannel channel) {
+        mChannel = channel;
+        reset();
+    }
+
+    /**
+     * Queues the newest partial transcript, sending it right away if no message has been
+     * sent within the last frame.
+     *
+     * @param unchangedLength number of leading chars {@code transcript} shares with the
+     *                        previously offered one, 0 if unknown
+     */
+    void offer(String transcript, int unchangedLength) {
+        mReceivedCount++;
+        mFullBytes += utf8Length(transcript);
+        mPending = transcript;
+        mUnchangedLength = Math.min(mUnchangedLength, unchangedLength);
+        long now = SystemClock.uptimeMillis();
+        long due = mLastSendTime + FRAME_INTERVAL_MILLIS;
+        mHandler.removeCallbacks(mFlushTask);
+        if (now >= due) {
+            flush();
+        } else {
+            mHandler.postAtTime(mFlushTask, due);
+        }
+    }
+
+    /**
+     * Drops any pending partial and starts over from an empty transcript, as Dart does after
+     * a complete result. Logs the traffic since the previous reset.
+     */
+    void reset() {
+        mHandler.removeCallbacks(mFlushTask);
+        if (mReceivedCount > 0) {
+            long millis = Math.max(1, SystemClock.uptimeMillis() - mStartTime);
+            Timber.i("Partial results over the channel: %d received, %d sent (%.1f/s), "
+                            + "%d bytes sent (%d B/s), %d bytes if sent in full (%d B/s)",
+                    mReceivedCount, mSentCount, mSentCount * 1000f / millis,
+                    mSentBytes, mSentBytes * 1000 / millis,
+                    mFullBytes, mFullBytes * 1000 / millis);
+        }
+        mDelivered = "";
+        mPending = null;
+        mUnchangedLength = 0;
+        mStartTime = SystemClock.uptimeMillis();
+        mReceivedCount = 0;
+        mSentCount = 0;
+        mFullBytes = 0;
+        mSentBytes = 0;
+    }
+
+    private void flush() {
+        final String transcript = mPending;
+        mPending = null;
+        if (transcript == null) {
+            return;
+        }
+        final int prefixLength = prefixLength(transcript, mUnchangedLength);
+        mUnchangedLength = transcript.length();
+        // equals only compares the chars when the lengths are the same, rarely so as they grow
+        if (transcript.equals(mDelivered)) {
+            return;
+        }
+        final String suffix = transcript.substring(prefixLength);
+        mChannel.invokeMethod("speech.onSpeechDelta", Arrays.asList(prefixLength, suffix));
+        mDelivered = transcript;
+        mLastSendTime = SystemClock.uptimeMillis();
+        mSentCount++;
+        mSentBytes += utf8Length(suffix) + 4;
+    }
+
+    /**
+     * @return {@code unchangedLength} within the bounds of both transcripts, never ending
+     * between the two halves of a surrogate pair, as the channel could not encode a lone
+     * surrogate in the suffix
+     */
+    private int prefixLength(String transcript, int unchangedLength) {
+        int i = Math.min(unchangedLength, Math.min(mDelivered.length(), transcript.length()));
+        if (i > 0 && Character.isHighSurrogate(transcript.charAt(i - 1))) {
+            i--;
+        }
+        return i;
+    }
+
+    private static int utf8Length(String s) {
+        int length = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                length++;
+            } else if (c < 0x800 || Character.isSurrogate(c)) {
+                // a surrogate pair is 4 bytes, 2 per half
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+}
@@ -11,10 +11,15 @@ import android.speech.RecognizerIntent;
 import android.speech.SpeechRecognizer;
 
 import com.tilde.pip_news_bot.speech.Extras;
+import com.tilde.pip_news_bot.speech.SpeechConnections;
+import com.tilde.pip_news_bot.speech.SpeechMetrics;
+import com.tilde.pip_news_bot.speech.SpoolForwarder;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
@@ -30,9 +35,12 @@ public final class SpeechRecognitionPlugin implements MethodCallHandler, Recogni
 
     private SpeechRecognizer speech;
     private MethodChannel speechChannel;
+    private final PartialResultSender partialResultSender;
     private String transcription = "";
     private Intent recognizerIntent;
     private Activity activity;
+    // whether activate asked to connect ahead of the sessions
+    private boolean isPreconnecting;
 
     /**
      * Plugin registration.
@@ -45,6 +53,7 @@ public final class SpeechRecognitionPlugin implements MethodCallHandler, Recogni
     private SpeechRecognitionPlugin(Activity activity, MethodChannel channel) {
         this.speechChannel = channel;
         this.speechChannel.setMethodCallHandler(this);
+        this.partialResultSender = new PartialResultSender(channel);
         this.activity = activity;
         
         // this forces the app to use only our internal speech recognition component
@@ -60,6 +69,14 @@ public final class SpeechRecognitionPlugin implements MethodCallHandler, Recogni
         recognizerIntent.putExtra(RecognizerIntent.EXTRA_MAX_RESULTS, 3);
         // TODO don't hardcode this!
         recognizerIntent.putExtra(RecognizerIntent.EXTRA_LANGUAGE, "lv-LV");
+
+        SpoolForwarder.setListener((id, transcript, error) -> {
+            Map<String, Object> result = new HashMap<>();
+            result.put("id", id);
+            result.put("transcript", transcript);
+            result.put("error", error);
+            speechChannel.invokeMethod("speech.onSpooledResult", result);
+        });
     }
 
     /**
@@ -74,14 +91,39 @@ public final class SpeechRecognitionPlugin implements MethodCallHandler, Recogni
         Timber.d("desired endpoint: %s", endpoint);
         Timber.d("desired system: %s", asrSystem);
         Timber.d("desired appId: %s", asrAppId);
-        Timber.d("desired appSecret: %s", asrAppSecret);
         final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(activity);
-        prefs.edit()
+        final SharedPreferences.Editor editor = prefs.edit()
                 .putString(activity.getString(R.string.keyWsServer), endpoint)
                 .putString(activity.getString(R.string.keyAsrSystem), asrSystem)
                 .putString(activity.getString(R.string.keyAppID), asrAppId)
-                .putString(activity.getString(R.string.keyAppSecurity), asrAppSecret)
-                .apply();
+                .putString(activity.getString(R.string.keyAppSecurity), asrAppSecret);
+        // optional 6th argument is the rate the ASR system wants, 0 for the default
+        int sampleRate = 0;
+        if (arguments.size() > 5) {
+            try {
+                sampleRate = Integer.parseInt(arguments.get(5));
+            } catch (NumberFormatException e) {
+                Timber.w("Bad sample rate: %s", arguments.get(5));
+            }
+        }
+        if (sampleRate > 0) {
+            editor.putInt(activity.getString(R.string.keyRecordingRate), sampleRate);
+        } else {
+            editor.remove(activity.getString(R.string.keyRecordingRate));
+        }
+        // optional 8th argument lets sessions share an auth token for that many seconds
+        int authReuseSeconds = 0;
+        if (arguments.size() > 7) {
+            try {
+                authReuseSeconds = Integer.parseInt(arguments.get(7));
+            } catch (NumberFormatException e) {
+                Timber.w("Bad auth reuse time: %s", arguments.get(7));
+            }
+        }
+        editor.putInt(activity.getString(R.string.keyAuthReuseSeconds),
+                Math.max(0, authReuseSeconds));
+        editor.apply();
+        SpeechConnections.onConfigChanged();
     }
 
     // TODO get rid of the locale stuff here? or, hmmm?
@@ -92,6 +134,20 @@ public final class SpeechRecognitionPlugin implements MethodCallHandler, Recogni
                 // writing config passes configuration from flutter side to native prefs
                 final List<String> arguments = call.arguments();
                 writeConfig(arguments);
+                SpeechConnections.warmUp(activity.getApplicationContext());
+                // optional 5th argument asks to connect before the first listen, and each one
+                isPreconnecting = arguments.size() > 4 && Boolean.parseBoolean(arguments.get(4));
+                if (isPreconnecting) {
+                    SpeechConnections.preconnect(activity.getApplicationContext(),
+                            recognizerIntent.getStringExtra(Extras.EXTRA_AUDIO_ENCODING));
+                } else {
+                    SpeechConnections.probeEndpoints(activity.getApplicationContext());
+                }
+                // optional 7th argument asks to spool utterances while the server is unreachable
+                recognizerIntent.putExtra(Extras.EXTRA_SPOOL_OFFLINE,
+                        arguments.size() > 6 && Boolean.parseBoolean(arguments.get(6)));
+                // utterances spooled before, possibly by an earlier run of the app
+                SpoolForwarder.drain(activity.getApplicationContext());
                 // mic permission etc should be handled beforehand by client...
                 Locale locale = activity.getResources().getConfiguration().locale;
                 Timber.d("Current Locale : %s", locale.toString());
@@ -100,6 +156,11 @@ public final class SpeechRecognitionPlugin implements MethodCallHandler, Recogni
                 break;
             case "speech.listen":
                 recognizerIntent.putExtra(RecognizerIntent.EXTRA_LANGUAGE, getLocale(call.arguments.toString()));
+                if (isPreconnecting) {
+                    // the handshake can run while the service is starting up the recorder
+                    SpeechConnections.preconnect(activity.getApplicationContext(),
+                            recognizerIntent.getStringExtra(Extras.EXTRA_AUDIO_ENCODING));
+                }
                 speech.startListening(recognizerIntent);
                 result.success(true);
                 break;
@@ -111,6 +172,14 @@ public final class SpeechRecognitionPlugin implements MethodCallHandler, Recogni
                 speech.stopListening();
                 result.success(true);
                 break;
+            case "speech.metrics":
+                result.success(SpeechMetrics.snapshot());
+                break;
+            case "speech.archive":
+                // the number of latest sessions to keep the audio of, 0 for none
+                recognizerIntent.putExtra(Extras.EXTRA_ARCHIVE_SESSIONS, (int) call.arguments);
+                result.success(true);
+                break;
             case "speech.destroy":
                 speech.cancel();
                 speech.destroy();
@@ -137,6 +206,7 @@ public final class SpeechRecognitionPlugin implements MethodCallHandler, Recogni
     public void onBeginningOfSpeech() {
         Timber.d("onRecognitionStarted");
         transcription = "";
+        partialResultSender.reset();
         speechChannel.invokeMethod("speech.onRecognitionStarted", null);
     }
 
@@ -153,12 +223,13 @@ public final class SpeechRecognitionPlugin implements MethodCallHandler, Recogni
     @Override
     public void onEndOfSpeech() {
         Timber.d("onEndOfSpeech");
-        speechChannel.invokeMethod("speech.onRecognitionComplete", transcription);
+        sendTranscription(true, 0);
     }
 
     @Override
     public void onError(int error) {
         Timber.d("onError : %s", error);
+        partialResultSender.reset();
         speechChannel.invokeMethod("speech.onSpeechAvailability", false);
         speechChannel.invokeMethod("speech.onError", error);
     }
@@ -169,10 +240,13 @@ public final class SpeechRecognitionPlugin implements MethodCallHandler, Recogni
         ArrayList<String> results = partialResults
                 .getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
         final boolean isSemiFinal = partialResults.getBoolean(Extras.EXTRA_SEMI_FINAL, false);
+        // with no new hypothesis, the previous transcription is sent again unchanged
+        int unchangedLength = transcription.length();
         if (results != null && !results.isEmpty()) {
             transcription = results.get(0);
+            unchangedLength = partialResults.getInt(Extras.EXTRA_UNCHANGED_LENGTH, 0);
         }
-        sendTranscription(isSemiFinal);
+        sendTranscription(isSemiFinal, unchangedLength);
     }
 
     @Override
@@ -188,12 +262,51 @@ public final class SpeechRecognitionPlugin implements MethodCallHandler, Recogni
         if (matches != null) {
             transcription = matches.get(0);
             Timber.d("onResults -> %s", transcription);
-            sendTranscription(true);
+            sendTranscription(true, 0);
+        }
+        sendTranscription(false, 0);
+        long spooledId = results.getLong(Extras.EXTRA_SPOOLED_ID, 0);
+        if (spooledId != 0) {
+            speechChannel.invokeMethod("speech.onSpooled", spooledId);
+        }
+        Bundle latency = results.getBundle(Extras.EXTRA_LATENCY);
+        if (latency != null) {
+            speechChannel.invokeMethod("speech.onLatency", toLatencyMap(latency));
         }
-        sendTranscription(false);
     }
 
-    private void sendTranscription(boolean isFinal) {
-        speechChannel.invokeMethod(isFinal ? "speech.onRecognitionComplete" : "speech.onSpeech", transcription);
+    /**
+     * The channel's codec does not take bundles, so the phases become maps of longs.
+     */
+    private static Map<String, Map<String, Long>> toLatencyMap(Bundle latency) {
+        Map<String, Map<String, Long>> phases = new HashMap<>();
+        for (String phase : latency.keySet()) {
+            Bundle values = latency.getBundle(phase);
+            if (values == null) {
+                continue;
+            }
+            Map<String, Long> map = new HashMap<>();
+            for (String key : values.keySet()) {
+                map.put(key, values.getLong(key));
+            }
+            phases.put(phase, map);
+        }
+        return phases;
+    }
+
+    /**
+     * Complete transcripts are sent in full, partial ones as coalesced deltas, which Dart
+     * reassembles and resets after each complete one.
+     *
+     * @param unchangedLength number of leading chars the transcription shares with the
+     *                        previously sent one
+     */
+    private void sendTranscription(boolean isFinal, int unchangedLength) {
+        if (isFinal) {
+            partialResultSender.reset();
+            speechChannel.invokeMethod("speech.onRecognitionComplete", transcription);
+        } else {
+            partialResultSender.offer(transcription, unchangedLength);
+        }
     }
 }
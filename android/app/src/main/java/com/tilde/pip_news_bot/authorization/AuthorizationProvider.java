@@ -1,24 +1,74 @@
 package com.tilde.pip_news_bot.authorization;
 
-import org.apache.commons.codec.digest.DigestUtils;
-
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public final class AuthorizationProvider {
 
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
     private final String appID;
     private final String appSecret;
+    // tokens are reused for this long, 0 for a new one every time
+    private final long reuseSeconds;
+
+    // guarded by this
+    private Authorization cached;
+    private long cachedSeconds;
 
-    public AuthorizationProvider(final String appId, final String appSecret) {
+    /**
+     * @param reuseSeconds how long a token is reused, which must stay below how old a
+     *                     timestamp the ASR server accepts, 0 for a new token every time
+     */
+    public AuthorizationProvider(final String appId, final String appSecret,
+                                 final long reuseSeconds) {
         this.appID = appId;
         this.appSecret = appSecret;
+        this.reuseSeconds = reuseSeconds;
     }
 
     public Authorization genAuth() {
         final long tsLong = System.currentTimeMillis() / 1000;
         final String timeStamp = Long.toString(tsLong);
         final byte[] data2hash = (timeStamp + appID + appSecret).getBytes(StandardCharsets.UTF_8);
-        final String appKey = DigestUtils.shaHex(data2hash);
+        final String appKey = shaHex(data2hash);
         return new Authorization(appID, appKey, timeStamp);
     }
+
+    /**
+     * @return an authorization generated within the reuse time, or a new one
+     */
+    public synchronized Authorization getAuth() {
+        final long now = System.currentTimeMillis() / 1000;
+        if (cached == null || now - cachedSeconds >= reuseSeconds || now < cachedSeconds) {
+            return getFreshAuth();
+        }
+        return cached;
+    }
+
+    /**
+     * @return a new authorization, which {@link #getAuth()} reuses from then on
+     */
+    public synchronized Authorization getFreshAuth() {
+        cached = genAuth();
+        cachedSeconds = Long.parseLong(cached.timeStamp);
+        return cached;
+    }
+
+    private static String shaHex(byte[] data) {
+        final byte[] digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            // every Android release has SHA-1
+            throw new IllegalStateException(e);
+        }
+        final char[] hex = new char[digest.length * 2];
+        for (int i = 0; i < digest.length; i++) {
+            hex[2 * i] = HEX_DIGITS[(digest[i] >> 4) & 0xf];
+            hex[2 * i + 1] = HEX_DIGITS[digest[i] & 0xf];
+        }
+        return new String(hex);
+    }
 }
@@ -0,0 +1,186 @@
+package com.tilde.pip_news_bot.speech;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.preference.PreferenceManager;
+
+import com.tilde.pip_news_bot.R;
+import com.tilde.pip_news_bot.authorization.Authorization;
+import com.tilde.pip_news_bot.authorization.AuthorizationProvider;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import timber.log.Timber;
+
+/**
+ * ASR connection settings, as written to shared prefs by the Flutter side.
+ * <p>
+ * The settings are read once and cached until {@link #invalidate()}, so that starting a
+ * session does not touch the prefs. The auth token is reused for as long as the server
+ * accepts it, and the auth message for as long as the token and the custom info stay the same.
+ */
+final class ConnectionConfig {
+
+    private static final String POSTPROCESS_NUMBERS = "voice_recognition_postprocess_numbers";
+
+    // guarded by ConnectionConfig.class
+    private static ConnectionConfig sCached;
+
+    final String appId;
+    final String appSecret;
+    final String asrSystem;
+    // one or more servers running the same ASR systems, see EndpointRouter
+    final List<String> wsServers;
+    // rate the ASR system expects the audio at
+    final int sampleRate;
+    final boolean postprocessNumbers;
+
+    private final AuthorizationProvider authProvider;
+
+    // the latest auth message and what it was made of, guarded by this
+    private String authMessage;
+    private Authorization authMessageAuth;
+    private String authMessageInfo;
+
+    private ConnectionConfig(String appId, String appSecret, String asrSystem,
+                             List<String> wsServers, int sampleRate, boolean postprocessNumbers,
+                             int authReuseSeconds) {
+        this.appId = appId;
+        this.appSecret = appSecret;
+        this.asrSystem = asrSystem;
+        this.wsServers = wsServers;
+        this.sampleRate = sampleRate;
+        this.postprocessNumbers = postprocessNumbers;
+        this.authProvider = new AuthorizationProvider(appId, appSecret, authReuseSeconds);
+    }
+
+    /**
+     * @return the configuration, or null if some of it has not been provided
+     */
+    static synchronized ConnectionConfig get(Context context) {
+        if (sCached == null) {
+            sCached = fromPreferences(context);
+        }
+        return sCached;
+    }
+
+    /**
+     * Drops the cached configuration, called when the prefs have been changed.
+     */
+    static synchronized void invalidate() {
+        sCached = null;
+    }
+
+    private static ConnectionConfig fromPreferences(Context context) {
+        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+
+        // TODO remove defaults from resources
+        // TODO do the same for iOS counterpart
+        final String appId = prefs.getString(context.getString(R.string.keyAppID), null);
+        final String appSecret = prefs.getString(context.getString(R.string.keyAppSecurity), null);
+        final String appSystem = prefs.getString(context.getString(R.string.keyAsrSystem), null);
+        final String wsServer = prefs.getString(context.getString(R.string.keyWsServer), null);
+        Timber.d("appId: %s", appId);
+        Timber.d("appSystem: %s", appSystem);
+        Timber.d("wsServer: %s", wsServer);
+        boolean allConfigProvided = true;
+        if (appId == null) {
+            Timber.w("ASR: appId not specified.");
+            allConfigProvided = false;
+        }
+        if (appSecret == null) {
+            Timber.w("ASR: appSecret not specified.");
+            allConfigProvided = false;
+        }
+        if (appSystem == null) {
+            Timber.w("ASR: asr system not specified");
+            allConfigProvided = false;
+        }
+        if (wsServer == null || wsServer.trim().isEmpty()) {
+            Timber.w("ASR: ws server not specified");
+            allConfigProvided = false;
+        }
+        if (!allConfigProvided) {
+            return null;
+        }
+        final int sampleRate = prefs.getInt(context.getString(R.string.keyRecordingRate),
+                Integer.parseInt(context.getString(R.string.defaultRecordingRate)));
+        return new ConnectionConfig(appId, appSecret, appSystem, parseServers(wsServer),
+                sampleRate, prefs.getBoolean(POSTPROCESS_NUMBERS, true),
+                prefs.getInt(context.getString(R.string.keyAuthReuseSeconds), 0));
+    }
+
+    /**
+     * @param wsServers server URLs separated by commas or whitespace
+     */
+    private static List<String> parseServers(String wsServers) {
+        List<String> servers = new ArrayList<>();
+        for (String server : wsServers.split("[,\\s]+")) {
+            if (!server.isEmpty() && !servers.contains(server)) {
+                servers.add(server);
+            }
+        }
+        return Collections.unmodifiableList(servers);
+    }
+
+    String getUrl(String wsServer, String wsArgs) {
+        return wsServer + "/" + asrSystem + wsArgs;
+    }
+
+    /**
+     * Generates the auth token ahead of the sessions that will use it, if tokens are reused,
+     * and otherwise at least loads the hashing.
+     */
+    void prefetchAuth() {
+        authProvider.getAuth();
+    }
+
+    /**
+     * @return the auth message sent to the server once the socket is open
+     */
+    String createAuthMessage(JSONObject customInfo) throws JSONException {
+        return createAuthMessage(customInfo, false);
+    }
+
+    /**
+     * @param isFresh true for a new token even if the latest one could be reused, e.g. on a
+     *                reconnect, which may come after the session's token has expired
+     */
+    String createAuthMessage(JSONObject customInfo, boolean isFresh) throws JSONException {
+        final Authorization auth = isFresh ? authProvider.getFreshAuth() : authProvider.getAuth();
+        final String info = customInfo.toString();
+        synchronized (this) {
+            if (auth == authMessageAuth && info.equals(authMessageInfo)) {
+                return authMessage;
+            }
+        }
+
+        JSONArray postProcessors = new JSONArray();
+        final JSONArray partialPostProcess = new JSONArray();
+
+        if (postprocessNumbers) {
+            postProcessors.put("numbers");
+        }
+
+        JSONObject obj = new JSONObject();
+        obj.put("appID", appId);
+        obj.put("appKey", auth.appKey);
+        obj.put("timestamp", auth.timeStamp);
+        obj.put("enable-postprocess", postProcessors);
+        obj.put("enable-partial-postprocess", partialPostProcess);
+        obj.put("custom-info", info);
+        final String message = obj.toString();
+        synchronized (this) {
+            authMessage = message;
+            authMessageAuth = auth;
+            authMessageInfo = info;
+        }
+        return message;
+    }
+}
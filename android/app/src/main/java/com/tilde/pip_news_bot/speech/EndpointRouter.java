@@ -0,0 +1,268 @@
+package com.tilde.pip_news_bot.speech;
+
+import android.os.SystemClock;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import timber.log.Timber;
+
+/**
+ * Picks the ASR server a session connects to, out of the configured ones.
+ * <p>
+ * Every socket reports how long its handshake took, or that it failed, which is folded into
+ * a running round trip time per server. Servers that have not been measured for a while are
+ * probed in the background by opening a socket and closing it as soon as it is open, without
+ * sending the auth message. A server that fails to connect, or says that it is not available,
+ * sits out a cool-down, which doubles with every further failure in a row.
+ * <p>
+ * Sessions go to a healthy server whose round trip time is close to the best one, picked at
+ * random among those, so that load is spread across servers that are about as fast.
+ */
+final class EndpointRouter {
+
+    private static final long PROBE_INTERVAL_MS = 60000;
+    private static final long COOL_DOWN_MS = 30000;
+    private static final long MAX_COOL_DOWN_MS = 5 * 60000;
+    // servers this much slower than the best one still get sessions
+    private static final long RTT_SLACK_MS = 20;
+    private static final double RTT_SLACK_RATIO = 1.2;
+
+    private static final class Endpoint {
+        final String server;
+        // -1 until measured
+        long rttMillis = -1;
+        long probedAt;
+        long unhealthyUntil;
+        int failuresInRow;
+        long connects;
+        long connectFailures;
+        long otherFailures;
+
+        Endpoint(String server) {
+            this.server = server;
+        }
+
+        boolean isHealthy(long now) {
+            return now >= unhealthyUntil;
+        }
+    }
+
+    // guarded by EndpointRouter.class
+    private static final Map<String, Endpoint> ENDPOINTS = new LinkedHashMap<>();
+    private static final Random RANDOM = new Random();
+
+    private EndpointRouter() {
+    }
+
+    /**
+     * @param servers the configured servers, in order of preference while nothing is known
+     * @return the server the next session should connect to
+     */
+    static synchronized String choose(List<String> servers) {
+        final long now = SystemClock.elapsedRealtime();
+        Endpoint best = null;
+        for (String server : servers) {
+            Endpoint endpoint = get(server);
+            if (best == null || isBetter(endpoint, best, now)) {
+                best = endpoint;
+            }
+        }
+        if (best == null || !best.isHealthy(now) || best.rttMillis < 0) {
+            return best == null ? null : best.server;
+        }
+        final long limit = Math.max(best.rttMillis + RTT_SLACK_MS,
+                (long) (best.rttMillis * RTT_SLACK_RATIO));
+        List<String> candidates = new ArrayList<>();
+        for (String server : servers) {
+            Endpoint endpoint = get(server);
+            if (endpoint.isHealthy(now) && endpoint.rttMillis >= 0
+                    && endpoint.rttMillis <= limit) {
+                candidates.add(server);
+            }
+        }
+        return candidates.get(RANDOM.nextInt(candidates.size()));
+    }
+
+    static synchronized boolean isHealthy(String server) {
+        return get(server).isHealthy(SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Measures the servers that have not been used or probed lately, unless there is just
+     * one. Returns at once, the sockets are opened on OkHttp's threads.
+     *
+     * @param servers     the configured servers
+     * @param skipped     a server that is being connected to anyway, or null
+     * @param urlOfServer maps a server to the URL of a socket on it
+     */
+    static void probe(OkHttpClient client, List<String> servers, String skipped,
+                      UrlOfServer urlOfServer) {
+        if (servers.size() < 2) {
+            // nothing to choose from
+            return;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        List<String> stale = new ArrayList<>();
+        synchronized (EndpointRouter.class) {
+            for (String server : servers) {
+                if (server.equals(skipped)) {
+                    continue;
+                }
+                Endpoint endpoint = get(server);
+                if (endpoint.probedAt == 0 || now - endpoint.probedAt >= PROBE_INTERVAL_MS) {
+                    endpoint.probedAt = now;
+                    stale.add(server);
+                }
+            }
+        }
+        for (String server : stale) {
+            final String url = urlOfServer.getUrl(server);
+            final long start = SystemClock.elapsedRealtime();
+            client.newWebSocket(new Request.Builder().url(url).build(), new WebSocketListener() {
+                @Override
+                public void onOpen(@NotNull WebSocket webSocket, @NotNull Response response) {
+                    onConnected(url, SystemClock.elapsedRealtime() - start);
+                    webSocket.close(1000, "probe");
+                }
+
+                @Override
+                public void onFailure(@NotNull WebSocket webSocket, @NotNull Throwable t,
+                                      @Nullable Response response) {
+                    Timber.w(t, "Probe of %s failed", url);
+                    onFailed(url, false);
+                }
+            });
+        }
+    }
+
+    interface UrlOfServer {
+        String getUrl(String server);
+    }
+
+    /**
+     * A socket to the url has been opened, after {@code handshakeMillis}.
+     */
+    static synchronized void onConnected(String url, long handshakeMillis) {
+        Endpoint endpoint = find(url);
+        if (endpoint == null) {
+            return;
+        }
+        endpoint.connects++;
+        endpoint.failuresInRow = 0;
+        endpoint.unhealthyUntil = 0;
+        endpoint.probedAt = SystemClock.elapsedRealtime();
+        endpoint.rttMillis = endpoint.rttMillis < 0 ? handshakeMillis
+                : (3 * endpoint.rttMillis + handshakeMillis) / 4;
+    }
+
+    /**
+     * A socket to the url has failed.
+     *
+     * @param wasOpen true if it failed after it was open, e.g. because the network changed,
+     *                which does not count against the server's health
+     */
+    static synchronized void onFailed(String url, boolean wasOpen) {
+        Endpoint endpoint = find(url);
+        if (endpoint == null) {
+            return;
+        }
+        if (wasOpen) {
+            endpoint.otherFailures++;
+        } else {
+            endpoint.connectFailures++;
+            coolDown(endpoint);
+        }
+    }
+
+    /**
+     * The server at the url has said that it cannot take the session.
+     */
+    static synchronized void onUnavailable(String url) {
+        Endpoint endpoint = find(url);
+        if (endpoint != null) {
+            endpoint.otherFailures++;
+            coolDown(endpoint);
+        }
+    }
+
+    /**
+     * @return per server: "rtt_ms", "connects", "connect_failures", "other_failures" and
+     * "healthy" (0 or 1) as longs, and "error_rate" as a double: the share of failures among
+     * all the outcomes recorded, i.e. connects and both kinds of failures
+     */
+    static synchronized Map<String, Object> snapshot() {
+        final long now = SystemClock.elapsedRealtime();
+        Map<String, Object> snapshot = new HashMap<>();
+        for (Endpoint endpoint : ENDPOINTS.values()) {
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("rtt_ms", endpoint.rttMillis);
+            stats.put("connects", endpoint.connects);
+            stats.put("connect_failures", endpoint.connectFailures);
+            stats.put("other_failures", endpoint.otherFailures);
+            stats.put("healthy", endpoint.isHealthy(now) ? 1L : 0L);
+            long failures = endpoint.connectFailures + endpoint.otherFailures;
+            long outcomes = endpoint.connects + failures;
+            stats.put("error_rate", outcomes == 0 ? 0.0 : (double) failures / outcomes);
+            snapshot.put(endpoint.server, stats);
+        }
+        return snapshot;
+    }
+
+    private static void coolDown(Endpoint endpoint) {
+        endpoint.failuresInRow++;
+        long coolDown = Math.min(MAX_COOL_DOWN_MS,
+                COOL_DOWN_MS << Math.min(endpoint.failuresInRow - 1, 10));
+        endpoint.unhealthyUntil = SystemClock.elapsedRealtime() + coolDown;
+        Timber.w("Server %s unhealthy for %d ms", endpoint.server, coolDown);
+    }
+
+    /**
+     * Healthy beats unhealthy, a measured round trip time beats an unknown one and a shorter
+     * one beats a longer one. Of two unhealthy servers, the one that recovers first wins.
+     */
+    private static boolean isBetter(Endpoint a, Endpoint b, long now) {
+        if (a.isHealthy(now) != b.isHealthy(now)) {
+            return a.isHealthy(now);
+        }
+        if (!a.isHealthy(now)) {
+            return a.unhealthyUntil < b.unhealthyUntil;
+        }
+        return a.rttMillis >= 0 && (b.rttMillis < 0 || a.rttMillis < b.rttMillis);
+    }
+
+    private static Endpoint get(String server) {
+        Endpoint endpoint = ENDPOINTS.get(server);
+        if (endpoint == null) {
+            endpoint = new Endpoint(server);
+            ENDPOINTS.put(server, endpoint);
+        }
+        return endpoint;
+    }
+
+    /**
+     * @return the endpoint of the longest server the url starts with, if any
+     */
+    private static Endpoint find(String url) {
+        Endpoint found = null;
+        for (Endpoint endpoint : ENDPOINTS.values()) {
+            if (url.startsWith(endpoint.server)
+                    && (found == null || endpoint.server.length() > found.server.length())) {
+                found = endpoint;
+            }
+        }
+        return found;
+    }
+}
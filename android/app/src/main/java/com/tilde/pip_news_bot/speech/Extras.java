@@ -10,6 +10,14 @@ public final class Extras {
      */
     public static final String EXTRA_SEMI_FINAL = "com.tilde.tildesbalss.extra.SEMI_FINAL";
 
+    /**
+     * Integer.
+     * Number of leading chars of the first partial hypothesis that are the same as in the
+     * previous partial results of the segment, so that they need not be compared again.
+     * Added to partial results that are not final, 0 if nothing is known to be the same.
+     */
+    public static final String EXTRA_UNCHANGED_LENGTH = "com.tilde.tildesbalss.extra.UNCHANGED_LENGTH";
+
     /**
      * Boolean.
      * True iff the recognizer should play audio cues to indicate start and end of
@@ -17,6 +25,66 @@ public final class Extras {
      */
     public static final String EXTRA_AUDIO_CUES = "com.tilde.tildesbalss.extra.AUDIO_CUES";
 
+    /**
+     * Integer.
+     * Duration of the audio frames streamed to the server, in milliseconds, e.g. 20, 40 or 100.
+     * Smaller frames reach the server sooner, at the cost of more messages.
+     */
+    public static final String EXTRA_FRAME_MILLIS = "com.tilde.tildesbalss.extra.FRAME_MILLIS";
+
+    /**
+     * Boolean.
+     * True iff audio classified as non-speech should be withheld from the server, apart from
+     * a short pre-roll before each speech onset and an occasional keep-alive chunk.
+     */
+    public static final String EXTRA_SUPPRESS_SILENCE = "com.tilde.tildesbalss.extra.SUPPRESS_SILENCE";
+
+    /**
+     * Long.
+     * Number of audio bytes the session withheld from the server, see EXTRA_SUPPRESS_SILENCE.
+     * Added to the results.
+     */
+    public static final String EXTRA_BYTES_SUPPRESSED = "com.tilde.tildesbalss.extra.BYTES_SUPPRESSED";
+
+    /**
+     * Bundle.
+     * Latencies of the session's phases in milliseconds, a bundle of longs per phase:
+     * "session" (if the session got that far) and "count", "p50", "p90", "p99", "max" over
+     * all sessions since the service process started. Added to the results.
+     */
+    public static final String EXTRA_LATENCY = "com.tilde.tildesbalss.extra.LATENCY";
+
+    /**
+     * String.
+     * Encoding of the audio streamed to the server, "raw" (default) or "flac".
+     * FLAC is lossless and needs about half the bandwidth for speech.
+     * If unset, FLAC is used for a while after a session found the uplink too slow.
+     */
+    public static final String EXTRA_AUDIO_ENCODING = "com.tilde.tildesbalss.extra.AUDIO_ENCODING";
+
+    /**
+     * Boolean.
+     * True iff a session whose socket cannot be opened should spool its audio to disk and
+     * end with EXTRA_SPOOLED_ID instead of ERROR_NETWORK. The spooled audio is transcribed
+     * once the server can be reached, see SpoolForwarder. Defaults to false.
+     */
+    public static final String EXTRA_SPOOL_OFFLINE = "com.tilde.tildesbalss.extra.SPOOL_OFFLINE";
+
+    /**
+     * Long.
+     * Id of the spooled utterance, the transcript is delivered later with it. Added to the
+     * results of a session that spooled its audio, which then carry no hypotheses.
+     */
+    public static final String EXTRA_SPOOLED_ID = "com.tilde.tildesbalss.extra.SPOOLED_ID";
+
+    /**
+     * Integer.
+     * Number of the latest sessions whose captured audio is kept as WAV files, for debugging
+     * and quality review, in the "sessions" directory of the app's external files dir.
+     * Defaults to 0, i.e. no recordings are kept.
+     */
+    public static final String EXTRA_ARCHIVE_SESSIONS = "com.tilde.tildesbalss.extra.ARCHIVE_SESSIONS";
+
     /**
      * Boolean.
      * True iff continuous recognition should be used.
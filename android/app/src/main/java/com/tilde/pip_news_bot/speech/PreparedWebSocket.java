@@ -0,0 +1,184 @@
+package com.tilde.pip_news_bot.speech;
+
+import android.os.SystemClock;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+import timber.log.Timber;
+
+/**
+ * A WebSocket that sends the auth message as soon as it is open and that can be opened
+ * before anyone listens to it. Events are forwarded to the listener attached with
+ * {@link #attach(WebSocketListener)}; an open that happened before is replayed on attach.
+ * How long the handshake took, or that it failed, is reported to {@link EndpointRouter}.
+ */
+final class PreparedWebSocket extends WebSocketListener {
+
+    private final String mUrl;
+    private final String mAuth;
+    private final boolean mIsSpeculative;
+    private final long mCreatedAt = SystemClock.elapsedRealtime();
+    private volatile WebSocket mWebSocket;
+    // failures caused by cancel() say nothing about the server
+    private volatile boolean mIsCancelled;
+
+    // guarded by this
+    private WebSocketListener mDelegate;
+    private SessionTimeline mTimeline;
+    private Response mOpenResponse;
+    private long mAuthSentNanos;
+    private boolean mIsDead;
+
+    private PreparedWebSocket(String url, String auth, boolean isSpeculative) {
+        mUrl = url;
+        mAuth = auth;
+        mIsSpeculative = isSpeculative;
+    }
+
+    static PreparedWebSocket open(OkHttpClient client, String url, String auth,
+                                  boolean isSpeculative) {
+        PreparedWebSocket socket = new PreparedWebSocket(url, auth, isSpeculative);
+        socket.mWebSocket = client.newWebSocket(new Request.Builder().url(url).build(), socket);
+        return socket;
+    }
+
+    WebSocket getWebSocket() {
+        return mWebSocket;
+    }
+
+    /**
+     * @return true iff the socket was opened before the session that uses it
+     */
+    boolean isSpeculative() {
+        return mIsSpeculative;
+    }
+
+    boolean matches(String url) {
+        return mUrl.equals(url);
+    }
+
+    long getAgeMillis() {
+        return SystemClock.elapsedRealtime() - mCreatedAt;
+    }
+
+    /**
+     * @param timeline gets the time the auth message was sent, even if that was before
+     * @return false if the socket has already failed or closed, i.e. is of no use anymore
+     */
+    boolean attach(WebSocketListener listener, SessionTimeline timeline) {
+        final Response openResponse;
+        synchronized (this) {
+            if (mIsDead) {
+                return false;
+            }
+            mDelegate = listener;
+            mTimeline = timeline;
+            openResponse = mOpenResponse;
+            if (mAuthSentNanos != 0) {
+                timeline.mark(SessionTimeline.AUTH_SENT, mAuthSentNanos);
+            }
+        }
+        if (openResponse != null) {
+            listener.onOpen(mWebSocket, openResponse);
+        }
+        return true;
+    }
+
+    void cancel() {
+        mIsCancelled = true;
+        WebSocket webSocket = mWebSocket;
+        if (webSocket != null) {
+            webSocket.cancel();
+        }
+    }
+
+    private synchronized boolean isOpened() {
+        return mAuthSentNanos != 0;
+    }
+
+    private synchronized WebSocketListener getDelegate() {
+        return mDelegate;
+    }
+
+    private synchronized WebSocketListener getDelegateOrDie() {
+        if (mDelegate == null) {
+            mIsDead = true;
+        }
+        return mDelegate;
+    }
+
+    @Override
+    public void onOpen(@NotNull WebSocket webSocket, @NotNull Response response) {
+        EndpointRouter.onConnected(mUrl, getAgeMillis());
+        webSocket.send(mAuth);
+        final long authSentNanos = System.nanoTime();
+        final WebSocketListener delegate;
+        synchronized (this) {
+            mAuthSentNanos = authSentNanos;
+            delegate = mDelegate;
+            if (delegate == null) {
+                mOpenResponse = response;
+            } else {
+                mTimeline.mark(SessionTimeline.AUTH_SENT, authSentNanos);
+            }
+        }
+        if (delegate != null) {
+            delegate.onOpen(webSocket, response);
+        }
+    }
+
+    @Override
+    public void onMessage(@NotNull WebSocket webSocket, @NotNull String text) {
+        WebSocketListener delegate = getDelegate();
+        if (delegate == null) {
+            Timber.w("Message before session start dropped: %s", text);
+        } else {
+            delegate.onMessage(webSocket, text);
+        }
+    }
+
+    @Override
+    public void onMessage(@NotNull WebSocket webSocket, @NotNull ByteString bytes) {
+        WebSocketListener delegate = getDelegate();
+        if (delegate != null) {
+            delegate.onMessage(webSocket, bytes);
+        }
+    }
+
+    @Override
+    public void onClosing(@NotNull WebSocket webSocket, int code, @NotNull String reason) {
+        WebSocketListener delegate = getDelegateOrDie();
+        if (delegate != null) {
+            delegate.onClosing(webSocket, code, reason);
+        }
+    }
+
+    @Override
+    public void onClosed(@NotNull WebSocket webSocket, int code, @NotNull String reason) {
+        WebSocketListener delegate = getDelegateOrDie();
+        if (delegate != null) {
+            delegate.onClosed(webSocket, code, reason);
+        }
+    }
+
+    @Override
+    public void onFailure(@NotNull WebSocket webSocket, @NotNull Throwable t,
+                          @Nullable Response response) {
+        if (!mIsCancelled) {
+            EndpointRouter.onFailed(mUrl, isOpened());
+        }
+        WebSocketListener delegate = getDelegateOrDie();
+        if (delegate == null) {
+            Timber.w(t, "Speculative websocket failed, response: %s", response);
+        } else {
+            delegate.onFailure(webSocket, t, response);
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.tilde.pip_news_bot.speech;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.speech.SpeechRecognizer;
+
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import timber.log.Timber;
+
+/**
+ * Turns the server's text messages into results that are ready to be delivered.
+ * <p>
+ * Parsing and text normalization run on the looper the decoder is given, so that they never
+ * hold up the main thread, which also renders the UI. Each decoded message is sent to the
+ * target handler as a {@link Decoded}, in the order the messages arrived.
+ */
+final class ResultDecoder {
+
+    // nothing to deliver, e.g. adaptation state
+    static final int ACTION_NONE = 0;
+    // bundle goes to onPartialResults
+    static final int ACTION_PARTIAL_RESULTS = 1;
+    // bundle goes to onResults, which ends the session
+    static final int ACTION_RESULTS = 2;
+    // error goes to onError
+    static final int ACTION_ERROR = 3;
+
+    static final class Decoded {
+        final int action;
+        final Bundle bundle;
+        final int error;
+        // true iff the server has sent a recognition result, deliverable or not
+        final boolean isResult;
+
+        Decoded(int action, Bundle bundle, int error, boolean isResult) {
+            this.action = action;
+            this.bundle = bundle;
+            this.error = error;
+            this.isResult = isResult;
+        }
+    }
+
+    private final Handler mHandler;
+    // messages that come in once the decoder has quit are dropped
+    private volatile boolean mIsQuit;
+    private final Handler mTarget;
+    private final int mWhat;
+    private final boolean mIsUnlimitedDuration;
+    private final boolean mIsPartialResults;
+    private final int mMaxResults;
+    // the partials of a segment grow from one to the next, only used on the decoding thread
+    private final IncrementalNormalizer mPartialNormalizer =
+            new IncrementalNormalizer(true, TldWebSocketRecognitionService.PRETTY_PRINT);
+    // leading chars of the latest normalized partial that the last delivered one had too
+    private int mPartialUnchanged;
+
+    private static final Pattern WORD = Pattern.compile("\\S+");
+    // the latest final transcript, only used on the decoding thread
+    private String mLastFinal = "";
+    // true from a reconnect until the first final result that is not a repetition
+    private boolean mIsDeduplicating;
+
+    /**
+     * @param looper     where the decoding runs, which other work may share
+     * @param what       the what of the messages sent to {@code target}
+     * @param maxResults number of hypotheses decoded from each result
+     */
+    ResultDecoder(Looper looper, Handler target, int what, boolean isUnlimitedDuration,
+                  boolean isPartialResults, int maxResults) {
+        mTarget = target;
+        mWhat = what;
+        mIsUnlimitedDuration = isUnlimitedDuration;
+        mIsPartialResults = isPartialResults;
+        mMaxResults = maxResults;
+        mHandler = new Handler(looper, msg -> {
+            Decoded decoded = decode((String) msg.obj);
+            if (decoded.action != ACTION_NONE || decoded.isResult) {
+                Message.obtain(mTarget, mWhat, decoded).sendToTarget();
+            }
+            return true;
+        });
+    }
+
+    /**
+     * Queues a server message for decoding, can be called from any thread.
+     */
+    void post(String text) {
+        if (!mIsQuit) {
+            Message.obtain(mHandler, 0, text).sendToTarget();
+        }
+    }
+
+    /**
+     * After a reconnect, the server gets audio again that it may already have finalized, so
+     * results that repeat the end of the latest final transcript are trimmed until the next
+     * final one. Can be called from any thread.
+     */
+    void onReconnect() {
+        mHandler.post(() -> {
+            mIsDeduplicating = !mLastFinal.isEmpty();
+            mPartialNormalizer.reset();
+        });
+    }
+
+    /**
+     * Runs the task on the target's thread once the messages posted so far have been delivered,
+     * can be called from any thread.
+     */
+    void postToTarget(Runnable task) {
+        if (!mIsQuit) {
+            mHandler.post(() -> mTarget.post(task));
+        }
+    }
+
+    /**
+     * Drops the messages that have not been decoded yet, and those that come in later.
+     */
+    void quit() {
+        mIsQuit = true;
+        mHandler.removeCallbacksAndMessages(null);
+    }
+
+    Decoded decode(String text) {
+        try {
+            WebSocketResponse response = new WebSocketResponse(text, mMaxResults);
+            int statusCode = response.getStatus();
+            if (statusCode == WebSocketResponse.STATUS_SUCCESS && response.isResult()) {
+                WebSocketResponse.Result responseResult = response.parseResult();
+                if (responseResult.isFinal()) {
+                    // the next segment starts from scratch
+                    mPartialNormalizer.reset();
+                    ArrayList<String> hypotheses = responseResult.getHypotheses();
+                    if (mIsDeduplicating && !hypotheses.isEmpty()) {
+                        if (!stripDelivered(hypotheses)) {
+                            return new Decoded(ACTION_NONE, null, 0, true);
+                        }
+                        mIsDeduplicating = false;
+                    }
+                    if (!hypotheses.isEmpty()) {
+                        mLastFinal = hypotheses.get(0);
+                    }
+                    if (hypotheses.isEmpty()) {
+                        return error(SpeechRecognizer.ERROR_SPEECH_TIMEOUT, true);
+                    } else if (mIsUnlimitedDuration) {
+                        return new Decoded(ACTION_PARTIAL_RESULTS,
+                                TldWebSocketRecognitionService.toResultsBundle(hypotheses, true),
+                                0, true);
+                    } else {
+                        return new Decoded(ACTION_RESULTS,
+                                TldWebSocketRecognitionService.toResultsBundle(hypotheses, true),
+                                0, true);
+                    }
+                } else if (mIsPartialResults) {
+                    ArrayList<String> hypotheses =
+                            responseResult.getHypotheses(mMaxResults, mPartialNormalizer);
+                    mPartialUnchanged = Math.min(mPartialUnchanged,
+                            mPartialNormalizer.getUnchangedLength());
+                    if (mIsDeduplicating && !hypotheses.isEmpty() && !stripDelivered(hypotheses)) {
+                        return new Decoded(ACTION_NONE, null, 0, true);
+                    }
+                    if (!hypotheses.isEmpty()) {
+                        Bundle bundle =
+                                TldWebSocketRecognitionService.toResultsBundle(hypotheses, false);
+                        // a stripped partial no longer starts like the normalizer's output
+                        bundle.putInt(Extras.EXTRA_UNCHANGED_LENGTH,
+                                mIsDeduplicating ? 0 : mPartialUnchanged);
+                        mPartialUnchanged = mIsDeduplicating ? 0 : Integer.MAX_VALUE;
+                        return new Decoded(ACTION_PARTIAL_RESULTS, bundle, 0, true);
+                    }
+                }
+                return new Decoded(ACTION_NONE, null, 0, true);
+            } else if (statusCode == WebSocketResponse.STATUS_SUCCESS) {
+                Timber.i("Adaptation_state currently not handled");
+                return new Decoded(ACTION_NONE, null, 0, false);
+            } else if (statusCode == WebSocketResponse.STATUS_ABORTED) {
+                return error(SpeechRecognizer.ERROR_SERVER, false);
+            } else if (statusCode == WebSocketResponse.STATUS_NOT_AVAILABLE) {
+                return error(SpeechRecognizer.ERROR_RECOGNIZER_BUSY, false);
+            } else if (statusCode == WebSocketResponse.STATUS_NO_SPEECH) {
+                return error(SpeechRecognizer.ERROR_SPEECH_TIMEOUT, false);
+            } else if (statusCode == WebSocketResponse.STATUS_NO_VALID_FRAMES) {
+                return error(SpeechRecognizer.ERROR_NO_MATCH, false);
+            } else {
+                // Server sent unsupported status code, client should be updated
+                return error(SpeechRecognizer.ERROR_CLIENT, false);
+            }
+        } catch (WebSocketResponse.WebSocketResponseException e) {
+            Timber.e(e, text);
+            SpeechMetrics.add(SpeechMetrics.PARSE_FAILURES, 1);
+            return error(SpeechRecognizer.ERROR_SERVER, false);
+        }
+    }
+
+    /**
+     * Trims what the latest final transcript ends with off the hypotheses.
+     *
+     * @return false if nothing new is left of the best hypothesis
+     */
+    private boolean stripDelivered(ArrayList<String> hypotheses) {
+        for (int i = 0; i < hypotheses.size(); i++) {
+            hypotheses.set(i, stripOverlap(mLastFinal, hypotheses.get(i)));
+        }
+        return !hypotheses.get(0).isEmpty();
+    }
+
+    /**
+     * @return {@code next} without the longest run of its leading words that {@code delivered}
+     * ends with, comparing words regardless of case and trailing punctuation
+     */
+    static String stripOverlap(String delivered, String next) {
+        final ArrayList<String> done = new ArrayList<>();
+        Matcher matcher = WORD.matcher(delivered);
+        while (matcher.find()) {
+            done.add(toKey(matcher.group()));
+        }
+        final ArrayList<String> words = new ArrayList<>();
+        final ArrayList<Integer> ends = new ArrayList<>();
+        matcher = WORD.matcher(next);
+        while (matcher.find()) {
+            words.add(toKey(matcher.group()));
+            ends.add(matcher.end());
+        }
+        for (int k = Math.min(done.size(), words.size()); k > 0; k--) {
+            if (done.subList(done.size() - k, done.size()).equals(words.subList(0, k))) {
+                return next.substring(ends.get(k - 1)).trim();
+            }
+        }
+        return next;
+    }
+
+    private static String toKey(String word) {
+        int end = word.length();
+        while (end > 0 && !Character.isLetterOrDigit(word.charAt(end - 1))) {
+            end--;
+        }
+        return word.substring(0, end).toLowerCase(Locale.ROOT);
+    }
+
+    private static Decoded error(int error, boolean isResult) {
+        return new Decoded(ACTION_ERROR, null, error, isResult);
+    }
+}
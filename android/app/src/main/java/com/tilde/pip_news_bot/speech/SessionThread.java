@@ -0,0 +1,86 @@
+package com.tilde.pip_news_bot.speech;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The threads that sessions share: one runs the sessions' schedulers, i.e. sends the audio,
+ * and another decodes the server's messages. They are started with the first session and kept
+ * for the life of the process, so that a session starts no threads of its own, and sessions
+ * are run one after another on them.
+ * <p>
+ * Decoding is kept off the sending thread, as normalizing a long final result can take longer
+ * than a captured frame, which would otherwise wait for it and back up the ring buffer.
+ */
+final class SessionThread {
+
+    private static Looper sLooper;
+    private static Looper sDecodeLooper;
+    private static Handler sHandler;
+    private static SessionScheduler.Driver sDriver;
+
+    private SessionThread() {
+    }
+
+    static synchronized Looper getLooper() {
+        if (sLooper == null) {
+            HandlerThread thread = new HandlerThread("SpeechSessionThread",
+                    Process.THREAD_PRIORITY_DEFAULT);
+            thread.start();
+            sLooper = thread.getLooper();
+        }
+        return sLooper;
+    }
+
+    /**
+     * @return the looper that decodes the server's messages
+     */
+    static synchronized Looper getDecodeLooper() {
+        if (sDecodeLooper == null) {
+            HandlerThread thread = new HandlerThread("SpeechDecodeThread",
+                    Process.THREAD_PRIORITY_DEFAULT);
+            thread.start();
+            sDecodeLooper = thread.getLooper();
+        }
+        return sDecodeLooper;
+    }
+
+    /**
+     * @return a scheduler for a new session, its tasks run on this thread
+     */
+    static SessionScheduler newScheduler() {
+        return new SessionScheduler(SessionScheduler.SYSTEM_CLOCK, getDriver());
+    }
+
+    /**
+     * Runs {@code task} on this thread, after whatever runs or is queued on it now, e.g. to
+     * let go of what a session's tasks used once its scheduler has been shut down.
+     */
+    static void post(Runnable task) {
+        getHandler().post(task);
+    }
+
+    private static synchronized Handler getHandler() {
+        if (sHandler == null) {
+            sHandler = new Handler(getLooper());
+        }
+        return sHandler;
+    }
+
+    private static synchronized SessionScheduler.Driver getDriver() {
+        if (sDriver == null) {
+            final Handler handler = getHandler();
+            sDriver = (runDue, delayNanos) -> {
+                // rounded up, as waking up early only means asking again
+                final long delayMillis = (delayNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1)
+                        / TimeUnit.MILLISECONDS.toNanos(1);
+                handler.postDelayed(runDue, delayMillis);
+            };
+        }
+        return sDriver;
+    }
+}
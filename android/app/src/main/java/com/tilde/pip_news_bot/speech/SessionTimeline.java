@@ -0,0 +1,143 @@
+package com.tilde.pip_news_bot.speech;
+
+import android.os.Bundle;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import timber.log.Timber;
+
+/**
+ * When the milestones of one recognition session happened, on the System.nanoTime() clock,
+ * which is also the monotonic clock of AudioRecord timestamps.
+ * <p>
+ * Milestones can be marked from any thread, only the first mark of each one counts. When the
+ * session is finished, the phases between milestones are added to per-phase histograms that
+ * live as long as the process, so that percentiles over many sessions can be reported.
+ */
+final class SessionTimeline {
+
+    static final int START = 0;
+    static final int RECORDER_READY = 1;
+    // when the first captured sample was sampled, from the AudioRecord's timestamp if any
+    static final int CAPTURE_START = 2;
+    static final int OPEN = 3;
+    // may be before START if the socket was opened speculatively
+    static final int AUTH_SENT = 4;
+    static final int FIRST_AUDIO = 5;
+    static final int FIRST_PARTIAL = 6;
+    static final int END_OF_SPEECH = 7;
+    static final int EOS_SENT = 8;
+    static final int FINAL_RESULT = 9;
+    static final int CLOSE = 10;
+    private static final int MILESTONES = 11;
+
+    private static final String[] PHASE_NAMES = {
+            "recorder_ready", "connect", "auth_sent", "open_to_first_audio",
+            "capture_to_first_audio", "first_partial", "first_audio_to_first_partial",
+            "end_of_speech_to_eos", "eos_to_final", "end_of_speech_to_final", "final_to_close",
+            "session"
+    };
+    private static final int[][] PHASES = {
+            {START, RECORDER_READY}, {START, OPEN}, {START, AUTH_SENT}, {OPEN, FIRST_AUDIO},
+            {CAPTURE_START, FIRST_AUDIO}, {START, FIRST_PARTIAL}, {FIRST_AUDIO, FIRST_PARTIAL},
+            {END_OF_SPEECH, EOS_SENT}, {EOS_SENT, FINAL_RESULT}, {END_OF_SPEECH, FINAL_RESULT},
+            {FINAL_RESULT, CLOSE}, {START, CLOSE}
+    };
+
+    // guarded by SessionTimeline.class
+    private static final LatencyHistogram[] HISTOGRAMS = new LatencyHistogram[PHASES.length];
+
+    static {
+        for (int i = 0; i < HISTOGRAMS.length; i++) {
+            HISTOGRAMS[i] = new LatencyHistogram();
+        }
+    }
+
+    private final AtomicLongArray mNanos = new AtomicLongArray(MILESTONES);
+    private volatile boolean mIsSpeculative;
+    private volatile boolean mIsFinished;
+
+    SessionTimeline() {
+        mark(START);
+    }
+
+    /**
+     * @param isSpeculative true iff the session got a socket opened before it started
+     */
+    void setSpeculative(boolean isSpeculative) {
+        mIsSpeculative = isSpeculative;
+    }
+
+    void mark(int milestone) {
+        mark(milestone, System.nanoTime());
+    }
+
+    void mark(int milestone, long nanos) {
+        // 0 means not yet, a real timestamp of 0 is practically impossible
+        mNanos.compareAndSet(milestone, 0, nanos);
+    }
+
+    boolean isMarked(int milestone) {
+        return mNanos.get(milestone) != 0;
+    }
+
+    /**
+     * @return milliseconds from one milestone to the other, or -1 if either is missing
+     */
+    long getMillis(int from, int to) {
+        final long start = mNanos.get(from);
+        final long end = mNanos.get(to);
+        if (start == 0 || end == 0) {
+            return -1;
+        }
+        return Math.max(0, (end - start) / 1000000);
+    }
+
+    /**
+     * Adds the phases of this session to the histograms and logs them, only the first call
+     * does anything.
+     */
+    void finish() {
+        if (mIsFinished) {
+            return;
+        }
+        mIsFinished = true;
+        StringBuilder log = new StringBuilder(mIsSpeculative ? "speculative" : "cold");
+        synchronized (SessionTimeline.class) {
+            for (int i = 0; i < PHASES.length; i++) {
+                long millis = getMillis(PHASES[i][0], PHASES[i][1]);
+                if (millis >= 0) {
+                    HISTOGRAMS[i].record(millis);
+                    log.append(", ").append(PHASE_NAMES[i]).append(' ').append(millis).append(" ms");
+                }
+            }
+        }
+        Timber.i("Session latencies: %s", log);
+    }
+
+    /**
+     * @return a bundle per phase, with this session's latency as "session" (if the phase
+     * was completed) and "count", "p50", "p90", "p99", "max" over all finished sessions,
+     * all in milliseconds
+     */
+    Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        synchronized (SessionTimeline.class) {
+            for (int i = 0; i < PHASES.length; i++) {
+                LatencyHistogram histogram = HISTOGRAMS[i];
+                Bundle phase = new Bundle();
+                long millis = getMillis(PHASES[i][0], PHASES[i][1]);
+                if (millis >= 0) {
+                    phase.putLong("session", millis);
+                }
+                phase.putLong("count", histogram.getCount());
+                phase.putLong("p50", histogram.getPercentile(50));
+                phase.putLong("p90", histogram.getPercentile(90));
+                phase.putLong("p99", histogram.getPercentile(99));
+                phase.putLong("max", histogram.getMax());
+                bundle.putBundle(PHASE_NAMES[i], phase);
+            }
+        }
+        return bundle;
+    }
+}
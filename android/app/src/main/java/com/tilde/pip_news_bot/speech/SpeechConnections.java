@@ -0,0 +1,199 @@
+package com.tilde.pip_news_bot.speech;
+
+import android.content.Context;
+import android.os.AsyncTask;
+import android.os.Handler;
+import android.os.Looper;
+
+import com.tilde.pip_news_bot.speech.audio.AudioEncoders;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+import okhttp3.WebSocketListener;
+import timber.log.Timber;
+
+/**
+ * Process-wide WebSocket plumbing of the recognition service.
+ * <p>
+ * All sessions share one OkHttpClient and with it the dispatcher threads, the connection
+ * pool and the TLS session cache, so that DNS results and TLS sessions are reused between
+ * utterances. A socket can also be opened speculatively, before the service is asked to
+ * listen, so that the handshake and the auth message are done by the time the user speaks.
+ * Which of the configured servers a socket goes to is up to {@link EndpointRouter}.
+ */
+public final class SpeechConnections {
+
+    // unclaimed speculative sockets are closed after this, before the server gives up on them
+    private static final long PREPARED_SOCKET_TTL_MS = 10000;
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    // guarded by SpeechConnections.class
+    private static PreparedWebSocket sPrepared;
+
+    // OkHttp's default, the sender's backlog holds the audio captured while connecting
+    static final int CONNECT_TIMEOUT_MILLIS = 10000;
+
+    private static final class ClientHolder {
+        static final OkHttpClient CLIENT = new OkHttpClient.Builder()
+                .connectTimeout(CONNECT_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    private SpeechConnections() {
+    }
+
+    static OkHttpClient getClient() {
+        return ClientHolder.CLIENT;
+    }
+
+    /**
+     * Creates the shared client off the main thread, it sets up the TLS machinery, and reads
+     * the configuration and generates its auth token there as well.
+     */
+    public static void warmUp(final Context context) {
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(() -> {
+            Timber.d("Warmed up %s", getClient());
+            ConnectionConfig config = ConnectionConfig.get(context);
+            if (config != null) {
+                config.prefetchAuth();
+            }
+        });
+    }
+
+    /**
+     * Makes the next session read the configuration again, called when it has been changed.
+     */
+    public static void onConfigChanged() {
+        ConnectionConfig.invalidate();
+    }
+
+    /**
+     * @param requested the session's {@link Extras#EXTRA_AUDIO_ENCODING}, null if it has none
+     * @return the encoding a session streams: the one it asks for, FLAC if the uplink was
+     * congested recently, raw otherwise
+     */
+    static String getSessionEncoding(String requested) {
+        if (requested == null && UplinkMonitor.isCongested()) {
+            return AudioEncoders.ENCODING_FLAC;
+        }
+        return requested;
+    }
+
+    /**
+     * Opens a socket for the next session with the current configuration, unless there is
+     * one already. Skipped if the session will not stream raw audio, as the server takes the
+     * content type when the socket is opened.
+     *
+     * @param requestedEncoding the session's {@link Extras#EXTRA_AUDIO_ENCODING}, null if it
+     *                          has none
+     */
+    public static void preconnect(Context context, String requestedEncoding) {
+        final String encoding = getSessionEncoding(requestedEncoding);
+        if (encoding != null && !AudioEncoders.ENCODING_RAW.equals(encoding)) {
+            Timber.i("Not connecting ahead of a %s session", encoding);
+            return;
+        }
+        final ConnectionConfig config = ConnectionConfig.get(context);
+        if (config == null) {
+            return;
+        }
+        final String wsArgs = AudioEncoders.getWsArgs(AudioEncoders.create(
+                AudioEncoders.ENCODING_RAW, config.sampleRate, 0));
+        final String server = chooseServer(config, wsArgs);
+        // the speculative socket measures the chosen server
+        EndpointRouter.probe(getClient(), config.wsServers, server,
+                other -> config.getUrl(other, wsArgs));
+        final String url = config.getUrl(server, wsArgs);
+        final String auth;
+        try {
+            auth = config.createAuthMessage(new JSONObject());
+        } catch (JSONException e) {
+            Timber.e(e, "Auth message for speculative connect failed");
+            return;
+        }
+        final PreparedWebSocket prepared;
+        synchronized (SpeechConnections.class) {
+            if (sPrepared != null) {
+                if (sPrepared.matches(url)
+                        && sPrepared.getAgeMillis() < PREPARED_SOCKET_TTL_MS) {
+                    return;
+                }
+                sPrepared.cancel();
+            }
+            prepared = PreparedWebSocket.open(getClient(), url, auth, true);
+            sPrepared = prepared;
+        }
+        Timber.i("Speculative connect to %s", url);
+        sMainHandler.postDelayed(() -> expire(prepared), PREPARED_SOCKET_TTL_MS);
+    }
+
+    /**
+     * Measures the configured servers in the background, if there are several.
+     */
+    public static void probeEndpoints(Context context) {
+        final ConnectionConfig config = ConnectionConfig.get(context);
+        if (config == null) {
+            return;
+        }
+        final String wsArgs = AudioEncoders.getWsArgs(AudioEncoders.create(
+                AudioEncoders.ENCODING_RAW, config.sampleRate, 0));
+        EndpointRouter.probe(getClient(), config.wsServers, null,
+                server -> config.getUrl(server, wsArgs));
+    }
+
+    /**
+     * @return the server of the speculative socket, if that is usable for a session that
+     * connects with {@code wsArgs} and its server is healthy, otherwise the router's choice
+     */
+    static String chooseServer(ConnectionConfig config, String wsArgs) {
+        synchronized (SpeechConnections.class) {
+            if (sPrepared != null && sPrepared.getAgeMillis() < PREPARED_SOCKET_TTL_MS) {
+                for (String server : config.wsServers) {
+                    if (sPrepared.matches(config.getUrl(server, wsArgs))
+                            && EndpointRouter.isHealthy(server)) {
+                        return server;
+                    }
+                }
+            }
+        }
+        return EndpointRouter.choose(config.wsServers);
+    }
+
+    private static synchronized void expire(PreparedWebSocket prepared) {
+        if (sPrepared == prepared) {
+            sPrepared = null;
+            prepared.cancel();
+        }
+    }
+
+    /**
+     * Hands out the speculative socket if it is still usable for {@code url}, otherwise
+     * opens a new one. Either way, the socket sends its auth message when opened.
+     * <p>
+     * The auth message of a speculative socket lacks the session's custom info.
+     */
+    static PreparedWebSocket connect(String url, String auth, WebSocketListener listener,
+                                     SessionTimeline timeline) {
+        PreparedWebSocket prepared;
+        synchronized (SpeechConnections.class) {
+            prepared = sPrepared;
+            sPrepared = null;
+        }
+        if (prepared != null) {
+            if (prepared.matches(url)
+                    && prepared.getAgeMillis() < PREPARED_SOCKET_TTL_MS
+                    && prepared.attach(listener, timeline)) {
+                return prepared;
+            }
+            prepared.cancel();
+        }
+        prepared = PreparedWebSocket.open(getClient(), url, auth, false);
+        prepared.attach(listener, timeline);
+        return prepared;
+    }
+}
@@ -0,0 +1,156 @@
+package com.tilde.pip_news_bot.speech;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters of the streaming pipeline's health, since the process started.
+ * <p>
+ * The counters live in fixed arrays, so the capture and send threads update them without
+ * allocating or locking. Readers get a snapshot, which is not atomic across counters.
+ */
+public final class SpeechMetrics {
+
+    public static final int BYTES_CAPTURED = 0;
+    public static final int BYTES_SENT = 1;
+    public static final int BYTES_SUPPRESSED = 2;
+    public static final int CHUNKS_SENT = 3;
+    // the most bytes ever waiting in the WebSocket's send queue
+    public static final int QUEUE_HIGH_WATER = 4;
+    public static final int CAPTURE_OVERRUNS = 5;
+    public static final int PARSE_FAILURES = 6;
+    public static final int SAMPLES_METERED = 7;
+    public static final int SAMPLES_CLIPPED = 8;
+    public static final int FRAMES_METERED = 9;
+    // sum of the frames' levels in thousandths of a dB
+    public static final int LEVEL_MILLIDB_SUM = 10;
+    // sessions whose capture was stopped because the uplink could not keep up
+    public static final int BACKPRESSURE_STOPS = 11;
+    // reconnects after a mid-session failure, and sessions that failed even so
+    public static final int RECONNECTS = 12;
+    public static final int RECONNECTS_FAILED = 13;
+    // time from a failure to the new socket being open
+    public static final int RECONNECT_MILLIS_SUM = 14;
+    public static final int RECONNECT_MILLIS_MAX = 15;
+    public static final int BYTES_REPLAYED = 16;
+    // reconnects that went to another server than the failed socket
+    public static final int FAILOVERS = 17;
+    // utterances spooled while the server could not be reached, and what became of them
+    public static final int SPOOLED = 18;
+    public static final int SPOOL_TRANSCRIBED = 19;
+    public static final int SPOOL_FAILED = 20;
+    public static final int SPOOL_BYTES_SENT = 21;
+    private static final int COUNTERS = 22;
+
+    private static final String[] COUNTER_NAMES = {
+            "bytes_captured", "bytes_sent", "bytes_suppressed", "chunks_sent",
+            "queue_high_water", "capture_overruns", "parse_failures", "samples_metered",
+            "samples_clipped", "frames_metered", "level_millidb_sum", "backpressure_stops",
+            "reconnects", "reconnects_failed", "reconnect_millis_sum", "reconnect_millis_max",
+            "bytes_replayed", "failovers", "spooled", "spool_transcribed", "spool_failed",
+            "spool_bytes_sent"
+    };
+
+    // by SpeechRecognizer.ERROR_* constant, unknown codes are counted as "other"
+    private static final String[] ERROR_NAMES = {
+            "other", "network_timeout", "network", "audio", "server", "client",
+            "speech_timeout", "no_match", "recognizer_busy", "insufficient_permissions",
+            "too_many_requests", "server_disconnected", "language_not_supported",
+            "language_unavailable"
+    };
+
+    private static final AtomicLongArray VALUES = new AtomicLongArray(COUNTERS);
+    private static final AtomicLongArray ERROR_COUNTS = new AtomicLongArray(ERROR_NAMES.length);
+
+    private SpeechMetrics() {
+    }
+
+    public static void add(int counter, long delta) {
+        VALUES.addAndGet(counter, delta);
+    }
+
+    /**
+     * Raises the counter to the value, if that is higher.
+     */
+    public static void max(int counter, long value) {
+        long current = VALUES.get(counter);
+        while (value > current && !VALUES.compareAndSet(counter, current, value)) {
+            current = VALUES.get(counter);
+        }
+    }
+
+    /**
+     * Adds a metered frame, called from the capture thread.
+     */
+    public static void addFrame(int samples, int clipped, float rmsdb) {
+        VALUES.incrementAndGet(FRAMES_METERED);
+        VALUES.addAndGet(SAMPLES_METERED, samples);
+        if (clipped > 0) {
+            VALUES.addAndGet(SAMPLES_CLIPPED, clipped);
+        }
+        VALUES.addAndGet(LEVEL_MILLIDB_SUM, (long) (rmsdb * 1000));
+    }
+
+    /**
+     * @param errorCode one of the SpeechRecognizer.ERROR_* constants
+     */
+    public static void countError(int errorCode) {
+        final boolean isKnown = errorCode > 0 && errorCode < ERROR_NAMES.length;
+        ERROR_COUNTS.incrementAndGet(isKnown ? errorCode : 0);
+    }
+
+    /**
+     * @return the counters by name, as longs, with "clipping_ratio" and "average_level_db"
+     * as doubles, "errors" as a map of longs by error name and "endpoints" as a map of
+     * per server statistics by server URL, see {@link EndpointRouter#snapshot()}
+     */
+    public static Map<String, Object> snapshot() {
+        Map<String, Object> snapshot = new HashMap<>();
+        for (int i = 0; i < COUNTERS; i++) {
+            snapshot.put(COUNTER_NAMES[i], VALUES.get(i));
+        }
+        snapshot.put("clipping_ratio", getClippingRatio());
+        snapshot.put("average_level_db", getAverageLevelDb());
+        Map<String, Long> errors = new HashMap<>();
+        for (int i = 0; i < ERROR_NAMES.length; i++) {
+            long count = ERROR_COUNTS.get(i);
+            if (count > 0) {
+                errors.put(ERROR_NAMES[i], count);
+            }
+        }
+        snapshot.put("errors", errors);
+        snapshot.put("endpoints", EndpointRouter.snapshot());
+        return snapshot;
+    }
+
+    /**
+     * @return the snapshot as a single line, for the log
+     */
+    static String format() {
+        StringBuilder line = new StringBuilder();
+        for (int i = 0; i < COUNTERS; i++) {
+            line.append(COUNTER_NAMES[i]).append(' ').append(VALUES.get(i)).append(", ");
+        }
+        line.append(String.format(Locale.ROOT, "clipping_ratio %.5f, average_level_db %.1f",
+                getClippingRatio(), getAverageLevelDb()));
+        for (int i = 0; i < ERROR_NAMES.length; i++) {
+            long count = ERROR_COUNTS.get(i);
+            if (count > 0) {
+                line.append(", error_").append(ERROR_NAMES[i]).append(' ').append(count);
+            }
+        }
+        return line.toString();
+    }
+
+    private static double getClippingRatio() {
+        long samples = VALUES.get(SAMPLES_METERED);
+        return samples == 0 ? 0 : (double) VALUES.get(SAMPLES_CLIPPED) / samples;
+    }
+
+    private static double getAverageLevelDb() {
+        long frames = VALUES.get(FRAMES_METERED);
+        return frames == 0 ? 0 : VALUES.get(LEVEL_MILLIDB_SUM) / 1000.0 / frames;
+    }
+}
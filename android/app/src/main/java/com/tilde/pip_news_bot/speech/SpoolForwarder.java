@@ -0,0 +1,370 @@
+package com.tilde.pip_news_bot.speech;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.net.Network;
+import android.net.NetworkCapabilities;
+import android.net.NetworkRequest;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Message;
+import android.os.Process;
+import android.speech.SpeechRecognizer;
+
+import com.tilde.pip_news_bot.speech.audio.AudioEncoders;
+import com.tilde.pip_news_bot.speech.audio.AudioSpool;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+import timber.log.Timber;
+
+/**
+ * Transcribes the utterances that sessions spooled while the server could not be reached,
+ * oldest first and one at a time, once it can be reached again.
+ * <p>
+ * Each utterance goes over a socket of its own, with the same protocol as a live session, but
+ * as fast as the socket takes the audio. Its final results are joined into one transcript,
+ * which is handed to the listener, and the utterance is deleted. If the socket fails, the
+ * utterance stays spooled and draining stops until the network comes back, the plugin is
+ * activated again or a back-off has passed. An utterance that the server has failed on
+ * {@link #MAX_ATTEMPTS} times, after the socket was open, is given up on.
+ * <p>
+ * Everything but the streaming runs on the main thread.
+ */
+public final class SpoolForwarder {
+
+    /**
+     * Gets the transcripts of spooled utterances, on the main thread.
+     */
+    public interface Listener {
+        /**
+         * @param id         the id the session reported with {@link Extras#EXTRA_SPOOLED_ID}
+         * @param transcript the joined final results, empty if there were none
+         * @param error      0, or the SpeechRecognizer.ERROR_* constant the utterance failed with
+         */
+        void onSpooledResult(long id, String transcript, int error);
+    }
+
+    private static final String SPOOL_DIR = "speech_spool";
+    // about 17 minutes at 16 kHz
+    private static final long SPOOL_CAPACITY_BYTES = 32L * 1024 * 1024;
+    private static final int MAX_ATTEMPTS = 3;
+    private static final int RETRY_BACKOFF_MILLIS = 30000;
+    private static final int CHUNK_BYTES = 16 * 1024;
+    // the streaming waits while this much is queued in the socket
+    private static final long MAX_QUEUE_BYTES = 256 * 1024;
+    private static final int QUEUE_POLL_MILLIS = 50;
+    private static final String EOS = "EOS";
+
+    private static final Handler sMainHandler = new Handler(Looper.getMainLooper());
+
+    // main thread only
+    private static AudioSpool sSpool;
+    private static boolean sIsSpoolBroken;
+    private static Listener sListener;
+    private static Transfer sTransfer;
+    private static ConnectivityManager.NetworkCallback sNetworkCallback;
+    // failed attempts by utterance id
+    private static final Map<Long, Integer> ATTEMPTS = new HashMap<>();
+
+    private SpoolForwarder() {
+    }
+
+    public static void setListener(Listener listener) {
+        sListener = listener;
+    }
+
+    /**
+     * @return the spool, or null if it cannot be used
+     */
+    static AudioSpool getSpool(Context context) {
+        if (sSpool == null && !sIsSpoolBroken) {
+            try {
+                sSpool = new AudioSpool(new File(context.getNoBackupFilesDir(), SPOOL_DIR),
+                        SPOOL_CAPACITY_BYTES);
+            } catch (IOException e) {
+                Timber.e(e, "Spool");
+                sIsSpoolBroken = true;
+            }
+        }
+        return sSpool;
+    }
+
+    /**
+     * Starts transcribing the spooled utterances, unless that is underway already or there is
+     * no one to hand the transcripts to.
+     */
+    public static void drain(Context context) {
+        final Context appContext = context.getApplicationContext();
+        final AudioSpool spool = getSpool(appContext);
+        if (spool == null || sTransfer != null || sListener == null) {
+            return;
+        }
+        if (spool.isEmpty()) {
+            unwatchNetwork(appContext);
+            return;
+        }
+        final ConnectionConfig config = ConnectionConfig.get(appContext);
+        if (config == null) {
+            return;
+        }
+        AudioSpool.Entry entry = spool.list().get(0);
+        Timber.i("Transcribing spooled utterance %d, %d bytes, %d more spooled",
+                entry.id, entry.length, spool.list().size() - 1);
+        // a session spooling meanwhile must not evict the file while it is read
+        spool.pin(entry);
+        sTransfer = new Transfer(appContext, config, spool, entry);
+        sTransfer.start();
+    }
+
+    /**
+     * Transcribes the utterance a session has just spooled as soon as the network is back.
+     */
+    static void onSpooled(Context context) {
+        watchNetwork(context.getApplicationContext());
+        drain(context);
+    }
+
+    private static void onTransferEnd(final Transfer transfer, boolean isRetryable) {
+        sTransfer = null;
+        final AudioSpool.Entry entry = transfer.mEntry;
+        transfer.mSpool.unpin(entry);
+        if (isRetryable) {
+            Integer attempts = ATTEMPTS.get(entry.id);
+            attempts = attempts == null ? 0 : attempts;
+            // not reaching the server says nothing about the utterance
+            if (transfer.mIsOpened) {
+                attempts++;
+            }
+            if (attempts < MAX_ATTEMPTS) {
+                ATTEMPTS.put(entry.id, attempts);
+                Timber.w("Spooled utterance %d failed, %d attempts", entry.id, attempts);
+                watchNetwork(transfer.mContext);
+                final long delay = RETRY_BACKOFF_MILLIS * (attempts + 1L);
+                sMainHandler.postDelayed(() -> drain(transfer.mContext), delay);
+                return;
+            }
+            Timber.w("Giving up on spooled utterance %d", entry.id);
+        }
+        ATTEMPTS.remove(entry.id);
+        transfer.mSpool.remove(entry);
+        SpeechMetrics.add(transfer.mError == 0
+                ? SpeechMetrics.SPOOL_TRANSCRIBED : SpeechMetrics.SPOOL_FAILED, 1);
+        if (sListener != null) {
+            sListener.onSpooledResult(entry.id, transfer.getTranscript(), transfer.mError);
+        }
+        drain(transfer.mContext);
+    }
+
+    private static void watchNetwork(final Context context) {
+        if (sNetworkCallback != null) {
+            return;
+        }
+        ConnectivityManager manager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (manager == null) {
+            return;
+        }
+        sNetworkCallback = new ConnectivityManager.NetworkCallback() {
+            @Override
+            public void onAvailable(Network network) {
+                sMainHandler.post(() -> drain(context));
+            }
+        };
+        manager.registerNetworkCallback(new NetworkRequest.Builder()
+                .addCapability(NetworkCapabilities.NET_CAPABILITY_INTERNET)
+                .build(), sNetworkCallback);
+    }
+
+    private static void unwatchNetwork(Context context) {
+        if (sNetworkCallback == null) {
+            return;
+        }
+        ConnectivityManager manager =
+                (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        if (manager != null) {
+            manager.unregisterNetworkCallback(sNetworkCallback);
+        }
+        sNetworkCallback = null;
+    }
+
+    /**
+     * Streams one utterance to the server and collects its final results.
+     */
+    private static final class Transfer extends WebSocketListener {
+        private static HandlerThread sThread;
+
+        private final Context mContext;
+        private final AudioSpool mSpool;
+        private final AudioSpool.Entry mEntry;
+        private final String mUrl;
+        private final String mAuth;
+        private final ResultDecoder mDecoder;
+        private final Handler mSendHandler;
+        private final ArrayList<String> mFinals = new ArrayList<>();
+        private volatile boolean mIsOpened;
+        // main thread only
+        private int mError;
+        private boolean mIsEnded;
+        // send thread only
+        private FileChannel mChannel;
+        private ByteBuffer mBuffer;
+
+        Transfer(Context context, ConnectionConfig config, AudioSpool spool,
+                 AudioSpool.Entry entry) {
+            mContext = context;
+            mSpool = spool;
+            mEntry = entry;
+            final String wsArgs = AudioEncoders.getWsArgs(
+                    AudioEncoders.create(AudioEncoders.ENCODING_RAW, entry.sampleRate, 0));
+            mUrl = config.getUrl(EndpointRouter.choose(config.wsServers), wsArgs);
+            String auth;
+            try {
+                auth = config.createAuthMessage(new JSONObject().put("spooled_at", entry.id));
+            } catch (JSONException e) {
+                Timber.e(e, "Auth message");
+                auth = "";
+            }
+            mAuth = auth;
+            if (sThread == null) {
+                sThread = new HandlerThread("SpoolForwarderThread",
+                        Process.THREAD_PRIORITY_BACKGROUND);
+                sThread.start();
+            }
+            mDecoder = new ResultDecoder(sThread.getLooper(),
+                    new Handler(Looper.getMainLooper(), this::onDecoded), 0, true, false, 1);
+            mSendHandler = new Handler(sThread.getLooper());
+        }
+
+        void start() {
+            PreparedWebSocket.open(SpeechConnections.getClient(), mUrl, mAuth, false)
+                    .attach(this, new SessionTimeline());
+        }
+
+        String getTranscript() {
+            StringBuilder transcript = new StringBuilder();
+            for (String text : mFinals) {
+                if (transcript.length() > 0) {
+                    transcript.append(' ');
+                }
+                transcript.append(text);
+            }
+            return transcript.toString();
+        }
+
+        private boolean onDecoded(Message msg) {
+            ResultDecoder.Decoded decoded = (ResultDecoder.Decoded) msg.obj;
+            if (decoded.action == ResultDecoder.ACTION_ERROR) {
+                // an empty final result is reported as a speech timeout, it just has no words
+                if (decoded.error != SpeechRecognizer.ERROR_SPEECH_TIMEOUT && mError == 0) {
+                    mError = decoded.error;
+                }
+            } else if (decoded.bundle != null
+                    && decoded.bundle.getBoolean(Extras.EXTRA_SEMI_FINAL, true)) {
+                ArrayList<String> hypotheses =
+                        decoded.bundle.getStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION);
+                if (hypotheses != null && !hypotheses.isEmpty()) {
+                    mFinals.add(hypotheses.get(0));
+                }
+            }
+            return true;
+        }
+
+        private void end(int error) {
+            if (mIsEnded) {
+                return;
+            }
+            mIsEnded = true;
+            mDecoder.quit();
+            mSendHandler.removeCallbacksAndMessages(null);
+            mSendHandler.post(this::closeChannel);
+            if (error != 0 && mError == 0) {
+                mError = error;
+            }
+            final boolean isRetryable = mError == SpeechRecognizer.ERROR_NETWORK
+                    || mError == SpeechRecognizer.ERROR_RECOGNIZER_BUSY;
+            if (mError == SpeechRecognizer.ERROR_RECOGNIZER_BUSY) {
+                EndpointRouter.onUnavailable(mUrl);
+            }
+            onTransferEnd(this, isRetryable);
+        }
+
+        /**
+         * Sends the next chunks, as long as the socket's queue is short. Runs on the send
+         * thread.
+         */
+        private void send(WebSocket webSocket) {
+            try {
+                if (mChannel == null) {
+                    mChannel = mEntry.openChannel();
+                    mBuffer = ByteBuffer.allocate(CHUNK_BYTES);
+                }
+                while (webSocket.queueSize() < MAX_QUEUE_BYTES) {
+                    mBuffer.clear();
+                    if (mChannel.read(mBuffer) <= 0) {
+                        webSocket.send(EOS);
+                        closeChannel();
+                        return;
+                    }
+                    webSocket.send(ByteString.of(mBuffer.array(), 0, mBuffer.position()));
+                    SpeechMetrics.add(SpeechMetrics.SPOOL_BYTES_SENT, mBuffer.position());
+                }
+                mSendHandler.postDelayed(() -> send(webSocket), QUEUE_POLL_MILLIS);
+            } catch (IOException e) {
+                Timber.e(e, "Reading spooled utterance %d", mEntry.id);
+                webSocket.cancel();
+                closeChannel();
+                sMainHandler.post(() -> end(SpeechRecognizer.ERROR_CLIENT));
+            }
+        }
+
+        private void closeChannel() {
+            if (mChannel != null) {
+                try {
+                    mChannel.close();
+                } catch (IOException ignored) {
+                }
+                mChannel = null;
+            }
+        }
+
+        @Override
+        public void onOpen(@NotNull WebSocket webSocket, @NotNull Response response) {
+            mIsOpened = true;
+            mSendHandler.post(() -> send(webSocket));
+        }
+
+        @Override
+        public void onMessage(@NotNull WebSocket webSocket, @NotNull String text) {
+            mDecoder.post(text);
+        }
+
+        @Override
+        public void onClosed(@NotNull WebSocket webSocket, int code, @NotNull String reason) {
+            mDecoder.postToTarget(() -> end(0));
+        }
+
+        @Override
+        public void onFailure(@NotNull WebSocket webSocket, @NotNull Throwable t,
+                              @Nullable Response response) {
+            Timber.w(t, "Spooled utterance %d, socket failed", mEntry.id);
+            mDecoder.postToTarget(() -> end(SpeechRecognizer.ERROR_NETWORK));
+        }
+    }
+}
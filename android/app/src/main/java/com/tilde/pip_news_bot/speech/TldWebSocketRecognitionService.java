@@ -5,14 +5,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.SharedPreferences;
 import android.media.AudioManager;
+import android.os.AsyncTask;
 import android.os.Bundle;
 import android.os.Handler;
-import android.os.HandlerThread;
-import android.os.Looper;
 import android.os.Message;
-import android.os.Process;
 import android.os.RemoteException;
-import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.speech.RecognitionService;
 import android.speech.RecognizerIntent;
@@ -20,24 +17,30 @@ import android.speech.SpeechRecognizer;
 
 import com.tilde.pip_news_bot.Analytics;
 import com.tilde.pip_news_bot.R;
-import com.tilde.pip_news_bot.authorization.Authorization;
-import com.tilde.pip_news_bot.authorization.AuthorizationProvider;
+import com.tilde.pip_news_bot.speech.audio.AudioArchive;
+import com.tilde.pip_news_bot.speech.audio.AudioBacklog;
+import com.tilde.pip_news_bot.speech.audio.AudioChunk;
 import com.tilde.pip_news_bot.speech.audio.AudioCue;
+import com.tilde.pip_news_bot.speech.audio.AudioEncoder;
+import com.tilde.pip_news_bot.speech.audio.AudioEncoders;
+import com.tilde.pip_news_bot.speech.audio.AudioSpool;
+import com.tilde.pip_news_bot.speech.audio.AudioStreamer;
 import com.tilde.pip_news_bot.speech.audio.RawAudioRecorder;
+import com.tilde.pip_news_bot.speech.audio.SilenceSuppressor;
+import com.tilde.pip_news_bot.speech.audio.WavWriter;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.concurrent.TimeoutException;
 
-import okhttp3.OkHttpClient;
-import okhttp3.Request;
 import okhttp3.Response;
 import okhttp3.WebSocket;
 import okhttp3.WebSocketListener;
@@ -47,51 +50,105 @@ import timber.log.Timber;
 
 public class TldWebSocketRecognitionService extends RecognitionService {
 
-    private static final int TASK_DELAY_SEND = 10;
-    private static final int TASK_INTERVAL_SEND = 200;
-    public static final int MAX_HYPOTHESES = 100;
+    private static final int DEFAULT_FRAME_MILLIS = 40;
+    private static final int CHUNK_POOL_SIZE = 4;
+    // trailing silence that ends an utterance of limited duration
+    private static final int DEFAULT_ENDPOINTER_SILENCE_MILLIS = 1000;
+    // audio sent ahead of a speech onset when silence is suppressed
+    private static final int SUPPRESSION_PRE_ROLL_MILLIS = 300;
+    private static final int SUPPRESSION_KEEP_ALIVE_MILLIS = 1000;
+    // audio per message while the uplink is backed up
+    private static final int BATCH_MILLIS = 200;
+    // reconnects per session after the socket failed mid-session
+    private static final int MAX_RECONNECTS = 3;
+    private static final int RECONNECT_BACKOFF_MILLIS = 500;
+    // audio the recorder holds until the sender takes it, i.e. how long the session thread may
+    // stall, the sender takes it into the backlog while connecting
+    private static final int CAPTURE_BUFFER_MILLIS = 2000;
+    // audio kept for a replay after a reconnect, and for the first socket while connecting,
+    // enough for the connect to time out and fail over once
+    private static final int BACKLOG_MILLIS = 20000;
+    // audio before a final result that is still replayed, as the server does not tell where
+    // the finalized segment ended
+    private static final int ACK_MARGIN_MILLIS = 2000;
+    public static final int MAX_HYPOTHESES = WebSocketResponse.MAX_HYPOTHESES;
 
-    private static final String POSTPROCESS_NUMBERS = "voice_recognition_postprocess_numbers";
     // Pretty-print results
-    public static final boolean PRETTY_PRINT = true;
+    public static final boolean PRETTY_PRINT = WebSocketResponse.PRETTY_PRINT;
 
     private static final String EOS = "EOS";
-    private boolean mIsEosSent;
+    private static final String ARCHIVE_DIR = "sessions";
+    private volatile boolean mIsEosSent;
 
     private static final int MSG_RESULT = 1;
     private static final int MSG_ERROR = 2;
 
-    private volatile Looper mSendLooper;
-
-    private volatile Handler mSendHandler;
+    // runs the session's sending and timers on the shared session thread, null between sessions
+    private volatile SessionScheduler mScheduler;
     private RecognitionResultHandler mRecResultHandler;
-    private Runnable mSendRunnable;
+    private volatile ResultDecoder mResultDecoder;
+    private volatile AudioSender mSendRunnable;
 
-    private WebSocket mWebSocket;
+    private PreparedWebSocket mSocket;
     private String mUrl;
+    private String mWsArgs;
 
     private String mAuth = "";
+    private ConnectionConfig mConfig;
+    private JSONObject mCustomInfo;
+
+    // callbacks of sockets that have since been replaced or disconnected are ignored
+    private volatile int mSocketGeneration;
+    private int mReconnectCount;
+    // System.nanoTime() of the failure the session is reconnecting after, 0 if connected
+    private volatile long mFailureNanos;
+    private SessionScheduler.Task mReconnectTask;
 
     private static final int TASK_INTERVAL_VOL = 100;
     private static final int TASK_DELAY_VOL = 500;
 
-    private static final int TASK_INTERVAL_STOP = 1000;
-    private static final int TASK_DELAY_STOP = 1000;
+    // the capture is stopped after this long
+    private static final int MAX_RECORDING_MILLIS = 1000 * 10000;
+
+    private static final int TASK_INTERVAL_METRICS = 10000;
 
     private AudioCue mAudioCue;
     private AudioPauser mAudioPauser;
     private RawAudioRecorder mRecorder;
+    // rate the ASR system expects, from the configuration
+    private int mSampleRate;
+    // 0 if the session should only end when told so
+    private int mEndpointerSilenceMillis;
+    private boolean mIsSilenceSuppressed;
+    private boolean mIsSpoolingAllowed;
+    // number of sessions to keep recordings of, 0 for none
+    private int mArchiveSessions;
+
+    // the archive of the latest sessions' recordings, guarded by the class
+    private static AudioArchive sArchive;
+    // the backlog of a sender that is done with it, handed to the next one, guarded by the class
+    private static AudioBacklog sSpareBacklog;
+    private String mEncoding;
+    private AudioEncoder mEncoder;
 
     private Callback mRecognitionListener;
 
-    private final Handler mVolumeHandler = new Handler();
-    private Runnable mShowVolumeTask;
+    // for the hops onto the main thread
+    private final Handler mMainHandler = new Handler();
 
-    private final Handler mStopHandler = new Handler();
-    private Runnable mStopTask;
+    private SessionScheduler.Task mShowVolumeTask;
+    private SessionScheduler.Task mStopTask;
+    private SessionScheduler.Task mLogMetricsTask;
 
     private Bundle mExtras;
 
+    private volatile SessionTimeline mTimeline;
+
+    // Main thread time spent delivering partial results
+    private int mPartialResultCount;
+    private long mPartialResultNanos;
+    private long mPartialResultMaxNanos;
+
     @Override
     public void onCreate() {
         super.onCreate();
@@ -103,148 +160,324 @@ public class TldWebSocketRecognitionService extends RecognitionService {
             extras = new Bundle();
         }
 
-        final SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(this);
-
-        // TODO remove defaults from resources
-        // TODO do the same for iOS counterpart
-        // TODO handle null
-        final String appId = prefs.getString(getString(R.string.keyAppID), null);
-        final String appSecret = prefs.getString(getString(R.string.keyAppSecurity), null);
-        final String appSystem = prefs.getString(getString(R.string.keyAsrSystem), null);
-        final String wsServer = prefs.getString(getString(R.string.keyWsServer), null);
-        Timber.d("appId: %s", appId);
-        Timber.d("appSecret: %s", appSecret);
-        Timber.d("appSystem: %s", appSystem);
-        Timber.d("wsServer: %s", wsServer);
-        boolean allConfigProvided = true;
-        if (appId == null) {
-            Timber.w("ASR: appId not specified.");
-            allConfigProvided = false;
-        }
-        if (appSecret == null) {
-            Timber.w("ASR: appSecret not specified.");
-            allConfigProvided = false;
-        }
-        if (appSystem == null) {
-            Timber.w("ASR: asr system not specified");
-            allConfigProvided = false;
-        }
-        if (wsServer == null) {
-            Timber.w("ASR: ws server not specified");
-            allConfigProvided = false;
-        }
-        if (!allConfigProvided) {
+        final ConnectionConfig config = ConnectionConfig.get(this);
+        if (config == null) {
             return false;
         }
-        final AuthorizationProvider authProvider = new AuthorizationProvider(appId, appSecret);
-        final Authorization auth = authProvider.genAuth();
+        mConfig = config;
+        mCustomInfo = null;
 
         final String caller = extras.getString(RecognizerIntent.EXTRA_CALLING_PACKAGE);
+        PendingIntent intent = IntentUtils.getPendingIntent(extras);
+        final String creator = intent == null ? null : intent.getCreatorPackage();
         try {
-            JSONArray postProcessors = new JSONArray();
-            final JSONArray partialPostProcess = new JSONArray();
-
-            if (prefs.getBoolean(POSTPROCESS_NUMBERS, true)) {
-                postProcessors.put("numbers");
-            }
-
-            JSONObject obj = new JSONObject();
-            obj.put("appID", appId);
-            obj.put("appKey", auth.appKey);
-            obj.put("timestamp", auth.timeStamp);
-            obj.put("enable-postprocess", postProcessors);
-            obj.put("enable-partial-postprocess", partialPostProcess);
-
-            Bundle params = new Bundle();
             JSONObject customInfo = new JSONObject();
             if (caller != null) {
                 customInfo.put("calling_package", caller);
-                params.putString("calling_package", caller);
-                Analytics.FirebaseLogEvent(this, "wscall_" + caller, params);
             }
-            PendingIntent intent = IntentUtils.getPendingIntent(extras);
-            if (intent != null) {
-                customInfo.put("creator_package", intent.getCreatorPackage());
-                params.putString("creator_package", intent.getCreatorPackage());
-
-                Analytics.FirebaseLogEvent(this, "wscr_" + intent.getCreatorPackage(), params);
+            if (creator != null) {
+                customInfo.put("creator_package", creator);
             }
-            obj.put("custom-info", customInfo.toString());
             Timber.i(customInfo.toString());
-            mAuth = obj.toString();
-            params.putString("service", "RecognitionService");
-            params.putString("event", "create");
-            Analytics.FirebaseLogEvent(this, "use_ws_RecognitionService", params);
-
+            mCustomInfo = customInfo;
+            mAuth = config.createAuthMessage(customInfo);
         } catch (JSONException e) {
             e.printStackTrace();
         }
-
-        mUrl = wsServer + "/" + appSystem + getAudioRecorder().getWsArgs();
+        logSessionStart(caller, creator);
+
+        mSampleRate = config.sampleRate;
+        final RawAudioRecorder recorder = getAudioRecorder();
+        final String requestedEncoding = extras.getString(Extras.EXTRA_AUDIO_ENCODING);
+        mEncoding = SpeechConnections.getSessionEncoding(requestedEncoding);
+        if (requestedEncoding == null && mEncoding != null) {
+            Timber.i("Uplink was congested recently, streaming FLAC");
+        }
+        mEncoder = createEncoder(recorder);
+        mWsArgs = AudioEncoders.getWsArgs(mEncoder);
+        mUrl = config.getUrl(SpeechConnections.chooseServer(config, mWsArgs), mWsArgs);
 
         boolean isUnlimitedDuration =
                 getExtras().getBoolean(Extras.EXTRA_UNLIMITED_DURATION, true)
                         || getExtras().getBoolean(Extras.EXTRA_DICTATION_MODE, true);
 
-        mRecResultHandler = new RecognitionResultHandler(this,
-                isUnlimitedDuration,
+        if (extras.containsKey(
+                RecognizerIntent.EXTRA_SPEECH_INPUT_COMPLETE_SILENCE_LENGTH_MILLIS)) {
+            mEndpointerSilenceMillis = (int) extras.getLong(
+                    RecognizerIntent.EXTRA_SPEECH_INPUT_COMPLETE_SILENCE_LENGTH_MILLIS, 0);
+        } else if (isUnlimitedDuration) {
+            mEndpointerSilenceMillis = 0;
+        } else {
+            mEndpointerSilenceMillis = DEFAULT_ENDPOINTER_SILENCE_MILLIS;
+        }
+
+        mIsSilenceSuppressed = extras.getBoolean(Extras.EXTRA_SUPPRESS_SILENCE, false);
+        mIsSpoolingAllowed = extras.getBoolean(Extras.EXTRA_SPOOL_OFFLINE, false);
+        mArchiveSessions = extras.getInt(Extras.EXTRA_ARCHIVE_SESSIONS, 0);
+
+        // only this many hypotheses are decoded from each result
+        int maxResults = extras.getInt(RecognizerIntent.EXTRA_MAX_RESULTS, MAX_HYPOTHESES);
+        if (maxResults <= 0 || maxResults > MAX_HYPOTHESES) {
+            maxResults = MAX_HYPOTHESES;
+        }
+
+        mRecResultHandler = new RecognitionResultHandler(this);
+        if (mResultDecoder != null) {
+            mResultDecoder.quit();
+        }
+        mResultDecoder = new ResultDecoder(SessionThread.getDecodeLooper(), mRecResultHandler,
+                MSG_RESULT, isUnlimitedDuration,
                 getExtras().getBoolean(RecognizerIntent.EXTRA_PARTIAL_RESULTS,
-                        false));
+                        false),
+                maxResults);
         return true;
     }
 
+    private AudioEncoder createEncoder(RawAudioRecorder recorder) {
+        // one block per captured frame, so every frame still goes out as soon as it is captured
+        return AudioEncoders.create(mEncoding, recorder.getSampleRate(),
+                recorder.getFrameSize() / 2);
+    }
+
+    /**
+     * @return a new auth message, as the server checks the timestamp it carries
+     */
+    private String createAuthMessage() {
+        if (mCustomInfo == null) {
+            return mAuth;
+        }
+        try {
+            return mConfig.createAuthMessage(mCustomInfo, true);
+        } catch (JSONException e) {
+            Timber.e(e, "Auth message");
+            return mAuth;
+        }
+    }
+
     void connect() {
         startSocket(mUrl);
+    }
 
-        int usageCounter = PreferenceManager.getDefaultSharedPreferences(this)
-                .getInt(getString(R.string.keyUsageCounter), 0);
-        usageCounter++;
+    /**
+     * Logs the analytics events of a session and counts it, off the main thread. The tasks run
+     * one at a time, so that no count is lost.
+     */
+    private void logSessionStart(final String caller, final String creator) {
+        final Context context = getApplicationContext();
+        AsyncTask.SERIAL_EXECUTOR.execute(() -> {
+            Bundle params = new Bundle();
+            if (caller != null) {
+                params.putString("calling_package", caller);
+                Analytics.FirebaseLogEvent(context, "wscall_" + caller, params);
+            }
+            if (creator != null) {
+                params.putString("creator_package", creator);
+                Analytics.FirebaseLogEvent(context, "wscr_" + creator, params);
+            }
+            params.putString("service", "RecognitionService");
+            params.putString("event", "create");
+            Analytics.FirebaseLogEvent(context, "use_ws_RecognitionService", params);
 
-        PreferenceManager.getDefaultSharedPreferences(this).edit()
-                .putInt(getString(R.string.keyUsageCounter), usageCounter).apply();
+            SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+            int usageCounter = prefs.getInt(context.getString(R.string.keyUsageCounter), 0);
+            prefs.edit()
+                    .putInt(context.getString(R.string.keyUsageCounter), usageCounter + 1)
+                    .apply();
+        });
     }
 
     void disconnect() {
-        if (mSendHandler != null) {
-            mSendHandler.removeCallbacks(mSendRunnable);
+        mSocketGeneration++;
+        // cancels the sending, the timers and a pending reconnect alike
+        SessionScheduler scheduler = mScheduler;
+        if (scheduler != null) {
+            mScheduler = null;
+            scheduler.shutdown();
+        }
+        mReconnectTask = null;
+        final AudioSender sender = mSendRunnable;
+        if (sender != null) {
+            sender.abortSpool();
+            sender.closeRecording();
+            // after whatever the sender is still doing on the session thread
+            SessionThread.post(sender::release);
         }
 
-        if (mSendLooper != null) {
-            mSendLooper.quit();
-            mSendLooper = null;
+        ResultDecoder decoder = mResultDecoder;
+        if (decoder != null) {
+            mResultDecoder = null;
+            decoder.quit();
         }
+        reportPartialResultTime();
 
-        if (mWebSocket != null) { // && mWebSocket.mWebSocket.isOpen()) {
+        SessionTimeline timeline = mTimeline;
+        if (timeline != null) {
+            timeline.mark(SessionTimeline.CLOSE);
+        }
+        if (mSocket != null) { // && mSocket.mWebSocket.isOpen()) {
             // TODO use webSocket.close() instead?
-            mWebSocket.cancel();
-//            mWebSocket.end();
-            mWebSocket = null;
+            mSocket.cancel();
+//            mSocket.end();
+            mSocket = null;
         }
     }
 
+    /**
+     * Hands a server message to the decoder, called on the socket's thread.
+     */
     private void handleResult(String text) {
-        Message msg = new Message();
-        msg.what = MSG_RESULT;
-        msg.obj = text;
-        mRecResultHandler.sendMessage(msg);
+        ResultDecoder decoder = mResultDecoder;
+        if (decoder != null) {
+            decoder.post(text);
+        }
     }
 
     private void handleException(Throwable error) {
-        Message msg = new Message();
-        msg.what = MSG_ERROR;
-        msg.obj = error;
-        mRecResultHandler.sendMessage(msg);
+        Message.obtain(mRecResultHandler, MSG_ERROR, error).sendToTarget();
+    }
+
+    /**
+     * Reconnects if the socket failed, see {@link #reconnect()}. Called on the socket's thread.
+     */
+    private void handleFailure(final int generation, final Throwable error) {
+        mMainHandler.post(() -> {
+            // the session may already be over
+            if (generation != mSocketGeneration) {
+                return;
+            }
+            if (!reconnect() && !startSpooling()) {
+                handleException(error);
+            }
+        });
+    }
+
+    /**
+     * The server has said that it cannot take the session, which moves it to another one.
+     *
+     * @return false if the session cannot be moved
+     */
+    private boolean handleUnavailable() {
+        EndpointRouter.onUnavailable(mUrl);
+        return mConfig != null && mConfig.wsServers.size() > 1 && reconnect();
+    }
+
+    /**
+     * Replaces the session's socket with one to the server the router picks now, which need not
+     * be the same, at most {@link #MAX_RECONNECTS} times per session. A socket that has carried
+     * audio is always replaced, one that failed to open only if there is another server to try.
+     *
+     * @return false if the session is over or out of reconnects
+     */
+    private boolean reconnect() {
+        final AudioSender sender = mSendRunnable;
+        final SessionScheduler scheduler = mScheduler;
+        final boolean isSending = sender != null && sender.mIsStreamed && scheduler != null;
+        if (mResultDecoder == null || mReconnectCount >= MAX_RECONNECTS
+                || (!isSending && (mConfig.wsServers.size() < 2 || sender == null))) {
+            if (mReconnectCount > 0) {
+                SpeechMetrics.add(SpeechMetrics.RECONNECTS_FAILED, 1);
+            }
+            return false;
+        }
+        mReconnectCount++;
+        SpeechMetrics.add(SpeechMetrics.RECONNECTS, 1);
+        // callbacks of the old socket are ignored from here on
+        mSocketGeneration++;
+        if (mSocket != null) {
+            mSocket.cancel();
+            mSocket = null;
+        }
+        if (isSending) {
+            if (mFailureNanos == 0) {
+                mFailureNanos = System.nanoTime();
+            }
+            scheduler.post(sender::pause);
+        }
+        mResultDecoder.onReconnect();
+        Timber.w("Reconnecting, attempt %d", mReconnectCount);
+        mReconnectTask = mScheduler.schedule(onMainThread(() -> {
+            mReconnectTask = null;
+            final String url = mConfig.getUrl(EndpointRouter.choose(mConfig.wsServers), mWsArgs);
+            if (!url.equals(mUrl)) {
+                Timber.i("Failing over to %s", url);
+                SpeechMetrics.add(SpeechMetrics.FAILOVERS, 1);
+                mUrl = url;
+            }
+            mAuth = createAuthMessage();
+            startSocket(mUrl);
+        }), RECONNECT_BACKOFF_MILLIS * (mReconnectCount - 1));
+        return true;
+    }
+
+    /**
+     * Spools the session's audio for {@link SpoolForwarder} instead of failing, if the session
+     * allows that and its socket has never been open. The session then ends once the capture
+     * has, with the id of the spooled utterance instead of results.
+     * <p>
+     * Nothing has been streamed yet, so the utterance is spooled from the sender's backlog,
+     * i.e. from the start of the capture unless connecting took longer than the backlog holds.
+     *
+     * @return false if the session cannot be spooled
+     */
+    private boolean startSpooling() {
+        final AudioSender sender = mSendRunnable;
+        final SessionScheduler scheduler = mScheduler;
+        if (!mIsSpoolingAllowed || sender == null || sender.mIsStreamed || scheduler == null) {
+            return false;
+        }
+        AudioSpool spool = SpoolForwarder.getSpool(this);
+        if (spool == null) {
+            return false;
+        }
+        final AudioSpool.Writer writer;
+        try {
+            writer = spool.begin(sender.mSource.getSampleRate());
+        } catch (IOException e) {
+            Timber.e(e, "Spool");
+            return false;
+        }
+        // callbacks of the failed socket are ignored from here on
+        mSocketGeneration++;
+        mSocket = null;
+        scheduler.post(() -> sender.startSpooling(writer));
+        return true;
+    }
+
+    /**
+     * Ends a spooling session, called on the main thread once the capture has ended and the
+     * audio is on disk.
+     *
+     * @param id the spooled utterance, 0 if nothing could be spooled
+     */
+    private void onSpooled(long id, SessionTimeline timeline) {
+        // the session may already be over
+        if (timeline != mTimeline || mResultDecoder == null) {
+            return;
+        }
+        if (id == 0) {
+            onError(SpeechRecognizer.ERROR_NETWORK);
+            return;
+        }
+        SpeechMetrics.add(SpeechMetrics.SPOOLED, 1);
+        Bundle bundle = new Bundle();
+        bundle.putLong(Extras.EXTRA_SPOOLED_ID, id);
+        onResults(bundle);
+        SpoolForwarder.onSpooled(this);
     }
 
     private void startSocket(String url) {
         mIsEosSent = false;
 
-        OkHttpClient client = new OkHttpClient();
-
-        mWebSocket = client.newWebSocket(new Request.Builder().url(url).build(), new WebSocketListener() {
+        final SessionTimeline timeline = mTimeline;
+        final int generation = ++mSocketGeneration;
+        PreparedWebSocket socket = SpeechConnections.connect(url, mAuth, new WebSocketListener() {
             @Override
             public void onClosed(@NotNull WebSocket webSocket, int code, @NotNull String reason) {
                 Timber.i("Websocket closed, code: %s, reason: %s", code, reason);
+                if (generation != mSocketGeneration) {
+                    return;
+                }
+                timeline.mark(SessionTimeline.CLOSE);
                 handleFinish(mIsEosSent);
             }
 
@@ -256,7 +489,7 @@ public class TldWebSocketRecognitionService extends RecognitionService {
             @Override
             public void onFailure(@NotNull WebSocket webSocket, @NotNull Throwable t, @Nullable Response response) {
                 Timber.e(t, "Websocket onFailure, response: %s", response);
-                handleException(t);
+                handleFailure(generation, t);
             }
 
             @Override
@@ -273,131 +506,559 @@ public class TldWebSocketRecognitionService extends RecognitionService {
             @Override
             public void onOpen(@NotNull WebSocket webSocket, @NotNull Response response) {
                 Timber.i("Websocket opened");
-                webSocket.send(mAuth);
-                startSending(webSocket);
+                if (generation != mSocketGeneration) {
+                    webSocket.cancel();
+                    return;
+                }
+                timeline.mark(SessionTimeline.OPEN);
+                // the auth message has been sent by PreparedWebSocket
+                onSocketOpen(webSocket);
             }
-        });
+        }, timeline);
+        mSocket = socket;
+        timeline.setSpeculative(socket.isSpeculative());
     }
 
-    private void startSending(final WebSocket webSocket) {
-        HandlerThread thread = new HandlerThread("WsSendHandlerThread",
-                Process.THREAD_PRIORITY_BACKGROUND);
-        thread.start();
-        mSendLooper = thread.getLooper();
-        mSendHandler = new Handler(mSendLooper);
-
-        // Send chunks to the server
-        mSendRunnable = new Runnable() {
-            public void run() {
-                RawAudioRecorder recorder = getAudioRecorder();
-                if (recorder == null || recorder.getState() !=
-                        RawAudioRecorder.State.RECORDING) {
-                    webSocket.send(EOS);
-                    mIsEosSent = true;
-                } else {
-                    byte[] buffer = recorder.consumeRecordingAndTruncate();
-                    send(webSocket, buffer);
-                    if (buffer.length > 0) {
-                        onBufferReceived(buffer);
-                    }
+    /**
+     * Starts streaming on the session's first socket, or resumes on a new one after a failure.
+     */
+    private void onSocketOpen(final WebSocket webSocket) {
+        final SessionScheduler scheduler = mScheduler;
+        final AudioSender sender = mSendRunnable;
+        if (scheduler == null || sender == null) {
+            // the session is over
+            return;
+        }
+        final boolean isReconnect = sender.mIsStreamed;
+        sender.mIsStreamed = true;
+        if (mFailureNanos != 0) {
+            long millis = (System.nanoTime() - mFailureNanos) / 1000000;
+            mFailureNanos = 0;
+            Timber.i("Reconnected in %d ms", millis);
+            SpeechMetrics.add(SpeechMetrics.RECONNECT_MILLIS_SUM, millis);
+            SpeechMetrics.max(SpeechMetrics.RECONNECT_MILLIS_MAX, millis);
+        }
+        scheduler.post(() -> sender.resume(webSocket, isReconnect));
+    }
 
-                    boolean success = mSendHandler.postDelayed(this, TASK_INTERVAL_SEND);
-                    if (!success) {
-                        Timber.i("mSendHandler.postDelayed returned false");
-                    }
+    /**
+     * Starts the session's sender, paused until the first socket is open, so that it takes
+     * the captured audio into its backlog while connecting.
+     */
+    private void startSending(final RawAudioRecorder recorder, final SessionTimeline timeline) {
+        mSendRunnable = new AudioSender(mScheduler, recorder, mEncoder, mIsSilenceSuppressed,
+                timeline);
+    }
+
+    /**
+     * @return an empty backlog of {@code capacity} bytes, the one an earlier sender is done
+     * with if it is the same size
+     */
+    private static AudioBacklog obtainBacklog(int capacity) {
+        synchronized (TldWebSocketRecognitionService.class) {
+            final AudioBacklog spare = sSpareBacklog;
+            if (spare != null && spare.capacity() == capacity) {
+                sSpareBacklog = null;
+                return spare;
+            }
+        }
+        return new AudioBacklog(capacity);
+    }
+
+    private static void recycleBacklog(AudioBacklog backlog) {
+        backlog.clear();
+        synchronized (TldWebSocketRecognitionService.class) {
+            sSpareBacklog = backlog;
+        }
+    }
+
+    /**
+     * @return the archive where the recordings of the latest {@code sessions} sessions are kept
+     */
+    private AudioArchive getArchive(int sessions) {
+        synchronized (TldWebSocketRecognitionService.class) {
+            if (sArchive == null || sArchive.getMaxRecordings() != sessions) {
+                File dir = getExternalFilesDir(null);
+                if (dir == null) {
+                    dir = getFilesDir();
                 }
+                sArchive = new AudioArchive(new File(dir, ARCHIVE_DIR), sessions);
+            }
+            return sArchive;
+        }
+    }
+
+    /**
+     * Wakes up the sender, if there is one, called from the capture thread.
+     */
+    private void postSend() {
+        AudioSender sendRunnable = mSendRunnable;
+        if (sendRunnable != null) {
+            sendRunnable.wakeUp();
+        }
+    }
+
+    /**
+     * @return a task that runs {@code task} on the main thread, unless the session has ended
+     * by the time the main thread gets to it
+     */
+    private Runnable onMainThread(final Runnable task) {
+        final SessionScheduler scheduler = mScheduler;
+        final Runnable guarded = () -> {
+            if (mScheduler == scheduler) {
+                task.run();
             }
         };
-        Timber.i(mSendHandler + ".postDelayed(" + mSendRunnable + ", TASK_DELAY_SEND);");
-        mSendHandler.postDelayed(mSendRunnable, TASK_DELAY_SEND);
+        return () -> mMainHandler.post(guarded);
     }
 
-    private void send(WebSocket webSocket, byte[] buffer) {
-        if (buffer != null && buffer.length > 0) {
-            webSocket.send(ByteString.of(buffer));
+    /**
+     * Sends frames to the server as soon as the recorder has captured them, and EOS once
+     * capture has ended. Runs on the session's scheduler.
+     * <p>
+     * If the uplink cannot keep up and the socket's queue grows, the sender batches frames
+     * into bigger messages, then also withholds silence for the rest of the session, and
+     * finally stops the capture, so that the queued audio can still drain and be recognized.
+     * <p>
+     * The audio sent since shortly before the latest final result is kept in a backlog. Until
+     * the first socket is open, and again while a failed one is replaced, the sender only fills
+     * the backlog, then sends it as fast as the socket takes it and carries on live.
+     * <p>
+     * A session that could not connect at all writes the backlog to the spool instead, then
+     * the audio still to come, and commits it once capture has ended.
+     * <p>
+     * The capture's ring and the backlog are handed to the next session once the sender has
+     * been released, so that a session allocates neither.
+     */
+    private final class AudioSender implements Runnable, SilenceSuppressor.Sink,
+            AudioStreamer.Transport {
+        // null while connecting or reconnecting
+        private WebSocket mWebSocket;
+        // whether a socket has been open, set on the socket's thread
+        volatile boolean mIsStreamed;
+        private final RawAudioRecorder mSource;
+        private final AudioStreamer mStreamer;
+        private final AudioBacklog mBacklog;
+        // for the first socket, later ones start a new stream with an encoder of their own
+        private final AudioEncoder mEncoder;
+        // posted for every captured frame, so it is made once
+        private final SessionScheduler mScheduler;
+        private final SessionScheduler.Task mWakeUp;
+        private final int mPreRollChunks;
+        // created when the session starts, or once the uplink is backed up
+        private volatile SilenceSuppressor mSuppressor;
+        private final SessionTimeline mTimeline;
+        private final int mBytesPerSecond;
+        private UplinkMonitor mUplink;
+        private int mUplinkLevel = UplinkMonitor.LEVEL_NORMAL;
+        private final int mAckMarginBytes;
+        // null unless spooling, and once committed or aborted
+        private volatile AudioSpool.Writer mSpoolWriter;
+        private final AudioEncoder.Output mSpool = this::spool;
+        // null unless the session is archived, the recording is started by the first chunk
+        private final AudioArchive mArchive;
+        // guarded by this
+        private WavWriter mRecording;
+        private boolean mIsRecordingClosed;
+
+        AudioSender(SessionScheduler scheduler, RawAudioRecorder recorder, AudioEncoder encoder,
+                    boolean isSilenceSuppressed, SessionTimeline timeline) {
+            mScheduler = scheduler;
+            mWakeUp = scheduler.newTask(this);
+            mEncoder = encoder;
+            mArchive = mArchiveSessions > 0 ? getArchive(mArchiveSessions) : null;
+            mSource = recorder;
+            mTimeline = timeline;
+            int frameSize = recorder.getFrameSize();
+            int preRollSize = recorder.getBytesForMillis(SUPPRESSION_PRE_ROLL_MILLIS);
+            mPreRollChunks = (preRollSize + frameSize - 1) / frameSize;
+            if (isSilenceSuppressed) {
+                mSuppressor = createSuppressor();
+            }
+            mBytesPerSecond = recorder.getBytesForMillis(1000);
+            mUplink = new UplinkMonitor(mBytesPerSecond);
+            mAckMarginBytes = recorder.getBytesForMillis(ACK_MARGIN_MILLIS);
+            mBacklog = obtainBacklog(recorder.getBytesForMillis(BACKLOG_MILLIS));
+            // Chunks are recycled, so that steady-state streaming does not allocate per chunk
+            mStreamer = new AudioStreamer(recorder.getRecording(), frameSize,
+                    CHUNK_POOL_SIZE + mPreRollChunks, mBacklog,
+                    recorder.getBytesForMillis(BATCH_MILLIS), encoder, this);
+            mStreamer.pause();
+        }
+
+        /**
+         * Runs the sender on the session thread, unless it is waiting to run already. Can be
+         * called from any thread and allocates nothing.
+         */
+        void wakeUp() {
+            mScheduler.post(mWakeUp);
+        }
+
+        private SilenceSuppressor createSuppressor() {
+            return new SilenceSuppressor(mSource.getSampleRate(), mPreRollChunks,
+                    SUPPRESSION_KEEP_ALIVE_MILLIS);
+        }
+
+        @Override
+        public void run() {
+            while (mSource.getAvailableBytes() >= mStreamer.getChunkSize()) {
+                sendChunk();
+            }
+            if (mSource.isCaptureEnded() && !mIsEosSent && mWebSocket != null) {
+                // flush the tail, which may be shorter than a frame
+                while (mSource.getAvailableBytes() > 0) {
+                    sendChunk();
+                }
+                SilenceSuppressor suppressor = mSuppressor;
+                if (suppressor != null) {
+                    suppressor.clear();
+                    Timber.i("Silence suppression: %d bytes sent, %d bytes suppressed",
+                            suppressor.getBytesSent(), suppressor.getBytesSuppressed());
+                    SpeechMetrics.add(SpeechMetrics.BYTES_SUPPRESSED,
+                            suppressor.getBytesSuppressed());
+                }
+                mStreamer.flush();
+                mWebSocket.send(EOS);
+                mIsEosSent = true;
+                mTimeline.mark(SessionTimeline.EOS_SENT);
+                closeRecording();
+            } else if (mSource.isCaptureEnded() && mSpoolWriter != null) {
+                while (mSource.getAvailableBytes() > 0) {
+                    sendChunk();
+                }
+                SilenceSuppressor suppressor = mSuppressor;
+                if (suppressor != null) {
+                    suppressor.clear();
+                }
+                commitSpool();
+                closeRecording();
+            }
+        }
+
+        /**
+         * Spools the audio in the backlog and from then on the captured audio, instead of
+         * waiting for a socket.
+         */
+        void startSpooling(AudioSpool.Writer writer) {
+            mSpoolWriter = writer;
+            final long drained = mStreamer.drainBacklog(mSpool);
+            Timber.w("Server unreachable, spooling utterance %d from %d bytes captured while "
+                            + "connecting, %d bytes did not fit the backlog, %d were dropped",
+                    writer.getId(), drained, mStreamer.getLostBytes(),
+                    mSource.getRecording().getDroppedBytes());
+            run();
+        }
+
+        private void spool(byte[] data, int offset, int length) {
+            AudioSpool.Writer writer = mSpoolWriter;
+            if (writer == null) {
+                return;
+            }
+            try {
+                writer.write(data, offset, length);
+            } catch (IOException e) {
+                Timber.e(e, "Spool");
+                writer.abort();
+            }
+        }
+
+        private void commitSpool() {
+            final AudioSpool.Writer writer = mSpoolWriter;
+            mSpoolWriter = null;
+            AudioSpool.Entry entry = null;
+            try {
+                entry = writer.commit();
+            } catch (IOException e) {
+                Timber.e(e, "Spool");
+            }
+            if (writer.isTruncated()) {
+                Timber.w("Spool full, utterance %d cut short", writer.getId());
+            }
+            final long id = entry == null ? 0 : entry.id;
+            final SessionTimeline timeline = mTimeline;
+            mMainHandler.post(() -> onSpooled(id, timeline));
+        }
+
+        /**
+         * Appends the chunk to the session's recording, if it is archived.
+         */
+        private synchronized void record(AudioChunk chunk) {
+            if (mArchive == null || mIsRecordingClosed) {
+                return;
+            }
+            try {
+                if (mRecording == null) {
+                    mRecording = mArchive.begin(mSource.getSampleRate());
+                    Timber.i("Recording the session to %s", mRecording.getFile());
+                }
+                mRecording.write(chunk.getData(), 0, chunk.getLength());
+            } catch (IOException e) {
+                Timber.e(e, "Recording");
+                closeRecording();
+            }
+        }
+
+        /**
+         * Finishes the session's recording, if any, can be called from any thread.
+         */
+        synchronized void closeRecording() {
+            mIsRecordingClosed = true;
+            if (mRecording != null) {
+                try {
+                    mRecording.close();
+                } catch (IOException e) {
+                    Timber.e(e, "Recording");
+                }
+            }
+        }
+
+        /**
+         * Hands the capture's ring and the backlog to the next session, called on the session
+         * thread once the scheduler has been shut down, so that the sender never runs again.
+         */
+        void release() {
+            mSource.releaseRecording();
+            recycleBacklog(mBacklog);
+        }
+
+        /**
+         * Drops the spooled audio, if any, called from the main thread when the session ends.
+         */
+        void abortSpool() {
+            AudioSpool.Writer writer = mSpoolWriter;
+            if (writer != null) {
+                writer.abort();
+            }
+        }
+
+        private void sendChunk() {
+            AudioChunk chunk = mStreamer.take();
+            record(chunk);
+            SilenceSuppressor suppressor = mSuppressor;
+            if (suppressor == null) {
+                send(chunk);
+                onBufferReceived(chunk);
+                chunk.recycle();
+            } else {
+                onBufferReceived(chunk);
+                suppressor.process(chunk, this);
+            }
+        }
+
+        @Override
+        public void send(AudioChunk chunk) {
+            if (chunk.getLength() > 0 && !mStreamer.send(chunk) && mSpoolWriter != null) {
+                // the spooled audio need not be kept for a replay
+                mStreamer.drainBacklog(mSpool);
+            }
+        }
+
+        @Override
+        public void onAudio(int length) {
+            mUplink.onAudio(length);
+        }
+
+        /**
+         * Marks the audio up to shortly before now as finalized by the server, called from
+         * the main thread when a final result arrives.
+         */
+        void acknowledge() {
+            mStreamer.acknowledge(mAckMarginBytes);
+        }
+
+        /**
+         * Stops sending after the socket failed, audio only goes to the backlog until
+         * {@link #resume(WebSocket)}.
+         */
+        void pause() {
+            mWebSocket = null;
+            mStreamer.pause();
+        }
+
+        /**
+         * Sends the backlog to the socket and carries on live, i.e. sends what was captured
+         * while connecting, or replays what was not acknowledged before a reconnect.
+         */
+        void resume(WebSocket webSocket, boolean isReconnect) {
+            mWebSocket = webSocket;
+            mUplink = new UplinkMonitor(mBytesPerSecond);
+            mUplinkLevel = UplinkMonitor.LEVEL_NORMAL;
+            if (isReconnect) {
+                // the new socket is a new stream, which may need a header of its own
+                final long replayed = mStreamer.resume(createEncoder(mSource));
+                SpeechMetrics.add(SpeechMetrics.BYTES_REPLAYED, replayed);
+                Timber.i("Replayed %d bytes, %d bytes did not fit the backlog",
+                        replayed, mStreamer.getLostBytes());
+            } else {
+                final long sent = mStreamer.resume(mEncoder);
+                Timber.i("Sent %d bytes captured while connecting, %d bytes did not fit the "
+                        + "backlog", sent, mStreamer.getLostBytes());
+            }
+            run();
+        }
+
+        @Override
+        public void sendMessage(byte[] data, int offset, int length) {
+            if (mWebSocket == null) {
+                return;
+            }
+            if (!mTimeline.isMarked(SessionTimeline.FIRST_AUDIO)) {
+                mTimeline.mark(SessionTimeline.CAPTURE_START, mSource.getCaptureStartNanos());
+                mTimeline.mark(SessionTimeline.FIRST_AUDIO);
+            }
+            // OkHttp only takes immutable ByteStrings, this is the one copy we cannot avoid
+            mWebSocket.send(ByteString.of(data, offset, length));
+            final long queueSize = mWebSocket.queueSize();
+            SpeechMetrics.add(SpeechMetrics.BYTES_SENT, length);
+            SpeechMetrics.add(SpeechMetrics.CHUNKS_SENT, 1);
+            SpeechMetrics.max(SpeechMetrics.QUEUE_HIGH_WATER, queueSize);
+            setUplinkLevel(mUplink.onSent(length, queueSize, System.nanoTime()));
+        }
+
+        private void setUplinkLevel(int level) {
+            if (level >= UplinkMonitor.LEVEL_SUPPRESS && mSuppressor == null) {
+                Timber.w("Uplink backed up, suppressing silence");
+                mSuppressor = createSuppressor();
+            }
+            if (level == UplinkMonitor.LEVEL_STOP
+                    && mUplinkLevel != UplinkMonitor.LEVEL_STOP) {
+                Timber.w("Uplink backed up, %d bytes queued, stopping the capture",
+                        mWebSocket.queueSize());
+                SpeechMetrics.add(SpeechMetrics.BACKPRESSURE_STOPS, 1);
+                final RawAudioRecorder source = mSource;
+                mMainHandler.post(() -> {
+                    // the session may already be over
+                    if (mRecorder == source) {
+                        onEndOfSpeech();
+                    }
+                });
+            }
+            mUplinkLevel = level;
+            mStreamer.setBatching(level != UplinkMonitor.LEVEL_NORMAL);
+        }
+
+        private void onBufferReceived(AudioChunk chunk) {
+            if (chunk.isFull()) {
+                TldWebSocketRecognitionService.this.onBufferReceived(chunk.getData());
+            } else {
+                TldWebSocketRecognitionService.this.onBufferReceived(
+                        Arrays.copyOf(chunk.getData(), chunk.getLength()));
+            }
+        }
+
+        /**
+         * @return number of bytes withheld by silence suppression so far
+         */
+        long getBytesSuppressed() {
+            return mSuppressor == null ? 0 : mSuppressor.getBytesSuppressed();
         }
     }
 
+    /**
+     * Delivers decoded results and errors on the main thread.
+     */
     private static class RecognitionResultHandler extends Handler {
         private final WeakReference<TldWebSocketRecognitionService> mRef;
-        private final boolean mIsUnlimitedDuration;
-        private final boolean mIsPartialResults;
 
-        RecognitionResultHandler(TldWebSocketRecognitionService c,
-                                 boolean isUnlimitedDuration, boolean isPartialResults) {
+        RecognitionResultHandler(TldWebSocketRecognitionService c) {
             mRef = new WeakReference<>(c);
-            mIsUnlimitedDuration = isUnlimitedDuration;
-            mIsPartialResults = isPartialResults;
         }
 
         @Override
         public void handleMessage(Message msg) {
             TldWebSocketRecognitionService outerClass = mRef.get();
-            if (outerClass != null) {
-                if (msg.what == MSG_ERROR) {
-                    Exception e = (Exception) msg.obj;
-                    if (e instanceof TimeoutException) {
-                        outerClass.onError(SpeechRecognizer.ERROR_NETWORK_TIMEOUT);
-                    } else {
-                        outerClass.onError(SpeechRecognizer.ERROR_NETWORK);
-                    }
-                } else if (msg.what == MSG_RESULT) {
-                    try {
-                        WebSocketResponse response = new WebSocketResponse((String) msg.obj);
-                        int statusCode = response.getStatus();
-                        if (statusCode ==
-                                WebSocketResponse.STATUS_SUCCESS && response.isResult()) {
-                            WebSocketResponse.Result responseResult = response.parseResult();
-                            if (responseResult.isFinal()) {
-                                ArrayList<String> hypotheses =
-                                        responseResult.getHypotheses(
-                                        );
-                                if (hypotheses.isEmpty()) {
-                                    outerClass.onError(SpeechRecognizer.ERROR_SPEECH_TIMEOUT);
-                                } else {
-                                    if (mIsUnlimitedDuration) {
-                                        outerClass.onPartialResults(toResultsBundle(hypotheses,
-                                                true));
-                                    } else {
-                                        outerClass.mIsEosSent = true;
-                                        outerClass.onEndOfSpeech();
-                                        outerClass.onResults(toResultsBundle(hypotheses, true));
-                                    }
-                                }
-                            } else {
-                                if (mIsPartialResults) {
-                                    ArrayList<String> hypotheses =
-                                            responseResult.getHypotheses(
-                                            );
-                                    if (!hypotheses.isEmpty()) {
-                                        outerClass.onPartialResults(toResultsBundle(hypotheses,
-                                                false));
-                                    }
-                                }
-                            }
-                        } else if (statusCode == WebSocketResponse.STATUS_SUCCESS) {
-                            Timber.i("Adaptation_state currently not handled");
-                        } else if (statusCode == WebSocketResponse.STATUS_ABORTED) {
-                            outerClass.onError(SpeechRecognizer.ERROR_SERVER);
-                        } else if (statusCode == WebSocketResponse.STATUS_NOT_AVAILABLE) {
-                            outerClass.onError(SpeechRecognizer.ERROR_RECOGNIZER_BUSY);
-                        } else if (statusCode == WebSocketResponse.STATUS_NO_SPEECH) {
-                            outerClass.onError(SpeechRecognizer.ERROR_SPEECH_TIMEOUT);
-                        } else if (statusCode == WebSocketResponse.STATUS_NO_VALID_FRAMES) {
-                            outerClass.onError(SpeechRecognizer.ERROR_NO_MATCH);
-                        } else {
-                            // Server sent unsupported status code, client should be updated
-                            outerClass.onError(SpeechRecognizer.ERROR_CLIENT);
+            // results of an earlier session may still be in the queue
+            if (outerClass == null || outerClass.mRecResultHandler != this) {
+                return;
+            }
+            if (msg.what == MSG_ERROR) {
+                Exception e = (Exception) msg.obj;
+                if (e instanceof TimeoutException) {
+                    outerClass.onError(SpeechRecognizer.ERROR_NETWORK_TIMEOUT);
+                } else {
+                    outerClass.onError(SpeechRecognizer.ERROR_NETWORK);
+                }
+            } else if (msg.what == MSG_RESULT) {
+                ResultDecoder.Decoded result = (ResultDecoder.Decoded) msg.obj;
+                if (result.isResult) {
+                    outerClass.markResult(result);
+                }
+                if (result.bundle != null
+                        && result.bundle.getBoolean(Extras.EXTRA_SEMI_FINAL)) {
+                    outerClass.acknowledgeAudio();
+                }
+                switch (result.action) {
+                    case ResultDecoder.ACTION_PARTIAL_RESULTS:
+                        long start = System.nanoTime();
+                        outerClass.onPartialResults(result.bundle);
+                        outerClass.recordPartialResultTime(System.nanoTime() - start);
+                        break;
+                    case ResultDecoder.ACTION_RESULTS:
+                        outerClass.mIsEosSent = true;
+                        outerClass.onEndOfSpeech();
+                        outerClass.onResults(result.bundle);
+                        break;
+                    case ResultDecoder.ACTION_ERROR:
+                        if (result.error == SpeechRecognizer.ERROR_RECOGNIZER_BUSY
+                                && outerClass.handleUnavailable()) {
+                            break;
                         }
-                    } catch (WebSocketResponse.WebSocketResponseException e) {
-                        Timber.e(e, (String) msg.obj);
-                        outerClass.onError(SpeechRecognizer.ERROR_SERVER);
-                    }
+                        outerClass.onError(result.error);
+                        break;
+                    default:
+                        break;
                 }
             }
         }
     }
 
+    private void recordPartialResultTime(long nanos) {
+        mPartialResultCount++;
+        mPartialResultNanos += nanos;
+        mPartialResultMaxNanos = Math.max(mPartialResultMaxNanos, nanos);
+    }
+
+    /**
+     * Logs how much main thread time delivering the partial results took, once per session.
+     */
+    private void reportPartialResultTime() {
+        if (mPartialResultCount == 0) {
+            return;
+        }
+        Timber.i("Partial results: %d, main thread time avg %d us, max %d us",
+                mPartialResultCount,
+                mPartialResultNanos / mPartialResultCount / 1000,
+                mPartialResultMaxNanos / 1000);
+        mPartialResultCount = 0;
+        mPartialResultNanos = 0;
+        mPartialResultMaxNanos = 0;
+    }
+
+    /**
+     * Marks the first result of the session, and the final one, i.e. the first final result
+     * after the end of speech. A final result of an unlimited session is a semi-final one.
+     */
+    private void markResult(ResultDecoder.Decoded result) {
+        SessionTimeline timeline = mTimeline;
+        if (timeline == null) {
+            return;
+        }
+        timeline.mark(SessionTimeline.FIRST_PARTIAL);
+        if (result.action == ResultDecoder.ACTION_RESULTS
+                || (timeline.isMarked(SessionTimeline.END_OF_SPEECH)
+                && result.bundle != null
+                && result.bundle.getBoolean(Extras.EXTRA_SEMI_FINAL))) {
+            timeline.mark(SessionTimeline.FINAL_RESULT);
+        }
+    }
+
+    private void acknowledgeAudio() {
+        AudioSender sender = mSendRunnable;
+        if (sender != null) {
+            sender.acknowledge();
+        }
+    }
+
     static Bundle toResultsBundle(ArrayList<String> hypotheses, boolean isFinal) {
         Bundle bundle = new Bundle();
         bundle.putStringArrayList(SpeechRecognizer.RESULTS_RECOGNITION, hypotheses);
@@ -407,9 +1068,18 @@ public class TldWebSocketRecognitionService extends RecognitionService {
 
     RawAudioRecorder getAudioRecorder() {
         if (mRecorder == null) {
-            mRecorder = createAudioRecorder(
-                    Integer.parseInt(getString(R.string.defaultRecordingRate))
-            );
+            int frameMillis = DEFAULT_FRAME_MILLIS;
+            if (mExtras != null) {
+                frameMillis = mExtras.getInt(Extras.EXTRA_FRAME_MILLIS, DEFAULT_FRAME_MILLIS);
+                if (frameMillis <= 0) {
+                    frameMillis = DEFAULT_FRAME_MILLIS;
+                }
+            }
+            int sampleRate = mSampleRate;
+            if (sampleRate <= 0) {
+                sampleRate = Integer.parseInt(getString(R.string.defaultRecordingRate));
+            }
+            mRecorder = createAudioRecorder(sampleRate, frameMillis);
         }
         return mRecorder;
     }
@@ -430,6 +1100,14 @@ public class TldWebSocketRecognitionService extends RecognitionService {
         // TODO we can try feeding things in here to audio recorder
         mRecognitionListener = listener;
         Timber.i("onStartListening");
+        mTimeline = new SessionTimeline();
+        if (mScheduler != null) {
+            mScheduler.shutdown();
+        }
+        mScheduler = SessionThread.newScheduler();
+        mSendRunnable = null;
+        mReconnectCount = 0;
+        mFailureNanos = 0;
 
         mExtras = recognizerIntent.getExtras();
         if (mExtras == null) {
@@ -507,7 +1185,12 @@ public class TldWebSocketRecognitionService extends RecognitionService {
     }
 
     void onError(int errorCode) {
+        SpeechMetrics.countError(errorCode);
         disconnectAndStopRecording();
+        SessionTimeline timeline = mTimeline;
+        if (timeline != null) {
+            timeline.finish();
+        }
         if (mAudioCue != null) {
             mAudioCue.playStopSound();
         }
@@ -518,7 +1201,16 @@ public class TldWebSocketRecognitionService extends RecognitionService {
     }
 
     void onResults(Bundle bundle) {
+        AudioSender sender = mSendRunnable;
+        if (sender != null && (mIsSilenceSuppressed || sender.getBytesSuppressed() > 0)) {
+            bundle.putLong(Extras.EXTRA_BYTES_SUPPRESSED, sender.getBytesSuppressed());
+        }
         disconnectAndStopRecording();
+        SessionTimeline timeline = mTimeline;
+        if (timeline != null) {
+            timeline.finish();
+            bundle.putBundle(Extras.EXTRA_LATENCY, timeline.toBundle());
+        }
         try {
             mRecognitionListener.results(bundle);
         } catch (RemoteException ignored) {
@@ -547,6 +1239,7 @@ public class TldWebSocketRecognitionService extends RecognitionService {
             return;
         }
 
+        mTimeline.mark(SessionTimeline.END_OF_SPEECH);
         stopRecording();
 
         if (mAudioCue != null) {
@@ -560,6 +1253,9 @@ public class TldWebSocketRecognitionService extends RecognitionService {
 
     }
 
+    /**
+     * The buffer is recycled once this returns, listeners must copy it if they keep it.
+     */
     void onBufferReceived(byte[] buffer) {
         try {
             mRecognitionListener.bufferReceived(buffer);
@@ -567,8 +1263,23 @@ public class TldWebSocketRecognitionService extends RecognitionService {
         }
     }
 
-    private static RawAudioRecorder createAudioRecorder(int sampleRate) {
-        return new RawAudioRecorder(sampleRate, false, false, false);
+    /**
+     * Captures at the device's native rate and resamples to {@code sampleRate} ourselves, as
+     * the platform resampler is slow and its quality varies between devices. Falls back to
+     * capturing at {@code sampleRate} if the native rate is unknown or does not work.
+     */
+    private RawAudioRecorder createAudioRecorder(int sampleRate, int frameMillis) {
+        final int captureRate = RawAudioRecorder.getNativeSampleRate(this);
+        if (captureRate > 0 && captureRate != sampleRate) {
+            RawAudioRecorder recorder = new RawAudioRecorder(captureRate, sampleRate, frameMillis,
+                    CAPTURE_BUFFER_MILLIS, false, false, false);
+            if (recorder.getState() != RawAudioRecorder.State.ERROR) {
+                return recorder;
+            }
+            Timber.w("Capture at %d Hz failed, capturing at %d Hz", captureRate, sampleRate);
+        }
+        return new RawAudioRecorder(sampleRate, frameMillis, CAPTURE_BUFFER_MILLIS,
+                false, false, false);
     }
 
     private void startRecord() throws IOException {
@@ -582,41 +1293,58 @@ public class TldWebSocketRecognitionService extends RecognitionService {
             throw new IOException();
         }
 
+        final RawAudioRecorder recorder = mRecorder;
+        if (mEndpointerSilenceMillis > 0) {
+            recorder.enableEndpointer(mEndpointerSilenceMillis);
+        }
+        recorder.setListener(new RawAudioRecorder.Listener() {
+            @Override
+            public void onFrameAvailable() {
+                postSend();
+            }
+
+            @Override
+            public void onEndOfSpeechDetected() {
+                mMainHandler.post(() -> {
+                    // the session may already be over
+                    if (mRecorder == recorder) {
+                        Timber.i("End of speech detected");
+                        onEndOfSpeech();
+                    }
+                });
+            }
+
+            @Override
+            public void onCaptureEnd() {
+                postSend();
+            }
+        });
+
         mRecorder.start();
 
         if (mRecorder.getState() != RawAudioRecorder.State.RECORDING) {
             throw new IOException();
         }
+        mTimeline.mark(SessionTimeline.RECORDER_READY);
+        startSending(recorder, mTimeline);
 
         // Monitor the volume level
-        mShowVolumeTask = new Runnable() {
-            public void run() {
-                if (mRecorder != null) {
-                    onRmsChanged(mRecorder.getRmsdb());
-                    mVolumeHandler.postDelayed(this, TASK_INTERVAL_VOL);
-                }
+        mShowVolumeTask = mScheduler.scheduleAtFixedRate(onMainThread(() -> {
+            if (mRecorder == recorder) {
+                onRmsChanged(recorder.getRmsdb());
             }
-        };
-
-        mVolumeHandler.postDelayed(mShowVolumeTask, TASK_DELAY_VOL);
-
+        }), TASK_DELAY_VOL, TASK_INTERVAL_VOL);
 
-        final long timeToFinish = SystemClock.uptimeMillis() + 1000 * 10000;
-
-        // Check if we should stop recording
-        mStopTask = new Runnable() {
-            public void run() {
-                if (mRecorder != null) {
-                    if (timeToFinish < SystemClock.uptimeMillis()) {
-                        onEndOfSpeech();
-                    } else {
-                        mStopHandler.postDelayed(this, TASK_INTERVAL_STOP);
-                    }
-                }
+        // Stop recording once it has gone on for too long
+        mStopTask = mScheduler.schedule(onMainThread(() -> {
+            if (mRecorder == recorder) {
+                onEndOfSpeech();
             }
-        };
+        }), MAX_RECORDING_MILLIS);
 
-        mStopHandler.postDelayed(mStopTask, TASK_DELAY_STOP);
+        mLogMetricsTask = mScheduler.scheduleAtFixedRate(
+                () -> Timber.i("Metrics: %s", SpeechMetrics.format()),
+                TASK_INTERVAL_METRICS, TASK_INTERVAL_METRICS);
     }
 
 
@@ -626,8 +1354,19 @@ public class TldWebSocketRecognitionService extends RecognitionService {
             mRecorder.release();
             mRecorder = null;
         }
-        mVolumeHandler.removeCallbacks(mShowVolumeTask);
-        mStopHandler.removeCallbacks(mStopTask);
+        if (mShowVolumeTask != null) {
+            mShowVolumeTask.cancel();
+            mShowVolumeTask = null;
+        }
+        if (mStopTask != null) {
+            mStopTask.cancel();
+            mStopTask = null;
+        }
+        if (mLogMetricsTask != null) {
+            mLogMetricsTask.cancel();
+            mLogMetricsTask = null;
+            Timber.i("Metrics: %s", SpeechMetrics.format());
+        }
         if (mAudioPauser != null) {
             mAudioPauser.resume();
         }
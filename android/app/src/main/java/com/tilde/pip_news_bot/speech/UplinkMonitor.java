@@ -0,0 +1,134 @@
+package com.tilde.pip_news_bot.speech;
+
+import timber.log.Timber;
+
+/**
+ * Watches the WebSocket's send queue, to tell the sender how far the uplink lags behind the
+ * audio and how hard it should cut back.
+ * <p>
+ * The queue depth is measured in milliseconds of audio, using the encoder's observed
+ * compression, and the uplink's throughput is estimated from how fast the queue drains. If the
+ * throughput falls below the rate of the encoded audio, the queue can only grow, so the
+ * sender batches as soon as a little has queued up instead of waiting for a second of it. The
+ * level only steps down once the queue has mostly drained, so that it does not flap.
+ * <p>
+ * Not thread-safe: the monitor lives on the thread that sends the audio.
+ */
+final class UplinkMonitor {
+
+    static final int LEVEL_NORMAL = 0;
+    // send fewer, bigger messages
+    static final int LEVEL_BATCH = 1;
+    // withhold silence as well
+    static final int LEVEL_SUPPRESS = 2;
+    // stop capturing and let the queue drain, before OkHttp gives up on the socket
+    static final int LEVEL_STOP = 3;
+
+    private static final int BATCH_QUEUE_MILLIS = 1000;
+    // queue that already means batching, if the uplink is slower than the audio
+    private static final int SLOW_BATCH_QUEUE_MILLIS = 250;
+    private static final int SUPPRESS_QUEUE_MILLIS = 3000;
+    // OkHttp closes the socket once 16 MB are queued
+    private static final long MAX_QUEUE_BYTES = 4L * 1024 * 1024;
+    private static final long THROUGHPUT_INTERVAL_NANOS = 250000000L;
+    // how long later sessions remember that the uplink was congested
+    private static final long CONGESTION_MEMORY_NANOS = 10 * 60 * 1000000000L;
+
+    private static volatile long sCongestedNanos;
+
+    // raw audio bytes per second
+    private final int mBytesPerSecond;
+    private long mRawBytes;
+    private long mEncodedBytes;
+
+    private long mSampleNanos;
+    private long mSampleDrained;
+    // bytes per second, -1 until measured
+    private long mThroughput = -1;
+    private int mLevel = LEVEL_NORMAL;
+
+    /**
+     * @param bytesPerSecond rate of the raw audio before encoding
+     */
+    UplinkMonitor(int bytesPerSecond) {
+        mBytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * @return true iff a session recently had to withhold audio because of the uplink
+     */
+    static boolean isCongested() {
+        final long congested = sCongestedNanos;
+        return congested != 0 && System.nanoTime() - congested < CONGESTION_MEMORY_NANOS;
+    }
+
+    /**
+     * Counts raw audio handed to the encoder.
+     */
+    void onAudio(int bytes) {
+        mRawBytes += bytes;
+    }
+
+    /**
+     * Counts a message handed to the socket and reevaluates the level.
+     *
+     * @param queueBytes the socket's queue size after the message was enqueued
+     * @return the level the sender should be at
+     */
+    int onSent(int bytes, long queueBytes, long nowNanos) {
+        mEncodedBytes += bytes;
+        final long drained = mEncodedBytes - queueBytes;
+        if (mSampleNanos == 0) {
+            mSampleNanos = nowNanos;
+            mSampleDrained = drained;
+        } else if (nowNanos - mSampleNanos >= THROUGHPUT_INTERVAL_NANOS) {
+            long rate = (drained - mSampleDrained) * 1000000000L / (nowNanos - mSampleNanos);
+            mThroughput = mThroughput < 0 ? rate : (3 * mThroughput + rate) / 4;
+            mSampleNanos = nowNanos;
+            mSampleDrained = drained;
+        }
+
+        final long queueMillis = getQueueMillis(queueBytes);
+        int level;
+        if (queueBytes >= MAX_QUEUE_BYTES) {
+            level = LEVEL_STOP;
+        } else if (queueMillis >= SUPPRESS_QUEUE_MILLIS) {
+            level = LEVEL_SUPPRESS;
+        } else if (queueMillis >= BATCH_QUEUE_MILLIS
+                || (queueMillis >= SLOW_BATCH_QUEUE_MILLIS && isSlowerThanTheAudio())) {
+            level = LEVEL_BATCH;
+        } else {
+            level = LEVEL_NORMAL;
+        }
+        if (level < mLevel && queueMillis >= BATCH_QUEUE_MILLIS / 2) {
+            level = mLevel;
+        }
+        if (level != mLevel) {
+            Timber.i("Uplink level %d -> %d: %d ms queued, %d bytes, throughput %d B/s",
+                    mLevel, level, queueMillis, queueBytes, mThroughput);
+            mLevel = level;
+        }
+        if (level >= LEVEL_SUPPRESS) {
+            sCongestedNanos = nowNanos;
+        }
+        return level;
+    }
+
+    /**
+     * @return true iff the measured throughput is below the rate the encoded audio comes at
+     */
+    private boolean isSlowerThanTheAudio() {
+        if (mThroughput < 0 || mRawBytes == 0) {
+            return false;
+        }
+        return mThroughput < mBytesPerSecond * mEncodedBytes / mRawBytes;
+    }
+
+    private long getQueueMillis(long queueBytes) {
+        if (mEncodedBytes == 0 || mRawBytes == 0) {
+            return queueBytes * 1000 / mBytesPerSecond;
+        }
+        // the queue holds encoded audio, scale it back to the raw rate
+        return queueBytes * mRawBytes / mEncodedBytes * 1000 / mBytesPerSecond;
+    }
+}
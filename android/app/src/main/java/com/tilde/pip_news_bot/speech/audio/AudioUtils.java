@@ -1,87 +0,0 @@
-package com.tilde.pip_news_bot.speech.audio;
-
-import java.util.List;
-
-public final class AudioUtils {
-
-    private AudioUtils() {
-    }
-
-    static byte[] getRecordingAsWav(byte[] pcm, int sampleRate) {
-        int headerLen = 44;
-
-        short RESOLUTION_IN_BYTES = 2;
-        short CHANNELS = 1;
-
-        int byteRate = sampleRate * RESOLUTION_IN_BYTES;
-        int totalAudioLen = pcm.length;
-        int totalDataLen = totalAudioLen + headerLen;
-
-        byte[] header = new byte[headerLen];
-
-        header[0] = 'R';  // RIFF/WAVE header
-        header[1] = 'I';
-        header[2] = 'F';
-        header[3] = 'F';
-        header[4] = (byte) (totalDataLen & 0xff);
-        header[5] = (byte) ((totalDataLen >> 8) & 0xff);
-        header[6] = (byte) ((totalDataLen >> 16) & 0xff);
-        header[7] = (byte) ((totalDataLen >> 24) & 0xff);
-        header[8] = 'W';
-        header[9] = 'A';
-        header[10] = 'V';
-        header[11] = 'E';
-        header[12] = 'f';  // 'fmt ' chunk
-        header[13] = 'm';
-        header[14] = 't';
-        header[15] = ' ';
-        header[16] = 16;  // 4 bytes: size of 'fmt ' chunk
-        header[17] = 0;
-        header[18] = 0;
-        header[19] = 0;
-        header[20] = 1;  // format = 1
-        header[21] = 0;
-        header[22] = (byte) CHANNELS;
-        header[23] = 0;
-        header[24] = (byte) (sampleRate & 0xff);
-        header[25] = (byte) ((sampleRate >> 8) & 0xff);
-        header[26] = (byte) ((sampleRate >> 16) & 0xff);
-        header[27] = (byte) ((sampleRate >> 24) & 0xff);
-        header[28] = (byte) (byteRate & 0xff);
-        header[29] = (byte) ((byteRate >> 8) & 0xff);
-        header[30] = (byte) ((byteRate >> 16) & 0xff);
-        header[31] = (byte) ((byteRate >> 24) & 0xff);
-        header[32] = (byte) (2 * 16 / 8);  // block align
-        header[33] = 0;
-        header[34] = (byte) (8 * RESOLUTION_IN_BYTES);  // bits per sample
-        header[35] = 0;
-        header[36] = 'd';
-        header[37] = 'a';
-        header[38] = 't';
-        header[39] = 'a';
-        header[40] = (byte) (totalAudioLen & 0xff);
-        header[41] = (byte) ((totalAudioLen >> 8) & 0xff);
-        header[42] = (byte) ((totalAudioLen >> 16) & 0xff);
-        header[43] = (byte) ((totalAudioLen >> 24) & 0xff);
-
-        byte[] wav = new byte[header.length + pcm.length];
-        System.arraycopy(header, 0, wav, 0, header.length);
-        System.arraycopy(pcm, 0, wav, header.length, pcm.length);
-        return wav;
-    }
-
-    public static byte[] concatenateBuffers(List<byte[]> buffers) {
-        byte[] buffersConcatenated;
-        int sum = 0;
-        for (byte[] ba : buffers) {
-            sum = sum + ba.length;
-        }
-        buffersConcatenated = new byte[sum];
-        int pos = 0;
-        for (byte[] ba : buffers) {
-            System.arraycopy(ba, 0, buffersConcatenated, pos, ba.length);
-            pos = pos + ba.length;
-        }
-        return buffersConcatenated;
-    }
-}
\ No newline at end of file
@@ -1,11 +1,25 @@
 package com.tilde.pip_news_bot.speech.audio;
 
+import android.content.Context;
 import android.media.AudioFormat;
+import android.media.AudioManager;
 import android.media.AudioRecord;
+import android.media.AudioTimestamp;
 import android.media.MediaRecorder;
 import android.media.audiofx.AcousticEchoCanceler;
 import android.media.audiofx.AutomaticGainControl;
 import android.media.audiofx.NoiseSuppressor;
+import android.os.Build;
+
+import com.tilde.pip_news_bot.speech.SpeechMetrics;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import timber.log.Timber;
 
@@ -13,10 +27,39 @@ public final class RawAudioRecorder {
 
     private static final int RESOLUTION = AudioFormat.ENCODING_PCM_16BIT;
     private static final int BUFFER_SIZE_MUTLIPLIER = 4; // was: 2
+    // runs the capture loops, the thread is kept between utterances and only another one is
+    // started while a recorder that is being let go still finishes its loop
+    private static final ExecutorService CAPTURE_EXECUTOR = new ThreadPoolExecutor(
+            0, Integer.MAX_VALUE, 60, TimeUnit.SECONDS, new SynchronousQueue<>(),
+            r -> new Thread(r, "AudioCaptureThread"));
+
+    // the ring of a recorder that is done with it, handed to the next one, guarded by the class
+    private static AudioRingBuffer sSpareRecording;
 
     private short RESOLUTION_IN_BYTES = 2;
     private short CHANNELS = 1;
 
+    /**
+     * Callbacks invoked on the capture thread. Implementations must return quickly.
+     */
+    public interface Listener {
+        /**
+         * Another frame of audio has been captured and can be consumed.
+         */
+        void onFrameAvailable();
+
+        /**
+         * The endpointer has heard the user stop speaking.
+         */
+        void onEndOfSpeechDetected();
+
+        /**
+         * Capture has stopped and everything still buffered by the AudioRecord has been
+         * captured, i.e. nothing more will become available.
+         */
+        void onCaptureEnd();
+    }
+
     public enum State {
         READY,      // recorder is ready, but not yet recording
         RECORDING,  // recorder recording
@@ -25,41 +68,67 @@ public final class RawAudioRecorder {
     }
     private AudioRecord mRecorder;
     private double mAvgEnergy = 0;
+    // rate of the delivered audio, and the one the AudioRecord actually captures at
     private final int mSampleRate;
+    private final int mCaptureRate;
+    private final int mFrameSize;
+    private final int mCaptureFrameSize;
+    private int mRecorderBufferSize;
+    private volatile Listener mListener;
+    private Endpointer mEndpointer;
+    private volatile boolean mCapturing = false;
+    private volatile boolean mCaptureEnded = false;
+    // System.nanoTime() of the first captured sample, 0 until the first read
+    private volatile long mCaptureStartNanos;
 
-    private final int mOneSec;
     private State mState;
 
-    private final byte[] mRecording;
-    private int mRecordedLength = 0;
-    private int mConsumedLength = 0;
+    private final AudioRingBuffer mRecording;
+    // guarded by this
+    private boolean mIsRecordingReleased;
+    private boolean mIsRecordingRecycled;
 
     private boolean mNoise;
     private boolean mGain;
     private boolean mEcho;
 
-    private byte[] mBuffer;
+    // direct, so that AudioRecord can fill it without an intermediate Java array
+    private ByteBuffer mBuffer;
+    // the captured frame as samples, for level metering
+    private ShortBuffer mBufferSamples;
+    private short[] mSamples;
+    // level of the last frame and energy of the last second, at the capture rate
+    private final LevelMeter mLevelMeter;
+
+    // null when capturing at the delivered rate
+    private Resampler mResampler;
+    private ByteBuffer mResampled;
 
     private RawAudioRecorder(int audioSource,
+                             int captureRate,
                              int sampleRate,
+                             int frameMillis,
+                             int bufferMillis,
                              boolean noise,
                              boolean gain,
                              boolean echo) {
 
         mSampleRate = sampleRate;
+        mCaptureRate = captureRate;
         mNoise = noise;
         mGain = gain;
         mEcho = echo;
 
-        mOneSec = RESOLUTION_IN_BYTES * CHANNELS * mSampleRate;
-        mRecording = new byte[mOneSec * 35];
+        mLevelMeter = new LevelMeter(mCaptureRate);
+        mFrameSize = AudioRingBuffer.bytesForMillis(frameMillis, mSampleRate);
+        mCaptureFrameSize = AudioRingBuffer.bytesForMillis(frameMillis, mCaptureRate);
+        mRecording = obtainRecording(bufferMillis, mSampleRate);
         mRecorder = null;
 
         try {
             int bufferSize = getBufferSize();
-            int framePeriod = bufferSize / (2 * RESOLUTION_IN_BYTES * CHANNELS);
-            createRecorder(audioSource, sampleRate, bufferSize);
-            createBuffer(framePeriod);
+            createRecorder(audioSource, captureRate, bufferSize);
+            createBuffer();
             setState(State.READY);
         } catch (Exception e) {
             if (e.getMessage() == null) {
@@ -67,11 +136,66 @@ public final class RawAudioRecorder {
             } else {
                 handleError(e.getMessage());
             }
+            // e.g. for the recorder that is tried next
+            releaseRecording();
+        }
+    }
+
+    /**
+     * @return the ring of an earlier recorder, if it is big enough, so that a session does not
+     * allocate one of its own
+     */
+    private static AudioRingBuffer obtainRecording(int bufferMillis, int sampleRate) {
+        final int size = AudioRingBuffer.bytesForMillis(bufferMillis, sampleRate);
+        synchronized (RawAudioRecorder.class) {
+            final AudioRingBuffer spare = sSpareRecording;
+            if (spare != null && spare.capacity() >= size) {
+                sSpareRecording = null;
+                return spare;
+            }
         }
+        return AudioRingBuffer.forDuration(bufferMillis, sampleRate);
     }
 
-    public RawAudioRecorder(int sampleRate, boolean noise, boolean gain, boolean echo) {
-        this(MediaRecorder.AudioSource.VOICE_RECOGNITION, sampleRate, noise, gain, echo);
+    /**
+     * @param frameMillis  how much audio is read at once, i.e. how often
+     *                     {@link Listener#onFrameAvailable()} fires
+     * @param bufferMillis how much captured audio is held until it is consumed, i.e. how long
+     *                     the consumer may stall, audio beyond that is dropped
+     */
+    public RawAudioRecorder(int sampleRate, int frameMillis, int bufferMillis,
+                            boolean noise, boolean gain, boolean echo) {
+        this(MediaRecorder.AudioSource.VOICE_RECOGNITION, sampleRate, sampleRate, frameMillis,
+                bufferMillis, noise, gain, echo);
+    }
+
+    /**
+     * Captures at {@code captureRate} and resamples to {@code sampleRate} on the capture
+     * thread, e.g. to capture at the rate the hardware runs at natively.
+     */
+    public RawAudioRecorder(int captureRate, int sampleRate, int frameMillis, int bufferMillis,
+                            boolean noise, boolean gain, boolean echo) {
+        this(MediaRecorder.AudioSource.VOICE_RECOGNITION, captureRate, sampleRate, frameMillis,
+                bufferMillis, noise, gain, echo);
+    }
+
+    /**
+     * @return the rate the device's audio HAL runs at, or 0 if it is not known
+     */
+    public static int getNativeSampleRate(Context context) {
+        AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        if (audioManager == null) {
+            return 0;
+        }
+        String rate = audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE);
+        if (rate == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(rate);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     private void createRecorder(int audioSource, int sampleRate, int bufferSize) {
@@ -115,8 +239,17 @@ public final class RawAudioRecorder {
         }
     }
 
-    private void createBuffer(int framePeriod) {
-        mBuffer = new byte[framePeriod * RESOLUTION_IN_BYTES * CHANNELS];
+    private void createBuffer() {
+        mBuffer = ByteBuffer.allocateDirect(mCaptureFrameSize).order(ByteOrder.LITTLE_ENDIAN);
+        mBufferSamples = mBuffer.asShortBuffer();
+        mSamples = new short[mCaptureFrameSize / 2];
+        if (mCaptureRate != mSampleRate) {
+            mResampler = new Resampler(mCaptureRate, mSampleRate, mCaptureFrameSize / 2);
+            mResampled = ByteBuffer.allocate(
+                    2 * mResampler.getMaxOutputSamples(mCaptureFrameSize / 2))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            Timber.i("Resampling from %d Hz to %d Hz", mCaptureRate, mSampleRate);
+        }
     }
 
     private int getSpeechRecordState() {
@@ -132,18 +265,103 @@ public final class RawAudioRecorder {
         Timber.e(msg);
     }
 
-    public synchronized byte[] consumeRecording() {
-        byte[] bytes = getCurrentRecording(mConsumedLength);
-        mConsumedLength = mRecordedLength;
-        return bytes;
+    /**
+     * @return the captured audio not yet consumed, which must only be read from one (sender)
+     * thread
+     */
+    public AudioRingBuffer getRecording() {
+        return mRecording;
+    }
+
+    /**
+     * Tells that the consumer is done with {@link #getRecording()}, so that the ring can be
+     * reused by the next recorder once capture has ended as well. Must be called on the
+     * consumer's thread, or after it has stopped reading.
+     */
+    public synchronized void releaseRecording() {
+        mIsRecordingReleased = true;
+        recycleRecording();
+    }
+
+    // called holding this
+    private void recycleRecording() {
+        if (!mIsRecordingReleased || mCapturing || mIsRecordingRecycled) {
+            return;
+        }
+        mIsRecordingRecycled = true;
+        mRecording.clear();
+        synchronized (RawAudioRecorder.class) {
+            if (sSpareRecording == null || sSpareRecording.capacity() < mRecording.capacity()) {
+                sSpareRecording = mRecording;
+            }
+        }
+    }
+
+    /**
+     * @return number of captured bytes not yet consumed
+     */
+    public int getAvailableBytes() {
+        return mRecording.available();
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return the rate the AudioRecord captures at, which may differ from
+     * {@link #getSampleRate()}
+     */
+    public int getCaptureRate() {
+        return mCaptureRate;
     }
 
-    private byte[] getCurrentRecording(int startPos) {
-        int len = getLength() - startPos;
-        byte[] bytes = new byte[len];
-        System.arraycopy(mRecording, startPos, bytes, 0, len);
-        Timber.i("Copied from: " + startPos + ": " + bytes.length + " bytes");
-        return bytes;
+    /**
+     * @return number of bytes delivered per captured frame, give or take a sample when
+     * resampling
+     */
+    public int getFrameSize() {
+        return mFrameSize;
+    }
+
+    /**
+     * Sets the listener notified from the capture thread, should be called before
+     * {@link #start()}.
+     */
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Turns on end-of-speech detection on the capture thread, should be called before
+     * {@link #start()}.
+     *
+     * @param silenceMillis trailing silence that ends the utterance
+     */
+    public void enableEndpointer(int silenceMillis) {
+        mEndpointer = new Endpointer(mSampleRate, silenceMillis);
+    }
+
+    /**
+     * @return true iff capture has ended and the AudioRecord has been drained, so the
+     * audio available now is all there will ever be
+     */
+    public boolean isCaptureEnded() {
+        return mCaptureEnded;
+    }
+
+    /**
+     * @return number of bytes holding {@code millis} of audio
+     */
+    public int getBytesForMillis(int millis) {
+        return AudioRingBuffer.bytesForMillis(millis, mSampleRate);
+    }
+
+    /**
+     * @return number of capture reads that did not fit into the ring buffer
+     */
+    public long getOverrunCount() {
+        return mRecording.getOverrunCount();
     }
 
     public State getState() {
@@ -159,7 +377,7 @@ public final class RawAudioRecorder {
     }
 
     private int getBufferSize() {
-        int minBufferSizeInBytes = AudioRecord.getMinBufferSize(mSampleRate,
+        int minBufferSizeInBytes = AudioRecord.getMinBufferSize(mCaptureRate,
                 AudioFormat.CHANNEL_IN_MONO, RESOLUTION);
         if (minBufferSizeInBytes == AudioRecord.ERROR_BAD_VALUE) {
             throw new IllegalArgumentException("SpeechRecord.getMinBufferSize: " +
@@ -168,19 +386,12 @@ public final class RawAudioRecorder {
             Timber.e("SpeechRecord.getMinBufferSize: unable to query hardware for output properties");
             minBufferSizeInBytes = 0;
         }
-        int bufferSize = BUFFER_SIZE_MUTLIPLIER * minBufferSizeInBytes;
+        int bufferSize = Math.max(BUFFER_SIZE_MUTLIPLIER * minBufferSizeInBytes, 2 * mCaptureFrameSize);
+        mRecorderBufferSize = bufferSize;
         Timber.i("SpeechRecord buffer size: " + bufferSize + ", min size = " + minBufferSizeInBytes);
         return bufferSize;
     }
 
-    public synchronized byte[] consumeRecordingAndTruncate() {
-        int len = getConsumedLength();
-        byte[] bytes = getCurrentRecording(len);
-        setRecordedLength();
-        setConsumedLength();
-        return bytes;
-    }
-
     private int getStatus(int numOfBytes, int len) {
 
         if (numOfBytes < 0) {
@@ -193,37 +404,66 @@ public final class RawAudioRecorder {
         } else if (numOfBytes == 0) {
             Timber.e("Read zero bytes");
             return -200;
-        } else if (mRecording.length < mRecordedLength + numOfBytes) {
-            Timber.e("Recorder buffer overflow: %s", mRecordedLength);
-            return -300;
         }
         return 0;
     }
 
-    private int read(AudioRecord recorder, byte[] buffer) {
-        int len = buffer.length;
-        int numOfBytes = recorder.read(buffer, 0, len);
-        int status = getStatus(numOfBytes, len);
-        if (status == 0) {
-            System.arraycopy(buffer, 0, mRecording, mRecordedLength, numOfBytes);
-            mRecordedLength += len;
+    private int read(AudioRecord recorder, ByteBuffer buffer) {
+        int len = buffer.capacity();
+        int numOfBytes = recorder.read(buffer, len);
+        if (mCaptureStartNanos == 0 && numOfBytes > 0) {
+            mCaptureStartNanos = getCaptureStartNanos(recorder, numOfBytes);
         }
-        return status;
-    }
-    private int getConsumedLength() {
-        return mConsumedLength;
-    }
-
-    private void setConsumedLength() {
-        mConsumedLength = 0;
+        return store(numOfBytes, buffer, len);
     }
 
-    private void setRecordedLength() {
-        mRecordedLength = 0;
+    /**
+     * Where the platform provides them, the recorder's timestamps tell when a frame was
+     * actually sampled, i.e. they include the latency of the audio path. Otherwise the start
+     * is estimated from the time the first read returned.
+     */
+    private long getCaptureStartNanos(AudioRecord recorder, int numOfBytes) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            AudioTimestamp timestamp = new AudioTimestamp();
+            if (recorder.getTimestamp(timestamp, AudioTimestamp.TIMEBASE_MONOTONIC)
+                    == AudioRecord.SUCCESS) {
+                return timestamp.nanoTime - timestamp.framePosition * 1000000000L / mCaptureRate;
+            }
+        }
+        return System.nanoTime() - numOfBytes / 2 * 1000000000L / mCaptureRate;
     }
 
-    private int getLength() {
-        return mRecordedLength;
+    private int store(int numOfBytes, ByteBuffer buffer, int len) {
+        int status = getStatus(numOfBytes, len);
+        if (status == 0) {
+            final int count = numOfBytes / 2;
+            mBufferSamples.clear();
+            mBufferSamples.get(mSamples, 0, count);
+            mLevelMeter.process(mSamples, count);
+            SpeechMetrics.add(SpeechMetrics.BYTES_CAPTURED, numOfBytes);
+            SpeechMetrics.addFrame(count, mLevelMeter.getFrameClipped(), mLevelMeter.getRmsdb());
+            ByteBuffer frame = buffer;
+            int frameLength = numOfBytes;
+            if (mResampler != null) {
+                frame = mResampled;
+                frameLength = mResampler.process(buffer, numOfBytes, frame);
+            }
+            frame.clear();
+            frame.limit(frameLength);
+            if (mRecording.write(frame) < frameLength) {
+                Timber.w("Recorder buffer overrun: %s", mRecording.getDroppedBytes());
+                SpeechMetrics.add(SpeechMetrics.CAPTURE_OVERRUNS, 1);
+            }
+            Listener listener = mListener;
+            if (listener != null) {
+                listener.onFrameAvailable();
+            }
+            if (mEndpointer != null && mEndpointer.process(frame, frameLength)
+                    && listener != null) {
+                listener.onEndOfSpeechDetected();
+            }
+        }
+        return status;
     }
 
     public boolean isPausing() {
@@ -232,17 +472,23 @@ public final class RawAudioRecorder {
         return pauseScore > 7;
     }
 
+    /**
+     * @return System.nanoTime() at which the first captured sample was sampled, 0 if nothing
+     * has been captured yet
+     */
+    public long getCaptureStartNanos() {
+        return mCaptureStartNanos;
+    }
+
+    /**
+     * @return RMS of the last captured frame in dB, maintained by the capture thread
+     */
     public float getRmsdb() {
-        long sumOfSquares = getRms(mRecordedLength, mBuffer.length);
-        double rootMeanSquare = Math.sqrt(sumOfSquares / (mBuffer.length / 2));
-        if (rootMeanSquare > 1) {
-            return (float) (10 * Math.log10(rootMeanSquare));
-        }
-        return 0;
+        return mLevelMeter.getRmsdb();
     }
 
     private double getPauseScore() {
-        long t2 = getRms(mRecordedLength, mOneSec);
+        long t2 = mLevelMeter.getWindowEnergy();
         if (t2 == 0) {
             return 0;
         }
@@ -251,13 +497,21 @@ public final class RawAudioRecorder {
         return t;
     }
 
+    /**
+     * Stops recording. While the capture thread is running, it drains whatever the
+     * AudioRecord still holds, releases it and then calls {@link Listener#onCaptureEnd()}.
+     */
     public synchronized void release() {
         if (mRecorder != null) {
-            if (mRecorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
-                stop();
+            if (mCapturing) {
+                // unblocks the capture thread, which releases the recorder when done
+                if (mRecorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
+                    stop();
+                }
+            } else {
+                mRecorder.release();
+                mRecorder = null;
             }
-            mRecorder.release();
-            mRecorder = null;
         }
     }
 
@@ -266,11 +520,9 @@ public final class RawAudioRecorder {
             mRecorder.startRecording();
             if (mRecorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
                 setState(State.RECORDING);
-                new Thread() {
-                    public void run() {
-                        recorderLoop(mRecorder);
-                    }
-                }.start();
+                final AudioRecord recorder = mRecorder;
+                mCapturing = true;
+                CAPTURE_EXECUTOR.execute(() -> recorderLoop(recorder));
             } else {
                 handleError("startRecording() failed");
             }
@@ -286,47 +538,59 @@ public final class RawAudioRecorder {
                 mRecorder.stop();
                 setState(State.STOPPED);
             } catch (IllegalStateException e) {
-                handleError("native stop() called in illegal state: " + e.getMessage());
+                setState(State.ERROR);
+                Timber.e("native stop() called in illegal state: %s", e.getMessage());
             }
         } else {
-            handleError("stop() called in illegal state");
+            setState(State.ERROR);
+            Timber.e("stop() called in illegal state");
         }
     }
 
-    private static short getShort(byte argB1, byte argB2) {
-        return (short) (argB1 | (argB2 << 8));
-    }
-
     private void recorderLoop(AudioRecord recorder) {
         while (recorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
             int status = read(recorder, mBuffer);
             if (status < 0) {
-                handleError("status = " + status);
+                if (recorder.getRecordingState() == AudioRecord.RECORDSTATE_RECORDING) {
+                    handleError("status = " + status);
+                }
                 break;
             }
         }
-    }
-
-    private long getRms(int end, int span) {
-        int begin = end - span;
-        if (begin < 0) {
-            begin = 0;
+        if (getState() != State.ERROR) {
+            drain(recorder);
         }
-        // make sure begin is even
-        if (0 != (begin % 2)) {
-            begin++;
+        synchronized (this) {
+            recorder.release();
+            if (mRecorder == recorder) {
+                mRecorder = null;
+            }
+            mCapturing = false;
+            recycleRecording();
         }
-
-        long sum = 0;
-        for (int i = begin; i < end; i += 2) {
-            short curSample = getShort(mRecording[i], mRecording[i + 1]);
-            sum += curSample * curSample;
+        mCaptureEnded = true;
+        Listener listener = mListener;
+        if (listener != null) {
+            listener.onCaptureEnd();
         }
-        return sum;
     }
 
-    public String getWsArgs() {
-        return "?content-type=audio/x-raw,+layout=(string)interleaved,+rate=(int)" +
-                mSampleRate + ",+format=(string)S16LE,+channels=(int)1";
+    /**
+     * Reads out the audio the stopped AudioRecord still holds, so that the last words
+     * spoken before stopping are not lost.
+     */
+    private void drain(AudioRecord recorder) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            // blocking reads on a stopped recorder may never return
+            return;
+        }
+        int len = mBuffer.capacity();
+        int maxReads = mRecorderBufferSize / len + 1;
+        for (int i = 0; i < maxReads; i++) {
+            int numOfBytes = recorder.read(mBuffer, len, AudioRecord.READ_NON_BLOCKING);
+            if (numOfBytes <= 0 || store(numOfBytes, mBuffer, len) < 0 || numOfBytes < len) {
+                break;
+            }
+        }
     }
 }
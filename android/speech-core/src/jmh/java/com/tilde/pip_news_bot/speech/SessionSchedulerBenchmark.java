@@ -0,0 +1,58 @@
+package com.tilde.pip_news_bot.speech;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The session scheduler: handing a task to it and running it, a new one or the reused one the
+ * sender is woken up with for every captured frame, and a whole minute long session in
+ * virtual time, with the sender, the level reports and the watchdog.
+ */
+@State(Scope.Benchmark)
+public class SessionSchedulerBenchmark {
+
+    private static final SessionScheduler.Driver NO_DRIVER = (runDue, delayNanos) -> {
+    };
+
+    private SessionScheduler mScheduler;
+    private final Runnable mTask = () -> {
+    };
+    private SessionScheduler.Task mWakeUp;
+    private long mCount;
+
+    @Setup
+    public void setUp() {
+        mScheduler = new SessionScheduler(SessionScheduler.SYSTEM_CLOCK, NO_DRIVER);
+        mWakeUp = mScheduler.newTask(mTask);
+    }
+
+    @Benchmark
+    public int postAndRun() {
+        mScheduler.post(mTask);
+        mScheduler.runDue();
+        return mScheduler.getPendingCount();
+    }
+
+    @Benchmark
+    public int repostAndRun() {
+        mScheduler.post(mWakeUp);
+        mScheduler.runDue();
+        return mScheduler.getPendingCount();
+    }
+
+    @Benchmark
+    public long virtualSession() {
+        final VirtualTime time = new VirtualTime();
+        final SessionScheduler scheduler = new SessionScheduler(time, time);
+        final SessionScheduler.Task send = scheduler.newTask(() -> mCount++);
+        // the capture thread wakes up the sender every frame
+        scheduler.scheduleAtFixedRate(() -> scheduler.post(send), 100, 100);
+        scheduler.scheduleAtFixedRate(() -> mCount++, 500, 100);
+        scheduler.schedule(() -> mCount++, 10000 * 1000);
+        time.advance(60 * 1000);
+        scheduler.shutdown();
+        return mCount;
+    }
+}
@@ -0,0 +1,68 @@
+package com.tilde.pip_news_bot.speech;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Tag stripping and pretty-printing of a transcript, one-shot and for a growing partial,
+ * against the replaceAll + string concatenating prettyPrint it replaced.
+ */
+@State(Scope.Benchmark)
+public class TranscriptNormalizerBenchmark {
+
+    // chars, 10000 is a few minutes of dictation
+    @Param({"100", "10000"})
+    public int length;
+
+    private String mTranscript;
+    private List<String> mPartials;
+    private int mPartial;
+    private final IncrementalNormalizer mIncremental =
+            new IncrementalNormalizer(true, WebSocketResponse.PRETTY_PRINT);
+
+    @Setup
+    public void setUp() {
+        mTranscript = Transcripts.dictation(length, 1);
+        mPartials = Transcripts.growingPartials(mTranscript, 2);
+    }
+
+    @Benchmark
+    public String normalize() {
+        return TranscriptNormalizer.normalize(mTranscript, true, WebSocketResponse.PRETTY_PRINT);
+    }
+
+    @Benchmark
+    public String normalizeLegacy() {
+        return LegacyTextUtils.normalize(mTranscript);
+    }
+
+    /**
+     * The next partial of the transcript, reusing the work done on the previous one.
+     */
+    @Benchmark
+    public String normalizePartial() {
+        return mIncremental.normalize(nextPartial());
+    }
+
+    /**
+     * The next partial of the transcript, each normalized from scratch.
+     */
+    @Benchmark
+    public String normalizePartialOneShot() {
+        return TranscriptNormalizer.normalize(nextPartial(), true, WebSocketResponse.PRETTY_PRINT);
+    }
+
+    private String nextPartial() {
+        // the last partials are the longest, start over rather than dwell on them
+        if (mPartial == mPartials.size()) {
+            mPartial = 0;
+            mIncremental.reset();
+        }
+        return mPartials.get(mPartial++);
+    }
+}
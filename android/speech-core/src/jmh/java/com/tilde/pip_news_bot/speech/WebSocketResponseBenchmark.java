@@ -0,0 +1,57 @@
+package com.tilde.pip_news_bot.speech;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.List;
+
+/**
+ * Parsing a result message into display ready hypotheses, as done for every server message,
+ * against the org.json based parsing it replaced.
+ */
+@State(Scope.Benchmark)
+public class WebSocketResponseBenchmark {
+
+    /**
+     * "partial": one short hypothesis, "final": five hypotheses of a longer utterance,
+     * "nbest": a hundred hypotheses of which only the first is wanted.
+     */
+    @Param({"partial", "final", "nbest"})
+    public String kind;
+
+    private String mMessage;
+    private int mMaxResults;
+
+    @Setup
+    public void setUp() {
+        switch (kind) {
+            case "partial":
+                mMessage = Transcripts.message(1, 80, false, 1);
+                mMaxResults = 1;
+                break;
+            case "final":
+                mMessage = Transcripts.message(5, 400, true, 2);
+                mMaxResults = 5;
+                break;
+            default:
+                mMessage = Transcripts.message(100, 400, true, 3);
+                mMaxResults = 1;
+                break;
+        }
+    }
+
+    @Benchmark
+    public List<String> parse() throws WebSocketResponse.WebSocketResponseException {
+        WebSocketResponse response = new WebSocketResponse(mMessage, mMaxResults);
+        return response.parseResult().getHypotheses();
+    }
+
+    @Benchmark
+    public List<String> parseLegacy() throws JSONException {
+        return new LegacyWebSocketResponse(mMessage).getHypotheses(mMaxResults);
+    }
+}
@@ -0,0 +1,52 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * The sender's cost of keeping audio for a replay: appending each frame to the backlog, and
+ * reading a full backlog back out after a reconnect.
+ */
+@State(Scope.Benchmark)
+public class AudioBacklogBenchmark {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME_MILLIS = 40;
+
+    @Param({"5000", "20000"})
+    public int backlogMillis;
+
+    private byte[] mFrame;
+    private byte[] mReplayChunk;
+    private AudioBacklog mBacklog;
+
+    @Setup
+    public void setUp() {
+        mFrame = Signals.speech(FRAME_MILLIS, SAMPLE_RATE, 1);
+        mReplayChunk = new byte[mFrame.length];
+        mBacklog = new AudioBacklog(AudioRingBuffer.bytesForMillis(backlogMillis, SAMPLE_RATE));
+        while (mBacklog.getEnd() < mBacklog.capacity()) {
+            mBacklog.append(mFrame, 0, mFrame.length);
+        }
+    }
+
+    @Benchmark
+    public long appendFrame() {
+        mBacklog.append(mFrame, 0, mFrame.length);
+        return mBacklog.getEnd();
+    }
+
+    @Benchmark
+    public long replay() {
+        long sum = 0;
+        for (long position = mBacklog.getStart(); position < mBacklog.getEnd(); ) {
+            int count = mBacklog.read(position, mReplayChunk, 0, mReplayChunk.length);
+            sum += mReplayChunk[count - 1];
+            position += count;
+        }
+        return sum;
+    }
+}
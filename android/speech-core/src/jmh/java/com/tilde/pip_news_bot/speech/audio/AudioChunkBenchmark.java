@@ -0,0 +1,57 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * One captured frame on its way to the server: written to the ring buffer by the capture
+ * thread, then read into a pooled chunk by the sender, against a new array per chunk.
+ */
+@State(Scope.Benchmark)
+public class AudioChunkBenchmark {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int POOL_SIZE = 4;
+
+    @Param({"20", "100"})
+    public int frameMillis;
+
+    private ByteBuffer mFrame;
+    private AudioRingBuffer mRing;
+    private AudioChunkPool mPool;
+
+    @Setup
+    public void setUp() {
+        byte[] pcm = Signals.speech(frameMillis, SAMPLE_RATE, 1);
+        mFrame = ByteBuffer.allocateDirect(pcm.length).order(ByteOrder.LITTLE_ENDIAN);
+        mFrame.put(pcm);
+        mRing = AudioRingBuffer.forDuration(8000, SAMPLE_RATE);
+        mPool = new AudioChunkPool(pcm.length, POOL_SIZE);
+    }
+
+    @Benchmark
+    public void pooledChunk(Blackhole blackhole) {
+        mFrame.clear();
+        mRing.write(mFrame);
+        AudioChunk chunk = mPool.acquire();
+        chunk.setLength(mRing.read(chunk.getData(), 0, chunk.capacity()));
+        blackhole.consume(chunk);
+        chunk.recycle();
+    }
+
+    @Benchmark
+    public byte[] newArrayChunk() {
+        mFrame.clear();
+        mRing.write(mFrame);
+        byte[] chunk = new byte[mRing.available()];
+        mRing.read(chunk, 0, chunk.length);
+        return chunk;
+    }
+}
@@ -0,0 +1,60 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Level metering: the capture thread's per-frame update of the {@link LevelMeter} and a read
+ * of the level, against rescanning the last second byte by byte as the recorder used to.
+ */
+@State(Scope.Benchmark)
+public class AudioLevelBenchmark {
+
+    private static final int FRAME_MILLIS = 40;
+
+    @Param({"16000", "48000"})
+    public int sampleRate;
+
+    private short[] mFrame;
+    private LevelMeter mMeter;
+    private ByteBuffer mSecond;
+
+    @Setup
+    public void setUp() {
+        byte[] pcm = Signals.speech(1000, sampleRate, 1);
+        mSecond = ByteBuffer.allocateDirect(pcm.length).order(ByteOrder.LITTLE_ENDIAN);
+        mSecond.put(pcm);
+        mSecond.clear();
+        mFrame = new short[AudioRingBuffer.bytesForMillis(FRAME_MILLIS, sampleRate) / 2];
+        mSecond.asShortBuffer().get(mFrame);
+        mMeter = new LevelMeter(sampleRate);
+    }
+
+    @Benchmark
+    public float meterFrame() {
+        mMeter.process(mFrame, mFrame.length);
+        return mMeter.getRmsdb();
+    }
+
+    @Benchmark
+    public long readLevel() {
+        return mMeter.getWindowEnergy();
+    }
+
+    @Benchmark
+    public long rescanSecondLegacy() {
+        long sum = 0;
+        for (int i = 0; i < mSecond.capacity(); i += 2) {
+            // the legacy reassembly, without masking the low byte
+            short sample = (short) (mSecond.get(i) | (mSecond.get(i + 1) << 8));
+            sum += sample * sample;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,60 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * The capture thread's cost of spooling a frame to disk while offline.
+ */
+@State(Scope.Benchmark)
+public class AudioSpoolBenchmark {
+
+    private static final int SAMPLE_RATE = 16000;
+    // utterances are cut after this, to keep the spool's files at a realistic size
+    private static final int UTTERANCE_MILLIS = 30000;
+
+    @Param({"20", "100"})
+    public int frameMillis;
+
+    private byte[] mFrame;
+    private File mDir;
+    private AudioSpool mSpool;
+    private AudioSpool.Writer mWriter;
+    private int mWritten;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFrame = Signals.speech(frameMillis, SAMPLE_RATE, 1);
+        mDir = Files.createTempDirectory("spool").toFile();
+        mSpool = new AudioSpool(new File(mDir, "bench"), 64L * 1024 * 1024);
+        mWriter = mSpool.begin(SAMPLE_RATE);
+    }
+
+    @TearDown
+    public void tearDown() {
+        mWriter.abort();
+        for (AudioSpool.Entry entry : mSpool.list()) {
+            mSpool.remove(entry);
+        }
+    }
+
+    @Benchmark
+    public int writeFrame() throws IOException {
+        mWriter.write(mFrame, 0, mFrame.length);
+        mWritten += frameMillis;
+        if (mWritten >= UTTERANCE_MILLIS) {
+            mWriter.commit();
+            mWriter = mSpool.begin(SAMPLE_RATE);
+            mWritten = 0;
+        }
+        return mWritten;
+    }
+}
@@ -0,0 +1,43 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Encoding one second of audio frame by frame, as the sender does, so ops/s is the real-time
+ * factor. Raw PCM, which is passed through, is the baseline.
+ */
+@State(Scope.Benchmark)
+public class FlacEncoderBenchmark {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    @Param({"flac", "raw"})
+    public String encoding;
+
+    @Param({"40"})
+    public int frameMillis;
+
+    private byte[] mPcm;
+    private int mFrameBytes;
+    private AudioEncoder mEncoder;
+
+    @Setup
+    public void setUp() {
+        mPcm = Signals.speech(1000, SAMPLE_RATE, 1);
+        mFrameBytes = AudioRingBuffer.bytesForMillis(frameMillis, SAMPLE_RATE);
+        mEncoder = AudioEncoders.create(encoding, SAMPLE_RATE, mFrameBytes / 2);
+    }
+
+    @Benchmark
+    public void encodeSecond(Blackhole blackhole) {
+        AudioEncoder.Output out = (data, offset, length) -> blackhole.consume(data);
+        for (int offset = 0; offset < mPcm.length; offset += mFrameBytes) {
+            mEncoder.encode(mPcm, offset, Math.min(mFrameBytes, mPcm.length - offset), out);
+        }
+    }
+}
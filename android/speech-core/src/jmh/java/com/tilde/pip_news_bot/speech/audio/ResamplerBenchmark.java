@@ -0,0 +1,53 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Resampling one second of captured audio to 16 kHz frame by frame, as the recorder does,
+ * so ops/s is the real-time factor.
+ */
+@State(Scope.Benchmark)
+public class ResamplerBenchmark {
+
+    private static final int OUTPUT_RATE = 16000;
+    private static final int FRAME_MILLIS = 40;
+
+    @Param({"48000", "44100"})
+    public int inputRate;
+
+    // the captured frames, as the recorder reads them
+    private ByteBuffer[] mFrames;
+    private ByteBuffer mOutput;
+    private int mFrameBytes;
+    private Resampler mResampler;
+
+    @Setup
+    public void setUp() {
+        byte[] pcm = Signals.speech(1000, inputRate, 1);
+        mFrameBytes = AudioRingBuffer.bytesForMillis(FRAME_MILLIS, inputRate);
+        mFrames = new ByteBuffer[pcm.length / mFrameBytes];
+        for (int i = 0; i < mFrames.length; i++) {
+            mFrames[i] = ByteBuffer.allocateDirect(mFrameBytes).order(ByteOrder.LITTLE_ENDIAN);
+            mFrames[i].put(pcm, i * mFrameBytes, mFrameBytes);
+        }
+        mResampler = new Resampler(inputRate, OUTPUT_RATE, mFrameBytes / 2);
+        mOutput = ByteBuffer.allocate(2 * mResampler.getMaxOutputSamples(mFrameBytes / 2))
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Benchmark
+    public int resampleSecond() {
+        int total = 0;
+        for (ByteBuffer frame : mFrames) {
+            total += mResampler.process(frame, mFrameBytes, mOutput);
+        }
+        return total;
+    }
+}
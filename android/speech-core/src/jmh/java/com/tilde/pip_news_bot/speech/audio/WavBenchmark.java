@@ -0,0 +1,29 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Framing a recording as a WAV file.
+ */
+@State(Scope.Benchmark)
+public class WavBenchmark {
+
+    @Param({"1000", "30000"})
+    public int millis;
+
+    private byte[] mPcm;
+
+    @Setup
+    public void setUp() {
+        mPcm = Signals.speech(millis, 16000, 1);
+    }
+
+    @Benchmark
+    public byte[] wav() {
+        return AudioUtils.getRecordingAsWav(mPcm, 16000);
+    }
+}
@@ -0,0 +1,58 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+/**
+ * The capture thread's cost of archiving a frame to a WAV file, compare to
+ * {@link WavBenchmark}, which frames a whole recording in memory.
+ */
+@State(Scope.Benchmark)
+public class WavWriterBenchmark {
+
+    private static final int SAMPLE_RATE = 16000;
+    // recordings are cut after this, so that the file does not grow without bound
+    private static final int RECORDING_MILLIS = 30000;
+
+    @Param({"20", "100"})
+    public int frameMillis;
+
+    private byte[] mFrame;
+    private File mDir;
+    private AudioArchive mArchive;
+    private WavWriter mWriter;
+    private int mWritten;
+
+    @Setup
+    public void setUp() throws IOException {
+        mFrame = Signals.speech(frameMillis, SAMPLE_RATE, 1);
+        mDir = Files.createTempDirectory("wav").toFile();
+        mArchive = new AudioArchive(new File(mDir, "bench"), 2);
+        mWriter = mArchive.begin(SAMPLE_RATE);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        mWriter.close();
+    }
+
+    @Benchmark
+    public int writeFrame() throws IOException {
+        mWriter.write(mFrame, 0, mFrame.length);
+        mWritten += frameMillis;
+        if (mWritten >= RECORDING_MILLIS) {
+            mWriter.close();
+            mWriter = mArchive.begin(SAMPLE_RATE);
+            mWritten = 0;
+        }
+        return mWritten;
+    }
+}
@@ -0,0 +1,75 @@
+package com.tilde.pip_news_bot.speech;
+
+/**
+ * Normalizes the growing partial transcripts of one session.
+ * <p>
+ * A partial mostly repeats the previous one, so the output is kept together with a
+ * checkpoint after every token, and only the text after the last checkpoint that
+ * depends on nothing but the prefix shared with the previous transcript is normalized again.
+ * The result is the same as that of {@link TranscriptNormalizer#append}. Not thread-safe.
+ */
+public final class IncrementalNormalizer {
+
+    private final TranscriptNormalizer mNormalizer;
+    private final TranscriptNormalizer.Checkpoints mCheckpoints =
+            new TranscriptNormalizer.Checkpoints();
+    private final StringBuilder mText = new StringBuilder();
+    private String mTranscript = "";
+    private int mUnchangedLength;
+
+    public IncrementalNormalizer(boolean stripTags, boolean prettyPrint) {
+        mNormalizer = new TranscriptNormalizer(stripTags, prettyPrint);
+    }
+
+    /**
+     * @return {@code transcript} normalized
+     */
+    public String normalize(String transcript) {
+        final int checkpoint = mCheckpoints.truncate(commonPrefixLength(mTranscript, transcript));
+        final int from;
+        final int horizon;
+        if (checkpoint < 0) {
+            mNormalizer.reset();
+            mText.setLength(0);
+            from = 0;
+            horizon = -1;
+            mUnchangedLength = 0;
+        } else {
+            mNormalizer.restore(mCheckpoints.getState(checkpoint));
+            mText.setLength(mCheckpoints.getOutLength(checkpoint));
+            from = mCheckpoints.getTextIndex(checkpoint);
+            horizon = mCheckpoints.getHorizon(checkpoint);
+            mUnchangedLength = mText.length();
+        }
+        mNormalizer.process(transcript, from, horizon, mText, mCheckpoints);
+        mTranscript = transcript;
+        return mText.toString();
+    }
+
+    /**
+     * @return number of leading chars that the latest output kept from the one before it,
+     * which it shares with it without them having to be compared
+     */
+    public int getUnchangedLength() {
+        return mUnchangedLength;
+    }
+
+    /**
+     * Forgets the previous transcript, e.g. after a final result.
+     */
+    public void reset() {
+        mCheckpoints.clear();
+        mText.setLength(0);
+        mTranscript = "";
+        mUnchangedLength = 0;
+    }
+
+    private static int commonPrefixLength(String a, String b) {
+        final int max = Math.min(a.length(), b.length());
+        int i = 0;
+        while (i < max && a.charAt(i) == b.charAt(i)) {
+            i++;
+        }
+        return i;
+    }
+}
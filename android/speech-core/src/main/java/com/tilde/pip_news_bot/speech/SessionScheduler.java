@@ -0,0 +1,225 @@
+package com.tilde.pip_news_bot.speech;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the timed work of one recognition session, e.g. sending the audio, reporting the level
+ * and the watchdogs. Tasks run one at a time, in the order they are due, and tasks due at the
+ * same time in the order they were scheduled.
+ * <p>
+ * The scheduler has no thread of its own: a {@link Driver} runs {@link #runDue()} when asked
+ * to, typically on a thread that all sessions share, and the time comes from a {@link Clock}.
+ * Both can be replaced, so that a session can be run in virtual time.
+ * <p>
+ * Cancelling is deterministic on the thread the tasks run on: once {@link Task#cancel()} or
+ * {@link #shutdown()} has returned there, the task does not run again. Tasks can be scheduled
+ * and cancelled from any thread, but from another thread a run that is just starting is not
+ * stopped, so work a task hands on to yet another thread must check that it is still wanted.
+ * <p>
+ * Work that is woken up over and over, e.g. for every captured frame, can use one task made by
+ * {@link #newTask(Runnable)} and {@link #post(Task) post} it again, which allocates nothing.
+ */
+public final class SessionScheduler {
+
+    public interface Clock {
+        long nanoTime();
+    }
+
+    public interface Driver {
+        /**
+         * Arranges for {@code runDue} to run after the delay, on the thread the tasks run on.
+         * Must not run it before returning. Runs that come early or more than once are harmless.
+         */
+        void wakeUp(Runnable runDue, long delayNanos);
+    }
+
+    public static final Clock SYSTEM_CLOCK = System::nanoTime;
+
+    public final class Task {
+        private final Runnable mRunnable;
+        // 0 for a task that runs once
+        private final long mPeriodNanos;
+        // guarded by the scheduler
+        private long mDueNanos;
+        private long mSequence;
+        private boolean mIsQueued;
+        private boolean mIsCancelled;
+
+        private Task(Runnable runnable, long periodNanos) {
+            mRunnable = runnable;
+            mPeriodNanos = periodNanos;
+        }
+
+        /**
+         * Makes sure that the task does not start again, can be called more than once.
+         */
+        public void cancel() {
+            synchronized (SessionScheduler.this) {
+                mIsCancelled = true;
+                mIsQueued = false;
+                mQueue.remove(this);
+            }
+        }
+
+        public boolean isCancelled() {
+            synchronized (SessionScheduler.this) {
+                return mIsCancelled;
+            }
+        }
+    }
+
+    private final Clock mClock;
+    private final Driver mDriver;
+    private final Runnable mRunDue = this::runDue;
+
+    // guarded by this
+    private final PriorityQueue<Task> mQueue = new PriorityQueue<>(11, (a, b) ->
+            a.mDueNanos != b.mDueNanos ? Long.compare(a.mDueNanos, b.mDueNanos)
+                    : Long.compare(a.mSequence, b.mSequence));
+    private long mSequence;
+    // the earliest wake-up asked of the driver that has not come yet
+    private long mWakeUpNanos = Long.MAX_VALUE;
+    private boolean mIsShutdown;
+
+    public SessionScheduler(Clock clock, Driver driver) {
+        mClock = clock;
+        mDriver = driver;
+    }
+
+    /**
+     * Runs the task as soon as the tasks that are already due have run.
+     */
+    public Task post(Runnable runnable) {
+        return schedule(runnable, 0);
+    }
+
+    /**
+     * @return a task that runs once every time it is {@link #post(Task) posted}
+     */
+    public Task newTask(Runnable runnable) {
+        return new Task(runnable, 0);
+    }
+
+    /**
+     * Runs a task made by {@link #newTask(Runnable)} as soon as the tasks that are already due
+     * have run, unless it is waiting to run already. Posting it while it runs makes it run
+     * again.
+     *
+     * @return false if the task was waiting already, cancelled or the scheduler is shut down
+     */
+    public boolean post(Task task) {
+        final long now = mClock.nanoTime();
+        synchronized (this) {
+            if (mIsShutdown || task.mIsCancelled || task.mIsQueued) {
+                return false;
+            }
+            enqueue(task, now);
+            if (mQueue.peek() == task) {
+                wakeUp(task.mDueNanos, now);
+            }
+        }
+        return true;
+    }
+
+    public Task schedule(Runnable runnable, long delayMillis) {
+        return add(new Task(runnable, 0), delayMillis);
+    }
+
+    /**
+     * Runs the task every {@code periodMillis}. Runs that were missed, e.g. while another task
+     * took long, make up a single late run rather than running back to back.
+     */
+    public Task scheduleAtFixedRate(Runnable runnable, long initialDelayMillis,
+                                    long periodMillis) {
+        if (periodMillis <= 0) {
+            throw new IllegalArgumentException("periodMillis must be positive: " + periodMillis);
+        }
+        return add(new Task(runnable, TimeUnit.MILLISECONDS.toNanos(periodMillis)),
+                initialDelayMillis);
+    }
+
+    /**
+     * Cancels every task. Tasks scheduled from here on are cancelled right away.
+     */
+    public synchronized void shutdown() {
+        mIsShutdown = true;
+        for (Task task : mQueue) {
+            task.mIsCancelled = true;
+            task.mIsQueued = false;
+        }
+        mQueue.clear();
+    }
+
+    public synchronized boolean isShutdown() {
+        return mIsShutdown;
+    }
+
+    /**
+     * @return number of tasks waiting to run
+     */
+    public synchronized int getPendingCount() {
+        return mQueue.size();
+    }
+
+    /**
+     * Runs the tasks that are due, including those that become due meanwhile, and asks the
+     * driver to come back when the next one is. Called by the driver only.
+     */
+    public void runDue() {
+        while (true) {
+            final Task task;
+            synchronized (this) {
+                final long now = mClock.nanoTime();
+                mWakeUpNanos = Long.MAX_VALUE;
+                task = mQueue.peek();
+                if (task == null) {
+                    return;
+                }
+                if (task.mDueNanos - now > 0) {
+                    wakeUp(task.mDueNanos, now);
+                    return;
+                }
+                mQueue.poll();
+                task.mIsQueued = false;
+                if (task.mPeriodNanos > 0) {
+                    long due = task.mDueNanos + task.mPeriodNanos;
+                    if (due - now <= 0) {
+                        due = now + task.mPeriodNanos;
+                    }
+                    enqueue(task, due);
+                }
+            }
+            task.mRunnable.run();
+        }
+    }
+
+    private Task add(Task task, long delayMillis) {
+        final long now = mClock.nanoTime();
+        synchronized (this) {
+            if (mIsShutdown) {
+                task.mIsCancelled = true;
+                return task;
+            }
+            enqueue(task, now + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis)));
+            if (mQueue.peek() == task) {
+                wakeUp(task.mDueNanos, now);
+            }
+        }
+        return task;
+    }
+
+    private void enqueue(Task task, long dueNanos) {
+        task.mDueNanos = dueNanos;
+        task.mSequence = mSequence++;
+        task.mIsQueued = true;
+        mQueue.add(task);
+    }
+
+    private void wakeUp(long dueNanos, long now) {
+        if (dueNanos - mWakeUpNanos < 0 || mWakeUpNanos == Long.MAX_VALUE) {
+            mWakeUpNanos = dueNanos;
+            mDriver.wakeUp(mRunDue, Math.max(0, dueNanos - now));
+        }
+    }
+}
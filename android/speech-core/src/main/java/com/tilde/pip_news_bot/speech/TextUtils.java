@@ -0,0 +1,15 @@
+package com.tilde.pip_news_bot.speech;
+
+final class TextUtils {
+
+    private TextUtils() {
+    }
+
+    /**
+     * Glues the space separated tokens of a transcript together and capitalizes sentence
+     * starts, see {@link TranscriptNormalizer}.
+     */
+    static String prettyPrint(String str) {
+        return TranscriptNormalizer.normalize(str, false, true);
+    }
+}
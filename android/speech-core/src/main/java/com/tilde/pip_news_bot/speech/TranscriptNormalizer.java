@@ -0,0 +1,272 @@
+package com.tilde.pip_news_bot.speech;
+
+import java.util.Arrays;
+
+/**
+ * Turns a raw server transcript into display text in a single pass: strips the tags
+ * ({@code <[^<>]+>}, as in replaceAll), glues space separated tokens back together and
+ * capitalizes sentence starts, exactly like the former replaceAll + prettyPrint combination.
+ * <p>
+ * The output is appended to a caller supplied StringBuilder, so that one builder can be
+ * reused for many transcripts. Processing can be resumed from a {@link Checkpoints checkpoint},
+ * see {@link IncrementalNormalizer}. Not thread-safe.
+ */
+final class TranscriptNormalizer {
+
+    private static final byte WS = 1;
+    private static final byte PUNCT = 2;
+    private static final byte EOS = 4;
+
+    private static final byte[] CHAR_CLASS = new byte[128];
+
+    private static final int STATE_HAS_TEXT = 1;
+    private static final int STATE_SENTENCE_START = 2;
+    private static final int STATE_WHITESPACE_BEFORE = 4;
+
+    static {
+        for (char c : new char[]{' ', '\n', '\t'}) {
+            CHAR_CLASS[c] |= WS;
+        }
+        for (char c : new char[]{',', ':', ';', '.', '!', '?', '-', ')'}) {
+            CHAR_CLASS[c] |= PUNCT;
+        }
+        for (char c : new char[]{'.', '!', '?', ')'}) {
+            CHAR_CLASS[c] |= EOS;
+        }
+    }
+
+    private final boolean mStripTags;
+    private final boolean mPrettyPrint;
+
+    // state carried from one token to the next
+    private boolean mHasText;
+    private boolean mIsSentenceStart;
+    private boolean mIsWhitespaceBefore;
+
+    TranscriptNormalizer(boolean stripTags, boolean prettyPrint) {
+        mStripTags = stripTags;
+        mPrettyPrint = prettyPrint;
+    }
+
+    /**
+     * @return {@code text} normalized by a throwaway normalizer
+     */
+    static String normalize(String text, boolean stripTags, boolean prettyPrint) {
+        StringBuilder out = new StringBuilder(text.length());
+        new TranscriptNormalizer(stripTags, prettyPrint).append(text, out);
+        return out.toString();
+    }
+
+    /**
+     * Forgets the previous text, the next one starts from scratch.
+     */
+    void reset() {
+        mHasText = false;
+        mIsSentenceStart = false;
+        mIsWhitespaceBefore = false;
+    }
+
+    /**
+     * Normalizes {@code text} as a whole, appending the result to {@code out}.
+     */
+    void append(String text, StringBuilder out) {
+        reset();
+        process(text, 0, -1, out, null);
+    }
+
+    /**
+     * Continues normalizing {@code text} at {@code from}, a position right after a token,
+     * with the state set by {@link #restore(int)} or {@link #reset()}.
+     *
+     * @param horizon     the furthest index of {@code text} looked at so far
+     * @param checkpoints where to record a checkpoint after every token, or null
+     */
+    void process(String text, int from, int horizon, StringBuilder out,
+                 Checkpoints checkpoints) {
+        final int length = text.length();
+        int tokenLength = 0;
+        char firstChar = 0;
+        int i = from;
+        while (i < length) {
+            final char c = text.charAt(i);
+            if (c == '<' && mStripTags) {
+                final int end = findTagEnd(text, i);
+                // whether this is a tag depends on everything up to its end, or the text's end
+                horizon = Math.max(horizon, end > 0 ? end - 1 : findTagHorizon(text, i));
+                if (end > 0) {
+                    i = end;
+                    continue;
+                }
+            }
+            horizon = Math.max(horizon, i);
+            i++;
+            if (c == ' ') {
+                if (!mPrettyPrint) {
+                    out.append(c);
+                }
+                if (tokenLength > 0) {
+                    if (mPrettyPrint) {
+                        endToken(firstChar, tokenLength);
+                    }
+                    tokenLength = 0;
+                    if (checkpoints != null) {
+                        checkpoints.add(i, out.length(), horizon, save());
+                    }
+                }
+            } else {
+                if (!mPrettyPrint) {
+                    out.append(c);
+                } else if (tokenLength == 0) {
+                    firstChar = c;
+                    startToken(c, out);
+                } else {
+                    out.append(c);
+                }
+                tokenLength++;
+            }
+        }
+        if (tokenLength > 0 && mPrettyPrint) {
+            endToken(firstChar, tokenLength);
+        }
+    }
+
+    /**
+     * @param start index of a '<'
+     * @return the index just past the tag starting at {@code start}, or -1 if there is none
+     */
+    private static int findTagEnd(String text, int start) {
+        final int length = text.length();
+        int j = start + 1;
+        while (j < length) {
+            final char d = text.charAt(j);
+            if (d == '>') {
+                return j > start + 1 ? j + 1 : -1;
+            }
+            if (d == '<') {
+                return -1;
+            }
+            j++;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index at which {@link #findTagEnd} gave up on the '<' at {@code start}, the
+     * text's length if it ran off the end, as more text could still close the tag
+     */
+    private static int findTagHorizon(String text, int start) {
+        final int length = text.length();
+        int j = start + 1;
+        while (j < length) {
+            final char d = text.charAt(j);
+            if (d == '>' || d == '<') {
+                return j;
+            }
+            j++;
+        }
+        return length;
+    }
+
+    private int save() {
+        return (mHasText ? STATE_HAS_TEXT : 0)
+                | (mIsSentenceStart ? STATE_SENTENCE_START : 0)
+                | (mIsWhitespaceBefore ? STATE_WHITESPACE_BEFORE : 0);
+    }
+
+    /**
+     * Sets the state saved with a checkpoint.
+     */
+    void restore(int state) {
+        mHasText = (state & STATE_HAS_TEXT) != 0;
+        mIsSentenceStart = (state & STATE_SENTENCE_START) != 0;
+        mIsWhitespaceBefore = (state & STATE_WHITESPACE_BEFORE) != 0;
+    }
+
+    private void startToken(char c, StringBuilder out) {
+        if (mHasText && !mIsWhitespaceBefore && (charClass(c) & (WS | PUNCT)) == 0) {
+            out.append(' ');
+        }
+        out.append(mIsSentenceStart ? Character.toUpperCase(c) : c);
+        mHasText = true;
+    }
+
+    private void endToken(char firstChar, int tokenLength) {
+        final int cls = charClass(firstChar);
+        mIsWhitespaceBefore = (cls & WS) != 0;
+        if (tokenLength > 1) {
+            mIsSentenceStart = false;
+        } else if ((cls & EOS) != 0) {
+            mIsSentenceStart = true;
+        } else if (!mIsWhitespaceBefore) {
+            mIsSentenceStart = false;
+        }
+    }
+
+    private static int charClass(char c) {
+        return c < CHAR_CLASS.length ? CHAR_CLASS[c] : 0;
+    }
+
+    /**
+     * Points after each token at which normalization can be resumed: the text position, the
+     * output length, the state and the furthest text position the result depends on.
+     */
+    static final class Checkpoints {
+        private int mSize;
+        private int[] mTextIndex = new int[64];
+        private int[] mOutLength = new int[64];
+        private int[] mHorizon = new int[64];
+        private int[] mState = new int[64];
+
+        void add(int textIndex, int outLength, int horizon, int state) {
+            if (mSize == mTextIndex.length) {
+                int capacity = 2 * mSize;
+                mTextIndex = Arrays.copyOf(mTextIndex, capacity);
+                mOutLength = Arrays.copyOf(mOutLength, capacity);
+                mHorizon = Arrays.copyOf(mHorizon, capacity);
+                mState = Arrays.copyOf(mState, capacity);
+            }
+            mTextIndex[mSize] = textIndex;
+            mOutLength[mSize] = outLength;
+            mHorizon[mSize] = horizon;
+            mState[mSize] = state;
+            mSize++;
+        }
+
+        /**
+         * Drops the checkpoints that depend on text at or after {@code validLength}.
+         *
+         * @return the last checkpoint left, or -1 if there is none
+         */
+        int truncate(int validLength) {
+            // horizons never decrease, so the invalid ones are all at the end
+            while (mSize > 0 && mHorizon[mSize - 1] >= validLength) {
+                mSize--;
+            }
+            return mSize - 1;
+        }
+
+        void clear() {
+            mSize = 0;
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        int getTextIndex(int checkpoint) {
+            return mTextIndex[checkpoint];
+        }
+
+        int getOutLength(int checkpoint) {
+            return mOutLength[checkpoint];
+        }
+
+        int getHorizon(int checkpoint) {
+            return mHorizon[checkpoint];
+        }
+
+        int getState(int checkpoint) {
+            return mState[checkpoint];
+        }
+    }
+}
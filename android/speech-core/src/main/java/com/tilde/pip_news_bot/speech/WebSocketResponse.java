@@ -0,0 +1,498 @@
+package com.tilde.pip_news_bot.speech;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A server message, parsed in a single pass over the text without building a JSON tree.
+ * <p>
+ * Only "status", "result.final" and the transcripts of the first maxHypotheses hypotheses are
+ * decoded up front, everything else is skipped over. Further hypotheses are decoded from the
+ * text only if asked for, see {@link Result#getHypotheses(int)}.
+ */
+public final class WebSocketResponse {
+
+    public static final int MAX_HYPOTHESES = 100;
+
+    // Pretty-print results
+    public static final boolean PRETTY_PRINT = true;
+
+    // Usually used when recognition results are sent.
+    public static final int STATUS_SUCCESS = 0;
+
+    // Audio contains a large portion of silence or non-speech.
+    public static final int STATUS_NO_SPEECH = 1;
+
+    // Recognition was aborted for some reason.
+    public static final int STATUS_ABORTED = 2;
+
+    // No valid frames found before end of stream.
+    public static final int STATUS_NO_VALID_FRAMES = 5;
+
+    // Used when all recognizer processes are currently in use and recognition cannot be performed.
+    public static final int STATUS_NOT_AVAILABLE = 9;
+
+    private final String mData;
+    private final int mMaxHypotheses;
+    private int mStatus;
+    private boolean mHasStatus;
+    private boolean mHasResult;
+    private boolean mIsResultObject;
+    private boolean mIsFinal;
+    private boolean mHasHypotheses;
+    private final ArrayList<String> mTranscripts = new ArrayList<>();
+    private int mHypothesisCount;
+    // where the first hypothesis that was not decoded starts, -1 if there is none
+    private int mMoreHypothesesStart = -1;
+
+    public WebSocketResponse(String data) throws WebSocketResponseException {
+        this(data, MAX_HYPOTHESES);
+    }
+
+    /**
+     * @param maxHypotheses number of hypotheses to decode right away
+     */
+    public WebSocketResponse(String data, int maxHypotheses) throws WebSocketResponseException {
+        mData = data;
+        mMaxHypotheses = maxHypotheses;
+        Tokenizer t = new Tokenizer(data, 0);
+        t.expect('{');
+        if (!t.consume('}')) {
+            do {
+                t.readKey();
+                if (t.isKey("status")) {
+                    mStatus = t.readInt();
+                    mHasStatus = true;
+                } else if (t.isKey("result")) {
+                    mHasResult = true;
+                    if (t.peek() == '{') {
+                        mIsResultObject = true;
+                        parseResult(t);
+                    } else {
+                        t.skipValue();
+                    }
+                } else {
+                    t.skipValue();
+                }
+            } while (t.consume(','));
+            t.expect('}');
+        }
+        if (!mHasStatus) {
+            throw new WebSocketResponseException("No status: " + data);
+        }
+    }
+
+    private void parseResult(Tokenizer t) throws WebSocketResponseException {
+        t.expect('{');
+        if (t.consume('}')) {
+            return;
+        }
+        do {
+            t.readKey();
+            if (t.isKey("final")) {
+                mIsFinal = t.readOptBoolean();
+            } else if (t.isKey("hypotheses")) {
+                parseHypotheses(t);
+            } else {
+                t.skipValue();
+            }
+        } while (t.consume(','));
+        t.expect('}');
+    }
+
+    private void parseHypotheses(Tokenizer t) throws WebSocketResponseException {
+        t.expect('[');
+        mHasHypotheses = true;
+        if (t.consume(']')) {
+            return;
+        }
+        int index = 0;
+        do {
+            if (index < mMaxHypotheses) {
+                mTranscripts.add(readTranscript(t));
+            } else {
+                if (mMoreHypothesesStart < 0) {
+                    mMoreHypothesesStart = t.getPosition();
+                }
+                t.skipValue();
+            }
+            index++;
+        } while (t.consume(','));
+        t.expect(']');
+        mHypothesisCount = index;
+    }
+
+    private static String readTranscript(Tokenizer t) throws WebSocketResponseException {
+        String transcript = null;
+        t.expect('{');
+        if (!t.consume('}')) {
+            do {
+                t.readKey();
+                if (t.isKey("transcript")) {
+                    transcript = t.readString();
+                } else {
+                    t.skipValue();
+                }
+            } while (t.consume(','));
+            t.expect('}');
+        }
+        if (transcript == null) {
+            throw new WebSocketResponseException("Hypothesis without transcript");
+        }
+        return transcript;
+    }
+
+    public int getStatus() {
+        return mStatus;
+    }
+
+    public boolean isResult() {
+        return mHasResult;
+    }
+
+    public Result parseResult() throws WebSocketResponseException {
+        if (!mIsResultObject) {
+            throw new WebSocketResponseException("Result is not an object");
+        }
+        return new Result(this);
+    }
+
+    public static class Result {
+        private final WebSocketResponse mResponse;
+
+        Result(WebSocketResponse response) {
+            mResponse = response;
+        }
+
+        /**
+         * @return the first maxHypotheses hypotheses, as decoded when parsing
+         */
+        public ArrayList<String> getHypotheses()
+                throws WebSocketResponseException {
+            return getHypotheses(mResponse.mMaxHypotheses);
+        }
+
+        /**
+         * Decodes hypotheses beyond the first maxHypotheses from the message text, if needed.
+         *
+         * @return up to {@code count} hypotheses
+         */
+        public ArrayList<String> getHypotheses(int count)
+                throws WebSocketResponseException {
+            return getHypotheses(count, null);
+        }
+
+        /**
+         * Like {@link #getHypotheses(int)}, with the first hypothesis normalized by
+         * {@code incremental}, which has seen the previous transcripts of the session.
+         */
+        public ArrayList<String> getHypotheses(int count, IncrementalNormalizer incremental)
+                throws WebSocketResponseException {
+            final WebSocketResponse response = mResponse;
+            if (!response.mHasHypotheses) {
+                throw new WebSocketResponseException("No hypotheses");
+            }
+            if (count > response.mTranscripts.size() && response.mMoreHypothesesStart >= 0) {
+                response.decodeMore(Math.min(count, response.mHypothesisCount));
+            }
+            final List<String> transcripts = response.mTranscripts;
+            final int size = Math.min(count, transcripts.size());
+            ArrayList<String> hypotheses = new ArrayList<>(size);
+            final TranscriptNormalizer normalizer = new TranscriptNormalizer(true,
+                    PRETTY_PRINT);
+            final StringBuilder text = new StringBuilder();
+            for (int i = 0; i < size; i++) {
+                if (i == 0 && incremental != null) {
+                    hypotheses.add(incremental.normalize(transcripts.get(0)));
+                    continue;
+                }
+                text.setLength(0);
+                normalizer.append(transcripts.get(i), text);
+                hypotheses.add(text.toString());
+            }
+            return hypotheses;
+        }
+
+        /**
+         * @return number of hypotheses in the message, decoded or not
+         */
+        public int getHypothesisCount() {
+            return mResponse.mHypothesisCount;
+        }
+
+        /**
+         * The "final" field does not have to exist, but if it does then it must be a boolean.
+         *
+         * @return true iff this result is final
+         */
+        public boolean isFinal() {
+            return mResponse.mIsFinal;
+        }
+    }
+
+    /**
+     * Continues decoding where parsing left off, until {@code count} transcripts are held.
+     */
+    private void decodeMore(int count) throws WebSocketResponseException {
+        Tokenizer t = new Tokenizer(mData, mMoreHypothesesStart);
+        while (mTranscripts.size() < count) {
+            mTranscripts.add(readTranscript(t));
+            if (!t.consume(',')) {
+                break;
+            }
+        }
+        mMoreHypothesesStart = mTranscripts.size() < mHypothesisCount ? t.getPosition() : -1;
+    }
+
+    /**
+     * Just enough of a JSON reader for the server messages: reads keys in place, decodes
+     * strings only when asked and skips over everything else.
+     */
+    private static final class Tokenizer {
+        private final String mText;
+        private final int mLength;
+        private int mPos;
+        private int mKeyStart;
+        private int mKeyEnd;
+
+        Tokenizer(String text, int pos) {
+            mText = text;
+            mLength = text.length();
+            mPos = pos;
+        }
+
+        int getPosition() {
+            return mPos;
+        }
+
+        /**
+         * @return the next non-whitespace character, without consuming it, or 0 at the end
+         */
+        char peek() {
+            while (mPos < mLength) {
+                char c = mText.charAt(mPos);
+                if (c != ' ' && c != '\n' && c != '\r' && c != '\t') {
+                    return c;
+                }
+                mPos++;
+            }
+            return 0;
+        }
+
+        boolean consume(char c) {
+            if (peek() == c) {
+                mPos++;
+                return true;
+            }
+            return false;
+        }
+
+        void expect(char c) throws WebSocketResponseException {
+            if (!consume(c)) {
+                throw error("Expected '" + c + "'");
+            }
+        }
+
+        /**
+         * Reads an object key and the colon after it, see {@link #isKey(String)}.
+         */
+        void readKey() throws WebSocketResponseException {
+            expect('"');
+            mKeyStart = mPos;
+            skipStringBody();
+            mKeyEnd = mPos - 1;
+            expect(':');
+        }
+
+        boolean isKey(String key) {
+            return mKeyEnd - mKeyStart == key.length()
+                    && mText.regionMatches(mKeyStart, key, 0, key.length());
+        }
+
+        /**
+         * Like JSONObject.getInt, also takes numbers written as strings.
+         */
+        int readInt() throws WebSocketResponseException {
+            final String number;
+            if (peek() == '"') {
+                number = readString();
+            } else {
+                final int start = mPos;
+                while (mPos < mLength && isNumberChar(mText.charAt(mPos))) {
+                    mPos++;
+                }
+                if (start == mPos) {
+                    throw error("Expected a number");
+                }
+                number = mText.substring(start, mPos);
+            }
+            try {
+                return Integer.parseInt(number);
+            } catch (NumberFormatException e) {
+                try {
+                    return (int) Double.parseDouble(number);
+                } catch (NumberFormatException e2) {
+                    throw error("Bad number " + number);
+                }
+            }
+        }
+
+        /**
+         * Like JSONObject.optBoolean, anything but true or "true" is false.
+         */
+        boolean readOptBoolean() throws WebSocketResponseException {
+            final char c = peek();
+            if (c == 't' && mText.startsWith("true", mPos)) {
+                mPos += 4;
+                return true;
+            }
+            if (c == '"') {
+                return "true".equalsIgnoreCase(readString());
+            }
+            skipValue();
+            return false;
+        }
+
+        String readString() throws WebSocketResponseException {
+            expect('"');
+            final int start = mPos;
+            while (mPos < mLength) {
+                char c = mText.charAt(mPos);
+                if (c == '"') {
+                    mPos++;
+                    return mText.substring(start, mPos - 1);
+                }
+                if (c == '\\') {
+                    return readEscapedString(start);
+                }
+                mPos++;
+            }
+            throw error("Unterminated string");
+        }
+
+        private String readEscapedString(int start) throws WebSocketResponseException {
+            StringBuilder sb = new StringBuilder(mPos - start + 16);
+            sb.append(mText, start, mPos);
+            while (mPos < mLength) {
+                char c = mText.charAt(mPos++);
+                if (c == '"') {
+                    return sb.toString();
+                }
+                if (c != '\\') {
+                    sb.append(c);
+                    continue;
+                }
+                if (mPos >= mLength) {
+                    break;
+                }
+                c = mText.charAt(mPos++);
+                switch (c) {
+                    case 'b':
+                        sb.append('\b');
+                        break;
+                    case 'f':
+                        sb.append('\f');
+                        break;
+                    case 'n':
+                        sb.append('\n');
+                        break;
+                    case 'r':
+                        sb.append('\r');
+                        break;
+                    case 't':
+                        sb.append('\t');
+                        break;
+                    case 'u':
+                        if (mPos + 4 > mLength) {
+                            throw error("Bad unicode escape");
+                        }
+                        try {
+                            sb.append((char) Integer.parseInt(mText.substring(mPos, mPos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("Bad unicode escape");
+                        }
+                        mPos += 4;
+                        break;
+                    default:
+                        // \" \\ \/ and anything unknown stand for themselves
+                        sb.append(c);
+                        break;
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        void skipValue() throws WebSocketResponseException {
+            final char c = peek();
+            if (c == '"') {
+                mPos++;
+                skipStringBody();
+            } else if (c == '{' || c == '[') {
+                skipContainer();
+            } else {
+                final int start = mPos;
+                while (mPos < mLength) {
+                    char d = mText.charAt(mPos);
+                    if (d == ',' || d == '}' || d == ']' || d == ' ' || d == '\n'
+                            || d == '\r' || d == '\t') {
+                        break;
+                    }
+                    mPos++;
+                }
+                if (start == mPos) {
+                    throw error("Expected a value");
+                }
+            }
+        }
+
+        private void skipContainer() throws WebSocketResponseException {
+            int depth = 0;
+            while (mPos < mLength) {
+                char c = mText.charAt(mPos++);
+                if (c == '"') {
+                    skipStringBody();
+                } else if (c == '{' || c == '[') {
+                    depth++;
+                } else if (c == '}' || c == ']') {
+                    if (--depth == 0) {
+                        return;
+                    }
+                }
+            }
+            throw error("Unterminated container");
+        }
+
+        /**
+         * Skips to just past the closing quote, the opening one must have been consumed.
+         */
+        private void skipStringBody() throws WebSocketResponseException {
+            while (mPos < mLength) {
+                char c = mText.charAt(mPos++);
+                if (c == '"') {
+                    return;
+                }
+                if (c == '\\') {
+                    mPos++;
+                }
+            }
+            throw error("Unterminated string");
+        }
+
+        private static boolean isNumberChar(char c) {
+            return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.'
+                    || c == 'e' || c == 'E';
+        }
+
+        private WebSocketResponseException error(String message) {
+            return new WebSocketResponseException(message + " at " + mPos + ": " + mText);
+        }
+    }
+
+    public static class WebSocketResponseException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        WebSocketResponseException(String message) {
+            super(message);
+        }
+    }
+}
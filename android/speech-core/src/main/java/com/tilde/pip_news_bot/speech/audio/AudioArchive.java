@@ -0,0 +1,66 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * WAV recordings of the latest sessions, for debugging and quality review.
+ * <p>
+ * Recordings are named after the wall clock time they were started at, so that they sort
+ * oldest first. Starting one deletes the oldest ones beyond the number to keep, so the archive
+ * holds at most that many, the one being written included. Thread-safe.
+ */
+public final class AudioArchive {
+
+    private static final String SUFFIX = ".wav";
+
+    private final File mDir;
+    private final int mMaxRecordings;
+    // guarded by this
+    private long mLastId;
+
+    public AudioArchive(File dir, int maxRecordings) {
+        if (maxRecordings <= 0) {
+            throw new IllegalArgumentException("maxRecordings must be positive: " + maxRecordings);
+        }
+        mDir = dir;
+        mMaxRecordings = maxRecordings;
+    }
+
+    public int getMaxRecordings() {
+        return mMaxRecordings;
+    }
+
+    /**
+     * Starts a recording, the caller must close it.
+     */
+    public synchronized WavWriter begin(int sampleRate) throws IOException {
+        if (!mDir.isDirectory() && !mDir.mkdirs()) {
+            throw new IOException("Cannot create " + mDir);
+        }
+        List<File> recordings = list();
+        for (int i = 0; i <= recordings.size() - mMaxRecordings; i++) {
+            recordings.get(i).delete();
+        }
+        final long id = Math.max(System.currentTimeMillis(), mLastId + 1);
+        mLastId = id;
+        return new WavWriter(new File(mDir, String.format(Locale.ROOT, "%013d", id) + SUFFIX),
+                sampleRate);
+    }
+
+    /**
+     * @return the recordings, oldest first
+     */
+    public synchronized List<File> list() {
+        File[] files = mDir.listFiles((dir, name) -> name.endsWith(SUFFIX));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files);
+        return new ArrayList<>(Arrays.asList(files));
+    }
+}
@@ -0,0 +1,108 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+/**
+ * The latest audio streamed to the server, kept so that it can be streamed again over a new
+ * connection if the old one fails before the server has finalized it.
+ * <p>
+ * Positions count bytes since the start of the stream. The backlog holds the bytes from the
+ * acknowledged position up to {@link #getEnd()}, at most its capacity: when it is full, the
+ * oldest unacknowledged bytes are overwritten and counted as lost.
+ * <p>
+ * Not thread-safe: the backlog lives on the thread that sends the audio.
+ */
+public final class AudioBacklog {
+
+    private final byte[] mBuffer;
+    private long mStart = 0;
+    private long mEnd = 0;
+    private long mLostBytes = 0;
+
+    public AudioBacklog(int capacityInBytes) {
+        if (capacityInBytes <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacityInBytes);
+        }
+        mBuffer = new byte[capacityInBytes];
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    public void append(byte[] src, int offset, int length) {
+        if (length > mBuffer.length) {
+            // only the tail fits
+            offset += length - mBuffer.length;
+            mEnd += length - mBuffer.length;
+            length = mBuffer.length;
+        }
+        int start = (int) (mEnd % mBuffer.length);
+        int first = Math.min(length, mBuffer.length - start);
+        System.arraycopy(src, offset, mBuffer, start, first);
+        if (first < length) {
+            System.arraycopy(src, offset + first, mBuffer, 0, length - first);
+        }
+        mEnd += length;
+        if (mEnd - mStart > mBuffer.length) {
+            mLostBytes += mEnd - mStart - mBuffer.length;
+            mStart = mEnd - mBuffer.length;
+        }
+    }
+
+    /**
+     * Drops the bytes before the position, which the server does not need anymore.
+     */
+    public void acknowledge(long position) {
+        mStart = Math.max(mStart, Math.min(position, mEnd));
+    }
+
+    /**
+     * Copies up to {@code length} bytes from {@code position}, which must be in the backlog.
+     *
+     * @return number of bytes copied
+     */
+    public int read(long position, byte[] dst, int offset, int length) {
+        if (position < mStart || position > mEnd) {
+            throw new IndexOutOfBoundsException(
+                    "position " + position + " outside " + mStart + ".." + mEnd);
+        }
+        int count = (int) Math.min(length, mEnd - position);
+        int start = (int) (position % mBuffer.length);
+        int first = Math.min(count, mBuffer.length - start);
+        System.arraycopy(mBuffer, start, dst, offset, first);
+        if (first < count) {
+            System.arraycopy(mBuffer, 0, dst, offset + first, count - first);
+        }
+        return count;
+    }
+
+    /**
+     * Empties the backlog and starts positions from 0 again, so that it can be reused for
+     * another stream.
+     */
+    public void clear() {
+        mStart = 0;
+        mEnd = 0;
+        mLostBytes = 0;
+    }
+
+    /**
+     * @return position of the oldest byte held
+     */
+    public long getStart() {
+        return mStart;
+    }
+
+    /**
+     * @return number of bytes ever appended, i.e. the position after the newest byte
+     */
+    public long getEnd() {
+        return mEnd;
+    }
+
+    /**
+     * @return number of unacknowledged bytes overwritten because the backlog was full
+     */
+    public long getLostBytes() {
+        return mLostBytes;
+    }
+}
@@ -0,0 +1,48 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+/**
+ * Reusable fixed-capacity holder for a piece of captured audio on its way to the server.
+ * Obtained from and returned to an {@link AudioChunkPool}.
+ */
+public final class AudioChunk {
+
+    private final AudioChunkPool mPool;
+    private final byte[] mData;
+    private int mLength = 0;
+
+    AudioChunk(AudioChunkPool pool, int capacity) {
+        mPool = pool;
+        mData = new byte[capacity];
+    }
+
+    /**
+     * @return the backing array, valid up to {@link #getLength()}
+     */
+    public byte[] getData() {
+        return mData;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    public void setLength(int length) {
+        mLength = length;
+    }
+
+    public int capacity() {
+        return mData.length;
+    }
+
+    public boolean isFull() {
+        return mLength == mData.length;
+    }
+
+    /**
+     * Hands the chunk back to its pool. The chunk must not be used afterwards.
+     */
+    public void recycle() {
+        mLength = 0;
+        mPool.release(this);
+    }
+}
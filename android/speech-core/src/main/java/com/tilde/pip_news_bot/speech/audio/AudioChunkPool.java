@@ -0,0 +1,48 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+/**
+ * Pool of equally sized {@link AudioChunk}s, so that steady-state streaming does not
+ * allocate a new array for every chunk sent.
+ * <p>
+ * Not thread-safe: a pool is owned by the thread that sends the audio.
+ */
+public final class AudioChunkPool {
+
+    private final int mChunkSize;
+    private final AudioChunk[] mFree;
+    private int mFreeCount = 0;
+    private int mAllocatedCount = 0;
+
+    public AudioChunkPool(int chunkSize, int maxPooled) {
+        mChunkSize = chunkSize;
+        mFree = new AudioChunk[maxPooled];
+    }
+
+    public int getChunkSize() {
+        return mChunkSize;
+    }
+
+    public AudioChunk acquire() {
+        if (mFreeCount > 0) {
+            AudioChunk chunk = mFree[--mFreeCount];
+            mFree[mFreeCount] = null;
+            return chunk;
+        }
+        mAllocatedCount++;
+        return new AudioChunk(this, mChunkSize);
+    }
+
+    void release(AudioChunk chunk) {
+        if (mFreeCount < mFree.length) {
+            mFree[mFreeCount++] = chunk;
+        }
+    }
+
+    /**
+     * @return number of chunks this pool ever had to allocate; stays constant once the
+     * pipeline has warmed up
+     */
+    public int getAllocatedCount() {
+        return mAllocatedCount;
+    }
+}
@@ -0,0 +1,33 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+/**
+ * Turns the captured 16-bit little-endian mono PCM into the stream uploaded to the server.
+ * <p>
+ * Encoders are stateful and used by one thread: one encoder per session, fed chunk by chunk
+ * in capture order and flushed once at the end of the stream.
+ */
+public interface AudioEncoder {
+
+    /**
+     * Receives encoded bytes. The array is reused by the encoder once write returns.
+     */
+    interface Output {
+        void write(byte[] data, int offset, int length);
+    }
+
+    /**
+     * @return the content type of the encoded stream, as passed to the server in the
+     * WebSocket URL
+     */
+    String getContentType();
+
+    /**
+     * Encodes the samples. Encoders may hold samples back until a block is complete.
+     */
+    void encode(byte[] pcm, int offset, int length, Output out);
+
+    /**
+     * Encodes whatever has been held back. Ends the stream, nothing may be encoded afterwards.
+     */
+    void flush(Output out);
+}
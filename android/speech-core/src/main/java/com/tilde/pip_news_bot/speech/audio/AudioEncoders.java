@@ -0,0 +1,28 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+public final class AudioEncoders {
+
+    public static final String ENCODING_RAW = "raw";
+    public static final String ENCODING_FLAC = "flac";
+
+    private AudioEncoders() {
+    }
+
+    /**
+     * @param encoding  one of the ENCODING_ constants, anything else means raw
+     * @param blockSize samples per block for block based encoders, ideally the frame size
+     */
+    public static AudioEncoder create(String encoding, int sampleRate, int blockSize) {
+        if (ENCODING_FLAC.equals(encoding)) {
+            return new FlacEncoder(sampleRate, blockSize);
+        }
+        return new PcmEncoder(sampleRate);
+    }
+
+    /**
+     * @return the query string telling the server what the stream looks like
+     */
+    public static String getWsArgs(AudioEncoder encoder) {
+        return "?content-type=" + encoder.getContentType();
+    }
+}
@@ -0,0 +1,182 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Lock-free single-producer/single-consumer ring buffer for captured PCM bytes.
+ * <p>
+ * The capture thread is the only writer of the write cursor and the sender is the only
+ * writer of the read cursor, so neither side ever blocks the other. Cursors grow
+ * monotonically and are mapped onto the backing array with a mask, which is why the
+ * capacity is rounded up to a power of two.
+ * <p>
+ * When the consumer falls behind, the producer does not overwrite unread audio. The bytes
+ * that do not fit are dropped and reported through {@link #getOverrunCount()} and
+ * {@link #getDroppedBytes()}.
+ */
+public final class AudioRingBuffer {
+
+    private static final int BYTES_PER_SAMPLE = 2;
+
+    private final byte[] mBuffer;
+    private final int mMask;
+
+    // written by the producer only
+    private volatile long mWritePos = 0;
+    private volatile long mOverrunCount = 0;
+    private volatile long mDroppedBytes = 0;
+
+    // written by the consumer only
+    private volatile long mReadPos = 0;
+
+    public AudioRingBuffer(int minCapacityInBytes) {
+        if (minCapacityInBytes <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + minCapacityInBytes);
+        }
+        int capacity = Integer.highestOneBit(minCapacityInBytes);
+        if (capacity < minCapacityInBytes) {
+            capacity <<= 1;
+        }
+        mBuffer = new byte[capacity];
+        mMask = capacity - 1;
+    }
+
+    /**
+     * @return a ring buffer holding at least {@code millis} of 16-bit mono audio
+     */
+    public static AudioRingBuffer forDuration(int millis, int sampleRate) {
+        return new AudioRingBuffer(bytesForMillis(millis, sampleRate));
+    }
+
+    public static int bytesForMillis(int millis, int sampleRate) {
+        return (int) ((long) sampleRate * BYTES_PER_SAMPLE * millis / 1000);
+    }
+
+    public int capacity() {
+        return mBuffer.length;
+    }
+
+    /**
+     * @return number of bytes that can be read without blocking
+     */
+    public int available() {
+        return (int) (mWritePos - mReadPos);
+    }
+
+    /**
+     * Producer side. Copies as much of {@code src} as fits, rounded down to whole samples,
+     * and drops the rest.
+     *
+     * @return number of bytes actually written
+     */
+    public int write(byte[] src, int offset, int length) {
+        final long writePos = mWritePos;
+        int free = mBuffer.length - (int) (writePos - mReadPos);
+        int count = length;
+        if (count > free) {
+            count = free - (free % BYTES_PER_SAMPLE);
+            mOverrunCount++;
+            mDroppedBytes += length - count;
+        }
+        if (count <= 0) {
+            return 0;
+        }
+        int start = (int) (writePos & mMask);
+        int first = Math.min(count, mBuffer.length - start);
+        System.arraycopy(src, offset, mBuffer, start, first);
+        if (first < count) {
+            System.arraycopy(src, offset + first, mBuffer, 0, count - first);
+        }
+        mWritePos = writePos + count;
+        return count;
+    }
+
+    /**
+     * Producer side. Like {@link #write(byte[], int, int)}, but copies the remaining bytes of
+     * {@code src}, advancing its position by the number of bytes written.
+     *
+     * @return number of bytes actually written
+     */
+    public int write(ByteBuffer src) {
+        final long writePos = mWritePos;
+        final int length = src.remaining();
+        int free = mBuffer.length - (int) (writePos - mReadPos);
+        int count = length;
+        if (count > free) {
+            count = free - (free % BYTES_PER_SAMPLE);
+            mOverrunCount++;
+            mDroppedBytes += length - count;
+        }
+        if (count <= 0) {
+            return 0;
+        }
+        int start = (int) (writePos & mMask);
+        int first = Math.min(count, mBuffer.length - start);
+        src.get(mBuffer, start, first);
+        if (first < count) {
+            src.get(mBuffer, 0, count - first);
+        }
+        mWritePos = writePos + count;
+        return count;
+    }
+
+    /**
+     * Consumer side. Copies up to {@code length} available bytes into {@code dst}.
+     *
+     * @return number of bytes actually read
+     */
+    public int read(byte[] dst, int offset, int length) {
+        final long readPos = mReadPos;
+        int count = Math.min(length, (int) (mWritePos - readPos));
+        if (count <= 0) {
+            return 0;
+        }
+        int start = (int) (readPos & mMask);
+        int first = Math.min(count, mBuffer.length - start);
+        System.arraycopy(mBuffer, start, dst, offset, first);
+        if (first < count) {
+            System.arraycopy(mBuffer, 0, dst, offset + first, count - first);
+        }
+        mReadPos = readPos + count;
+        return count;
+    }
+
+    /**
+     * Empties the buffer and resets its cursors and counters, so that it can be reused for
+     * another recording. Must only be called while neither side uses the buffer.
+     */
+    public void clear() {
+        mWritePos = 0;
+        mReadPos = 0;
+        mOverrunCount = 0;
+        mDroppedBytes = 0;
+    }
+
+    /**
+     * @return total number of bytes ever written, i.e. the write cursor
+     */
+    public long getWritePosition() {
+        return mWritePos;
+    }
+
+    /**
+     * @return total number of bytes ever read, i.e. the read cursor
+     */
+    public long getReadPosition() {
+        return mReadPos;
+    }
+
+    /**
+     * @return number of writes that did not fit completely
+     */
+    public long getOverrunCount() {
+        return mOverrunCount;
+    }
+
+    /**
+     * @return number of captured bytes dropped because the consumer fell behind
+     */
+    public long getDroppedBytes() {
+        return mDroppedBytes;
+    }
+}
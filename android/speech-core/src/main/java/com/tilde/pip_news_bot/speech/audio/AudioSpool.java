@@ -0,0 +1,303 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Utterances that could not be streamed to the server, queued on disk until they can be.
+ * <p>
+ * Each utterance is raw 16-bit mono PCM in a file of its own, named after its id and sample
+ * rate. It is appended to while it is being captured and only becomes part of the queue once
+ * committed, so that a crash never leaves a half utterance behind. The files of the queue,
+ * together with the one being written, take at most the spool's capacity: the oldest
+ * utterances are evicted to make room, and the one being written is cut short if that is
+ * not enough. A pinned utterance, e.g. one that is being transcribed, is never evicted.
+ * <p>
+ * Ids are the wall clock time the utterance was started at, in milliseconds, made unique.
+ * Thread-safe.
+ */
+public final class AudioSpool {
+
+    private static final String SUFFIX = ".pcm";
+    private static final String PARTIAL_SUFFIX = ".part";
+
+    public static final class Entry {
+        public final long id;
+        public final int sampleRate;
+        // in bytes
+        public final long length;
+        private final File mFile;
+        // guarded by AudioSpool.this
+        private boolean mIsPinned;
+
+        private Entry(long id, int sampleRate, long length, File file) {
+            this.id = id;
+            this.sampleRate = sampleRate;
+            this.length = length;
+            mFile = file;
+        }
+
+        /**
+         * @return a channel to read the audio from, to be closed by the caller
+         */
+        public FileChannel openChannel() throws IOException {
+            return new FileInputStream(mFile).getChannel();
+        }
+    }
+
+    /**
+     * Appends the audio of one utterance. Not thread-safe itself, but it may be aborted from
+     * another thread.
+     */
+    public final class Writer {
+        private final long mId;
+        private final int mSampleRate;
+        private final File mFile;
+        private final FileChannel mChannel;
+        private long mLength;
+        // guarded by AudioSpool.this
+        private boolean mIsClosed;
+        private boolean mIsTruncated;
+
+        private Writer(long id, int sampleRate, File file) throws IOException {
+            mId = id;
+            mSampleRate = sampleRate;
+            mFile = file;
+            mChannel = new FileOutputStream(file, true).getChannel();
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        /**
+         * @return true iff audio had to be dropped because the spool was full
+         */
+        public boolean isTruncated() {
+            synchronized (AudioSpool.this) {
+                return mIsTruncated;
+            }
+        }
+
+        public void write(byte[] data, int offset, int length) throws IOException {
+            synchronized (AudioSpool.this) {
+                if (mIsClosed) {
+                    return;
+                }
+                int allowed = (int) Math.min(length, reserve(length));
+                if (allowed < length) {
+                    mIsTruncated = true;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(data, offset, allowed);
+                while (buffer.hasRemaining()) {
+                    mChannel.write(buffer);
+                }
+                mLength += allowed;
+            }
+        }
+
+        /**
+         * Syncs the audio to disk and adds the utterance to the queue, unless it is empty.
+         *
+         * @return the entry, or null if the writer was empty or aborted
+         */
+        public Entry commit() throws IOException {
+            synchronized (AudioSpool.this) {
+                if (mIsClosed) {
+                    return null;
+                }
+                mIsClosed = true;
+                mWriter = null;
+                if (mLength == 0) {
+                    mChannel.close();
+                    delete(mFile);
+                    return null;
+                }
+                mChannel.force(false);
+                mChannel.close();
+                File file = new File(mDir, name(mId, mSampleRate) + SUFFIX);
+                if (!mFile.renameTo(file)) {
+                    delete(mFile);
+                    throw new IOException("Cannot rename " + mFile + " to " + file);
+                }
+                Entry entry = new Entry(mId, mSampleRate, mLength, file);
+                mEntries.add(entry);
+                mBytes += mLength;
+                return entry;
+            }
+        }
+
+        /**
+         * Drops the utterance, can be called from any thread.
+         */
+        public void abort() {
+            synchronized (AudioSpool.this) {
+                if (mIsClosed) {
+                    return;
+                }
+                mIsClosed = true;
+                mWriter = null;
+                try {
+                    mChannel.close();
+                } catch (IOException ignored) {
+                }
+                delete(mFile);
+            }
+        }
+    }
+
+    private final File mDir;
+    private final long mCapacity;
+
+    // guarded by this, the entries oldest first
+    private final List<Entry> mEntries = new ArrayList<>();
+    // bytes in the entries
+    private long mBytes;
+    private Writer mWriter;
+    private long mLastId;
+    private long mEvictedCount;
+
+    /**
+     * Loads the queue from the directory, and deletes the utterances that were never committed.
+     */
+    public AudioSpool(File dir, long capacityInBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create " + dir);
+        }
+        mDir = dir;
+        mCapacity = capacityInBytes;
+        File[] files = dir.listFiles();
+        if (files == null) {
+            throw new IOException("Cannot list " + dir);
+        }
+        for (File file : files) {
+            Entry entry = parse(file);
+            if (entry == null) {
+                delete(file);
+            } else {
+                mEntries.add(entry);
+                mBytes += entry.length;
+                mLastId = Math.max(mLastId, entry.id);
+            }
+        }
+        Collections.sort(mEntries, (a, b) -> Long.compare(a.id, b.id));
+    }
+
+    /**
+     * Starts a new utterance, aborting the one being written if there is one.
+     */
+    public synchronized Writer begin(int sampleRate) throws IOException {
+        if (mWriter != null) {
+            mWriter.abort();
+        }
+        final long id = Math.max(System.currentTimeMillis(), mLastId + 1);
+        mLastId = id;
+        mWriter = new Writer(id, sampleRate,
+                new File(mDir, name(id, sampleRate) + PARTIAL_SUFFIX));
+        return mWriter;
+    }
+
+    /**
+     * @return the committed utterances, oldest first
+     */
+    public synchronized List<Entry> list() {
+        return new ArrayList<>(mEntries);
+    }
+
+    public synchronized boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    /**
+     * Deletes the utterance, e.g. once it has been transcribed.
+     */
+    public synchronized void remove(Entry entry) {
+        if (mEntries.remove(entry)) {
+            mBytes -= entry.length;
+            delete(entry.mFile);
+        }
+    }
+
+    /**
+     * Keeps the utterance from being evicted, e.g. while it is being read, until it is
+     * unpinned or removed.
+     */
+    public synchronized void pin(Entry entry) {
+        entry.mIsPinned = true;
+    }
+
+    public synchronized void unpin(Entry entry) {
+        entry.mIsPinned = false;
+    }
+
+    /**
+     * @return number of bytes in the committed utterances
+     */
+    public synchronized long getBytes() {
+        return mBytes;
+    }
+
+    /**
+     * @return number of utterances evicted to make room since the spool was loaded
+     */
+    public synchronized long getEvictedCount() {
+        return mEvictedCount;
+    }
+
+    /**
+     * Evicts the oldest unpinned utterances until {@code length} more bytes of the one being
+     * written fit, or nothing is left to evict.
+     *
+     * @return number of bytes that fit
+     */
+    private long reserve(int length) {
+        final long written = mWriter == null ? 0 : mWriter.mLength;
+        for (int i = 0; mBytes + written + length > mCapacity && i < mEntries.size(); ) {
+            Entry oldest = mEntries.get(i);
+            if (oldest.mIsPinned) {
+                i++;
+                continue;
+            }
+            mEntries.remove(i);
+            mBytes -= oldest.length;
+            mEvictedCount++;
+            delete(oldest.mFile);
+        }
+        return Math.max(0, mCapacity - mBytes - written);
+    }
+
+    private static String name(long id, int sampleRate) {
+        return id + "_" + sampleRate;
+    }
+
+    /**
+     * @return the committed utterance in the file, or null if it is none
+     */
+    private static Entry parse(File file) {
+        final String name = file.getName();
+        if (!name.endsWith(SUFFIX)) {
+            return null;
+        }
+        final String[] parts = name.substring(0, name.length() - SUFFIX.length()).split("_");
+        if (parts.length != 2) {
+            return null;
+        }
+        try {
+            return new Entry(Long.parseLong(parts[0]), Integer.parseInt(parts[1]), file.length(),
+                    file);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void delete(File file) {
+        file.delete();
+    }
+}
@@ -0,0 +1,236 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+/**
+ * The sender's path for captured audio: taken from the {@link AudioRingBuffer} into pooled
+ * {@link AudioChunk}s, kept in an {@link AudioBacklog} for a replay after a reconnect, then
+ * encoded and handed to the transport, batched into bigger messages while the uplink is
+ * backed up. Once the pool and the batch have been filled, streaming a chunk allocates
+ * nothing.
+ * <p>
+ * While paused, e.g. while connecting, the audio only goes to the backlog, and
+ * {@link #resume(AudioEncoder)} replays what the server has not acknowledged.
+ * <p>
+ * Not thread-safe: the streamer lives on the thread that sends the audio, except for
+ * {@link #acknowledge(int)}, which may be called from another thread.
+ */
+public final class AudioStreamer implements AudioEncoder.Output {
+
+    public interface Transport {
+        /**
+         * Counts raw audio that is about to be encoded, live or replayed.
+         */
+        void onAudio(int length);
+
+        /**
+         * Sends one message of encoded audio. The array is reused once this returns.
+         */
+        void sendMessage(byte[] data, int offset, int length);
+    }
+
+    private final AudioRingBuffer mSource;
+    private final AudioChunkPool mPool;
+    private final AudioBacklog mBacklog;
+    private final Transport mTransport;
+    private AudioEncoder mEncoder;
+    private boolean mIsPaused;
+    // encoded audio waiting to go out as one message, allocated on first use
+    private final int mBatchSize;
+    private boolean mIsBatching;
+    private byte[] mBatch;
+    private int mBatchLength;
+    private byte[] mReplayChunk;
+    // backlog positions, the end written by the sending thread, the ack by another one
+    private volatile long mSentPosition;
+    private volatile long mAckPosition;
+
+    /**
+     * @param maxPooledChunks chunks that may be out at once, e.g. held back by a
+     *                        {@link SilenceSuppressor}, beyond that chunks are allocated
+     * @param batchSize       size of the messages while batching
+     */
+    public AudioStreamer(AudioRingBuffer source, int chunkSize, int maxPooledChunks,
+                         int backlogSize, int batchSize, AudioEncoder encoder,
+                         Transport transport) {
+        this(source, chunkSize, maxPooledChunks, new AudioBacklog(backlogSize), batchSize,
+                encoder, transport);
+    }
+
+    /**
+     * @param backlog an empty backlog, e.g. one that an earlier stream is done with
+     */
+    public AudioStreamer(AudioRingBuffer source, int chunkSize, int maxPooledChunks,
+                         AudioBacklog backlog, int batchSize, AudioEncoder encoder,
+                         Transport transport) {
+        mSource = source;
+        mPool = new AudioChunkPool(chunkSize, maxPooledChunks);
+        mBacklog = backlog;
+        mBatchSize = batchSize;
+        mEncoder = encoder;
+        mTransport = transport;
+    }
+
+    public int getChunkSize() {
+        return mPool.getChunkSize();
+    }
+
+    /**
+     * @return number of captured bytes not yet taken
+     */
+    public int available() {
+        return mSource.available();
+    }
+
+    /**
+     * Takes the captured audio into a chunk, at most as much as fits. The chunk is recycled by
+     * whoever ends up with it.
+     */
+    public AudioChunk take() {
+        AudioChunk chunk = mPool.acquire();
+        chunk.setLength(mSource.read(chunk.getData(), 0, chunk.capacity()));
+        return chunk;
+    }
+
+    /**
+     * Appends the chunk to the backlog and, unless paused, encodes it. The chunk is not
+     * recycled.
+     *
+     * @return false if paused, the audio then only went to the backlog
+     */
+    public boolean send(AudioChunk chunk) {
+        mBacklog.acknowledge(mAckPosition);
+        mBacklog.append(chunk.getData(), 0, chunk.getLength());
+        mSentPosition = mBacklog.getEnd();
+        if (mIsPaused) {
+            return false;
+        }
+        encode(chunk.getData(), 0, chunk.getLength());
+        return true;
+    }
+
+    /**
+     * Sends whatever the encoder and the batch still hold, at the end of the stream.
+     */
+    public void flush() {
+        mEncoder.flush(this);
+        flushBatch();
+    }
+
+    /**
+     * Batches the messages while the uplink cannot keep up with one per chunk.
+     */
+    public void setBatching(boolean isBatching) {
+        mIsBatching = isBatching;
+    }
+
+    /**
+     * Marks the audio sent up to {@code marginBytes} ago as finalized by the server, so that
+     * it is not replayed. Can be called from any thread.
+     */
+    public void acknowledge(int marginBytes) {
+        mAckPosition = Math.max(mAckPosition, mSentPosition - marginBytes);
+    }
+
+    /**
+     * Stops sending, the audio only goes to the backlog until {@link #resume(AudioEncoder)}.
+     */
+    public void pause() {
+        mIsPaused = true;
+        // the batched audio is in the backlog as well
+        mBatchLength = 0;
+    }
+
+    /**
+     * Replays the backlog and carries on live, unbatched.
+     *
+     * @param encoder starts a new stream, which may need a header of its own
+     * @return number of bytes replayed
+     */
+    public long resume(AudioEncoder encoder) {
+        mEncoder = encoder;
+        mIsPaused = false;
+        mIsBatching = false;
+        return replay(null);
+    }
+
+    /**
+     * Hands the raw audio in the backlog to {@code out} instead of the transport and drops it
+     * from the backlog, e.g. to spool what could not be streamed.
+     *
+     * @return number of bytes handed on
+     */
+    public long drainBacklog(AudioEncoder.Output out) {
+        final long drained = replay(out);
+        mAckPosition = Math.max(mAckPosition, mSentPosition);
+        mBacklog.acknowledge(mAckPosition);
+        return drained;
+    }
+
+    /**
+     * @return number of bytes that were never acknowledged but did not fit the backlog
+     */
+    public long getLostBytes() {
+        return mBacklog.getLostBytes();
+    }
+
+    /**
+     * @return number of chunks the pool ever had to allocate; stays constant once streaming
+     * has warmed up
+     */
+    public int getAllocatedChunkCount() {
+        return mPool.getAllocatedCount();
+    }
+
+    // encodes the unacknowledged backlog, or hands it raw to out if there is one
+    private long replay(AudioEncoder.Output out) {
+        mBacklog.acknowledge(mAckPosition);
+        final long start = mBacklog.getStart();
+        final long end = mBacklog.getEnd();
+        if (mReplayChunk == null) {
+            mReplayChunk = new byte[mPool.getChunkSize()];
+        }
+        for (long position = start; position < end; ) {
+            int count = mBacklog.read(position, mReplayChunk, 0, mReplayChunk.length);
+            if (out == null) {
+                encode(mReplayChunk, 0, count);
+            } else {
+                out.write(mReplayChunk, 0, count);
+            }
+            position += count;
+        }
+        return end - start;
+    }
+
+    private void encode(byte[] pcm, int offset, int length) {
+        mTransport.onAudio(length);
+        mEncoder.encode(pcm, offset, length, this);
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) {
+        if (!mIsBatching) {
+            flushBatch();
+            mTransport.sendMessage(data, offset, length);
+            return;
+        }
+        if (mBatch == null) {
+            mBatch = new byte[mBatchSize];
+        }
+        if (mBatchLength + length > mBatch.length) {
+            flushBatch();
+        }
+        if (length >= mBatch.length) {
+            mTransport.sendMessage(data, offset, length);
+            return;
+        }
+        System.arraycopy(data, offset, mBatch, mBatchLength, length);
+        mBatchLength += length;
+    }
+
+    private void flushBatch() {
+        if (mBatchLength > 0) {
+            final int length = mBatchLength;
+            mBatchLength = 0;
+            mTransport.sendMessage(mBatch, 0, length);
+        }
+    }
+}
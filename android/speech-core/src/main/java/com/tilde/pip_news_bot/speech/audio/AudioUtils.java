@@ -0,0 +1,89 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import java.util.List;
+
+public final class AudioUtils {
+
+    private AudioUtils() {
+    }
+
+    static final int WAV_HEADER_LENGTH = 44;
+
+    public static byte[] getRecordingAsWav(byte[] pcm, int sampleRate) {
+        byte[] wav = new byte[WAV_HEADER_LENGTH + pcm.length];
+        writeWavHeader(wav, sampleRate, pcm.length);
+        System.arraycopy(pcm, 0, wav, WAV_HEADER_LENGTH, pcm.length);
+        return wav;
+    }
+
+    /**
+     * Writes the header of a 16-bit mono WAV file to the start of {@code header}.
+     *
+     * @param dataLength number of PCM bytes that follow the header
+     */
+    static void writeWavHeader(byte[] header, int sampleRate, long dataLength) {
+        final short RESOLUTION_IN_BYTES = 2;
+        final short CHANNELS = 1;
+
+        int byteRate = sampleRate * RESOLUTION_IN_BYTES * CHANNELS;
+
+        header[0] = 'R';  // RIFF/WAVE header
+        header[1] = 'I';
+        header[2] = 'F';
+        header[3] = 'F';
+        // size of the rest of the file
+        putInt(header, 4, WAV_HEADER_LENGTH - 8 + dataLength);
+        header[8] = 'W';
+        header[9] = 'A';
+        header[10] = 'V';
+        header[11] = 'E';
+        header[12] = 'f';  // 'fmt ' chunk
+        header[13] = 'm';
+        header[14] = 't';
+        header[15] = ' ';
+        header[16] = 16;  // 4 bytes: size of 'fmt ' chunk
+        header[17] = 0;
+        header[18] = 0;
+        header[19] = 0;
+        header[20] = 1;  // format = 1
+        header[21] = 0;
+        header[22] = (byte) CHANNELS;
+        header[23] = 0;
+        putInt(header, 24, sampleRate);
+        putInt(header, 28, byteRate);
+        header[32] = (byte) (RESOLUTION_IN_BYTES * CHANNELS);  // block align
+        header[33] = 0;
+        header[34] = (byte) (8 * RESOLUTION_IN_BYTES);  // bits per sample
+        header[35] = 0;
+        header[36] = 'd';
+        header[37] = 'a';
+        header[38] = 't';
+        header[39] = 'a';
+        putInt(header, 40, dataLength);
+    }
+
+    /**
+     * Writes the low 32 bits of the value, little-endian.
+     */
+    static void putInt(byte[] dst, int offset, long value) {
+        dst[offset] = (byte) (value & 0xff);
+        dst[offset + 1] = (byte) ((value >> 8) & 0xff);
+        dst[offset + 2] = (byte) ((value >> 16) & 0xff);
+        dst[offset + 3] = (byte) ((value >> 24) & 0xff);
+    }
+
+    public static byte[] concatenateBuffers(List<byte[]> buffers) {
+        byte[] buffersConcatenated;
+        int sum = 0;
+        for (byte[] ba : buffers) {
+            sum = sum + ba.length;
+        }
+        buffersConcatenated = new byte[sum];
+        int pos = 0;
+        for (byte[] ba : buffers) {
+            System.arraycopy(ba, 0, buffersConcatenated, pos, ba.length);
+            pos = pos + ba.length;
+        }
+        return buffersConcatenated;
+    }
+}
\ No newline at end of file
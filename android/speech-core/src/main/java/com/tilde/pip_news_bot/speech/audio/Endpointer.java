@@ -0,0 +1,57 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides from the captured frames when the user has finished speaking: once some speech
+ * has been heard, it waits for a stretch of trailing silence of the configured length.
+ */
+public final class Endpointer {
+
+    private static final int HANGOVER_MILLIS = 200;
+    // speech shorter than this, e.g. a click, does not start an utterance
+    private static final int MIN_SPEECH_MILLIS = 100;
+
+    private final VoiceActivityDetector mVad;
+    private final int mSampleRate;
+    private final int mSilenceMillis;
+
+    private int mSpeechMillis = 0;
+    private int mTrailingSilenceMillis = 0;
+    private boolean mIsEndpointReached = false;
+
+    /**
+     * @param silenceMillis trailing silence, including the detector's hangover, that ends
+     *                      the utterance
+     */
+    public Endpointer(int sampleRate, int silenceMillis) {
+        mVad = new VoiceActivityDetector(sampleRate, Math.min(HANGOVER_MILLIS, silenceMillis));
+        mSampleRate = sampleRate;
+        mSilenceMillis = silenceMillis;
+    }
+
+    /**
+     * @param pcm    little-endian samples, read from index 0 regardless of position
+     * @param length number of bytes
+     * @return true exactly once, for the frame that completes the trailing silence
+     */
+    public boolean process(ByteBuffer pcm, int length) {
+        if (mIsEndpointReached) {
+            return false;
+        }
+        boolean isSpeech = mVad.process(pcm, length);
+        int frameMillis = (int) (1000L * (length / 2) / mSampleRate);
+        if (mVad.isSpeechFrame()) {
+            mSpeechMillis += frameMillis;
+        }
+        if (isSpeech || mSpeechMillis < MIN_SPEECH_MILLIS) {
+            mTrailingSilenceMillis = 0;
+            return false;
+        }
+        mTrailingSilenceMillis += frameMillis;
+        if (mTrailingSilenceMillis + mVad.getHangoverMillis() >= mSilenceMillis) {
+            mIsEndpointReached = true;
+        }
+        return mIsEndpointReached;
+    }
+}
@@ -0,0 +1,448 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+/**
+ * Lossless FLAC encoder for 16-bit mono PCM, producing a native FLAC stream
+ * (the "fLaC" marker, a STREAMINFO block and then audio frames).
+ * <p>
+ * Frames have a fixed block size and each one is a single subframe, chosen as the cheapest of
+ * CONSTANT, VERBATIM and the FIXED predictors of order 0 to 4 with partitioned Rice coded
+ * residuals. There is no LPC, which keeps the encoder cheap enough to run on the sender
+ * thread while still roughly halving the upload for speech.
+ * <p>
+ * Total sample count and MD5 in the STREAMINFO are left zero ("unknown"), as the header is
+ * sent before the audio. All buffers are allocated up front, so encoding does not allocate.
+ * Input must be whole samples, i.e. every {@link #encode} call gets an even length.
+ */
+final class FlacEncoder implements AudioEncoder {
+
+    private static final int MIN_BLOCK_SIZE = 16;
+    private static final int MAX_BLOCK_SIZE = 65535;
+    private static final int BITS_PER_SAMPLE = 16;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_PARTITION_ORDER = 4;
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    private static final int SUBFRAME_CONSTANT = 0;
+    private static final int SUBFRAME_VERBATIM = 1;
+    private static final int SUBFRAME_FIXED = 8;
+
+    private static final int[] CRC8_TABLE = new int[256];
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc8 = i;
+            int crc16 = i << 8;
+            for (int bit = 0; bit < 8; bit++) {
+                crc8 = (crc8 & 0x80) != 0 ? (crc8 << 1) ^ 0x07 : crc8 << 1;
+                crc16 = (crc16 & 0x8000) != 0 ? (crc16 << 1) ^ 0x8005 : crc16 << 1;
+            }
+            CRC8_TABLE[i] = crc8 & 0xFF;
+            CRC16_TABLE[i] = crc16 & 0xFFFF;
+        }
+    }
+
+    private final int mSampleRate;
+    private final int mBlockSize;
+
+    private final int[] mSamples;
+    private int mSampleCount = 0;
+    private long mFrameNumber = 0;
+    private boolean mHeaderWritten = false;
+
+    private final int[] mResidual;
+    // per Rice parameter: sum of (folded residual >> parameter) over each finest partition
+    private final long[][] mPartitionSums;
+    private final int[] mRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+    private final int[] mBestRiceParameters = new int[1 << MAX_PARTITION_ORDER];
+    private long mBestRiceBits;
+
+    private final BitWriter mWriter;
+
+    FlacEncoder(int sampleRate, int blockSize) {
+        mSampleRate = sampleRate;
+        mBlockSize = Math.max(MIN_BLOCK_SIZE, Math.min(MAX_BLOCK_SIZE, blockSize));
+        mSamples = new int[mBlockSize];
+        mResidual = new int[mBlockSize];
+        mPartitionSums = new long[MAX_RICE_PARAMETER + 1][1 << MAX_PARTITION_ORDER];
+        // a frame is never larger than a verbatim one: header, subframe header, samples, CRC
+        mWriter = new BitWriter(16 + 1 + mBlockSize * BITS_PER_SAMPLE / 8 + 2);
+    }
+
+    @Override
+    public String getContentType() {
+        return "audio/x-flac";
+    }
+
+    int getBlockSize() {
+        return mBlockSize;
+    }
+
+    @Override
+    public void encode(byte[] pcm, int offset, int length, Output out) {
+        if (!mHeaderWritten) {
+            writeStreamHeader(out);
+        }
+        final int end = offset + length - 1;
+        for (int i = offset; i < end; i += 2) {
+            mSamples[mSampleCount++] = (short) ((pcm[i] & 0xFF) | (pcm[i + 1] << 8));
+            if (mSampleCount == mBlockSize) {
+                writeFrame(mSampleCount, out);
+                mSampleCount = 0;
+            }
+        }
+    }
+
+    @Override
+    public void flush(Output out) {
+        if (!mHeaderWritten) {
+            writeStreamHeader(out);
+        }
+        if (mSampleCount > 0) {
+            writeFrame(mSampleCount, out);
+            mSampleCount = 0;
+        }
+    }
+
+    private void writeStreamHeader(Output out) {
+        BitWriter w = mWriter;
+        w.reset();
+        w.writeBits(0x664C6143, 32); // "fLaC"
+        // metadata block header: last block, type STREAMINFO, 34 bytes
+        w.writeBits(1, 1);
+        w.writeBits(0, 7);
+        w.writeBits(34, 24);
+        w.writeBits(mBlockSize, 16);
+        w.writeBits(mBlockSize, 16);
+        w.writeBits(0, 24); // min frame size unknown
+        w.writeBits(0, 24); // max frame size unknown
+        w.writeBits(mSampleRate, 20);
+        w.writeBits(0, 3); // channels - 1
+        w.writeBits(BITS_PER_SAMPLE - 1, 5);
+        w.writeBits(0, 4); // total samples unknown (36 bits)
+        w.writeBits(0, 32);
+        for (int i = 0; i < 4; i++) {
+            w.writeBits(0, 32); // MD5 not computed
+        }
+        out.write(w.getBuffer(), 0, w.getByteLength());
+        mHeaderWritten = true;
+    }
+
+    private void writeFrame(int blockSize, Output out) {
+        BitWriter w = mWriter;
+        w.reset();
+        w.writeBits(0xFFF8, 16); // sync code, fixed block size
+        w.writeBits(0x7, 4); // block size: 16 bits at the end of the header
+        w.writeBits(0x0, 4); // sample rate: from STREAMINFO
+        w.writeBits(0x0, 4); // channels: mono
+        w.writeBits(0x4, 3); // 16 bits per sample
+        w.writeBits(0, 1);
+        writeUtf8(w, mFrameNumber++);
+        w.writeBits(blockSize - 1, 16);
+        w.writeBits(crc8(w.getBuffer(), w.getByteLength()), 8);
+
+        writeSubframe(w, blockSize);
+
+        w.alignToByte();
+        w.writeBits(crc16(w.getBuffer(), w.getByteLength()), 16);
+        out.write(w.getBuffer(), 0, w.getByteLength());
+    }
+
+    private void writeSubframe(BitWriter w, int blockSize) {
+        final int[] samples = mSamples;
+        boolean constant = true;
+        for (int i = 1; i < blockSize && constant; i++) {
+            constant = samples[i] == samples[0];
+        }
+        if (constant) {
+            w.writeBits(SUBFRAME_CONSTANT << 1, 8);
+            w.writeBits(samples[0], BITS_PER_SAMPLE);
+            return;
+        }
+
+        final int order = chooseFixedOrder(blockSize);
+        computeResidual(order, blockSize);
+        final int partitionOrder = chooseRiceParameters(order, blockSize);
+        final long verbatimBits = (long) blockSize * BITS_PER_SAMPLE;
+        final long fixedBits = (long) order * BITS_PER_SAMPLE + mBestRiceBits;
+        if (fixedBits >= verbatimBits) {
+            w.writeBits(SUBFRAME_VERBATIM << 1, 8);
+            for (int i = 0; i < blockSize; i++) {
+                w.writeBits(samples[i], BITS_PER_SAMPLE);
+            }
+            return;
+        }
+
+        w.writeBits((SUBFRAME_FIXED | order) << 1, 8);
+        for (int i = 0; i < order; i++) {
+            w.writeBits(samples[i], BITS_PER_SAMPLE);
+        }
+        w.writeBits(0, 2); // residual coding method: 4-bit Rice parameters
+        w.writeBits(partitionOrder, 4);
+        final int partitions = 1 << partitionOrder;
+        final int partitionSize = blockSize >> partitionOrder;
+        int start = order;
+        for (int p = 0; p < partitions; p++) {
+            final int end = (p + 1) * partitionSize;
+            final int k = mBestRiceParameters[p];
+            w.writeBits(k, 4);
+            for (int i = start; i < end; i++) {
+                final int r = mResidual[i];
+                final int u = (r << 1) ^ (r >> 31);
+                w.writeZeros(u >>> k);
+                // the stop bit followed by the k low bits
+                w.writeBits((1 << k) | (u & ((1 << k) - 1)), k + 1);
+            }
+            start = end;
+        }
+    }
+
+    /**
+     * Picks the fixed predictor whose residual has the smallest absolute sum, which is a
+     * good proxy for the Rice coded size.
+     */
+    private int chooseFixedOrder(int blockSize) {
+        final int[] s = mSamples;
+        final int maxOrder = Math.min(MAX_FIXED_ORDER, blockSize - 1);
+        long sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0, sum4 = 0;
+        for (int i = MAX_FIXED_ORDER; i < blockSize; i++) {
+            final int e0 = s[i];
+            final int e1 = e0 - s[i - 1];
+            final int e2 = e1 - (s[i - 1] - s[i - 2]);
+            final int e3 = e2 - (s[i - 1] - 2 * s[i - 2] + s[i - 3]);
+            final int e4 = e3 - (s[i - 1] - 3 * s[i - 2] + 3 * s[i - 3] - s[i - 4]);
+            sum0 += Math.abs(e0);
+            sum1 += Math.abs(e1);
+            sum2 += Math.abs(e2);
+            sum3 += Math.abs(e3);
+            sum4 += Math.abs(e4);
+        }
+        int order = 0;
+        long best = sum0;
+        if (maxOrder >= 1 && sum1 < best) {
+            order = 1;
+            best = sum1;
+        }
+        if (maxOrder >= 2 && sum2 < best) {
+            order = 2;
+            best = sum2;
+        }
+        if (maxOrder >= 3 && sum3 < best) {
+            order = 3;
+            best = sum3;
+        }
+        if (maxOrder >= 4 && sum4 < best) {
+            order = 4;
+        }
+        return order;
+    }
+
+    private void computeResidual(int order, int blockSize) {
+        final int[] s = mSamples;
+        final int[] r = mResidual;
+        switch (order) {
+            case 0:
+                for (int i = 0; i < blockSize; i++) {
+                    r[i] = s[i];
+                }
+                break;
+            case 1:
+                for (int i = 1; i < blockSize; i++) {
+                    r[i] = s[i] - s[i - 1];
+                }
+                break;
+            case 2:
+                for (int i = 2; i < blockSize; i++) {
+                    r[i] = s[i] - 2 * s[i - 1] + s[i - 2];
+                }
+                break;
+            case 3:
+                for (int i = 3; i < blockSize; i++) {
+                    r[i] = s[i] - 3 * s[i - 1] + 3 * s[i - 2] - s[i - 3];
+                }
+                break;
+            default:
+                for (int i = 4; i < blockSize; i++) {
+                    r[i] = s[i] - 4 * s[i - 1] + 6 * s[i - 2] - 4 * s[i - 3] + s[i - 4];
+                }
+                break;
+        }
+    }
+
+    /**
+     * Finds the partition order and per-partition Rice parameters giving the smallest exact
+     * residual size. Sums are gathered once for the finest usable partitioning and merged
+     * pairwise for the coarser ones.
+     *
+     * @return the chosen partition order, parameters and size are left in mBestRiceParameters
+     * and mBestRiceBits
+     */
+    private int chooseRiceParameters(int order, int blockSize) {
+        int maxPartitionOrder = 0;
+        while (maxPartitionOrder < MAX_PARTITION_ORDER
+                && (blockSize & (1 << (maxPartitionOrder + 1)) - 1) == 0
+                && (blockSize >> (maxPartitionOrder + 1)) > order) {
+            maxPartitionOrder++;
+        }
+
+        final int partitions = 1 << maxPartitionOrder;
+        final int partitionSize = blockSize >> maxPartitionOrder;
+        int start = order;
+        for (int p = 0; p < partitions; p++) {
+            final int end = (p + 1) * partitionSize;
+            for (int k = 0; k <= MAX_RICE_PARAMETER; k++) {
+                mPartitionSums[k][p] = 0;
+            }
+            for (int i = start; i < end; i++) {
+                final int r = mResidual[i];
+                final int u = (r << 1) ^ (r >> 31);
+                for (int k = 0; k <= MAX_RICE_PARAMETER; k++) {
+                    mPartitionSums[k][p] += u >>> k;
+                }
+            }
+            start = end;
+        }
+
+        long bestBits = Long.MAX_VALUE;
+        int bestOrder = 0;
+        for (int po = maxPartitionOrder; po >= 0; po--) {
+            if (po < maxPartitionOrder) {
+                // merge neighbouring partitions of the finer level in place
+                final int count = 1 << po;
+                for (int k = 0; k <= MAX_RICE_PARAMETER; k++) {
+                    final long[] sums = mPartitionSums[k];
+                    for (int p = 0; p < count; p++) {
+                        sums[p] = sums[2 * p] + sums[2 * p + 1];
+                    }
+                }
+            }
+            final long bits = riceParameters(order, blockSize, po);
+            if (bits < bestBits) {
+                bestBits = bits;
+                bestOrder = po;
+                System.arraycopy(mRiceParameters, 0, mBestRiceParameters, 0, 1 << po);
+            }
+        }
+        mBestRiceBits = bestBits;
+        return bestOrder;
+    }
+
+    /**
+     * Chooses the best parameter for every partition at the given order from the merged sums.
+     *
+     * @return the exact size of the residual section in bits
+     */
+    private long riceParameters(int order, int blockSize, int partitionOrder) {
+        final int partitions = 1 << partitionOrder;
+        final int partitionSize = blockSize >> partitionOrder;
+        long bits = 2 + 4;
+        for (int p = 0; p < partitions; p++) {
+            final int n = p == 0 ? partitionSize - order : partitionSize;
+            long best = Long.MAX_VALUE;
+            int bestK = 0;
+            for (int k = 0; k <= MAX_RICE_PARAMETER; k++) {
+                final long cost = (long) n * (k + 1) + mPartitionSums[k][p];
+                if (cost < best) {
+                    best = cost;
+                    bestK = k;
+                }
+            }
+            mRiceParameters[p] = bestK;
+            bits += 4 + best;
+        }
+        return bits;
+    }
+
+    private static void writeUtf8(BitWriter w, long value) {
+        if (value < 0x80) {
+            w.writeBits((int) value, 8);
+            return;
+        }
+        int bytes = 2;
+        while (bytes < 7 && value >= (1L << (5 * bytes + 1))) {
+            bytes++;
+        }
+        int shift = 6 * (bytes - 1);
+        w.writeBits((0xFF00 >> bytes) & 0xFF | (int) (value >>> shift), 8);
+        while (shift > 0) {
+            shift -= 6;
+            w.writeBits(0x80 | (int) ((value >>> shift) & 0x3F), 8);
+        }
+    }
+
+    private static int crc8(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = CRC8_TABLE[(crc ^ data[i]) & 0xFF];
+        }
+        return crc;
+    }
+
+    private static int crc16(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >> 8) ^ data[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+
+    /**
+     * MSB-first bit writer over a fixed byte array.
+     */
+    private static final class BitWriter {
+
+        private final byte[] mBuffer;
+        private int mBytePos;
+        private long mAccumulator;
+        private int mBitCount;
+
+        BitWriter(int capacity) {
+            mBuffer = new byte[capacity];
+        }
+
+        void reset() {
+            mBytePos = 0;
+            mAccumulator = 0;
+            mBitCount = 0;
+        }
+
+        /**
+         * Writes the low {@code bits} bits of {@code value}, bits is at most 32.
+         */
+        void writeBits(int value, int bits) {
+            mAccumulator = (mAccumulator << bits) | (value & (0xFFFFFFFFL >>> (32 - bits)));
+            mBitCount += bits;
+            while (mBitCount >= 8) {
+                mBitCount -= 8;
+                mBuffer[mBytePos++] = (byte) (mAccumulator >>> mBitCount);
+            }
+        }
+
+        void writeZeros(int count) {
+            while (count > 32) {
+                writeBits(0, 32);
+                count -= 32;
+            }
+            if (count > 0) {
+                writeBits(0, count);
+            }
+        }
+
+        void alignToByte() {
+            if (mBitCount > 0) {
+                writeBits(0, 8 - mBitCount);
+            }
+        }
+
+        /**
+         * @return number of complete bytes written, call alignToByte first for the total
+         */
+        int getByteLength() {
+            return mBytePos;
+        }
+
+        byte[] getBuffer() {
+            return mBuffer;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+/**
+ * Running level of 16-bit audio: the RMS of the latest frame, in dB, the energy of
+ * the latest window (e.g. a second) of frames, and how many samples of the latest frame
+ * are clipped, i.e. at full scale.
+ * <p>
+ * Frames are fed by a single thread, the capture thread, which updates the window sums
+ * incrementally, i.e. every sample is looked at once. The levels are published through
+ * volatile fields, so reading them from any thread is O(1) and never touches the audio.
+ */
+public final class LevelMeter {
+
+    // frames in the window at most, shorter frames than that make the window shorter
+    private static final int MAX_WINDOW_FRAMES = 128;
+
+    private final int mWindowSamples;
+    private final long[] mFrameEnergy = new long[MAX_WINDOW_FRAMES];
+    private final int[] mFrameSamples = new int[MAX_WINDOW_FRAMES];
+    // ring of the frames in the window, oldest first
+    private int mFirstFrame;
+    private int mFrameCount;
+    private long mEnergySum;
+    private int mSampleSum;
+    private int mFrameClipped;
+
+    private volatile float mRmsdb;
+    private volatile long mWindowEnergy;
+
+    /**
+     * @param windowSamples number of samples the window energy is summed over
+     */
+    public LevelMeter(int windowSamples) {
+        mWindowSamples = windowSamples;
+    }
+
+    /**
+     * Adds the next frame, evicting the frames that drop out of the window.
+     * Must always be called from the same thread.
+     */
+    public void process(short[] samples, int count) {
+        long energy = 0;
+        int clipped = 0;
+        for (int i = 0; i < count; i++) {
+            final int sample = samples[i];
+            energy += sample * sample;
+            if (sample == Short.MAX_VALUE || sample == Short.MIN_VALUE) {
+                clipped++;
+            }
+        }
+        mFrameClipped = clipped;
+
+        while (mFrameCount > 0 && (mFrameCount == MAX_WINDOW_FRAMES
+                || mSampleSum + count - mFrameSamples[mFirstFrame] >= mWindowSamples)) {
+            mEnergySum -= mFrameEnergy[mFirstFrame];
+            mSampleSum -= mFrameSamples[mFirstFrame];
+            mFirstFrame = (mFirstFrame + 1) % MAX_WINDOW_FRAMES;
+            mFrameCount--;
+        }
+        final int last = (mFirstFrame + mFrameCount) % MAX_WINDOW_FRAMES;
+        mFrameEnergy[last] = energy;
+        mFrameSamples[last] = count;
+        mFrameCount++;
+        mEnergySum += energy;
+        mSampleSum += count;
+
+        mWindowEnergy = mEnergySum;
+        mRmsdb = toDb(energy, count);
+    }
+
+    /**
+     * @return RMS of the latest frame in dB, 0 for silence or before the first frame
+     */
+    public float getRmsdb() {
+        return mRmsdb;
+    }
+
+    /**
+     * @return sum of the squared samples of the latest window
+     */
+    public long getWindowEnergy() {
+        return mWindowEnergy;
+    }
+
+    /**
+     * @return number of full-scale samples in the latest frame, only for the feeding thread
+     */
+    public int getFrameClipped() {
+        return mFrameClipped;
+    }
+
+    private static float toDb(long energy, int count) {
+        if (count == 0) {
+            return 0;
+        }
+        double rootMeanSquare = Math.sqrt((double) energy / count);
+        if (rootMeanSquare > 1) {
+            return (float) (10 * Math.log10(rootMeanSquare));
+        }
+        return 0;
+    }
+}
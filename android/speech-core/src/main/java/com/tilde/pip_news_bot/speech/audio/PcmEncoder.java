@@ -0,0 +1,29 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+/**
+ * Uploads the captured samples as they are, i.e. raw S16LE.
+ */
+final class PcmEncoder implements AudioEncoder {
+
+    private final int mSampleRate;
+
+    PcmEncoder(int sampleRate) {
+        mSampleRate = sampleRate;
+    }
+
+    @Override
+    public String getContentType() {
+        return "audio/x-raw,+layout=(string)interleaved,+rate=(int)" +
+                mSampleRate + ",+format=(string)S16LE,+channels=(int)1";
+    }
+
+    @Override
+    public void encode(byte[] pcm, int offset, int length, Output out) {
+        out.write(pcm, offset, length);
+    }
+
+    @Override
+    public void flush(Output out) {
+        // nothing held back
+    }
+}
@@ -0,0 +1,206 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Converts 16-bit mono PCM between sample rates with a polyphase FIR filter.
+ * <p>
+ * The rate ratio is reduced to L/M, the stream is conceptually upsampled by L, low-pass
+ * filtered and downsampled by M, but only the L sub-filters (phases) that produce the kept
+ * samples are ever evaluated. The prototype is a Kaiser windowed sinc, cut off just below the
+ * lower of the two Nyquist frequencies, and quantized to Q15 with every phase summing to
+ * exactly one, so DC passes unchanged.
+ * <p>
+ * All state is allocated up front, processing does not allocate. Not thread-safe.
+ */
+public final class Resampler {
+
+    private static final int COEF_SHIFT = 15;
+    private static final int COEF_ONE = 1 << COEF_SHIFT;
+    // zero crossings of the sinc on each side, at the lower of the two rates
+    private static final int ZERO_CROSSINGS = 8;
+    // passband edge as a fraction of the lower Nyquist frequency
+    private static final double ROLLOFF = 0.9;
+    private static final double KAISER_BETA = 8.0;
+    // keeps the coefficient table small for awkward rate pairs
+    private static final int MAX_PHASES = 1024;
+
+    private final int mInputRate;
+    private final int mOutputRate;
+    private final int mUp;
+    private final int mDown;
+    private final int mTaps;
+    // phase-major, each phase reversed so that the inner loop walks the input forward
+    private final int[] mCoefs;
+
+    // mTaps - 1 samples of history followed by the current input
+    private final short[] mInput;
+    private final int mMaxInputSamples;
+    // newest input sample used by the next output, and its phase
+    private int mIndex;
+    private int mPhase;
+
+    /**
+     * @param maxInputSamples most samples ever passed to a single {@link #process} call
+     */
+    public Resampler(int inputRate, int outputRate, int maxInputSamples) {
+        if (inputRate <= 0 || outputRate <= 0) {
+            throw new IllegalArgumentException("Bad rates: " + inputRate + " -> " + outputRate);
+        }
+        final int gcd = gcd(inputRate, outputRate);
+        mInputRate = inputRate;
+        mOutputRate = outputRate;
+        mUp = outputRate / gcd;
+        mDown = inputRate / gcd;
+        if (mUp > MAX_PHASES) {
+            throw new IllegalArgumentException("Unsupported rate ratio: " + inputRate
+                    + " -> " + outputRate);
+        }
+        final double scale = Math.max(1.0, (double) mDown / mUp);
+        mTaps = 2 * (int) Math.ceil(ZERO_CROSSINGS * scale);
+        mCoefs = designFilter(mUp, mDown, mTaps);
+        mMaxInputSamples = maxInputSamples;
+        mInput = new short[mTaps - 1 + maxInputSamples];
+        reset();
+    }
+
+    public int getInputRate() {
+        return mInputRate;
+    }
+
+    public int getOutputRate() {
+        return mOutputRate;
+    }
+
+    /**
+     * @return the most samples a single {@link #process} call can produce from
+     * {@code inputSamples}
+     */
+    public int getMaxOutputSamples(int inputSamples) {
+        return (int) (((long) inputSamples * mUp + mDown - 1) / mDown) + 1;
+    }
+
+    /**
+     * Forgets the history, as if the stream started anew.
+     */
+    public void reset() {
+        for (int i = 0; i < mTaps - 1; i++) {
+            mInput[i] = 0;
+        }
+        mIndex = mTaps - 1;
+        mPhase = 0;
+    }
+
+    /**
+     * Resamples {@code length} bytes of little-endian samples read from the start of
+     * {@code in}, writing them to the start of {@code out}. Positions and limits are ignored
+     * and left untouched.
+     *
+     * @return number of bytes written to {@code out}
+     */
+    public int process(ByteBuffer in, int length, ByteBuffer out) {
+        final int count = Math.min(length / 2, mMaxInputSamples);
+        final int history = mTaps - 1;
+        final short[] input = mInput;
+        for (int i = 0; i < count; i++) {
+            input[history + i] = in.getShort(2 * i);
+        }
+        final int end = history + count;
+
+        final int[] coefs = mCoefs;
+        final int taps = mTaps;
+        final int up = mUp;
+        final int down = mDown;
+        int index = mIndex;
+        int phase = mPhase;
+        int produced = 0;
+        while (index < end) {
+            final int base = index - history;
+            final int coefBase = phase * taps;
+            long acc = 0;
+            for (int k = 0; k < taps; k++) {
+                acc += coefs[coefBase + k] * input[base + k];
+            }
+            int sample = (int) ((acc + (COEF_ONE >> 1)) >> COEF_SHIFT);
+            if (sample > Short.MAX_VALUE) {
+                sample = Short.MAX_VALUE;
+            } else if (sample < Short.MIN_VALUE) {
+                sample = Short.MIN_VALUE;
+            }
+            out.putShort(2 * produced++, (short) sample);
+            phase += down;
+            index += phase / up;
+            phase %= up;
+        }
+
+        // keep the tail as history for the next call
+        System.arraycopy(input, count, input, 0, history);
+        mIndex = index - count;
+        mPhase = phase;
+        return 2 * produced;
+    }
+
+    private static int[] designFilter(int up, int down, int taps) {
+        final int length = up * taps;
+        final double center = (length - 1) / 2.0;
+        // cutoff in cycles per sample of the upsampled stream
+        final double cutoff = 0.5 * ROLLOFF / Math.max(up, down);
+        final double i0Beta = besselI0(KAISER_BETA);
+
+        final double[] prototype = new double[length];
+        for (int j = 0; j < length; j++) {
+            final double t = j - center;
+            final double x = 2 * cutoff * t;
+            final double sinc = x == 0 ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+            final double r = t / (center + 1);
+            final double window = besselI0(KAISER_BETA * Math.sqrt(Math.max(0, 1 - r * r)))
+                    / i0Beta;
+            prototype[j] = 2 * cutoff * sinc * window;
+        }
+
+        final int[] coefs = new int[length];
+        for (int phase = 0; phase < up; phase++) {
+            double sum = 0;
+            for (int k = 0; k < taps; k++) {
+                sum += prototype[k * up + phase];
+            }
+            int total = 0;
+            int largest = 0;
+            for (int k = 0; k < taps; k++) {
+                final int coef = (int) Math.round(prototype[k * up + phase] / sum * COEF_ONE);
+                final int slot = phase * taps + (taps - 1 - k);
+                coefs[slot] = coef;
+                total += coef;
+                if (Math.abs(coef) > Math.abs(coefs[phase * taps + largest])) {
+                    largest = taps - 1 - k;
+                }
+            }
+            // rounding must not change the DC gain
+            coefs[phase * taps + largest] += COEF_ONE - total;
+        }
+        return coefs;
+    }
+
+    private static double besselI0(double x) {
+        double sum = 1;
+        double term = 1;
+        final double halfX = x / 2;
+        for (int k = 1; k < 50; k++) {
+            term *= (halfX / k) * (halfX / k);
+            sum += term;
+            if (term < sum * 1e-12) {
+                break;
+            }
+        }
+        return sum;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,119 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+/**
+ * Withholds non-speech chunks from the upload stream.
+ * <p>
+ * Non-speech chunks are kept in a short pre-roll queue instead of being sent. When speech
+ * starts, the queue is sent ahead of it, so that onsets the detector was late for are not
+ * clipped. Chunks falling out of the queue are dropped, except for one every keep-alive
+ * interval, which is sent as is so that the server keeps getting a trickle of real
+ * background audio.
+ * <p>
+ * Not thread-safe: the suppressor lives on the thread that sends the audio.
+ */
+public final class SilenceSuppressor {
+
+    private static final int HANGOVER_MILLIS = 300;
+
+    public interface Sink {
+        /**
+         * Sends the chunk, which is recycled once this returns.
+         */
+        void send(AudioChunk chunk);
+    }
+
+    private final VoiceActivityDetector mVad;
+    private final int mSampleRate;
+    private final int mKeepAliveMillis;
+
+    // pre-roll queue, a ring of chunks
+    private final AudioChunk[] mPreRoll;
+    private int mPreRollStart = 0;
+    private int mPreRollCount = 0;
+
+    private int mMillisSinceSent = 0;
+
+    // written by the sender thread only
+    private volatile long mBytesSent = 0;
+    private volatile long mBytesSuppressed = 0;
+
+    /**
+     * @param preRollChunks   number of chunks sent ahead of a speech onset
+     * @param keepAliveMillis how much silence may be withheld in a row
+     */
+    public SilenceSuppressor(int sampleRate, int preRollChunks, int keepAliveMillis) {
+        mVad = new VoiceActivityDetector(sampleRate, HANGOVER_MILLIS);
+        mSampleRate = sampleRate;
+        mKeepAliveMillis = keepAliveMillis;
+        mPreRoll = new AudioChunk[Math.max(preRollChunks, 1)];
+    }
+
+    /**
+     * Sends the chunk, or holds on to it. Takes ownership of the chunk either way.
+     */
+    public void process(AudioChunk chunk, Sink sink) {
+        if (mVad.process(chunk.getData(), 0, chunk.getLength())) {
+            while (mPreRollCount > 0) {
+                send(pollPreRoll(), sink);
+            }
+            send(chunk, sink);
+            return;
+        }
+        mMillisSinceSent += millis(chunk);
+        if (mPreRollCount == mPreRoll.length) {
+            AudioChunk oldest = pollPreRoll();
+            if (mMillisSinceSent >= mKeepAliveMillis) {
+                send(oldest, sink);
+            } else {
+                mBytesSuppressed += oldest.getLength();
+                oldest.recycle();
+            }
+        }
+        mPreRoll[(mPreRollStart + mPreRollCount) % mPreRoll.length] = chunk;
+        mPreRollCount++;
+    }
+
+    /**
+     * Drops what is left in the pre-roll queue, e.g. at the end of the stream.
+     */
+    public void clear() {
+        while (mPreRollCount > 0) {
+            AudioChunk chunk = pollPreRoll();
+            mBytesSuppressed += chunk.getLength();
+            chunk.recycle();
+        }
+    }
+
+    /**
+     * @return number of bytes handed to the sink
+     */
+    public long getBytesSent() {
+        return mBytesSent;
+    }
+
+    /**
+     * @return number of bytes withheld from the sink
+     */
+    public long getBytesSuppressed() {
+        return mBytesSuppressed;
+    }
+
+    private AudioChunk pollPreRoll() {
+        AudioChunk chunk = mPreRoll[mPreRollStart];
+        mPreRoll[mPreRollStart] = null;
+        mPreRollStart = (mPreRollStart + 1) % mPreRoll.length;
+        mPreRollCount--;
+        return chunk;
+    }
+
+    private void send(AudioChunk chunk, Sink sink) {
+        mBytesSent += chunk.getLength();
+        mMillisSinceSent = 0;
+        sink.send(chunk);
+        chunk.recycle();
+    }
+
+    private int millis(AudioChunk chunk) {
+        return (int) (1000L * (chunk.getLength() / 2) / mSampleRate);
+    }
+}
@@ -0,0 +1,106 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Frame-level energy voice activity detector for 16-bit mono PCM.
+ * <p>
+ * A frame counts as speech if its energy is well above the tracked noise floor. The floor
+ * follows quiet frames quickly and loud frames slowly, so that it adapts to the room without
+ * being pulled up by speech. Once speech stops, frames are still reported as speech for a
+ * hangover period, which bridges the short gaps between words.
+ */
+public final class VoiceActivityDetector {
+
+    // how far above the noise floor a frame has to be to count as speech
+    private static final double SPEECH_THRESHOLD_DB = 10;
+    // frames below this are never speech, whatever the floor
+    private static final double MIN_SPEECH_DB = 30;
+    private static final double FLOOR_RISE_DB_PER_SEC = 1;
+    private static final double FLOOR_FALL_RATE = 0.5;
+
+    private final int mSampleRate;
+    private final int mHangoverMillis;
+
+    private double mNoiseFloorDb = -1;
+    private int mHangoverLeftMillis = 0;
+    private boolean mIsSpeechFrame = false;
+
+    public VoiceActivityDetector(int sampleRate, int hangoverMillis) {
+        mSampleRate = sampleRate;
+        mHangoverMillis = hangoverMillis;
+    }
+
+    public int getHangoverMillis() {
+        return mHangoverMillis;
+    }
+
+    /**
+     * @param pcm    little-endian samples, read from index 0 regardless of position
+     * @param length number of bytes
+     * @return true iff the frame is speech or within the hangover after speech
+     */
+    public boolean process(ByteBuffer pcm, int length) {
+        long sum = 0;
+        for (int i = 0; i + 1 < length; i += 2) {
+            int sample = (pcm.get(i) & 0xff) | (pcm.get(i + 1) << 8);
+            sum += sample * sample;
+        }
+        return update(sum, length / 2);
+    }
+
+    /**
+     * @return true iff the frame is speech or within the hangover after speech
+     */
+    public boolean process(byte[] pcm, int offset, int length) {
+        long sum = 0;
+        for (int i = offset; i + 1 < offset + length; i += 2) {
+            int sample = (pcm[i] & 0xff) | (pcm[i + 1] << 8);
+            sum += sample * sample;
+        }
+        return update(sum, length / 2);
+    }
+
+    /**
+     * @return true iff the last frame itself was speech, ignoring the hangover
+     */
+    public boolean isSpeechFrame() {
+        return mIsSpeechFrame;
+    }
+
+    public void reset() {
+        mNoiseFloorDb = -1;
+        mHangoverLeftMillis = 0;
+        mIsSpeechFrame = false;
+    }
+
+    private boolean update(long sumOfSquares, int numOfSamples) {
+        if (numOfSamples == 0) {
+            return mHangoverLeftMillis > 0;
+        }
+        int frameMillis = (int) (1000L * numOfSamples / mSampleRate);
+        double energyDb = 10 * Math.log10(1 + (double) sumOfSquares / numOfSamples);
+
+        if (mNoiseFloorDb < 0) {
+            mNoiseFloorDb = energyDb;
+        }
+        mIsSpeechFrame = energyDb > MIN_SPEECH_DB
+                && energyDb > mNoiseFloorDb + SPEECH_THRESHOLD_DB;
+
+        if (energyDb < mNoiseFloorDb) {
+            mNoiseFloorDb += FLOOR_FALL_RATE * (energyDb - mNoiseFloorDb);
+        } else {
+            mNoiseFloorDb += FLOOR_RISE_DB_PER_SEC * frameMillis / 1000;
+        }
+
+        if (mIsSpeechFrame) {
+            mHangoverLeftMillis = mHangoverMillis;
+            return true;
+        }
+        if (mHangoverLeftMillis > 0) {
+            mHangoverLeftMillis -= frameMillis;
+            return true;
+        }
+        return false;
+    }
+}
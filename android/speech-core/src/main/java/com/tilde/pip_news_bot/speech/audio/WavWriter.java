@@ -0,0 +1,91 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Streams 16-bit mono PCM into a WAV file, in constant memory however long the recording.
+ * <p>
+ * The header is written up front with empty sizes, which {@link #close()} fills in. A file
+ * that was never closed still plays in most tools, which take a zero data size to mean
+ * "up to the end of the file".
+ * <p>
+ * Thread-safe, so that the capture path can write while another thread closes.
+ */
+public final class WavWriter {
+
+    // the largest data size the 32-bit sizes of the header can describe
+    private static final long MAX_DATA_LENGTH = 0xffffffffL - AudioUtils.WAV_HEADER_LENGTH;
+
+    private final File mFile;
+    private final int mSampleRate;
+    private final FileChannel mChannel;
+    private final byte[] mHeader = new byte[AudioUtils.WAV_HEADER_LENGTH];
+    private long mDataLength;
+    private boolean mIsClosed;
+
+    public WavWriter(File file, int sampleRate) throws IOException {
+        mFile = file;
+        mSampleRate = sampleRate;
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        mChannel = raf.getChannel();
+        AudioUtils.writeWavHeader(mHeader, sampleRate, 0);
+        writeFully(ByteBuffer.wrap(mHeader), 0);
+    }
+
+    public File getFile() {
+        return mFile;
+    }
+
+    public int getSampleRate() {
+        return mSampleRate;
+    }
+
+    /**
+     * @return number of PCM bytes written so far
+     */
+    public synchronized long getDataLength() {
+        return mDataLength;
+    }
+
+    /**
+     * Appends PCM, audio beyond what a WAV file can hold is dropped. Does nothing once closed.
+     */
+    public synchronized void write(byte[] pcm, int offset, int length) throws IOException {
+        if (mIsClosed) {
+            return;
+        }
+        length = (int) Math.min(length, MAX_DATA_LENGTH - mDataLength);
+        writeFully(ByteBuffer.wrap(pcm, offset, length),
+                AudioUtils.WAV_HEADER_LENGTH + mDataLength);
+        mDataLength += length;
+    }
+
+    /**
+     * Fills in the sizes in the header and closes the file, can be called more than once.
+     */
+    public synchronized void close() throws IOException {
+        if (mIsClosed) {
+            return;
+        }
+        mIsClosed = true;
+        try {
+            AudioUtils.putInt(mHeader, 4, AudioUtils.WAV_HEADER_LENGTH - 8 + mDataLength);
+            AudioUtils.putInt(mHeader, 40, mDataLength);
+            writeFully(ByteBuffer.wrap(mHeader, 4, 4), 4);
+            writeFully(ByteBuffer.wrap(mHeader, 40, 4), 40);
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += mChannel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package com.tilde.pip_news_bot.speech;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The incremental normalizer must give the same result as normalizing each transcript from
+ * scratch, whatever the previous transcript was.
+ */
+public class IncrementalNormalizerTest {
+
+    private static final boolean[] FLAGS = {false, true};
+
+    @Test
+    public void growingPartialsMatchOneShot() {
+        for (boolean stripTags : FLAGS) {
+            for (boolean prettyPrint : FLAGS) {
+                for (int seed = 1; seed <= 20; seed++) {
+                    IncrementalNormalizer incremental =
+                            new IncrementalNormalizer(stripTags, prettyPrint);
+                    String transcript = Transcripts.dictation(50 * seed, seed);
+                    for (String partial : Transcripts.growingPartials(transcript, seed)) {
+                        assertMatchesOneShot(incremental, partial, stripTags, prettyPrint);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void tagsAndSentencesSplitAcrossPartialsMatchOneShot() {
+        final String[] partials = {
+                "a <", "a <un", "a <unk", "a <unk>", "a <unk> b", "a <unk> b .", "a <unk> b . c",
+                "a <unk> b . cd", "a <unk> b ?", "a <unk> b ? \n", "a <unk> b ? \n x", "a <",
+                "a", "", " ", "😀", "😀 .", "😀 . 😀", "< a", "< a >", "< a > .", "< a > . b",
+        };
+        for (boolean stripTags : FLAGS) {
+            for (boolean prettyPrint : FLAGS) {
+                IncrementalNormalizer incremental =
+                        new IncrementalNormalizer(stripTags, prettyPrint);
+                for (String partial : partials) {
+                    assertMatchesOneShot(incremental, partial, stripTags, prettyPrint);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void revisedAndUnrelatedTranscriptsMatchOneShot() {
+        final String pieces = " \n<>.,?!aē😀";
+        Random random = new Random(5);
+        IncrementalNormalizer incremental = new IncrementalNormalizer(true, true);
+        String transcript = "";
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder(transcript);
+            switch (random.nextInt(4)) {
+                case 0:
+                    // a revision somewhere in the transcript
+                    sb.setLength(random.nextInt(sb.length() + 1));
+                    break;
+                case 1:
+                    sb.setLength(0);
+                    sb.append(Transcripts.dictation(random.nextInt(100), i));
+                    break;
+                default:
+                    break;
+            }
+            for (int j = random.nextInt(8); j > 0; j--) {
+                sb.append(pieces.charAt(random.nextInt(pieces.length())));
+            }
+            transcript = sb.toString();
+            assertMatchesOneShot(incremental, transcript, true, true);
+        }
+    }
+
+    @Test
+    public void resetForgetsThePreviousTranscript() {
+        IncrementalNormalizer incremental = new IncrementalNormalizer(true, true);
+        List<String> partials = Transcripts.growingPartials(Transcripts.dictation(200, 7), 7);
+        for (String partial : partials) {
+            incremental.normalize(partial);
+        }
+        incremental.reset();
+        for (String partial : partials) {
+            assertMatchesOneShot(incremental, partial, true, true);
+        }
+    }
+
+    @Test
+    public void unchangedLengthIsAPrefixOfBothOutputs() {
+        final String pieces = " \n<>.,?!aē😀";
+        Random random = new Random(11);
+        IncrementalNormalizer incremental = new IncrementalNormalizer(true, true);
+        String transcript = "";
+        String previous = "";
+        for (int i = 0; i < 20000; i++) {
+            StringBuilder sb = new StringBuilder(transcript);
+            if (random.nextInt(4) == 0) {
+                sb.setLength(random.nextInt(sb.length() + 1));
+            }
+            for (int j = random.nextInt(8); j > 0; j--) {
+                sb.append(pieces.charAt(random.nextInt(pieces.length())));
+            }
+            transcript = sb.toString();
+            final String normalized = incremental.normalize(transcript);
+            final int unchanged = incremental.getUnchangedLength();
+            assertTrue(unchanged <= previous.length() && unchanged <= normalized.length());
+            assertTrue(normalized.regionMatches(0, previous, 0, unchanged));
+            previous = normalized;
+        }
+        incremental.reset();
+        incremental.normalize(transcript);
+        assertEquals(0, incremental.getUnchangedLength());
+    }
+
+    @Test
+    public void growingPartialsKeepMostOfTheirOutput() {
+        IncrementalNormalizer incremental = new IncrementalNormalizer(true, true);
+        long output = 0;
+        long unchanged = 0;
+        for (String partial : Transcripts.growingPartials(Transcripts.dictation(500, 3), 3)) {
+            output += incremental.normalize(partial).length();
+            unchanged += incremental.getUnchangedLength();
+        }
+        assertTrue("unchanged " + unchanged + " of " + output, unchanged > output * 3 / 4);
+    }
+
+    private static void assertMatchesOneShot(IncrementalNormalizer incremental, String transcript,
+                                             boolean stripTags, boolean prettyPrint) {
+        assertEquals("normalize(\"" + transcript + "\")",
+                TranscriptNormalizer.normalize(transcript, stripTags, prettyPrint),
+                incremental.normalize(transcript));
+    }
+}
@@ -0,0 +1,127 @@
+package com.tilde.pip_news_bot.speech;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyHistogramTest {
+
+    private static final double[] PERCENTILES = {0, 1, 10, 50, 90, 99, 99.9, 100};
+
+    @Test
+    public void bucketsAreContiguousAndEndWhereTheNextStarts() {
+        for (int value = 0; value < 1 << 22; value++) {
+            final int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue("value " + value, LatencyHistogram.highestValueOf(bucket) >= value);
+            final int next = LatencyHistogram.bucketOf(value + 1);
+            if (next != bucket) {
+                assertEquals(bucket + 1, next);
+                assertEquals(value, LatencyHistogram.highestValueOf(bucket));
+            }
+        }
+        // the small values get a bucket each, then every power of two has 16
+        assertEquals(15, LatencyHistogram.bucketOf(15));
+        assertEquals(16, LatencyHistogram.bucketOf(16));
+        assertEquals(LatencyHistogram.bucketOf(32), LatencyHistogram.bucketOf(33));
+        assertEquals(LatencyHistogram.bucketOf(1024) + 15, LatencyHistogram.bucketOf(2047));
+        assertEquals(LatencyHistogram.bucketOf(1024) + 16, LatencyHistogram.bucketOf(2048));
+        final int last = LatencyHistogram.bucketOf(Integer.MAX_VALUE);
+        assertEquals(Integer.MAX_VALUE, LatencyHistogram.highestValueOf(last));
+        assertEquals(last - 15, LatencyHistogram.bucketOf(1 << 30));
+        assertEquals(last - 16, LatencyHistogram.bucketOf((1 << 30) - 1));
+    }
+
+    @Test
+    public void percentilesAreWithinABucketWidthAbove() {
+        Random random = new Random(1);
+        for (int round = 0; round < 20; round++) {
+            LatencyHistogram histogram = new LatencyHistogram();
+            long[] values = new long[1 + random.nextInt(5000)];
+            for (int i = 0; i < values.length; i++) {
+                // log-normal around a few hundred ms, as latencies are
+                values[i] = Math.round(Math.exp(6 + 1.5 * random.nextGaussian()));
+                histogram.record(values[i]);
+            }
+            Arrays.sort(values);
+
+            assertEquals(values.length, histogram.getCount());
+            assertEquals(values[values.length - 1], histogram.getMax());
+            for (double percentile : PERCENTILES) {
+                final long exact = exactPercentile(values, percentile);
+                final long estimate = histogram.getPercentile(percentile);
+                final String message = "p" + percentile + " of " + values.length;
+                assertTrue(message + ": " + estimate + " < " + exact, estimate >= exact);
+                assertTrue(message + ": " + estimate + " > " + exact,
+                        estimate <= exact + exact / 16);
+                assertTrue(estimate <= histogram.getMax());
+            }
+        }
+    }
+
+    @Test
+    public void outOfRangeValuesAreClamped() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        histogram.record(Long.MAX_VALUE);
+        histogram.record(Integer.MAX_VALUE + 1L);
+
+        assertEquals(3, histogram.getCount());
+        assertEquals(Integer.MAX_VALUE, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(0));
+        assertEquals(0, histogram.getPercentile(33));
+        assertEquals(Integer.MAX_VALUE, histogram.getPercentile(34));
+        assertEquals(Integer.MAX_VALUE, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void resetForgetsEverything() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(50));
+        for (int i = 0; i < 100; i++) {
+            histogram.record(1000 + i);
+        }
+        histogram.reset();
+
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMax());
+        assertEquals(0, histogram.getPercentile(50));
+        histogram.record(7);
+        assertEquals(7, histogram.getPercentile(100));
+    }
+
+    @Test
+    public void mergedEqualsRecordedInOne() {
+        Random random = new Random(2);
+        LatencyHistogram all = new LatencyHistogram();
+        LatencyHistogram first = new LatencyHistogram();
+        LatencyHistogram second = new LatencyHistogram();
+        for (int i = 0; i < 3000; i++) {
+            long value = Math.round(Math.exp(5 + random.nextGaussian()));
+            all.record(value);
+            (i % 3 == 0 ? first : second).record(value);
+        }
+        first.merge(second);
+
+        assertEquals(all.getCount(), first.getCount());
+        assertEquals(all.getMax(), first.getMax());
+        for (double percentile : PERCENTILES) {
+            assertEquals(all.getPercentile(percentile), first.getPercentile(percentile));
+        }
+        // merging leaves the other one as it was
+        assertEquals(2000, second.getCount());
+        first.merge(new LatencyHistogram());
+        assertEquals(all.getCount(), first.getCount());
+    }
+
+    /**
+     * @return the value at the nearest rank, as the histogram defines percentiles
+     */
+    private static long exactPercentile(long[] sorted, double percentile) {
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * sorted.length));
+        return sorted[(int) rank - 1];
+    }
+}
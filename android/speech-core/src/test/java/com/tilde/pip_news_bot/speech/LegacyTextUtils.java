@@ -4,7 +4,11 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
 
-final class TextUtils {
+/**
+ * The string concatenating prettyPrint that {@link TranscriptNormalizer} replaced, kept as a
+ * baseline.
+ */
+final class LegacyTextUtils {
 
     private static final Set<Character> CHARACTERS_WS =
             new HashSet<>(Arrays.asList(' ', '\n', '\t'));
@@ -15,7 +19,11 @@ final class TextUtils {
     private static final Set<Character> CHARACTERS_EOS =
             new HashSet<>(Arrays.asList('.', '!', '?', ')'));
 
-    private TextUtils() {
+    private LegacyTextUtils() {
+    }
+
+    static String normalize(String transcript) {
+        return prettyPrint(transcript.replaceAll("<[^<>]+>", ""));
     }
 
     static String prettyPrint(String str) {
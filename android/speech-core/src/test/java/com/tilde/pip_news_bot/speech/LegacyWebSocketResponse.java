@@ -0,0 +1,47 @@
+package com.tilde.pip_news_bot.speech;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+
+/**
+ * The org.json based parsing that {@link WebSocketResponse} replaced, kept as a baseline.
+ */
+final class LegacyWebSocketResponse {
+
+    private final JSONObject mJson;
+    private final int mStatus;
+
+    LegacyWebSocketResponse(String data) throws JSONException {
+        mJson = new JSONObject(data);
+        mStatus = mJson.getInt("status");
+    }
+
+    int getStatus() {
+        return mStatus;
+    }
+
+    boolean isResult() {
+        return mJson.has("result");
+    }
+
+    boolean isFinal() throws JSONException {
+        return mJson.getJSONObject("result").optBoolean("final", false);
+    }
+
+    ArrayList<String> getHypotheses(int maxHypotheses) throws JSONException {
+        ArrayList<String> hypotheses = new ArrayList<>();
+        JSONArray array = mJson.getJSONObject("result").getJSONArray("hypotheses");
+        for (int i = 0; i < array.length() && i < maxHypotheses; i++) {
+            String transcript = array.getJSONObject(i).getString("transcript");
+            if (WebSocketResponse.PRETTY_PRINT) {
+                hypotheses.add(LegacyTextUtils.normalize(transcript));
+            } else {
+                hypotheses.add(transcript.replaceAll("<[^<>]+>", ""));
+            }
+        }
+        return hypotheses;
+    }
+}
@@ -0,0 +1,159 @@
+package com.tilde.pip_news_bot.speech;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SessionSchedulerTest {
+
+    private final VirtualTime mTime = new VirtualTime();
+    private final SessionScheduler mScheduler = new SessionScheduler(mTime, mTime);
+
+    @Test
+    public void runsTasksInTheOrderTheyAreDue() {
+        final List<String> runs = new ArrayList<>();
+        mScheduler.schedule(() -> runs.add("a"), 30);
+        mScheduler.schedule(() -> runs.add("b"), 10);
+        mScheduler.schedule(() -> {
+            runs.add("c");
+            // due right away, so it runs before the later ones
+            mScheduler.post(() -> runs.add("e"));
+        }, 10);
+        mScheduler.post(() -> runs.add("d"));
+        mTime.advance(100);
+
+        assertEquals(Arrays.asList("d", "b", "c", "e", "a"), runs);
+    }
+
+    @Test
+    public void runsAtAFixedRate() {
+        final List<Long> runs = new ArrayList<>();
+        mScheduler.scheduleAtFixedRate(() -> runs.add(mTime.millis()), 500, 100);
+        mTime.advance(1000);
+
+        assertEquals(Arrays.asList(500L, 600L, 700L, 800L, 900L, 1000L), runs);
+    }
+
+    @Test
+    public void missedRunsMakeUpOneLateRun() {
+        final List<Long> runs = new ArrayList<>();
+        mScheduler.scheduleAtFixedRate(() -> runs.add(mTime.millis()), 100, 100);
+        mScheduler.schedule(() -> mTime.spend(350), 100);
+        mTime.advance(700);
+
+        assertEquals(Arrays.asList(100L, 450L, 550L, 650L), runs);
+    }
+
+    @Test
+    public void cancelledTasksDoNotRunAgain() {
+        final int[] runs = new int[2];
+        SessionScheduler.Task once = mScheduler.schedule(() -> runs[0]++, 100);
+        mTime.advance(50);
+        once.cancel();
+        final SessionScheduler.Task[] periodic = new SessionScheduler.Task[1];
+        periodic[0] = mScheduler.scheduleAtFixedRate(() -> {
+            if (++runs[1] == 3) {
+                periodic[0].cancel();
+            }
+        }, 0, 10);
+        mTime.advance(1000);
+
+        assertEquals(0, runs[0]);
+        assertEquals(3, runs[1]);
+        assertTrue(once.isCancelled());
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void shutdownCancelsEveryTask() {
+        final int[] runs = new int[1];
+        mScheduler.scheduleAtFixedRate(() -> runs[0]++, 0, 100);
+        SessionScheduler.Task later = mScheduler.schedule(() -> runs[0] += 100, 1000);
+        mTime.advance(250);
+        mScheduler.shutdown();
+        SessionScheduler.Task afterShutdown = mScheduler.post(() -> runs[0] += 1000);
+        SessionScheduler.Task reused = mScheduler.newTask(() -> runs[0] += 10000);
+        mTime.advance(2000);
+
+        assertEquals(3, runs[0]);
+        assertTrue(later.isCancelled());
+        assertTrue(afterShutdown.isCancelled());
+        assertFalse(mScheduler.post(reused));
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void reusedTaskRunsOncePerWakeUp() {
+        final int[] runs = new int[1];
+        final SessionScheduler.Task task = mScheduler.newTask(() -> runs[0]++);
+        assertTrue(mScheduler.post(task));
+        assertFalse(mScheduler.post(task));
+        assertEquals(1, mScheduler.getPendingCount());
+        mTime.advance(10);
+        assertEquals(1, runs[0]);
+
+        // posted while it runs, it runs again
+        final int[] reposts = new int[1];
+        final SessionScheduler.Task[] self = new SessionScheduler.Task[1];
+        self[0] = mScheduler.newTask(() -> {
+            if (++reposts[0] < 3) {
+                assertTrue(mScheduler.post(self[0]));
+            }
+        });
+        mScheduler.post(self[0]);
+        mTime.advance(10);
+        assertEquals(3, reposts[0]);
+
+        task.cancel();
+        assertFalse(mScheduler.post(task));
+        mTime.advance(10);
+        assertEquals(1, runs[0]);
+        assertEquals(0, mScheduler.getPendingCount());
+    }
+
+    @Test
+    public void repostingATaskDoesNotAllocate() {
+        java.lang.management.ThreadMXBean beans = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("allocations cannot be measured on this JVM",
+                beans instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) beans;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final SessionScheduler scheduler = new SessionScheduler(SessionScheduler.SYSTEM_CLOCK,
+                (runDue, delayNanos) -> {
+                });
+        final int[] runs = new int[1];
+        final SessionScheduler.Task task = scheduler.newTask(() -> runs[0]++);
+        final int count = 100000;
+        // warms up the JIT
+        repost(scheduler, task, count);
+
+        final long id = Thread.currentThread().getId();
+        long overhead = -threads.getThreadAllocatedBytes(id);
+        overhead += threads.getThreadAllocatedBytes(id);
+        long allocated = -threads.getThreadAllocatedBytes(id);
+        repost(scheduler, task, count);
+        allocated += threads.getThreadAllocatedBytes(id);
+
+        assertEquals(2 * count, runs[0]);
+        // a task per wake-up would be tens of bytes each, the JIT may allocate a few hundred
+        assertTrue("bytes allocated for " + count + " wake-ups: " + (allocated - overhead),
+                allocated - overhead < count);
+    }
+
+    private static void repost(SessionScheduler scheduler, SessionScheduler.Task task,
+                               int count) {
+        for (int i = 0; i < count; i++) {
+            scheduler.post(task);
+            scheduler.runDue();
+        }
+    }
+}
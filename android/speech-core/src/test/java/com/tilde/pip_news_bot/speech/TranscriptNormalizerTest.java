@@ -0,0 +1,69 @@
+package com.tilde.pip_news_bot.speech;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * The fused normalizer against the tag stripping replaceAll and the string concatenating
+ * prettyPrint it replaced, which it must match char for char.
+ */
+public class TranscriptNormalizerTest {
+
+    private static final String[] CORPUS = {
+            // empty and whitespace only
+            "", " ", "   ", "\n", "\t", " \n ", "\t \t", "\n\n",
+            // tags
+            "<unk>", "<unk> <noise>", "labdien <unk> es", "<a b> labdien", "labdien <sil>",
+            "labdien<unk>es", "<", ">", "< >", "<>", "a < b > c", "<unk", "unk>", "<<unk>>",
+            "<a <b> c>", "x <unk> . y", ". <noise> y", "<unk>. y", "a <\n> b",
+            // punctuation spacing
+            "labdien , es", "labdien ,es", "a . b", "a .b", "a : b ; c", "a - b", "a -b",
+            "( a )", "a ) b", "a ! ? b", "a , , b", ", a", ". a", "a .", "a \n b", "a \n\n b",
+            "a \t b", "a\tb", "a \n , b", ". \n b", "a . \n b",
+            // sentence capitalization
+            "a . b . c", "a ? b ! c", "a ) b", "a . bc", "a . . b", "a . ē", "a . 100",
+            "a . e-pasts", "a ! ziemassvētkos", "x . y z . w", ". . a", "a .\n b", "a . \t b",
+            "a . , b", "a . - b", "ab . ? cd",
+            // surrogates
+            "😀", "a 😀 b", ". 😀 b", "a . 😀", "😀 . 😀", ". 𐐨abc", "a . 𐐨", "<😀> a",
+            "a\uD83D b", "a \uDE00 b", ". \uD83D",
+    };
+
+    @Test
+    public void corpusMatchesLegacy() {
+        for (String transcript : CORPUS) {
+            assertMatchesLegacy(transcript);
+        }
+    }
+
+    @Test
+    public void randomTranscriptsMatchLegacy() {
+        final String pieces = " \n\t<>.,:;!?-)aZē😀";
+        Random random = new Random(3);
+        for (int i = 0; i < 20000; i++) {
+            String text = i % 2 == 0 ? Transcripts.dictation(random.nextInt(200), i) : "";
+            StringBuilder sb = new StringBuilder(text);
+            for (int j = random.nextInt(30); j > 0; j--) {
+                sb.insert(random.nextInt(sb.length() + 1),
+                        pieces.charAt(random.nextInt(pieces.length())));
+            }
+            assertMatchesLegacy(sb.toString());
+        }
+    }
+
+    @Test
+    public void longDictationMatchesLegacy() {
+        assertMatchesLegacy(Transcripts.dictation(10000, 1));
+    }
+
+    private static void assertMatchesLegacy(String transcript) {
+        assertEquals("normalize(\"" + transcript + "\")",
+                LegacyTextUtils.normalize(transcript),
+                TranscriptNormalizer.normalize(transcript, true, true));
+        assertEquals("prettyPrint(\"" + transcript + "\")",
+                LegacyTextUtils.prettyPrint(transcript), TextUtils.prettyPrint(transcript));
+    }
+}
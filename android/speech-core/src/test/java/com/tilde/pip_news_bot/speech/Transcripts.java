@@ -0,0 +1,88 @@
+package com.tilde.pip_news_bot.speech;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic server transcripts and messages: space separated tokens, as the server sends them,
+ * with punctuation tokens, tags and the occasional non-ASCII word.
+ */
+final class Transcripts {
+
+    private static final String[] WORDS = {
+            "labdien", "es", "gribētu", "uzzināt", "ziņas", "par", "šodienas", "laikapstākļiem",
+            "the", "weather", "in", "riga", "is", "cloudy", "today", "and", "tomorrow", "rain",
+            "Ziemassvētkos", "ē", "x", "100", "e-pasts"
+    };
+
+    private static final String[] PUNCTUATION = {".", ",", "?", "!", ":", "-", ")", "\n"};
+
+    private static final String[] TAGS = {"<unk>", "<noise>", "<sil>", "<a b>"};
+
+    private Transcripts() {
+    }
+
+    /**
+     * @return a transcript of at least {@code length} chars
+     */
+    static String dictation(int length, long seed) {
+        Random random = new Random(seed);
+        StringBuilder sb = new StringBuilder(length + 32);
+        while (sb.length() < length) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            int r = random.nextInt(20);
+            if (r < 3) {
+                sb.append(PUNCTUATION[random.nextInt(PUNCTUATION.length)]);
+            } else if (r < 4) {
+                sb.append(TAGS[random.nextInt(TAGS.length)]);
+            } else {
+                sb.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return the partials a server sends while {@code transcript} is spoken: each one a word
+     * longer, and every few words with the last word revised
+     */
+    static List<String> growingPartials(String transcript, long seed) {
+        Random random = new Random(seed);
+        List<String> partials = new ArrayList<>();
+        int end = transcript.indexOf(' ');
+        while (end > 0) {
+            String partial = transcript.substring(0, end);
+            if (random.nextInt(4) == 0) {
+                partials.add(partial + "s");
+            }
+            partials.add(partial);
+            end = transcript.indexOf(' ', end + 1);
+        }
+        partials.add(transcript);
+        return partials;
+    }
+
+    /**
+     * @return a recognition result message with {@code count} hypotheses
+     */
+    static String message(int count, int length, boolean isFinal, long seed) {
+        StringBuilder sb = new StringBuilder();
+        sb.append("{\"status\": 0, \"segment\": 3, \"result\": {\"hypotheses\": [");
+        for (int i = 0; i < count; i++) {
+            if (i > 0) {
+                sb.append(", ");
+            }
+            String transcript = dictation(length, seed + i)
+                    .replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+            sb.append("{\"transcript\": \"").append(transcript)
+                    .append("\", \"likelihood\": ").append(-12.5 * (i + 1)).append('}');
+        }
+        sb.append("], \"final\": ").append(isFinal).append("}, \"segment-start\": 12.34, ")
+                .append("\"segment-length\": 5.67, \"total-length\": 18.01, \"id\": \"")
+                .append(Long.toHexString(seed)).append("\"}");
+        return sb.toString();
+    }
+}
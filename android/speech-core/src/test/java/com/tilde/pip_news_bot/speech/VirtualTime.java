@@ -0,0 +1,63 @@
+package com.tilde.pip_news_bot.speech;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A clock that only moves when told to, and a driver that runs the scheduler at the virtual
+ * times it asks for, so that a whole session runs on the calling thread in no real time.
+ */
+final class VirtualTime implements SessionScheduler.Clock, SessionScheduler.Driver {
+
+    private static final class WakeUp {
+        final long nanos;
+        final long sequence;
+        final Runnable runDue;
+
+        WakeUp(long nanos, long sequence, Runnable runDue) {
+            this.nanos = nanos;
+            this.sequence = sequence;
+            this.runDue = runDue;
+        }
+    }
+
+    private final PriorityQueue<WakeUp> mWakeUps = new PriorityQueue<>(11, (a, b) ->
+            a.nanos != b.nanos ? Long.compare(a.nanos, b.nanos)
+                    : Long.compare(a.sequence, b.sequence));
+    private long mNanos;
+    private long mSequence;
+
+    @Override
+    public long nanoTime() {
+        return mNanos;
+    }
+
+    @Override
+    public void wakeUp(Runnable runDue, long delayNanos) {
+        mWakeUps.add(new WakeUp(mNanos + delayNanos, mSequence++, runDue));
+    }
+
+    /**
+     * Moves the clock forward, running the scheduler at every wake-up on the way.
+     */
+    void advance(long millis) {
+        final long end = mNanos + TimeUnit.MILLISECONDS.toNanos(millis);
+        while (!mWakeUps.isEmpty() && mWakeUps.peek().nanos <= end) {
+            WakeUp wakeUp = mWakeUps.poll();
+            mNanos = Math.max(mNanos, wakeUp.nanos);
+            wakeUp.runDue.run();
+        }
+        mNanos = end;
+    }
+
+    /**
+     * Moves the clock forward without running the scheduler, as a task that takes long would.
+     */
+    void spend(long millis) {
+        mNanos += TimeUnit.MILLISECONDS.toNanos(millis);
+    }
+
+    long millis() {
+        return TimeUnit.NANOSECONDS.toMillis(mNanos);
+    }
+}
@@ -0,0 +1,24 @@
+package com.tilde.pip_news_bot.speech;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class WebSocketResponseTest {
+
+    @Test
+    public void parsesLikeTheLegacyParsing() throws Exception {
+        for (int seed = 0; seed < 500; seed++) {
+            String message = Transcripts.message(1 + seed % 7, 10 + seed, seed % 2 == 0, seed);
+            for (int max : new int[]{1, 3, WebSocketResponse.MAX_HYPOTHESES}) {
+                WebSocketResponse response = new WebSocketResponse(message, max);
+                LegacyWebSocketResponse legacy = new LegacyWebSocketResponse(message);
+                WebSocketResponse.Result result = response.parseResult();
+                assertEquals(message, legacy.getStatus(), response.getStatus());
+                assertEquals(message, legacy.isResult(), response.isResult());
+                assertEquals(message, legacy.isFinal(), result.isFinal());
+                assertEquals(message, legacy.getHypotheses(max), result.getHypotheses());
+            }
+        }
+    }
+}
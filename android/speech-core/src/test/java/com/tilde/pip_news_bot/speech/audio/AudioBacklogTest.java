@@ -0,0 +1,94 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class AudioBacklogTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    @Test
+    public void replaysTheUnacknowledgedTailOfALongerStream() {
+        for (int backlogMillis : new int[]{5000, 20000}) {
+            byte[] stream = Signals.speech(backlogMillis * 3 / 2, SAMPLE_RATE, 2);
+            int capacity = AudioRingBuffer.bytesForMillis(backlogMillis, SAMPLE_RATE);
+            AudioBacklog backlog = new AudioBacklog(capacity);
+            int end = 0;
+            for (int count = 2; end + count <= stream.length; end += count, count += 202) {
+                backlog.append(stream, end, count);
+            }
+            backlog.acknowledge(end - capacity / 2);
+
+            assertEquals(end - capacity / 2, backlog.getStart());
+            assertEquals(end, backlog.getEnd());
+            assertEquals(Math.max(0, end - capacity), backlog.getLostBytes());
+            assertArrayEquals(Arrays.copyOfRange(stream, end - capacity / 2, end),
+                    replay(backlog, 777));
+        }
+    }
+
+    @Test
+    public void acknowledgedAudioIsNotLost() {
+        byte[] stream = Signals.speech(10000, SAMPLE_RATE, 3);
+        AudioBacklog backlog = new AudioBacklog(AudioRingBuffer.bytesForMillis(1000, SAMPLE_RATE));
+        final int frame = AudioRingBuffer.bytesForMillis(20, SAMPLE_RATE);
+        for (int end = 0; end + frame <= stream.length; end += frame) {
+            backlog.append(stream, end, frame);
+            // the server finalizes all but the latest half second
+            backlog.acknowledge(backlog.getEnd() - backlog.capacity() / 2);
+        }
+        assertEquals(0, backlog.getLostBytes());
+        assertEquals(backlog.capacity() / 2, backlog.getEnd() - backlog.getStart());
+        assertArrayEquals(Arrays.copyOfRange(stream,
+                (int) backlog.getStart(), (int) backlog.getEnd()), replay(backlog, frame));
+    }
+
+    @Test
+    public void onlyTheTailOfALongAppendIsKept() {
+        byte[] stream = Signals.speech(1000, SAMPLE_RATE, 4);
+        AudioBacklog backlog = new AudioBacklog(1000);
+        backlog.append(stream, 0, 300);
+        backlog.append(stream, 300, stream.length - 300);
+
+        assertEquals(stream.length, backlog.getEnd());
+        assertEquals(stream.length - 1000, backlog.getStart());
+        assertEquals(stream.length - 1000, backlog.getLostBytes());
+        assertArrayEquals(Arrays.copyOfRange(stream, stream.length - 1000, stream.length),
+                replay(backlog, 333));
+    }
+
+    @Test
+    public void acknowledgingIsClampedToTheEnd() {
+        AudioBacklog backlog = new AudioBacklog(100);
+        backlog.append(new byte[60], 0, 60);
+        backlog.acknowledge(80);
+        assertEquals(60, backlog.getStart());
+        backlog.acknowledge(10);
+        assertEquals(60, backlog.getStart());
+        assertEquals(0, replay(backlog, 10).length);
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void readingAcknowledgedAudioFails() {
+        AudioBacklog backlog = new AudioBacklog(100);
+        backlog.append(new byte[60], 0, 60);
+        backlog.acknowledge(30);
+        backlog.read(20, new byte[10], 0, 10);
+    }
+
+    private static byte[] replay(AudioBacklog backlog, int chunkSize) {
+        byte[] replayed = new byte[(int) (backlog.getEnd() - backlog.getStart())];
+        int offset = 0;
+        for (long position = backlog.getStart(); position < backlog.getEnd(); ) {
+            int count = backlog.read(position, replayed, offset,
+                    Math.min(chunkSize, replayed.length - offset));
+            position += count;
+            offset += count;
+        }
+        return replayed;
+    }
+}
@@ -0,0 +1,131 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class AudioRingBufferTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    private final byte[] mPcm = Signals.speech(1000, SAMPLE_RATE, 2);
+
+    @Test
+    public void sizesForADurationRoundUpToAPowerOfTwo() {
+        assertEquals(64000, AudioRingBuffer.bytesForMillis(2000, SAMPLE_RATE));
+        assertEquals(65536, AudioRingBuffer.forDuration(2000, SAMPLE_RATE).capacity());
+        assertEquals(1764, AudioRingBuffer.bytesForMillis(20, 44100));
+        assertEquals(2048, AudioRingBuffer.forDuration(20, 44100).capacity());
+        assertEquals(4096, new AudioRingBuffer(4096).capacity());
+        assertEquals(1, new AudioRingBuffer(1).capacity());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyCapacity() {
+        new AudioRingBuffer(0);
+    }
+
+    @Test
+    public void wrapsAroundThePowerOfTwoBoundary() {
+        AudioRingBuffer ring = new AudioRingBuffer(1000);
+        assertEquals(1024, ring.capacity());
+        byte[] read = new byte[mPcm.length];
+        int written = 0;
+        int readLength = 0;
+        // uneven pieces, so that writes and reads straddle the end of the array in every way
+        while (readLength < mPcm.length) {
+            int length = Math.min(Math.min(334, mPcm.length - written),
+                    ring.capacity() - ring.available());
+            written += ring.write(mPcm, written, length);
+            readLength += ring.read(read, readLength, Math.min(250, read.length - readLength));
+            if (written == mPcm.length) {
+                readLength += ring.read(read, readLength, read.length - readLength);
+            }
+        }
+
+        assertArrayEquals(mPcm, read);
+        assertEquals(mPcm.length, ring.getWritePosition());
+        assertEquals(mPcm.length, ring.getReadPosition());
+        assertEquals(0, ring.available());
+        assertEquals(0, ring.getOverrunCount());
+    }
+
+    @Test
+    public void byteBufferWritesWrapAroundLikeArrayWrites() {
+        AudioRingBuffer ring = new AudioRingBuffer(1024);
+        ring.write(mPcm, 0, 700);
+        ring.read(new byte[700], 0, 700);
+        ByteBuffer frame = ByteBuffer.wrap(mPcm, 700, 600);
+        assertEquals(600, ring.write(frame));
+        assertEquals(0, frame.remaining());
+
+        byte[] read = new byte[600];
+        assertEquals(600, ring.read(read, 0, read.length));
+        assertArrayEquals(Arrays.copyOfRange(mPcm, 700, 1300), read);
+    }
+
+    @Test
+    public void availableCountsWhatPartialReadsLeave() {
+        AudioRingBuffer ring = new AudioRingBuffer(1024);
+        ring.write(mPcm, 0, 600);
+        byte[] read = new byte[1024];
+        assertEquals(100, ring.read(read, 0, 100));
+        assertEquals(500, ring.available());
+        ring.write(mPcm, 600, 300);
+        assertEquals(800, ring.available());
+        assertEquals(800, ring.read(read, 100, 1000));
+        assertEquals(0, ring.available());
+        assertEquals(0, ring.read(read, 0, 1));
+        assertArrayEquals(Arrays.copyOf(mPcm, 900), Arrays.copyOf(read, 900));
+    }
+
+    @Test
+    public void overrunDropsWhatDoesNotFitInWholeSamples() {
+        AudioRingBuffer ring = new AudioRingBuffer(1024);
+        assertEquals(1000, ring.write(mPcm, 0, 1000));
+        // 25 bytes are free, the last of them would split a sample
+        byte[] read = new byte[1];
+        assertEquals(1, ring.read(read, 0, 1));
+        assertEquals(24, ring.write(mPcm, 1000, 100));
+        assertEquals(1, ring.getOverrunCount());
+        assertEquals(76, ring.getDroppedBytes());
+        // the producer never moves the read cursor, i.e. never overwrites unread audio
+        assertEquals(1, ring.getReadPosition());
+        assertEquals(0, ring.write(mPcm, 1100, 100));
+        assertEquals(2, ring.getOverrunCount());
+        assertEquals(176, ring.getDroppedBytes());
+        assertEquals(1024, ring.getWritePosition());
+
+        // reading pushes the read cursor forward, which makes room for the producer again
+        byte[] rest = new byte[1023];
+        assertEquals(1023, ring.read(rest, 0, rest.length));
+        assertEquals(1024, ring.getReadPosition());
+        assertArrayEquals(Arrays.copyOfRange(mPcm, 1, 1024), rest);
+        assertEquals(100, ring.write(mPcm, 1200, 100));
+        assertEquals(2, ring.getOverrunCount());
+        assertEquals(100, ring.available());
+    }
+
+    @Test
+    public void clearedRingStartsOver() {
+        AudioRingBuffer ring = new AudioRingBuffer(1024);
+        ring.write(mPcm, 0, 1000);
+        ring.read(new byte[300], 0, 300);
+        ring.write(mPcm, 1000, 1000);
+        ring.clear();
+
+        assertEquals(0, ring.available());
+        assertEquals(0, ring.getWritePosition());
+        assertEquals(0, ring.getReadPosition());
+        assertEquals(0, ring.getOverrunCount());
+        assertEquals(0, ring.getDroppedBytes());
+        assertEquals(1024, ring.write(mPcm, 0, 1024));
+        byte[] read = new byte[1024];
+        assertEquals(1024, ring.read(read, 0, read.length));
+        assertArrayEquals(Arrays.copyOf(mPcm, 1024), read);
+    }
+}
@@ -0,0 +1,128 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AudioSpoolTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mUtterance = Signals.speech(1000, SAMPLE_RATE, 2);
+
+    @Test
+    public void evictsTheOldestAndReloadsOnlyCommitted() throws IOException {
+        final File dir = mFolder.newFolder();
+        AudioSpool spool = new AudioSpool(dir, 3 * mUtterance.length + mUtterance.length / 2);
+        long[] ids = new long[5];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = spoolUtterance(spool).id;
+        }
+        assertEquals(2, spool.getEvictedCount());
+        spool.begin(8000).write(mUtterance, 0, 100);
+
+        spool = new AudioSpool(dir, 3 * mUtterance.length);
+        List<AudioSpool.Entry> entries = spool.list();
+        assertEquals(3, entries.size());
+        assertEquals(3L * mUtterance.length, spool.getBytes());
+        assertEquals(ids[2], entries.get(0).id);
+        assertEquals(ids[4], entries.get(2).id);
+        assertEquals(SAMPLE_RATE, entries.get(1).sampleRate);
+        assertArrayEquals(mUtterance, read(entries.get(1)));
+        assertEquals(3, dir.list().length);
+    }
+
+    @Test
+    public void cutsTheUtteranceShortIfNothingCanBeEvicted() throws IOException {
+        AudioSpool spool = new AudioSpool(mFolder.newFolder(), mUtterance.length / 2);
+        AudioSpool.Writer writer = spool.begin(SAMPLE_RATE);
+        writer.write(mUtterance, 0, mUtterance.length);
+
+        assertTrue(writer.isTruncated());
+        AudioSpool.Entry entry = writer.commit();
+        assertEquals(mUtterance.length / 2, entry.length);
+    }
+
+    @Test
+    public void neverEvictsAPinnedUtterance() throws IOException {
+        AudioSpool spool = new AudioSpool(mFolder.newFolder(), 2L * mUtterance.length);
+        AudioSpool.Entry pinned = spoolUtterance(spool);
+        AudioSpool.Entry second = spoolUtterance(spool);
+        spool.pin(pinned);
+        AudioSpool.Entry third = spoolUtterance(spool);
+
+        List<AudioSpool.Entry> entries = spool.list();
+        assertEquals(2, entries.size());
+        assertEquals(pinned.id, entries.get(0).id);
+        assertEquals(third.id, entries.get(1).id);
+        assertFalse(entries.contains(second));
+        assertArrayEquals(mUtterance, read(pinned));
+
+        // once nothing else is left to evict, the utterance being written is cut short
+        AudioSpool.Writer writer = spool.begin(SAMPLE_RATE);
+        writer.write(mUtterance, 0, mUtterance.length);
+        assertFalse(writer.isTruncated());
+        writer.write(mUtterance, 0, mUtterance.length);
+        assertTrue(writer.isTruncated());
+        entries = spool.list();
+        assertEquals(1, entries.size());
+        assertEquals(pinned.id, entries.get(0).id);
+        writer.abort();
+
+        spool.unpin(pinned);
+        spoolUtterance(spool);
+        spoolUtterance(spool);
+        assertFalse(spool.list().contains(pinned));
+    }
+
+    @Test
+    public void dropsEmptyAndAbortedUtterances() throws IOException {
+        final File dir = mFolder.newFolder();
+        AudioSpool spool = new AudioSpool(dir, 2L * mUtterance.length);
+        assertNull(spool.begin(SAMPLE_RATE).commit());
+        AudioSpool.Writer writer = spool.begin(SAMPLE_RATE);
+        writer.write(mUtterance, 0, mUtterance.length);
+        writer.abort();
+        writer.write(mUtterance, 0, mUtterance.length);
+        assertNull(writer.commit());
+
+        assertTrue(spool.isEmpty());
+        assertEquals(0, dir.list().length);
+    }
+
+    private AudioSpool.Entry spoolUtterance(AudioSpool spool) throws IOException {
+        AudioSpool.Writer writer = spool.begin(SAMPLE_RATE);
+        for (int offset = 0; offset < mUtterance.length; offset += 999) {
+            writer.write(mUtterance, offset, Math.min(999, mUtterance.length - offset));
+        }
+        return writer.commit();
+    }
+
+    private static byte[] read(AudioSpool.Entry entry) throws IOException {
+        ByteArrayOutputStream read = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(777);
+        try (FileChannel channel = entry.openChannel()) {
+            while (channel.read(buffer) > 0) {
+                read.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        }
+        return read.toByteArray();
+    }
+}
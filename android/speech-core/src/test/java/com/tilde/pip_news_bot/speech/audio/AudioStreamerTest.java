@@ -0,0 +1,184 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class AudioStreamerTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME_MILLIS = 20;
+    private static final int FRAME_SIZE = AudioRingBuffer.bytesForMillis(FRAME_MILLIS, SAMPLE_RATE);
+    private static final int POOL_SIZE = 4;
+    // more chunks than the backlog holds, so that it wraps around while measured
+    private static final int CHUNKS = 5000;
+
+    /**
+     * Counts the messages and keeps the latest bytes sent.
+     */
+    private static final class Sink implements AudioStreamer.Transport {
+        final byte[] mSent = new byte[1 << 20];
+        int mSentLength;
+        int mMessages;
+        long mAudioBytes;
+
+        @Override
+        public void onAudio(int length) {
+            mAudioBytes += length;
+        }
+
+        @Override
+        public void sendMessage(byte[] data, int offset, int length) {
+            mMessages++;
+            if (mSentLength + length <= mSent.length) {
+                System.arraycopy(data, offset, mSent, mSentLength, length);
+                mSentLength += length;
+            }
+        }
+
+        byte[] getSent() {
+            return Arrays.copyOf(mSent, mSentLength);
+        }
+    }
+
+    private final ByteBuffer mFrame =
+            ByteBuffer.allocateDirect(FRAME_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final AudioRingBuffer mRing = AudioRingBuffer.forDuration(1000, SAMPLE_RATE);
+    private final Sink mSink = new Sink();
+    private long mCaptured;
+
+    @Test
+    public void steadyStatePcmDoesNotAllocate() {
+        assertNoAllocationPerChunk(new PcmEncoder(SAMPLE_RATE));
+    }
+
+    @Test
+    public void steadyStateFlacDoesNotAllocate() {
+        assertNoAllocationPerChunk(
+                AudioEncoders.create(AudioEncoders.ENCODING_FLAC, SAMPLE_RATE, FRAME_SIZE / 2));
+    }
+
+    @Test
+    public void pausedAudioIsReplayedOnResume() {
+        AudioStreamer streamer = newStreamer(new PcmEncoder(SAMPLE_RATE));
+        stream(streamer, 10);
+        streamer.acknowledge(0);
+        stream(streamer, 5);
+        streamer.pause();
+        stream(streamer, 5);
+        assertEquals(10 * FRAME_SIZE, streamer.resume(new PcmEncoder(SAMPLE_RATE)));
+        stream(streamer, 5);
+
+        byte[] sent = mSink.getSent();
+        assertEquals(30 * FRAME_SIZE, sent.length);
+        // the acknowledged 10 frames are not replayed, the 5 sent before the pause are
+        assertArrayEquals(Arrays.copyOfRange(sent, 10 * FRAME_SIZE, 15 * FRAME_SIZE),
+                Arrays.copyOfRange(sent, 15 * FRAME_SIZE, 20 * FRAME_SIZE));
+        assertEquals(0, streamer.getLostBytes());
+    }
+
+    @Test
+    public void drainedBacklogIsNotReplayed() {
+        AudioBacklog backlog = new AudioBacklog(AudioRingBuffer.bytesForMillis(1000, SAMPLE_RATE));
+        AudioStreamer streamer = new AudioStreamer(mRing, FRAME_SIZE, POOL_SIZE, backlog,
+                AudioRingBuffer.bytesForMillis(200, SAMPLE_RATE), new PcmEncoder(SAMPLE_RATE),
+                mSink);
+        streamer.pause();
+        stream(streamer, 10);
+        final Sink spooled = new Sink();
+        assertEquals(10 * FRAME_SIZE, streamer.drainBacklog(spooled::sendMessage));
+        stream(streamer, 5);
+        assertEquals(5 * FRAME_SIZE, streamer.resume(new PcmEncoder(SAMPLE_RATE)));
+
+        // the spool got the raw audio, and only what came after it is sent
+        assertEquals(10 * FRAME_SIZE, spooled.getSent().length);
+        assertEquals(0, spooled.mAudioBytes);
+        assertEquals(5 * FRAME_SIZE, mSink.getSent().length);
+        assertEquals(15L * FRAME_SIZE, backlog.getEnd());
+    }
+
+    @Test
+    public void batchingSendsBiggerMessages() {
+        AudioStreamer streamer = newStreamer(new PcmEncoder(SAMPLE_RATE));
+        streamer.setBatching(true);
+        stream(streamer, 50);
+        streamer.flush();
+        assertEquals(50 * FRAME_SIZE, mSink.getSent().length);
+        assertEquals(5, mSink.mMessages);
+    }
+
+    private AudioStreamer newStreamer(AudioEncoder encoder) {
+        return new AudioStreamer(mRing, FRAME_SIZE, POOL_SIZE,
+                AudioRingBuffer.bytesForMillis(20000, SAMPLE_RATE),
+                AudioRingBuffer.bytesForMillis(200, SAMPLE_RATE), encoder, mSink);
+    }
+
+    /**
+     * Captures and sends the frames the way the recorder and the sender do.
+     */
+    private void stream(AudioStreamer streamer, int frames) {
+        for (int i = 0; i < frames; i++) {
+            fillFrame();
+            mFrame.clear();
+            mRing.write(mFrame);
+            while (streamer.available() >= streamer.getChunkSize()) {
+                AudioChunk chunk = streamer.take();
+                streamer.send(chunk);
+                chunk.recycle();
+            }
+        }
+    }
+
+    private void fillFrame() {
+        mFrame.clear();
+        while (mFrame.hasRemaining()) {
+            double t = (double) mCaptured++ / SAMPLE_RATE;
+            mFrame.putShort((short) (8000 * Math.sin(2 * Math.PI * 220 * t)
+                    * Math.sin(2 * Math.PI * 3 * t)));
+        }
+    }
+
+    private void assertNoAllocationPerChunk(AudioEncoder encoder) {
+        com.sun.management.ThreadMXBean threads = allocationCounter();
+        AudioStreamer streamer = newStreamer(encoder);
+        // fills the pool, the batch and the JIT
+        for (int i = 0; i < 4; i++) {
+            streamer.setBatching(i % 2 == 1);
+            stream(streamer, CHUNKS);
+            streamer.acknowledge(0);
+        }
+        final int allocatedChunks = streamer.getAllocatedChunkCount();
+
+        for (boolean isBatching : new boolean[]{false, true}) {
+            streamer.setBatching(isBatching);
+            final long id = Thread.currentThread().getId();
+            long overhead = -threads.getThreadAllocatedBytes(id);
+            overhead += threads.getThreadAllocatedBytes(id);
+            long allocated = -threads.getThreadAllocatedBytes(id);
+            stream(streamer, CHUNKS);
+            allocated += threads.getThreadAllocatedBytes(id);
+            assertEquals("bytes allocated for " + CHUNKS + " chunks, batching " + isBatching,
+                    0, Math.max(0, allocated - overhead));
+        }
+        assertEquals(allocatedChunks, streamer.getAllocatedChunkCount());
+        assertFalse(mRing.getOverrunCount() > 0);
+    }
+
+    private static com.sun.management.ThreadMXBean allocationCounter() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue("allocations cannot be measured on this JVM",
+                threads instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+        Assume.assumeTrue(counter.isThreadAllocatedMemorySupported());
+        counter.setThreadAllocatedMemoryEnabled(true);
+        return counter;
+    }
+}
@@ -0,0 +1,79 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class EndpointerTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME_MILLIS = 20;
+    private static final int FRAME_SIZE = AudioRingBuffer.bytesForMillis(FRAME_MILLIS, SAMPLE_RATE);
+
+    @Test
+    public void endsTheConfiguredSilenceAfterTheLastSpeech() {
+        for (int silenceMillis : new int[]{500, 1000}) {
+            byte[] pcm = Signals.concat(Signals.noise(500, SAMPLE_RATE, 100, 1),
+                    Signals.tone(1000, SAMPLE_RATE, 300, 8000),
+                    Signals.noise(3000, SAMPLE_RATE, 100, 1));
+            // the hangover is part of the silence
+            assertEquals(1500 + silenceMillis, endpointMillis(silenceMillis, pcm));
+        }
+    }
+
+    @Test
+    public void endsOnlyOnce() {
+        byte[] utterance = Signals.concat(Signals.tone(500, SAMPLE_RATE, 300, 8000),
+                Signals.noise(1500, SAMPLE_RATE, 100, 2));
+        Endpointer endpointer = new Endpointer(SAMPLE_RATE, 1000);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+        int endpoints = 0;
+        for (int i = 0; i < 3; i++) {
+            for (int offset = 0; offset + FRAME_SIZE <= utterance.length; offset += FRAME_SIZE) {
+                frame.clear();
+                frame.put(utterance, offset, FRAME_SIZE);
+                if (endpointer.process(frame, FRAME_SIZE)) {
+                    endpoints++;
+                }
+            }
+        }
+        assertEquals(1, endpoints);
+    }
+
+    @Test
+    public void waitsForSpeechBeforeCountingSilence() {
+        assertEquals(-1, endpointMillis(500, new byte[AudioRingBuffer.bytesForMillis(5000,
+                SAMPLE_RATE)]));
+        assertEquals(-1, endpointMillis(500, Signals.noise(5000, SAMPLE_RATE, 1000, 3)));
+        // a click is too short to start an utterance
+        assertEquals(-1, endpointMillis(500, Signals.concat(Signals.noise(500, SAMPLE_RATE, 100, 4),
+                Signals.tone(60, SAMPLE_RATE, 300, 8000),
+                Signals.noise(3000, SAMPLE_RATE, 100, 4))));
+    }
+
+    @Test
+    public void gapsBetweenWordsDoNotEndTheUtterance() {
+        // syllables with short gaps for two seconds, then the pause of the third
+        long endpoint = endpointMillis(500, Signals.speech(3000, SAMPLE_RATE, 5));
+        assertTrue("endpoint at " + endpoint + " ms", endpoint > 2000 && endpoint <= 2500);
+    }
+
+    /**
+     * @return the end of the frame that reached the endpoint, -1 if none did
+     */
+    private static long endpointMillis(int silenceMillis, byte[] pcm) {
+        Endpointer endpointer = new Endpointer(SAMPLE_RATE, silenceMillis);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+        for (int offset = 0; offset + FRAME_SIZE <= pcm.length; offset += FRAME_SIZE) {
+            frame.clear();
+            frame.put(pcm, offset, FRAME_SIZE);
+            if (endpointer.process(frame, FRAME_SIZE)) {
+                return (offset + FRAME_SIZE) * 1000L / (2 * SAMPLE_RATE);
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,55 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.jflac.FLACDecoder;
+import org.jflac.PCMProcessor;
+import org.jflac.metadata.StreamInfo;
+import org.jflac.util.ByteData;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertArrayEquals;
+
+public class FlacEncoderTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    @Test
+    public void roundTripIsLossless() throws IOException {
+        final byte[] pcm = Signals.speech(3000, SAMPLE_RATE, 2);
+        for (int frameMillis : new int[]{20, 40, 100}) {
+            final int frameBytes = AudioRingBuffer.bytesForMillis(frameMillis, SAMPLE_RATE);
+            AudioEncoder encoder = AudioEncoders.create(AudioEncoders.ENCODING_FLAC, SAMPLE_RATE,
+                    frameBytes / 2);
+            ByteArrayOutputStream flac = new ByteArrayOutputStream();
+            AudioEncoder.Output out = flac::write;
+            // uneven pieces, so that blocks straddle them
+            for (int offset = 0, length = 2; offset < pcm.length; offset += length, length += 2) {
+                length = Math.min(length, pcm.length - offset);
+                encoder.encode(pcm, offset, length, out);
+            }
+            encoder.flush(out);
+
+            assertArrayEquals("frames of " + frameMillis + " ms", pcm, decode(flac.toByteArray()));
+        }
+    }
+
+    private static byte[] decode(byte[] flac) throws IOException {
+        FLACDecoder decoder = new FLACDecoder(new ByteArrayInputStream(flac));
+        final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+        decoder.addPCMProcessor(new PCMProcessor() {
+            @Override
+            public void processStreamInfo(StreamInfo info) {
+            }
+
+            @Override
+            public void processPCM(ByteData data) {
+                decoded.write(data.getData(), 0, data.getLen());
+            }
+        });
+        decoder.decode();
+        return decoded.toByteArray();
+    }
+}
@@ -0,0 +1,99 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class LevelMeterTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    @Test
+    public void windowEnergyIsTheSumOverTheLatestFrames() {
+        short[] samples = samples(Signals.speech(3000, SAMPLE_RATE, 1));
+        for (int window : new int[]{1, 100, SAMPLE_RATE / 4, SAMPLE_RATE, 10 * SAMPLE_RATE}) {
+            for (int step : new int[]{0, 1, 37}) {
+                assertWindowEnergy(samples, window, step);
+            }
+        }
+    }
+
+    @Test
+    public void clippedSamplesAreCounted() {
+        short[] frame = samples(Signals.speech(40, SAMPLE_RATE, 2));
+        frame[0] = Short.MAX_VALUE;
+        frame[1] = Short.MIN_VALUE;
+        frame[frame.length - 1] = Short.MAX_VALUE;
+        int expected = 0;
+        for (short sample : frame) {
+            if (sample == Short.MAX_VALUE || sample == Short.MIN_VALUE) {
+                expected++;
+            }
+        }
+        LevelMeter meter = new LevelMeter(SAMPLE_RATE);
+        meter.process(frame, frame.length);
+        assertEquals(expected, meter.getFrameClipped());
+
+        // only the latest frame counts
+        meter.process(new short[frame.length], frame.length);
+        assertEquals(0, meter.getFrameClipped());
+    }
+
+    @Test
+    public void rmsdbOfTheLatestFrame() {
+        LevelMeter meter = new LevelMeter(SAMPLE_RATE);
+        assertEquals(0, meter.getRmsdb(), 0);
+
+        short[] frame = new short[640];
+        Arrays.fill(frame, (short) 1000);
+        meter.process(frame, frame.length);
+        assertEquals(30, meter.getRmsdb(), 1e-4);
+
+        meter.process(new short[640], 640);
+        assertEquals(0, meter.getRmsdb(), 0);
+
+        meter.process(frame, 0);
+        assertEquals(0, meter.getRmsdb(), 0);
+    }
+
+    /**
+     * Feeds the samples in frames {@code step} samples longer each time, and compares the
+     * window energy to a direct sum over the fewest latest frames that cover the window,
+     * at most the 128 latest ones.
+     */
+    private static void assertWindowEnergy(short[] samples, int window, int step) {
+        LevelMeter meter = new LevelMeter(window);
+        short[] frame = new short[samples.length];
+        List<Integer> starts = new ArrayList<>();
+        int end = 0;
+        for (int count = 1; end + count <= samples.length; end += count, count += step) {
+            System.arraycopy(samples, end, frame, 0, count);
+            meter.process(frame, count);
+            starts.add(end);
+
+            int begin = end + count;
+            for (int k = starts.size() - 1; k >= Math.max(0, starts.size() - 128)
+                    && end + count - begin < window; k--) {
+                begin = starts.get(k);
+            }
+            long expected = 0;
+            for (int i = begin; i < end + count; i++) {
+                expected += samples[i] * samples[i];
+            }
+            assertEquals("window " + window + ", step " + step + ", at " + end,
+                    expected, meter.getWindowEnergy());
+        }
+    }
+
+    private static short[] samples(byte[] pcm) {
+        short[] samples = new short[pcm.length / 2];
+        ByteBuffer.wrap(pcm).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+        return samples;
+    }
+}
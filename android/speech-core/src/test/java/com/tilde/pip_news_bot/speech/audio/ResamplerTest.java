@@ -0,0 +1,176 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ResamplerTest {
+
+    private static final int OUTPUT_RATE = 16000;
+    private static final int[] INPUT_RATES = {48000, 44100};
+    private static final int FRAME_MILLIS = 40;
+    private static final double AMPLITUDE = 10000;
+
+    @Test
+    public void passbandKeepsTheAmplitude() {
+        for (int inputRate : INPUT_RATES) {
+            // flat up to 5 kHz, the filter rolls off from 0.9 of the new Nyquist frequency
+            for (double frequency : new double[]{300, 1000, 3000, 5000}) {
+                byte[] out = resample(Signals.tone(2000, inputRate, frequency, AMPLITUDE),
+                        inputRate, FRAME_MILLIS);
+                double amplitude = amplitude(steadyState(out), frequency);
+                assertEquals(inputRate + " Hz, " + frequency + " Hz",
+                        AMPLITUDE, amplitude, AMPLITUDE * 0.01);
+            }
+        }
+    }
+
+    @Test
+    public void rejectsWhatIsAboveTheNewNyquist() {
+        for (int inputRate : INPUT_RATES) {
+            assertTrue(gainDb(inputRate, OUTPUT_RATE / 2) < -12);
+            // past the transition band, only what the Q15 coefficients round to is left
+            for (double frequency : new double[]{11000, 12000, 16000, 20000}) {
+                double db = gainDb(inputRate, frequency);
+                assertTrue(inputRate + " Hz, " + frequency + " Hz aliased at " + db + " dB",
+                        db < -70);
+            }
+        }
+    }
+
+    @Test
+    public void passesDcUnchanged() {
+        for (int inputRate : INPUT_RATES) {
+            byte[] in = new byte[2 * inputRate];
+            ByteBuffer.wrap(in).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+                    .put(constant(inputRate, (short) -12345));
+            short[] out = steadyState(resample(in, inputRate, FRAME_MILLIS));
+            short[] expected = new short[out.length];
+            Arrays.fill(expected, (short) -12345);
+            assertArrayEquals(expected, out);
+        }
+    }
+
+    @Test
+    public void outputLengthFollowsTheRateOverManyChunks() {
+        for (int inputRate : INPUT_RATES) {
+            final int frame = inputRate * FRAME_MILLIS / 1000;
+            Resampler resampler = new Resampler(inputRate, OUTPUT_RATE, frame);
+            ByteBuffer in = ByteBuffer.allocate(2 * frame).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer out = ByteBuffer.allocate(2 * resampler.getMaxOutputSamples(frame))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            long inputSamples = 0;
+            long outputSamples = 0;
+            // an hour of 40 ms frames
+            for (int i = 0; i < 90000; i++) {
+                int produced = resampler.process(in, 2 * frame, out) / 2;
+                assertTrue(produced <= resampler.getMaxOutputSamples(frame));
+                inputSamples += frame;
+                outputSamples += produced;
+                long expected = inputSamples * OUTPUT_RATE / inputRate;
+                assertTrue(inputRate + " Hz, frame " + i + ": " + outputSamples + " samples",
+                        Math.abs(outputSamples - expected) <= 1);
+            }
+        }
+    }
+
+    @Test
+    public void chunkBoundariesDoNotChangeTheOutput() {
+        for (int inputRate : INPUT_RATES) {
+            byte[] in = Signals.speech(3000, inputRate, 3);
+            byte[] whole = resample(in, inputRate, 3000);
+            for (int millis : new int[]{1, 10, 23, FRAME_MILLIS}) {
+                assertArrayEquals(inputRate + " Hz in " + millis + " ms chunks",
+                        whole, resample(in, inputRate, millis));
+            }
+        }
+    }
+
+    @Test
+    public void resetStartsTheStreamAnew() {
+        byte[] in = Signals.speech(500, 48000, 4);
+        Resampler resampler = new Resampler(48000, OUTPUT_RATE, in.length / 2);
+        ByteBuffer out = ByteBuffer.allocate(2 * resampler.getMaxOutputSamples(in.length / 2));
+        int first = resampler.process(ByteBuffer.wrap(in), in.length, out);
+        byte[] expected = Arrays.copyOf(out.array(), first);
+        resampler.process(ByteBuffer.wrap(in), in.length, out);
+        resampler.reset();
+        int again = resampler.process(ByteBuffer.wrap(in), in.length, out);
+        assertArrayEquals(expected, Arrays.copyOf(out.array(), again));
+    }
+
+    private static double gainDb(int inputRate, double frequency) {
+        byte[] out = resample(Signals.tone(2000, inputRate, frequency, AMPLITUDE), inputRate,
+                FRAME_MILLIS);
+        return 20 * Math.log10(rms(steadyState(out)) / (AMPLITUDE / Math.sqrt(2)));
+    }
+
+    /**
+     * Resamples to {@link #OUTPUT_RATE} in chunks of {@code millis}, the way the recorder does
+     * with its frames.
+     */
+    private static byte[] resample(byte[] pcm, int inputRate, int millis) {
+        final int chunk = 2 * (inputRate * millis / 1000);
+        Resampler resampler = new Resampler(inputRate, OUTPUT_RATE, chunk / 2);
+        ByteBuffer in = ByteBuffer.allocate(chunk).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer out = ByteBuffer.allocate(2 * resampler.getMaxOutputSamples(chunk / 2))
+                .order(ByteOrder.LITTLE_ENDIAN);
+        byte[] resampled = new byte[2 * resampler.getMaxOutputSamples(pcm.length / 2)];
+        int length = 0;
+        for (int offset = 0; offset < pcm.length; offset += chunk) {
+            final int count = Math.min(chunk, pcm.length - offset);
+            in.clear();
+            in.put(pcm, offset, count);
+            final int produced = resampler.process(in, count, out);
+            System.arraycopy(out.array(), 0, resampled, length, produced);
+            length += produced;
+        }
+        return Arrays.copyOf(resampled, length);
+    }
+
+    /**
+     * @return the samples without the first and last 100 ms, where the filter is not yet
+     * or no longer filled
+     */
+    private static short[] steadyState(byte[] pcm) {
+        short[] samples = new short[pcm.length / 2];
+        ByteBuffer.wrap(pcm).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+        return Arrays.copyOfRange(samples, OUTPUT_RATE / 10, samples.length - OUTPUT_RATE / 10);
+    }
+
+    /**
+     * @return the amplitude of the {@code frequency} component, correlated over whole periods
+     */
+    private static double amplitude(short[] samples, double frequency) {
+        final int periods = (int) (samples.length * frequency / OUTPUT_RATE);
+        final int length = (int) Math.round(periods * OUTPUT_RATE / frequency);
+        double sin = 0;
+        double cos = 0;
+        for (int i = 0; i < length; i++) {
+            final double phase = 2 * Math.PI * frequency * i / OUTPUT_RATE;
+            sin += samples[i] * Math.sin(phase);
+            cos += samples[i] * Math.cos(phase);
+        }
+        return 2 * Math.hypot(sin, cos) / length;
+    }
+
+    private static double rms(short[] samples) {
+        double sum = 0;
+        for (short sample : samples) {
+            sum += (double) sample * sample;
+        }
+        return Math.sqrt(sum / samples.length);
+    }
+
+    private static short[] constant(int length, short value) {
+        short[] samples = new short[length];
+        Arrays.fill(samples, value);
+        return samples;
+    }
+}
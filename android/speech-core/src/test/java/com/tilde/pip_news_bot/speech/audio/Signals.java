@@ -0,0 +1,87 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import java.util.Random;
+
+/**
+ * Synthetic 16-bit little-endian mono audio.
+ */
+final class Signals {
+
+    private Signals() {
+    }
+
+    /**
+     * @return {@code millis} of a voiced-speech-like signal: a gliding harmonic tone with
+     * syllable-rate bursts, pauses and some noise
+     */
+    static byte[] speech(int millis, int sampleRate, long seed) {
+        Random random = new Random(seed);
+        int samples = sampleRate * millis / 1000;
+        byte[] pcm = new byte[2 * samples];
+        double phase = 0;
+        for (int i = 0; i < samples; i++) {
+            double t = (double) i / sampleRate;
+            double pitch = 120 + 40 * Math.sin(2 * Math.PI * 0.7 * t);
+            phase += 2 * Math.PI * pitch / sampleRate;
+            double envelope = Math.max(0, Math.sin(2 * Math.PI * 4 * t));
+            if ((int) t % 3 == 2) {
+                // a pause every third second
+                envelope = 0;
+            }
+            double v = envelope * (6000 * Math.sin(phase) + 3000 * Math.sin(3 * phase)
+                    + 1500 * Math.sin(5 * phase)) + 200 * random.nextGaussian();
+            int s = (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+            pcm[2 * i] = (byte) s;
+            pcm[2 * i + 1] = (byte) (s >> 8);
+        }
+        return pcm;
+    }
+
+    /**
+     * @return {@code millis} of white noise of the given RMS
+     */
+    static byte[] noise(int millis, int sampleRate, double rms, long seed) {
+        Random random = new Random(seed);
+        int samples = (int) ((long) sampleRate * millis / 1000);
+        byte[] pcm = new byte[2 * samples];
+        for (int i = 0; i < samples; i++) {
+            double v = rms * random.nextGaussian();
+            int s = (int) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, v));
+            pcm[2 * i] = (byte) s;
+            pcm[2 * i + 1] = (byte) (s >> 8);
+        }
+        return pcm;
+    }
+
+    /**
+     * @return the recordings one after another
+     */
+    static byte[] concat(byte[]... recordings) {
+        int length = 0;
+        for (byte[] recording : recordings) {
+            length += recording.length;
+        }
+        byte[] pcm = new byte[length];
+        int offset = 0;
+        for (byte[] recording : recordings) {
+            System.arraycopy(recording, 0, pcm, offset, recording.length);
+            offset += recording.length;
+        }
+        return pcm;
+    }
+
+    /**
+     * @return {@code millis} of a sine tone of {@code amplitude}
+     */
+    static byte[] tone(int millis, int sampleRate, double frequency, double amplitude) {
+        int samples = (int) ((long) sampleRate * millis / 1000);
+        byte[] pcm = new byte[2 * samples];
+        for (int i = 0; i < samples; i++) {
+            double t = (double) i / sampleRate;
+            int s = (int) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * t));
+            pcm[2 * i] = (byte) s;
+            pcm[2 * i + 1] = (byte) (s >> 8);
+        }
+        return pcm;
+    }
+}
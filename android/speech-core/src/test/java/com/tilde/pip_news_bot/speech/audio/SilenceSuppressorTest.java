@@ -0,0 +1,129 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SilenceSuppressorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME_MILLIS = 20;
+    private static final int FRAME_SIZE = AudioRingBuffer.bytesForMillis(FRAME_MILLIS, SAMPLE_RATE);
+    private static final int PRE_ROLL_CHUNKS = 5;
+    private static final int KEEP_ALIVE_MILLIS = 1000;
+
+    /**
+     * Keeps copies of the chunks sent, as they are recycled once sent.
+     */
+    private static final class Sink implements SilenceSuppressor.Sink {
+        final List<byte[]> mSent = new ArrayList<>();
+
+        @Override
+        public void send(AudioChunk chunk) {
+            mSent.add(Arrays.copyOf(chunk.getData(), chunk.getLength()));
+        }
+    }
+
+    private final AudioChunkPool mPool = new AudioChunkPool(FRAME_SIZE, PRE_ROLL_CHUNKS + 2);
+    private final SilenceSuppressor mSuppressor =
+            new SilenceSuppressor(SAMPLE_RATE, PRE_ROLL_CHUNKS, KEEP_ALIVE_MILLIS);
+    private final Sink mSink = new Sink();
+    private final byte[] mTone = Signals.tone(FRAME_MILLIS, SAMPLE_RATE, 300, 8000);
+    private long mProcessed;
+
+    @Test
+    public void replaysThePreRollAheadOfSpeech() {
+        for (int i = 1; i <= 20; i++) {
+            process(silence(i));
+        }
+        assertEquals(0, mSink.mSent.size());
+        process(mTone);
+
+        assertEquals(PRE_ROLL_CHUNKS + 1, mSink.mSent.size());
+        for (int i = 0; i < PRE_ROLL_CHUNKS; i++) {
+            assertArrayEquals(silence(20 - PRE_ROLL_CHUNKS + 1 + i), mSink.mSent.get(i));
+        }
+        assertArrayEquals(mTone, mSink.mSent.get(PRE_ROLL_CHUNKS));
+    }
+
+    @Test
+    public void sendsAChunkOfSilenceEveryKeepAliveInterval() {
+        final int chunks = 3000 / FRAME_MILLIS;
+        for (int i = 1; i <= chunks; i++) {
+            process(silence(i));
+        }
+
+        // the oldest of the pre-roll goes out once the interval has passed
+        final int interval = KEEP_ALIVE_MILLIS / FRAME_MILLIS;
+        assertEquals(chunks / interval, mSink.mSent.size());
+        for (int i = 0; i < mSink.mSent.size(); i++) {
+            assertArrayEquals(silence((i + 1) * interval - PRE_ROLL_CHUNKS),
+                    mSink.mSent.get(i));
+        }
+    }
+
+    @Test
+    public void speechAndItsHangoverAreSentAsTheyCome() {
+        for (int i = 1; i <= 10; i++) {
+            process(silence(i));
+        }
+        process(mTone);
+        final int hangoverChunks = 300 / FRAME_MILLIS;
+        for (int i = 1; i <= hangoverChunks; i++) {
+            process(silence(100 + i));
+            assertArrayEquals(silence(100 + i), mSink.mSent.get(mSink.mSent.size() - 1));
+        }
+        assertEquals(PRE_ROLL_CHUNKS + 1 + hangoverChunks, mSink.mSent.size());
+        process(silence(200));
+        assertEquals(PRE_ROLL_CHUNKS + 1 + hangoverChunks, mSink.mSent.size());
+    }
+
+    @Test
+    public void accountsForEveryByteAndRecyclesEveryChunk() {
+        byte[] pcm = Signals.concat(Signals.noise(2000, SAMPLE_RATE, 30, 1),
+                Signals.speech(3000, SAMPLE_RATE, 1), Signals.noise(2000, SAMPLE_RATE, 30, 1));
+        for (int offset = 0; offset < pcm.length; offset += FRAME_SIZE) {
+            process(Arrays.copyOfRange(pcm, offset, Math.min(pcm.length, offset + FRAME_SIZE)));
+            long held = mProcessed - mSuppressor.getBytesSent() - mSuppressor.getBytesSuppressed();
+            assertTrue(held >= 0 && held <= PRE_ROLL_CHUNKS * FRAME_SIZE);
+        }
+        mSuppressor.clear();
+
+        long sent = 0;
+        for (byte[] chunk : mSink.mSent) {
+            sent += chunk.length;
+        }
+        assertEquals(sent, mSuppressor.getBytesSent());
+        assertEquals(pcm.length, mSuppressor.getBytesSent() + mSuppressor.getBytesSuppressed());
+        assertTrue(mSuppressor.getBytesSuppressed() > 0);
+        // every chunk came back, or the pool would have had to allocate more
+        assertTrue(mPool.getAllocatedCount() <= PRE_ROLL_CHUNKS + 1);
+        mSuppressor.clear();
+        assertEquals(pcm.length, mSuppressor.getBytesSent() + mSuppressor.getBytesSuppressed());
+    }
+
+    private void process(byte[] pcm) {
+        AudioChunk chunk = mPool.acquire();
+        System.arraycopy(pcm, 0, chunk.getData(), 0, pcm.length);
+        chunk.setLength(pcm.length);
+        mProcessed += pcm.length;
+        mSuppressor.process(chunk, mSink);
+    }
+
+    /**
+     * @return a frame of silence that carries {@code id} in its first sample, far too quiet
+     * to be speech
+     */
+    private static byte[] silence(int id) {
+        byte[] frame = new byte[FRAME_SIZE];
+        frame[0] = (byte) id;
+        frame[1] = (byte) (id >> 8);
+        return frame;
+    }
+}
@@ -0,0 +1,86 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VoiceActivityDetectorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME_MILLIS = 20;
+    private static final int FRAME_SIZE = AudioRingBuffer.bytesForMillis(FRAME_MILLIS, SAMPLE_RATE);
+    private static final int HANGOVER_MILLIS = 200;
+
+    private final VoiceActivityDetector mVad =
+            new VoiceActivityDetector(SAMPLE_RATE, HANGOVER_MILLIS);
+
+    @Test
+    public void silenceAndSteadyNoiseAreNotSpeech() {
+        assertEquals(0, speechFrames(new byte[AudioRingBuffer.bytesForMillis(2000, SAMPLE_RATE)]));
+        mVad.reset();
+        assertEquals(0, speechFrames(Signals.noise(5000, SAMPLE_RATE, 1000, 1)));
+    }
+
+    @Test
+    public void speechIsDetectedOverNoise() {
+        speechFrames(Signals.noise(1000, SAMPLE_RATE, 200, 2));
+        int frames = speechFrames(Signals.speech(2000, SAMPLE_RATE, 2));
+        // the syllables take about half of the time, some of their edges are too quiet
+        assertTrue("speech frames: " + frames, frames > 30 && frames < 70);
+    }
+
+    @Test
+    public void theFloorFollowsQuieterNoiseQuickly() {
+        speechFrames(Signals.noise(1000, SAMPLE_RATE, 8000, 3));
+        speechFrames(Signals.noise(200, SAMPLE_RATE, 100, 3));
+        assertTrue(speechFrames(Signals.tone(200, SAMPLE_RATE, 500, 2000)) > 0);
+    }
+
+    @Test
+    public void hangoverBridgesTheGapAfterSpeech() {
+        speechFrames(new byte[AudioRingBuffer.bytesForMillis(500, SAMPLE_RATE)]);
+        byte[] tone = Signals.tone(FRAME_MILLIS, SAMPLE_RATE, 500, 8000);
+        assertTrue(mVad.process(ByteBuffer.wrap(tone), tone.length));
+        assertTrue(mVad.isSpeechFrame());
+
+        byte[] silence = new byte[FRAME_SIZE];
+        for (int millis = FRAME_MILLIS; millis <= HANGOVER_MILLIS; millis += FRAME_MILLIS) {
+            assertTrue("hangover at " + millis + " ms", mVad.process(silence, 0, FRAME_SIZE));
+            assertFalse(mVad.isSpeechFrame());
+        }
+        assertFalse(mVad.process(silence, 0, FRAME_SIZE));
+    }
+
+    @Test
+    public void arraysAndBuffersAgree() {
+        byte[] pcm = Signals.concat(Signals.noise(300, SAMPLE_RATE, 300, 4),
+                Signals.speech(1000, SAMPLE_RATE, 4));
+        VoiceActivityDetector buffers = new VoiceActivityDetector(SAMPLE_RATE, HANGOVER_MILLIS);
+        ByteBuffer frame = ByteBuffer.allocate(FRAME_SIZE);
+        for (int offset = 0; offset + FRAME_SIZE <= pcm.length; offset += FRAME_SIZE) {
+            frame.clear();
+            frame.put(pcm, offset, FRAME_SIZE);
+            assertEquals(mVad.process(pcm, offset, FRAME_SIZE),
+                    buffers.process(frame, FRAME_SIZE));
+            assertEquals(mVad.isSpeechFrame(), buffers.isSpeechFrame());
+        }
+    }
+
+    /**
+     * @return number of whole frames that are speech themselves
+     */
+    private int speechFrames(byte[] pcm) {
+        int frames = 0;
+        for (int offset = 0; offset + FRAME_SIZE <= pcm.length; offset += FRAME_SIZE) {
+            mVad.process(pcm, offset, FRAME_SIZE);
+            if (mVad.isSpeechFrame()) {
+                frames++;
+            }
+        }
+        return frames;
+    }
+}
@@ -0,0 +1,106 @@
+package com.tilde.pip_news_bot.speech.audio;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+public class WavWriterTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final byte[] mPcm = Signals.speech(1000, SAMPLE_RATE, 2);
+
+    @Test
+    public void streamedFileEqualsTheRecordingFramedInMemory() throws IOException {
+        for (int sampleRate : new int[]{8000, SAMPLE_RATE}) {
+            WavWriter writer = new WavWriter(mFolder.newFile(), sampleRate);
+            writeInPieces(writer);
+            writer.close();
+
+            byte[] wav = Files.readAllBytes(writer.getFile().toPath());
+            assertArrayEquals(AudioUtils.getRecordingAsWav(mPcm, sampleRate), wav);
+            ByteBuffer header = ByteBuffer.wrap(wav).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals("RIFF", new String(wav, 0, 4, StandardCharsets.US_ASCII));
+            assertEquals(wav.length - 8, header.getInt(4));
+            assertEquals("WAVE", new String(wav, 8, 4, StandardCharsets.US_ASCII));
+            assertEquals(1, header.getShort(22));
+            assertEquals(sampleRate, header.getInt(24));
+            assertEquals(2 * sampleRate, header.getInt(28));
+            assertEquals(16, header.getShort(34));
+            assertEquals("data", new String(wav, 36, 4, StandardCharsets.US_ASCII));
+            assertEquals(mPcm.length, header.getInt(40));
+        }
+    }
+
+    @Test
+    public void unclosedFileHasEmptySizes() throws IOException {
+        WavWriter writer = new WavWriter(mFolder.newFile(), SAMPLE_RATE);
+        writeInPieces(writer);
+
+        byte[] wav = Files.readAllBytes(writer.getFile().toPath());
+        ByteBuffer header = ByteBuffer.wrap(wav).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals(AudioUtils.WAV_HEADER_LENGTH + mPcm.length, wav.length);
+        assertEquals(AudioUtils.WAV_HEADER_LENGTH - 8, header.getInt(4));
+        assertEquals(0, header.getInt(40));
+        assertArrayEquals(mPcm,
+                Arrays.copyOfRange(wav, AudioUtils.WAV_HEADER_LENGTH, wav.length));
+        writer.close();
+    }
+
+    @Test
+    public void ignoresWritesOnceClosed() throws IOException {
+        WavWriter writer = new WavWriter(mFolder.newFile(), SAMPLE_RATE);
+        writeInPieces(writer);
+        writer.close();
+        writer.write(mPcm, 0, mPcm.length);
+        writer.close();
+
+        assertEquals(mPcm.length, writer.getDataLength());
+        assertArrayEquals(AudioUtils.getRecordingAsWav(mPcm, SAMPLE_RATE),
+                Files.readAllBytes(writer.getFile().toPath()));
+    }
+
+    @Test
+    public void archiveKeepsTheLatestRecordings() throws IOException {
+        AudioArchive archive = new AudioArchive(mFolder.newFolder(), 3);
+        File first = null;
+        for (int i = 0; i < 5; i++) {
+            WavWriter writer = archive.begin(SAMPLE_RATE);
+            writeInPieces(writer);
+            writer.close();
+            if (first == null) {
+                first = writer.getFile();
+            }
+        }
+
+        List<File> recordings = archive.list();
+        assertEquals(3, recordings.size());
+        assertFalse(first.exists());
+        for (File recording : recordings) {
+            assertArrayEquals(AudioUtils.getRecordingAsWav(mPcm, SAMPLE_RATE),
+                    Files.readAllBytes(recording.toPath()));
+        }
+    }
+
+    private void writeInPieces(WavWriter writer) throws IOException {
+        for (int offset = 0; offset < mPcm.length; offset += 999) {
+            writer.write(mPcm, offset, Math.min(999, mPcm.length - offset));
+        }
+    }
+}
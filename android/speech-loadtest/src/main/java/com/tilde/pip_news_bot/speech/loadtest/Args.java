@@ -0,0 +1,63 @@
+package com.tilde.pip_news_bot.speech.loadtest;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Command line options of the form {@code --name value}.
+ */
+final class Args {
+
+    private final Map<String, String> mValues = new HashMap<>();
+    private final Set<String> mUsed = new HashSet<>();
+
+    Args(String[] args) {
+        for (int i = 0; i < args.length; i += 2) {
+            if (!args[i].startsWith("--") || i + 1 == args.length) {
+                throw new IllegalArgumentException("Expected --name value, got: " + args[i]);
+            }
+            mValues.put(args[i].substring(2), args[i + 1]);
+        }
+    }
+
+    String getString(String name, String defaultValue) {
+        mUsed.add(name);
+        final String value = mValues.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    int getInt(String name, int defaultValue) {
+        return (int) getLong(name, defaultValue);
+    }
+
+    long getLong(String name, long defaultValue) {
+        final String value = getString(name, null);
+        try {
+            return value == null ? defaultValue : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " must be a number: " + value);
+        }
+    }
+
+    double getDouble(String name, double defaultValue) {
+        final String value = getString(name, null);
+        try {
+            return value == null ? defaultValue : Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("--" + name + " must be a number: " + value);
+        }
+    }
+
+    /**
+     * Fails if an option was given that none of the getters asked for, e.g. a misspelt one.
+     */
+    void checkAllUsed() {
+        for (String name : mValues.keySet()) {
+            if (!mUsed.contains(name)) {
+                throw new IllegalArgumentException("Unknown option: --" + name);
+            }
+        }
+    }
+}
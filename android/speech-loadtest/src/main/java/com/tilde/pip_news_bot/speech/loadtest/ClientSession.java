@@ -0,0 +1,223 @@
+package com.tilde.pip_news_bot.speech.loadtest;
+
+import com.tilde.pip_news_bot.speech.WebSocketResponse;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+
+/**
+ * One client session as the app runs it: the auth message once the socket is open, the audio
+ * in frames paced like capture, then EOS, and the responses until the server closes.
+ * <p>
+ * The times of the phases are taken with {@link System#nanoTime()}, 0 for phases that were
+ * never reached.
+ */
+final class ClientSession extends WebSocketListener {
+
+    interface Callback {
+        /**
+         * Called once, from an OkHttp thread, when the socket has closed or failed.
+         */
+        void onEnded(ClientSession session);
+    }
+
+    static final String OUTCOME_OK = "ok";
+    static final String OUTCOME_FAILED = "failed";
+    static final String OUTCOME_NO_RESULT = "no_result";
+    static final String OUTCOME_PARSE_ERROR = "parse_error";
+
+    private static final String EOS = "EOS";
+
+    private final byte[] mAudio;
+    private final int mFrameBytes;
+    // 0 for as fast as the socket takes it
+    private final long mFramePeriodNanos;
+    private final String mAuthMessage;
+    private final ScheduledExecutorService mSender;
+    private final Callback mCallback;
+    private final AtomicBoolean mIsEnded = new AtomicBoolean();
+
+    private volatile WebSocket mWebSocket;
+    private volatile int mOffset;
+    // set by the sender
+    private volatile long mFirstFrameNanos;
+    private volatile long mEosNanos;
+    // set by the OkHttp threads
+    private volatile long mStartNanos;
+    private volatile long mOpenNanos;
+    private volatile long mFirstPartialNanos;
+    private volatile long mFinalNanos;
+    private volatile long mEndNanos;
+    private volatile int mMessageCount;
+    private volatile String mOutcome;
+
+    /**
+     * @param audio sent as it is, may be empty
+     */
+    ClientSession(byte[] audio, int frameBytes, long framePeriodNanos, String authMessage,
+                  ScheduledExecutorService sender, Callback callback) {
+        mAudio = audio;
+        mFrameBytes = frameBytes;
+        mFramePeriodNanos = framePeriodNanos;
+        mAuthMessage = authMessage;
+        mSender = sender;
+        mCallback = callback;
+    }
+
+    void start(OkHttpClient client, String url) {
+        mStartNanos = System.nanoTime();
+        client.newWebSocket(new Request.Builder().url(url).build(), this);
+    }
+
+    @Override
+    public void onOpen(@NotNull WebSocket webSocket, @NotNull Response response) {
+        mOpenNanos = System.nanoTime();
+        mWebSocket = webSocket;
+        webSocket.send(mAuthMessage);
+        mSender.execute(this::sendFrames);
+    }
+
+    /**
+     * Sends the frames that are due, and schedules itself for the next one.
+     */
+    private void sendFrames() {
+        if (mIsEnded.get()) {
+            return;
+        }
+        final long now = System.nanoTime();
+        if (mFirstFrameNanos == 0) {
+            mFirstFrameNanos = now;
+        }
+        while (mOffset < mAudio.length) {
+            final long due = mFirstFrameNanos + mOffset / mFrameBytes * mFramePeriodNanos;
+            if (due > now) {
+                mSender.schedule(this::sendFrames, due - now, TimeUnit.NANOSECONDS);
+                return;
+            }
+            final int length = Math.min(mFrameBytes, mAudio.length - mOffset);
+            mWebSocket.send(ByteString.of(mAudio, mOffset, length));
+            mOffset += length;
+        }
+        // before sending, so that the time is there when the final result comes in
+        mEosNanos = System.nanoTime();
+        mWebSocket.send(EOS);
+    }
+
+    @Override
+    public void onMessage(@NotNull WebSocket webSocket, @NotNull String text) {
+        final long now = System.nanoTime();
+        mMessageCount++;
+        try {
+            WebSocketResponse response = new WebSocketResponse(text, 1);
+            final int status = response.getStatus();
+            if (status == WebSocketResponse.STATUS_SUCCESS && response.isResult()) {
+                if (response.parseResult().isFinal()) {
+                    if (mFinalNanos == 0 && mEosNanos != 0) {
+                        mFinalNanos = now;
+                        mOutcome = OUTCOME_OK;
+                    }
+                } else if (mFirstPartialNanos == 0) {
+                    mFirstPartialNanos = now;
+                }
+            } else if (status != WebSocketResponse.STATUS_SUCCESS) {
+                mOutcome = statusName(status);
+            }
+        } catch (WebSocketResponse.WebSocketResponseException e) {
+            mOutcome = OUTCOME_PARSE_ERROR;
+        }
+    }
+
+    @Override
+    public void onClosing(@NotNull WebSocket webSocket, int code, @NotNull String reason) {
+        webSocket.close(code, null);
+    }
+
+    @Override
+    public void onClosed(@NotNull WebSocket webSocket, int code, @NotNull String reason) {
+        end(null);
+    }
+
+    @Override
+    public void onFailure(@NotNull WebSocket webSocket, @NotNull Throwable t,
+                          @Nullable Response response) {
+        end(OUTCOME_FAILED);
+    }
+
+    private void end(String outcome) {
+        if (mIsEnded.compareAndSet(false, true)) {
+            mEndNanos = System.nanoTime();
+            if (outcome != null) {
+                mOutcome = outcome;
+            } else if (mOutcome == null) {
+                mOutcome = OUTCOME_NO_RESULT;
+            }
+            mCallback.onEnded(this);
+        }
+    }
+
+    String getOutcome() {
+        return mOutcome;
+    }
+
+    int getMessageCount() {
+        return mMessageCount;
+    }
+
+    /**
+     * @return bytes of audio sent
+     */
+    int getBytesSent() {
+        return mOffset;
+    }
+
+    long getConnectNanos() {
+        return between(mStartNanos, mOpenNanos);
+    }
+
+    long getFirstPartialNanos() {
+        return between(mFirstFrameNanos, mFirstPartialNanos);
+    }
+
+    long getFinalNanos() {
+        return between(mEosNanos, mFinalNanos);
+    }
+
+    long getSessionNanos() {
+        return between(mStartNanos, mEndNanos);
+    }
+
+    /**
+     * @return the time from one phase to the other, -1 if either was not reached
+     */
+    private static long between(long from, long to) {
+        return from == 0 || to == 0 ? -1 : to - from;
+    }
+
+    static String statusName(int status) {
+        switch (status) {
+            case WebSocketResponse.STATUS_SUCCESS:
+                return "success";
+            case WebSocketResponse.STATUS_NO_SPEECH:
+                return "no_speech";
+            case WebSocketResponse.STATUS_ABORTED:
+                return "aborted";
+            case WebSocketResponse.STATUS_NO_VALID_FRAMES:
+                return "no_valid_frames";
+            case WebSocketResponse.STATUS_NOT_AVAILABLE:
+                return "not_available";
+            default:
+                return "status_" + status;
+        }
+    }
+}
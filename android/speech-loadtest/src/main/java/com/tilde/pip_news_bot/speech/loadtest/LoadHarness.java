@@ -0,0 +1,292 @@
+package com.tilde.pip_news_bot.speech.loadtest;
+
+import com.tilde.pip_news_bot.speech.LatencyHistogram;
+import com.tilde.pip_news_bot.speech.audio.AudioEncoders;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.OkHttpClient;
+
+/**
+ * Runs many client sessions at once against the {@link StandInServer}, or any server that
+ * speaks the protocol, and reports throughput, the latencies of the session phases, and the
+ * threads and heap the whole JVM used. For example, 50 sessions at a time, 500 in all, each
+ * streaming 4 s of audio in real time:
+ * <pre>
+ *   ./gradlew :speech-loadtest:run --args='--sessions 50 --total 500 --audio-ms 4000'
+ * </pre>
+ * The stand-in runs in the same JVM unless --url is given, so its threads and heap are in the
+ * figures too. The options of {@link StandInServer.Options} can be given as well, e.g.
+ * --final-delay-ms, --busy-rate.
+ * <p>
+ * The phases are: connect, from asking for the socket to it being open; first partial, from
+ * the first frame sent to the first partial result; final, from EOS to the final result; and
+ * session, from asking for the socket to it being closed.
+ */
+public final class LoadHarness {
+
+    private static final String[] PHASES = {"connect", "first partial", "final", "session"};
+    // how often the threads and heap are sampled
+    private static final long SAMPLE_MILLIS = 20;
+    private static final double MB = 1024 * 1024;
+
+    private final int mSessions;
+    private final int mTotal;
+    private final int mSampleRate;
+    private final int mFrameBytes;
+    private final long mFramePeriodNanos;
+    private final double mSilenceRate;
+    private final double mEmptyRate;
+    private final String mUrl;
+    private final String mAppId;
+    private final String mAppSecret;
+    private final byte[] mSpeech;
+    private final byte[] mSilence;
+
+    // guarded by this; the histograms are in microseconds, which gives sub-millisecond
+    // resolution and still covers sessions of up to half an hour
+    private final LatencyHistogram[] mLatencies = new LatencyHistogram[PHASES.length];
+    private final Map<String, Integer> mOutcomes = new TreeMap<>();
+    private long mBytesSent;
+    private long mMessagesReceived;
+
+    private LoadHarness(Args args, String url) {
+        mSessions = args.getInt("sessions", 20);
+        mTotal = args.getInt("total", 100);
+        mSampleRate = args.getInt("rate", 16000);
+        final long frameMillis = args.getLong("frame-ms", 100);
+        // 1 streams in real time, 2 twice as fast, 0 as fast as possible
+        final double speed = args.getDouble("speed", 1);
+        final long audioMillis = args.getLong("audio-ms", 3000);
+        // shares of the sessions that send silence, and no audio at all
+        mSilenceRate = args.getDouble("silence-rate", 0);
+        mEmptyRate = args.getDouble("empty-rate", 0);
+        mAppId = args.getString("app-id", "load-harness");
+        mAppSecret = args.getString("app-secret", "");
+        mUrl = url + "/" + args.getString("system", "stand-in")
+                + AudioEncoders.getWsArgs(AudioEncoders.create(AudioEncoders.ENCODING_RAW,
+                mSampleRate, 0));
+        mFrameBytes = (int) (mSampleRate * 2L * frameMillis / 1000);
+        mFramePeriodNanos = speed > 0 ? (long) (frameMillis * 1e6 / speed) : 0;
+        mSpeech = speech(mSampleRate, audioMillis);
+        mSilence = silence(mSampleRate, audioMillis);
+        for (int i = 0; i < mLatencies.length; i++) {
+            mLatencies[i] = new LatencyHistogram();
+        }
+    }
+
+    private void run() throws InterruptedException {
+        final OkHttpClient client = new OkHttpClient();
+        // every session stands for a device of its own, so none waits for another's handshake
+        client.dispatcher().setMaxRequests(mSessions);
+        client.dispatcher().setMaxRequestsPerHost(mSessions);
+        final ScheduledExecutorService sender = Executors.newScheduledThreadPool(
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        final ResourceSampler sampler = new ResourceSampler(threads, memory);
+        final ScheduledExecutorService sampling = Executors.newSingleThreadScheduledExecutor();
+        sampling.scheduleAtFixedRate(sampler, 0, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+
+        final int threadsAtStart = threads.getThreadCount();
+        final long heapAtStart = memory.getHeapMemoryUsage().getUsed();
+        final long[] gcAtStart = gcCountAndMillis();
+        threads.resetPeakThreadCount();
+
+        final Semaphore slots = new Semaphore(mSessions);
+        final CountDownLatch ended = new CountDownLatch(mTotal);
+        final ClientSession.Callback callback = session -> {
+            record(session);
+            slots.release();
+            ended.countDown();
+        };
+        final long startNanos = System.nanoTime();
+        for (int i = 0; i < mTotal; i++) {
+            slots.acquire();
+            new ClientSession(pickAudio(), mFrameBytes, mFramePeriodNanos, authMessage(),
+                    sender, callback).start(client, mUrl);
+        }
+        ended.await();
+        final long wallNanos = System.nanoTime() - startNanos;
+
+        sampling.shutdownNow();
+        sampler.run();
+        final int peakThreads = threads.getPeakThreadCount();
+        final long[] gcAtEnd = gcCountAndMillis();
+        sender.shutdownNow();
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+        System.gc();
+        final long heapAtEnd = memory.getHeapMemoryUsage().getUsed();
+
+        report(wallNanos);
+        System.out.printf(Locale.ROOT, "Threads: %d at start, %d peak, %d sampled peak%n",
+                threadsAtStart, peakThreads, sampler.mPeakThreads);
+        System.out.printf(Locale.ROOT,
+                "Heap: %.1f MB at start, %.1f MB sampled peak, %.1f MB at end after GC%n",
+                heapAtStart / MB, sampler.mPeakHeap / MB, heapAtEnd / MB);
+        System.out.printf(Locale.ROOT, "GC: %d collections, %d ms%n",
+                gcAtEnd[0] - gcAtStart[0], gcAtEnd[1] - gcAtStart[1]);
+    }
+
+    private byte[] pickAudio() {
+        final double r = ThreadLocalRandom.current().nextDouble();
+        if (r < mEmptyRate) {
+            return new byte[0];
+        }
+        return r < mEmptyRate + mSilenceRate ? mSilence : mSpeech;
+    }
+
+    /**
+     * @return the auth message as the app builds it, see ConnectionConfig.createAuthMessage
+     */
+    private String authMessage() {
+        final String timestamp = Long.toString(System.currentTimeMillis() / 1000);
+        return new JSONObject()
+                .put("appID", mAppId)
+                .put("appKey", StandInServer.sha1Hex(timestamp + mAppId + mAppSecret))
+                .put("timestamp", timestamp)
+                .put("enable-postprocess", new JSONArray())
+                .put("enable-partial-postprocess", new JSONArray())
+                .put("custom-info", "{}")
+                .toString();
+    }
+
+    private synchronized void record(ClientSession session) {
+        final long[] nanos = {session.getConnectNanos(), session.getFirstPartialNanos(),
+                session.getFinalNanos(), session.getSessionNanos()};
+        for (int i = 0; i < nanos.length; i++) {
+            if (nanos[i] >= 0) {
+                mLatencies[i].record(TimeUnit.NANOSECONDS.toMicros(nanos[i]));
+            }
+        }
+        mOutcomes.merge(session.getOutcome(), 1, Integer::sum);
+        mBytesSent += session.getBytesSent();
+        mMessagesReceived += session.getMessageCount();
+    }
+
+    private synchronized void report(long wallNanos) {
+        final double seconds = wallNanos / 1e9;
+        final double audioSeconds = mBytesSent / (mSampleRate * 2.0);
+        System.out.printf(Locale.ROOT, "Sessions: %d in %.2f s, %.1f/s, %d at a time%n",
+                mTotal, seconds, mTotal / seconds, mSessions);
+        System.out.println("Outcomes: " + mOutcomes);
+        System.out.printf(Locale.ROOT,
+                "Audio: %.1f s sent, %.1f s per second, %.2f MB/s; %.1f messages/s received%n",
+                audioSeconds, audioSeconds / seconds, mBytesSent / MB / seconds,
+                mMessagesReceived / seconds);
+        System.out.printf(Locale.ROOT, "%-14s %7s %9s %9s %9s %9s%n",
+                "Latency (ms)", "count", "p50", "p90", "p99", "max");
+        for (int i = 0; i < PHASES.length; i++) {
+            final LatencyHistogram h = mLatencies[i];
+            System.out.printf(Locale.ROOT, "%-14s %7d %9.1f %9.1f %9.1f %9.1f%n",
+                    PHASES[i], h.getCount(), h.getPercentile(50) / 1e3,
+                    h.getPercentile(90) / 1e3, h.getPercentile(99) / 1e3, h.getMax() / 1e3);
+        }
+    }
+
+    /**
+     * Keeps the highest thread count and heap use seen.
+     */
+    private static final class ResourceSampler implements Runnable {
+        private final ThreadMXBean mThreads;
+        private final MemoryMXBean mMemory;
+        // guarded by this
+        private int mPeakThreads;
+        private long mPeakHeap;
+
+        ResourceSampler(ThreadMXBean threads, MemoryMXBean memory) {
+            mThreads = threads;
+            mMemory = memory;
+        }
+
+        @Override
+        public synchronized void run() {
+            mPeakThreads = Math.max(mPeakThreads, mThreads.getThreadCount());
+            mPeakHeap = Math.max(mPeakHeap, mMemory.getHeapMemoryUsage().getUsed());
+        }
+    }
+
+    private static long[] gcCountAndMillis() {
+        final long[] total = new long[2];
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total[0] += Math.max(0, gc.getCollectionCount());
+            total[1] += Math.max(0, gc.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * @return S16LE audio loud enough to count as speech: a few harmonics, swelling and fading
+     * three times a second like syllables
+     */
+    static byte[] speech(int sampleRate, long millis) {
+        final int samples = (int) (sampleRate * millis / 1000);
+        final byte[] pcm = new byte[samples * 2];
+        for (int i = 0; i < samples; i++) {
+            final double t = (double) i / sampleRate;
+            final double envelope = 0.5 * (1 - Math.cos(2 * Math.PI * 3 * t));
+            final double value = envelope * (6000 * Math.sin(2 * Math.PI * 150 * t)
+                    + 3000 * Math.sin(2 * Math.PI * 450 * t)
+                    + 1500 * Math.sin(2 * Math.PI * 1200 * t));
+            putSample(pcm, i, (int) value);
+        }
+        return pcm;
+    }
+
+    /**
+     * @return S16LE background noise, far below the level of speech
+     */
+    static byte[] silence(int sampleRate, long millis) {
+        final int samples = (int) (sampleRate * millis / 1000);
+        final byte[] pcm = new byte[samples * 2];
+        final Random random = new Random(1);
+        for (int i = 0; i < samples; i++) {
+            putSample(pcm, i, random.nextInt(41) - 20);
+        }
+        return pcm;
+    }
+
+    private static void putSample(byte[] pcm, int index, int sample) {
+        pcm[2 * index] = (byte) sample;
+        pcm[2 * index + 1] = (byte) (sample >> 8);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final Args parsed = new Args(args);
+        final String url = parsed.getString("url", null);
+        StandInServer server = null;
+        if (url == null) {
+            server = new StandInServer(StandInServer.Options.parse(parsed));
+        }
+        final LoadHarness harness = new LoadHarness(parsed, url == null ? server.getUrl() : url);
+        parsed.checkAllUsed();
+        try {
+            harness.run();
+        } finally {
+            if (server != null) {
+                System.out.printf(Locale.ROOT, "Stand-in: %d sessions, %.2f MB received, "
+                                + "%d messages sent%n", server.getSessionCount(),
+                        server.getBytesReceived() / MB, server.getMessagesSent());
+                server.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,419 @@
+package com.tilde.pip_news_bot.speech.loadtest;
+
+import com.tilde.pip_news_bot.speech.WebSocketResponse;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Stands in for the ASR server, speaking the protocol the app's client speaks: the auth JSON
+ * first, then raw S16LE audio in binary messages, then the "EOS" text. It answers with
+ * partial results at a fixed cadence of audio time, a final result once the audio has ended,
+ * and the adaptation state, each after a configurable delay, and then closes.
+ * <p>
+ * Every status the client handles can be produced: {@link WebSocketResponse#STATUS_NOT_AVAILABLE}
+ * for a share of the sessions, {@link WebSocketResponse#STATUS_ABORTED} for another share
+ * part way through the audio and for bad auth or audio formats,
+ * {@link WebSocketResponse#STATUS_NO_SPEECH} if the audio was all silence, and
+ * {@link WebSocketResponse#STATUS_NO_VALID_FRAMES} if there was none.
+ * <p>
+ * There is no recognition, the transcripts are made up words, one for every
+ * {@link #WORD_MILLIS} of audio. Can be run on its own:
+ * <pre>
+ *   ./gradlew :speech-loadtest:standIn --args='--port 8080 --final-delay-ms 300'
+ * </pre>
+ */
+public final class StandInServer implements AutoCloseable {
+
+    public static final class Options {
+        // 0 for any free port
+        public int port;
+        // a partial result for every this much audio, 0 for none
+        public long partialMillis = 500;
+        // from the audio that triggers a partial result to the result
+        public long partialDelayMillis = 50;
+        // from EOS to the final result
+        public long finalDelayMillis = 200;
+        // a final result for every this much audio, as in continuous recognition, 0 for none
+        public long segmentMillis;
+        public int hypotheses = 1;
+        // shares of the sessions that are refused as busy and aborted part way through
+        public double busyRate;
+        public double abortRate;
+        // if set, the appKey of the auth message is checked against it
+        public String appSecret;
+
+        static Options parse(Args args) {
+            Options options = new Options();
+            options.port = args.getInt("port", options.port);
+            options.partialMillis = args.getLong("partial-ms", options.partialMillis);
+            options.partialDelayMillis =
+                    args.getLong("partial-delay-ms", options.partialDelayMillis);
+            options.finalDelayMillis = args.getLong("final-delay-ms", options.finalDelayMillis);
+            options.segmentMillis = args.getLong("segment-ms", options.segmentMillis);
+            options.hypotheses = args.getInt("hypotheses", options.hypotheses);
+            options.busyRate = args.getDouble("busy-rate", options.busyRate);
+            options.abortRate = args.getDouble("abort-rate", options.abortRate);
+            options.appSecret = args.getString("app-secret", options.appSecret);
+            return options;
+        }
+    }
+
+    public static final long WORD_MILLIS = 400;
+
+    // audio quieter than this RMS, about -40 dBFS, is silence
+    private static final int SPEECH_RMS = 300;
+    // aborted sessions are aborted somewhere in their first this much audio
+    private static final long ABORT_WITHIN_MILLIS = 2000;
+    private static final Pattern RATE = Pattern.compile("rate=\\(int\\)(\\d+)");
+
+    private final Options mOptions;
+    private final ServerSocket mServerSocket;
+    // sends the responses when they are due, one thread for all sessions
+    private final ScheduledExecutorService mScheduler =
+            Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "stand-in-scheduler"));
+    private final AtomicInteger mSessionCount = new AtomicInteger();
+    private final AtomicInteger mActiveCount = new AtomicInteger();
+    private final AtomicLong mBytesReceived = new AtomicLong();
+    private final AtomicLong mMessagesSent = new AtomicLong();
+
+    public StandInServer(Options options) throws IOException {
+        mOptions = options;
+        mServerSocket = new ServerSocket(options.port, 1024, InetAddress.getLoopbackAddress());
+        daemon(this::accept, "stand-in-accept").start();
+    }
+
+    /**
+     * @return the address to connect to, the ASR system goes after it
+     */
+    public String getUrl() {
+        return "ws://127.0.0.1:" + mServerSocket.getLocalPort();
+    }
+
+    public int getSessionCount() {
+        return mSessionCount.get();
+    }
+
+    public int getActiveCount() {
+        return mActiveCount.get();
+    }
+
+    public long getBytesReceived() {
+        return mBytesReceived.get();
+    }
+
+    public long getMessagesSent() {
+        return mMessagesSent.get();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mServerSocket.close();
+        mScheduler.shutdownNow();
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = mServerSocket.accept();
+                socket.setTcpNoDelay(true);
+                final int id = mSessionCount.incrementAndGet();
+                daemon(new WebSocketConnection(socket, new Session()), "stand-in-" + id).start();
+            }
+        } catch (IOException e) {
+            // closed
+        }
+    }
+
+    /**
+     * One recognition session. Called from its connection's thread only, except for the
+     * scheduled sends.
+     */
+    private final class Session implements WebSocketConnection.Listener {
+        private int mSampleRate;
+        private boolean mIsOpen;
+        private boolean mIsAuthorized;
+        private boolean mIsDone;
+        private long mBytes;
+        private long mSpeechBytes;
+        private long mSegmentStart;
+        private int mSegment;
+        private long mNextPartialBytes;
+        private long mAbortAtBytes = Long.MAX_VALUE;
+        // when the latest response is due, so that responses keep their order
+        private long mLastDueNanos;
+        // guarded by this, the tasks not run yet, in the order they are due
+        private final ArrayDeque<Long> mDueNanos = new ArrayDeque<>();
+        private final ArrayDeque<Runnable> mDueTasks = new ArrayDeque<>();
+
+        @Override
+        public void onOpen(WebSocketConnection connection, String path) {
+            mIsOpen = true;
+            mActiveCount.incrementAndGet();
+            mSampleRate = parseSampleRate(path);
+            final ThreadLocalRandom random = ThreadLocalRandom.current();
+            if (random.nextDouble() < mOptions.busyRate) {
+                finish(connection, 0, error(WebSocketResponse.STATUS_NOT_AVAILABLE,
+                        "No decoder available, try again later"));
+                return;
+            }
+            if (random.nextDouble() < mOptions.abortRate && mSampleRate > 0) {
+                mAbortAtBytes = random.nextLong(bytesFor(ABORT_WITHIN_MILLIS)) & ~1L;
+            }
+            mNextPartialBytes = bytesFor(mOptions.partialMillis);
+        }
+
+        @Override
+        public void onText(WebSocketConnection connection, String text) {
+            if (mIsDone) {
+                return;
+            }
+            if (!mIsAuthorized) {
+                if (!isAuthorized(text)) {
+                    finish(connection, 0,
+                            error(WebSocketResponse.STATUS_ABORTED, "Authorization failed"));
+                } else if (mSampleRate <= 0) {
+                    finish(connection, 0,
+                            error(WebSocketResponse.STATUS_ABORTED, "Only raw S16LE is supported"));
+                } else {
+                    mIsAuthorized = true;
+                }
+            } else if ("EOS".equals(text)) {
+                if (mBytes == 0) {
+                    finish(connection, mOptions.finalDelayMillis,
+                            error(WebSocketResponse.STATUS_NO_VALID_FRAMES, "No valid frames"));
+                } else if (mSpeechBytes == 0) {
+                    finish(connection, mOptions.finalDelayMillis,
+                            error(WebSocketResponse.STATUS_NO_SPEECH, "No speech"));
+                } else {
+                    // in segments, the audio since the latest one makes the last
+                    if (mBytes > mSegmentStart) {
+                        send(connection, mOptions.finalDelayMillis, result(true));
+                    }
+                    finish(connection, mOptions.finalDelayMillis, adaptationState());
+                }
+            }
+        }
+
+        @Override
+        public void onBinary(WebSocketConnection connection, byte[] data, int length) {
+            if (mIsDone) {
+                return;
+            }
+            if (!mIsAuthorized) {
+                finish(connection, 0,
+                        error(WebSocketResponse.STATUS_ABORTED, "Audio before authorization"));
+                return;
+            }
+            mBytesReceived.addAndGet(length);
+            mBytes += length;
+            if (rms(data, length) > SPEECH_RMS) {
+                mSpeechBytes += length;
+            }
+            if (mBytes >= mAbortAtBytes) {
+                finish(connection, 0, error(WebSocketResponse.STATUS_ABORTED, "Aborted"));
+                return;
+            }
+            if (mOptions.segmentMillis > 0
+                    && mBytes - mSegmentStart >= bytesFor(mOptions.segmentMillis)) {
+                send(connection, mOptions.partialDelayMillis, result(true));
+                mSegment++;
+                mSegmentStart = mBytes;
+            }
+            if (mOptions.partialMillis > 0 && mBytes >= mNextPartialBytes) {
+                send(connection, mOptions.partialDelayMillis, result(false));
+                while (mNextPartialBytes <= mBytes) {
+                    mNextPartialBytes += bytesFor(mOptions.partialMillis);
+                }
+            }
+        }
+
+        @Override
+        public void onClosed(WebSocketConnection connection) {
+            mIsDone = true;
+            if (mIsOpen) {
+                mActiveCount.decrementAndGet();
+            }
+        }
+
+        private boolean isAuthorized(String text) {
+            try {
+                JSONObject auth = new JSONObject(text);
+                final String appId = auth.getString("appID");
+                final String appKey = auth.getString("appKey");
+                final String timestamp = auth.getString("timestamp");
+                return mOptions.appSecret == null
+                        || appKey.equals(sha1Hex(timestamp + appId + mOptions.appSecret));
+            } catch (JSONException e) {
+                return false;
+            }
+        }
+
+        private String result(boolean isFinal) {
+            final long words = Math.max(1,
+                    (mBytes - mSegmentStart) * 1000 / Math.max(1, bytesFor(1000)) / WORD_MILLIS);
+            final StringBuilder transcript = new StringBuilder();
+            for (long i = 0; i < words; i++) {
+                transcript.append(i == 0 ? "" : " ").append("vārds").append(i + 1);
+            }
+            final JSONArray hypotheses = new JSONArray();
+            for (int i = 0; i < mOptions.hypotheses; i++) {
+                hypotheses.put(new JSONObject().put("transcript",
+                        i == 0 ? transcript.toString() : transcript + " " + i));
+            }
+            return new JSONObject()
+                    .put("status", WebSocketResponse.STATUS_SUCCESS)
+                    .put("segment", mSegment)
+                    .put("result", new JSONObject()
+                            .put("hypotheses", hypotheses)
+                            .put("final", isFinal))
+                    .toString();
+        }
+
+        private String adaptationState() {
+            return new JSONObject()
+                    .put("status", WebSocketResponse.STATUS_SUCCESS)
+                    .put("adaptation_state", new JSONObject()
+                            .put("type", "string+gzip+base64")
+                            .put("value", ""))
+                    .toString();
+        }
+
+        /**
+         * Sends the last response and closes, anything that comes in after is ignored.
+         */
+        private void finish(WebSocketConnection connection, long delayMillis, String message) {
+            send(connection, delayMillis, message);
+            mIsDone = true;
+            schedule(0, () -> connection.close(WebSocketConnection.CLOSE_NORMAL));
+        }
+
+        private void send(WebSocketConnection connection, long delayMillis, String message) {
+            schedule(delayMillis, () -> {
+                connection.sendText(message);
+                mMessagesSent.incrementAndGet();
+            });
+        }
+
+        /**
+         * Runs the task after the delay, but not before the tasks scheduled earlier.
+         */
+        private void schedule(long delayMillis, Runnable task) {
+            final long now = System.nanoTime();
+            final long due = Math.max(now + TimeUnit.MILLISECONDS.toNanos(delayMillis),
+                    mLastDueNanos);
+            mLastDueNanos = due;
+            synchronized (this) {
+                mDueNanos.add(due);
+                mDueTasks.add(task);
+            }
+            // the scheduler may run tasks due at about the same time in either order, so
+            // each run takes whatever is due from the queue
+            mScheduler.schedule(this::runDue, due - now, TimeUnit.NANOSECONDS);
+        }
+
+        private synchronized void runDue() {
+            final long now = System.nanoTime();
+            while (!mDueNanos.isEmpty() && mDueNanos.peek() <= now) {
+                mDueNanos.poll();
+                mDueTasks.poll().run();
+            }
+        }
+
+        private long bytesFor(long millis) {
+            return mSampleRate * 2L * millis / 1000;
+        }
+    }
+
+    /**
+     * @return the sample rate of the raw S16LE audio the request path asks for, 0 if it does
+     * not ask for that
+     */
+    static int parseSampleRate(String path) {
+        final int query = path.indexOf("content-type=");
+        if (query < 0) {
+            return 0;
+        }
+        final String contentType;
+        try {
+            contentType = URLDecoder.decode(path.substring(query), "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return 0;
+        }
+        final Matcher rate = RATE.matcher(contentType);
+        if (!contentType.contains("audio/x-raw") || !contentType.contains("S16LE")
+                || !rate.find()) {
+            return 0;
+        }
+        return Integer.parseInt(rate.group(1));
+    }
+
+    private static String error(int status, String message) {
+        return new JSONObject().put("status", status).put("message", message).toString();
+    }
+
+    private static double rms(byte[] pcm, int length) {
+        final int samples = length / 2;
+        if (samples == 0) {
+            return 0;
+        }
+        long sum = 0;
+        for (int i = 0; i < samples; i++) {
+            final int sample = (short) ((pcm[2 * i] & 0xff) | (pcm[2 * i + 1] << 8));
+            sum += sample * sample;
+        }
+        return Math.sqrt((double) sum / samples);
+    }
+
+    static String sha1Hex(String text) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest(text.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder hex = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                hex.append(String.format(Locale.ROOT, "%02x", b & 0xff));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        final Args parsed = new Args(args);
+        final Options options = Options.parse(parsed);
+        parsed.checkAllUsed();
+        try (StandInServer server = new StandInServer(options)) {
+            System.out.println("Listening on " + server.getUrl());
+            Thread.currentThread().join();
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package com.tilde.pip_news_bot.speech.loadtest;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Locale;
+
+/**
+ * The server side of one WebSocket connection (RFC 6455), just enough of it for the stand-in:
+ * the upgrade handshake, text and binary messages, fragmentation, ping and close. No
+ * extensions, so frames are never compressed.
+ * <p>
+ * {@link #run()} reads on the calling thread until the connection is closed, and calls the
+ * listener from there. Sending is thread-safe.
+ */
+final class WebSocketConnection implements Runnable {
+
+    interface Listener {
+        /**
+         * @param path the request path, with the query string
+         */
+        void onOpen(WebSocketConnection connection, String path);
+
+        void onText(WebSocketConnection connection, String text);
+
+        /**
+         * @param data only valid during the call
+         */
+        void onBinary(WebSocketConnection connection, byte[] data, int length);
+
+        void onClosed(WebSocketConnection connection);
+    }
+
+    static final int CLOSE_NORMAL = 1000;
+    static final int CLOSE_PROTOCOL_ERROR = 1002;
+    static final int CLOSE_TOO_BIG = 1009;
+
+    private static final String ACCEPT_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_MESSAGE_LENGTH = 16 * 1024 * 1024;
+
+    private static final int OP_CONTINUATION = 0;
+    private static final int OP_TEXT = 1;
+    private static final int OP_BINARY = 2;
+    private static final int OP_CLOSE = 8;
+    private static final int OP_PING = 9;
+    private static final int OP_PONG = 10;
+
+    private final Socket mSocket;
+    private final Listener mListener;
+    private final InputStream mIn;
+    // guarded by itself
+    private final OutputStream mOut;
+    private final byte[] mHeader = new byte[10];
+    private final byte[] mMask = new byte[4];
+    // the message being read, reused from message to message
+    private byte[] mMessage = new byte[8192];
+    private int mMessageLength;
+    private int mMessageOpcode;
+    // guarded by mOut
+    private boolean mIsCloseSent;
+
+    WebSocketConnection(Socket socket, Listener listener) throws IOException {
+        mSocket = socket;
+        mListener = listener;
+        mIn = new BufferedInputStream(socket.getInputStream());
+        mOut = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    @Override
+    public void run() {
+        try {
+            final String path = handshake();
+            if (path == null) {
+                return;
+            }
+            mListener.onOpen(this, path);
+            while (readFrame()) {
+                // the listener is called from readFrame
+            }
+        } catch (IOException ignored) {
+            // the peer went away, there is no one to tell
+        } finally {
+            closeSocket();
+            mListener.onClosed(this);
+        }
+    }
+
+    void sendText(String text) {
+        final byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        synchronized (mOut) {
+            if (!mIsCloseSent) {
+                writeFrame(OP_TEXT, payload, payload.length);
+            }
+        }
+    }
+
+    /**
+     * Starts the closing handshake, the socket is closed once the peer answers.
+     */
+    void close(int code) {
+        synchronized (mOut) {
+            if (!mIsCloseSent) {
+                mIsCloseSent = true;
+                writeFrame(OP_CLOSE, new byte[]{(byte) (code >> 8), (byte) code}, 2);
+            }
+        }
+    }
+
+    /**
+     * @return the path asked for, or null if the request was not a WebSocket upgrade
+     */
+    private String handshake() throws IOException {
+        final String requestLine = readLine();
+        String key = null;
+        for (String line = readLine(); !line.isEmpty(); line = readLine()) {
+            final int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().toLowerCase(Locale.ROOT)
+                    .equals("sec-websocket-key")) {
+                key = line.substring(colon + 1).trim();
+            }
+        }
+        final String[] parts = requestLine.split(" ");
+        if (key == null || parts.length != 3 || !parts[0].equals("GET")) {
+            write("HTTP/1.1 400 Bad Request\r\nContent-Length: 0\r\nConnection: close\r\n\r\n");
+            return null;
+        }
+        write("HTTP/1.1 101 Switching Protocols\r\n"
+                + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n"
+                + "Sec-WebSocket-Accept: " + accept(key) + "\r\n\r\n");
+        return parts[1];
+    }
+
+    /**
+     * Reads a frame and delivers the message once it is complete.
+     *
+     * @return false once the connection is closing
+     */
+    private boolean readFrame() throws IOException {
+        readFully(mHeader, 0, 2);
+        final boolean isFinal = (mHeader[0] & 0x80) != 0;
+        final int opcode = mHeader[0] & 0x0f;
+        final boolean isMasked = (mHeader[1] & 0x80) != 0;
+        long length = mHeader[1] & 0x7f;
+        if (length == 126) {
+            readFully(mHeader, 0, 2);
+            length = ((mHeader[0] & 0xff) << 8) | (mHeader[1] & 0xff);
+        } else if (length == 127) {
+            readFully(mHeader, 0, 8);
+            length = 0;
+            for (int i = 0; i < 8; i++) {
+                length = (length << 8) | (mHeader[i] & 0xff);
+            }
+        }
+        if (!isMasked) {
+            // clients must mask what they send
+            close(CLOSE_PROTOCOL_ERROR);
+            return false;
+        }
+        readFully(mMask, 0, 4);
+        if (opcode >= OP_CLOSE) {
+            if (length > 125 || !isFinal) {
+                close(CLOSE_PROTOCOL_ERROR);
+                return false;
+            }
+            final byte[] payload = new byte[(int) length];
+            readPayload(payload, 0, payload.length);
+            return onControlFrame(opcode, payload);
+        }
+        if (opcode != OP_CONTINUATION) {
+            mMessageOpcode = opcode;
+            mMessageLength = 0;
+        }
+        if (length > MAX_MESSAGE_LENGTH - mMessageLength) {
+            close(CLOSE_TOO_BIG);
+            return false;
+        }
+        final int end = mMessageLength + (int) length;
+        if (end > mMessage.length) {
+            mMessage = Arrays.copyOf(mMessage, Math.max(end, 2 * mMessage.length));
+        }
+        readPayload(mMessage, mMessageLength, (int) length);
+        mMessageLength = end;
+        if (isFinal) {
+            if (mMessageOpcode == OP_TEXT) {
+                mListener.onText(this,
+                        new String(mMessage, 0, mMessageLength, StandardCharsets.UTF_8));
+            } else if (mMessageOpcode == OP_BINARY) {
+                mListener.onBinary(this, mMessage, mMessageLength);
+            }
+        }
+        return true;
+    }
+
+    private boolean onControlFrame(int opcode, byte[] payload) {
+        if (opcode == OP_PING) {
+            synchronized (mOut) {
+                if (!mIsCloseSent) {
+                    writeFrame(OP_PONG, payload, payload.length);
+                }
+            }
+            return true;
+        } else if (opcode == OP_CLOSE) {
+            // echo the code, and then the socket can go
+            synchronized (mOut) {
+                if (!mIsCloseSent) {
+                    mIsCloseSent = true;
+                    writeFrame(OP_CLOSE, payload, Math.min(payload.length, 2));
+                }
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private void readPayload(byte[] buffer, int offset, int length) throws IOException {
+        readFully(buffer, offset, length);
+        for (int i = 0; i < length; i++) {
+            buffer[offset + i] ^= mMask[i & 3];
+        }
+    }
+
+    private void readFully(byte[] buffer, int offset, int length) throws IOException {
+        while (length > 0) {
+            final int read = mIn.read(buffer, offset, length);
+            if (read < 0) {
+                throw new EOFException();
+            }
+            offset += read;
+            length -= read;
+        }
+    }
+
+    private String readLine() throws IOException {
+        final StringBuilder line = new StringBuilder();
+        for (int c = mIn.read(); c != '\n'; c = mIn.read()) {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            if (c != '\r') {
+                line.append((char) c);
+            }
+        }
+        return line.toString();
+    }
+
+    private void write(String response) throws IOException {
+        synchronized (mOut) {
+            mOut.write(response.getBytes(StandardCharsets.ISO_8859_1));
+            mOut.flush();
+        }
+    }
+
+    /**
+     * Writes an unmasked frame, a failure closes the socket so that the reader stops.
+     */
+    private void writeFrame(int opcode, byte[] payload, int length) {
+        final byte[] header;
+        if (length < 126) {
+            header = new byte[]{(byte) (0x80 | opcode), (byte) length};
+        } else if (length <= 0xffff) {
+            header = new byte[]{(byte) (0x80 | opcode), 126, (byte) (length >> 8),
+                    (byte) length};
+        } else {
+            header = new byte[]{(byte) (0x80 | opcode), 127, 0, 0, 0, 0,
+                    (byte) (length >> 24), (byte) (length >> 16), (byte) (length >> 8),
+                    (byte) length};
+        }
+        try {
+            mOut.write(header);
+            mOut.write(payload, 0, length);
+            mOut.flush();
+        } catch (IOException e) {
+            closeSocket();
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            mSocket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static String accept(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1")
+                    .digest((key + ACCEPT_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            // every JVM has SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -85,7 +85,8 @@ class ChatState extends State<ChatScreen> {
         }));
     _asr
         .activate(config["asr_endpoint"], config["asr_system"],
-            config["asr_app_id"], config["asr_app_secret"])
+            config["asr_app_id"], config["asr_app_secret"],
+            sampleRate: config["asr_sample_rate"])
         .then((dynamic available) => setState(() {
               // TODO anything else?
               _log.fine("asr is available: $available");
@@ -8,6 +8,18 @@ final Logger _log = Logger("SpeechRecognition");
 typedef void AvailabilityHandler(bool result);
 typedef void StringResultHandler(String text);
 
+/// Latencies in milliseconds per phase of a recognition session, e.g.
+/// `latency['first_partial']['p99']`, see Extras.EXTRA_LATENCY on Android.
+typedef void LatencyHandler(Map<String, Map<String, int>> latency);
+
+/// An utterance recorded while the ASR server was unreachable has been queued
+/// under [id], its transcript follows with a [SpooledResultHandler] call.
+typedef void SpooledHandler(int id);
+
+/// The transcript of the utterance spooled under [id], or the Android
+/// SpeechRecognizer error code it failed with, if [error] is not 0.
+typedef void SpooledResultHandler(int id, String transcript, int error);
+
 /// the channel to control the speech recognition
 class SpeechRecognition {
   // TODO make this configurable via secrets/config.json
@@ -33,11 +45,42 @@ class SpeechRecognition {
 
   VoidCallback errorHandler;
 
+  LatencyHandler latencyHandler;
+
+  SpooledHandler spooledHandler;
+
+  SpooledResultHandler spooledResultHandler;
+
+  final TranscriptReassembler _partialTranscript = TranscriptReassembler();
+
   /// ask for speech recognizer permission beforehand!
+  /// [endpoint] may list several servers running [system], separated by
+  /// commas, each session then goes to the fastest healthy one.
+  /// [preconnect] opens the connection to the ASR server right away, so that
+  /// the first [listen] does not have to wait for the handshake.
+  /// [sampleRate] is the rate [system] expects the audio at, e.g. 8000 for a
+  /// narrowband system, the default rate is used if it is null.
+  /// [spoolOffline] keeps the utterances recorded while the server cannot be
+  /// reached, and transcribes them once it can, see [setSpooledHandler].
+  /// [authReuseSeconds] lets sessions starting within that many seconds of
+  /// each other share an auth token. It must stay below how old a timestamp
+  /// the ASR server accepts. By default every connection gets a new token.
   Future activate(
-          String endpoint, String system, String appId, String appSecret) =>
-      _channel.invokeMethod(
-          "speech.activate", <String>[endpoint, system, appId, appSecret]);
+          String endpoint, String system, String appId, String appSecret,
+          {bool preconnect = false,
+          int sampleRate,
+          bool spoolOffline = false,
+          int authReuseSeconds = 0}) =>
+      _channel.invokeMethod("speech.activate", <String>[
+        endpoint,
+        system,
+        appId,
+        appSecret,
+        preconnect.toString(),
+        (sampleRate ?? 0).toString(),
+        spoolOffline.toString(),
+        authReuseSeconds.toString()
+      ]);
 
   /// start listening
   Future listen({String locale}) =>
@@ -49,6 +92,17 @@ class SpeechRecognition {
   /// stop listening
   Future stop() => _channel.invokeMethod("speech.stop");
 
+  /// Counters of the Android streaming pipeline since the app started, see
+  /// SpeechMetrics.snapshot() on Android.
+  Future<Map<dynamic, dynamic>> metrics() =>
+      _channel.invokeMethod("speech.metrics");
+
+  /// Keeps the captured audio of the latest [sessions] sessions as WAV files
+  /// in the "sessions" directory of the app's external files dir, for
+  /// debugging and quality review, 0 keeps none.
+  Future archive(int sessions) =>
+      _channel.invokeMethod("speech.archive", sessions);
+
   Future _platformCallHandler(MethodCall call) async {
     print("_platformCallHandler call ${call.method} ${call.arguments}");
     switch (call.method) {
@@ -61,15 +115,45 @@ class SpeechRecognition {
       case "speech.onSpeech":
         recognitionResultHandler(call.arguments);
         break;
+      case "speech.onSpeechDelta":
+        final List<dynamic> delta = call.arguments;
+        recognitionResultHandler(_partialTranscript.apply(delta[0], delta[1]));
+        break;
       case "speech.onRecognitionStarted":
+        _partialTranscript.reset();
         recognitionStartedHandler();
         break;
       case "speech.onRecognitionComplete":
+        _partialTranscript.reset();
         recognitionCompleteHandler(call.arguments);
         break;
       case "speech.onError":
         errorHandler();
         break;
+      case "speech.onLatency":
+        final Map<String, Map<String, int>> latency = {};
+        (call.arguments as Map).forEach((phase, values) =>
+            latency[phase] = Map<String, int>.from(values));
+        if (latencyHandler != null) {
+          latencyHandler(latency);
+        } else {
+          _log.info('Latency: $latency');
+        }
+        break;
+      case "speech.onSpooled":
+        if (spooledHandler != null) {
+          spooledHandler(call.arguments);
+        }
+        break;
+      case "speech.onSpooledResult":
+        final Map<dynamic, dynamic> result = call.arguments;
+        if (spooledResultHandler != null) {
+          spooledResultHandler(
+              result['id'], result['transcript'], result['error']);
+        } else {
+          _log.info('Spooled result: $result');
+        }
+        break;
       default:
         _log.warning('Unknown method ${call.method} ');
     }
@@ -95,6 +179,33 @@ class SpeechRecognition {
       currentLocaleHandler = handler;
 
   void setErrorHandler(VoidCallback handler) => errorHandler = handler;
+
+  void setLatencyHandler(LatencyHandler handler) => latencyHandler = handler;
+
+  void setSpooledHandler(SpooledHandler handler) => spooledHandler = handler;
+
+  void setSpooledResultHandler(SpooledResultHandler handler) =>
+      spooledResultHandler = handler;
+}
+
+/// Rebuilds partial transcripts from the deltas sent by the Android plugin:
+/// each delta keeps [prefixLength] code units of the previous transcript and
+/// appends [suffix]. Starts over from an empty transcript after [reset].
+class TranscriptReassembler {
+  String _text = "";
+
+  String get text => _text;
+
+  String apply(int prefixLength, String suffix) {
+    if (prefixLength > _text.length) {
+      _log.warning("Delta prefix $prefixLength beyond ${_text.length}");
+      prefixLength = _text.length;
+    }
+    _text = _text.substring(0, prefixLength) + suffix;
+    return _text;
+  }
+
+  void reset() => _text = "";
 }
 
 class AsrResult {